@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Included ahead of every file of the baseline's jni/ when make baseline-golden builds it. bitmap.c there calls these
+// without declaring them, which is harmless on 32 bit ARM but cuts the pointers they return in half on a 64 bit host.
+
+#ifndef HOST_BASELINE
+#define HOST_BASELINE
+
+#include <string.h>
+
+unsigned char* njGetRedImage(void);
+unsigned char* njGetGreenImage(void);
+unsigned char* njGetBlueImage(void);
+
+#endif
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+/**
+ * PhotoProcessing
+ * The native methods of PhotoProcessing as it was in the baseline commit, which worked on one bitmap held in native
+ * memory, so the golden image check can render with a library built from that commit's jni/. Only for the host tools,
+ * the app's PhotoProcessing is in src/ and this one is never used with the current library.
+ */
+public class PhotoProcessing {
+	static {
+		System.loadLibrary("photoprocessing");
+	}
+
+	/** Applies a filter to the native bitmap, positions are the same as in HostPhotoProcessing.FILTER_NAMES */
+	public static void applyFilter(int position) {
+		switch (position) {
+		case 0: // Original
+			break;
+		case 1: // Instafix
+			nativeApplyInstafix();
+			break;
+		case 2: // Ansel
+			nativeApplyAnsel();
+			break;
+		case 3: // Testino
+			nativeApplyTestino();
+			break;
+		case 4: // XPro
+			nativeApplyXPro();
+			break;
+		case 5: // Retro
+			nativeApplyRetro();
+			break;
+		case 6: // Black & White
+			nativeApplyBW();
+			break;
+		case 7: // Sepia
+			nativeApplySepia();
+			break;
+		case 8: // Cyano
+			nativeApplyCyano();
+			break;
+		case 9: // Georgia
+			nativeApplyGeorgia();
+			break;
+		case 10: // Sahara
+			nativeApplySahara();
+			break;
+		case 11: // HDR
+			nativeApplyHDR();
+			break;
+		default:
+			throw new IllegalArgumentException("No filter at position " + position);
+		}
+	}
+
+	public static native int nativeInitBitmap(int width, int height);
+	public static native void nativeGetBitmapRow(int y, int[] pixels);
+	public static native void nativeSetBitmapRow(int y, int[] pixels);
+	public static native int nativeGetBitmapWidth();
+	public static native int nativeGetBitmapHeight();
+	public static native void nativeDeleteBitmap();
+
+	public static native void nativeApplyInstafix();
+	public static native void nativeApplyAnsel();
+	public static native void nativeApplyTestino();
+	public static native void nativeApplyXPro();
+	public static native void nativeApplyRetro();
+	public static native void nativeApplyBW();
+	public static native void nativeApplySepia();
+	public static native void nativeApplyCyano();
+	public static native void nativeApplyGeorgia();
+	public static native void nativeApplySahara();
+	public static native void nativeApplyHDR();
+
+	/** Declared void in the baseline's Java, the native function returns 0 or the error */
+	public static native int nativeLoadResizedJpegBitmap(byte[] jpegData, int size, int maxPixels);
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times the flips and rotations against the ones they replaced, in test/reference_transform.c, and measures how much
+// memory each needs on top of the image: the most native memory in use at once, from mem_utils.c, and how far the
+// peak resident set size grew, from /proc/self/status. Exits with 1 if the two versions gave different pixels.
+//
+//   transform_bench [width height [iterations [threads]]]
+//
+// 4000x3000, the best of 5 and one thread per core by default.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <malloc.h>
+#include <mem_utils.h>
+#include <parallel.h>
+#include <bitmap.h>
+
+void referenceFlipHorizontally(Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+void referenceFlipVertically(Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+int referenceRotate90(Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+void referenceRotate180(Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+
+typedef int (*TransformFunction)(Bitmap* bitmap);
+
+typedef struct {
+	const char* name;
+	TransformFunction current;
+	TransformFunction reference;
+} Transform;
+
+static int currentRotate90(Bitmap* bitmap) {
+	return rotate90(bitmap, 1, 1, 1);
+}
+
+static int currentRotate180(Bitmap* bitmap) {
+	rotate180(bitmap, 1, 1, 1);
+	return MEMORY_OK;
+}
+
+static int currentRotate270(Bitmap* bitmap) {
+	return applyOrientation(bitmap, 3, 1, 1, 1);
+}
+
+static int currentFlipHorizontally(Bitmap* bitmap) {
+	flipHorizontally(bitmap, 1, 1, 1);
+	return MEMORY_OK;
+}
+
+static int currentFlipVertically(Bitmap* bitmap) {
+	flipVertically(bitmap, 1, 1, 1);
+	return MEMORY_OK;
+}
+
+static int oldRotate90(Bitmap* bitmap) {
+	return referenceRotate90(bitmap, 1, 1, 1);
+}
+
+static int oldRotate180(Bitmap* bitmap) {
+	referenceRotate180(bitmap, 1, 1, 1);
+	return MEMORY_OK;
+}
+
+// There was no single call for it, PhotoProcessing turned the image half way round and then another quarter
+static int oldRotate270(Bitmap* bitmap) {
+	referenceRotate180(bitmap, 1, 1, 1);
+	return referenceRotate90(bitmap, 1, 1, 1);
+}
+
+static int oldFlipHorizontally(Bitmap* bitmap) {
+	referenceFlipHorizontally(bitmap, 1, 1, 1);
+	return MEMORY_OK;
+}
+
+static int oldFlipVertically(Bitmap* bitmap) {
+	referenceFlipVertically(bitmap, 1, 1, 1);
+	return MEMORY_OK;
+}
+
+static const Transform TRANSFORMS[] = {
+	{"rotate90", currentRotate90, oldRotate90},
+	{"rotate180", currentRotate180, oldRotate180},
+	{"rotate270", currentRotate270, oldRotate270},
+	{"flipHorizontally", currentFlipHorizontally, oldFlipHorizontally},
+	{"flipVertically", currentFlipVertically, oldFlipVertically},
+};
+
+static double now(void) {
+	struct timespec time;
+	clock_gettime(CLOCK_MONOTONIC, &time);
+	return time.tv_sec * 1000.0 + time.tv_nsec / 1e6;
+}
+
+// Reads a size in kB from /proc/self/status, -1 if it isn't there
+static long readStatus(const char* field) {
+	char line[256];
+	long value = -1;
+	size_t length = strlen(field);
+	FILE* status = fopen("/proc/self/status", "r");
+	if (status == NULL) {
+		return -1;
+	}
+	while (fgets(line, sizeof(line), status) != NULL) {
+		if (strncmp(line, field, length) == 0 && line[length] == ':') {
+			value = atol(line + length + 1);
+			break;
+		}
+	}
+	fclose(status);
+	return value;
+}
+
+// Brings the peak resident set size down to what's resident now, returns 0 if the kernel doesn't allow it
+static int resetPeakRss(void) {
+	FILE* clearRefs = fopen("/proc/self/clear_refs", "w");
+	if (clearRefs == NULL) {
+		return 0;
+	}
+	int written = fputs("5", clearRefs) >= 0;
+	return (fclose(clearRefs) == 0) && written;
+}
+
+static void fillBitmap(Bitmap* bitmap) {
+	unsigned int size = (*bitmap).width * (*bitmap).height;
+	unsigned int seed = 12345;
+	unsigned int i;
+	for (i = 0; i < size; i++) {
+		seed = seed * 1103515245 + 12345;
+		(*bitmap).red[i] = seed >> 24;
+		(*bitmap).green[i] = seed >> 16;
+		(*bitmap).blue[i] = seed >> 8;
+	}
+}
+
+static int sameBitmaps(Bitmap* first, Bitmap* second) {
+	unsigned int size = (*first).redWidth * (*first).redHeight;
+	return (*first).redWidth == (*second).redWidth && (*first).redHeight == (*second).redHeight
+			&& (*first).greenWidth == (*second).greenWidth && (*first).blueWidth == (*second).blueWidth
+			&& memcmp((*first).red, (*second).red, size) == 0 && memcmp((*first).green, (*second).green, size) == 0
+			&& memcmp((*first).blue, (*second).blue, size) == 0;
+}
+
+// Runs a transform on a fresh image each iteration, prints the best time and the memory needed and leaves the last result in *result
+static void measure(const char* name, const char* version, TransformFunction transform, int width, int height, int iterations, Bitmap** result) {
+	double best = 0;
+	unsigned int peakMemory = 0;
+	long peakRss = 0;
+	int canResetRss = 1;
+	int i;
+
+	for (i = 0; i < iterations; i++) {
+		if (*result != NULL) {
+			freeBitmap(result);
+		}
+		if (newBitmap(result) != MEMORY_OK || initBitmapMemory(*result, width, height) != MEMORY_OK) {
+			printf("%s: out of memory\n", name);
+			exit(1);
+		}
+		fillBitmap(*result);
+
+		unsigned int memoryBefore = getMemoryInUse();
+		resetPeakMemoryInUse();
+		canResetRss = canResetRss && resetPeakRss();
+		long rssBefore = readStatus("VmRSS");
+
+		double start = now();
+		if (transform(*result) != MEMORY_OK) {
+			printf("%s: out of memory\n", name);
+			exit(1);
+		}
+		double time = now() - start;
+
+		if (i == 0 || time < best) {
+			best = time;
+		}
+		if (getPeakMemoryInUse() - memoryBefore > peakMemory) {
+			peakMemory = getPeakMemoryInUse() - memoryBefore;
+		}
+		if (readStatus("VmHWM") - rssBefore > peakRss) {
+			peakRss = readStatus("VmHWM") - rssBefore;
+		}
+	}
+
+	if (canResetRss) {
+		printf("%-18s %-8s %9.2f ms %8.2f MB native %8.2f MB peak rss\n", name, version, best, peakMemory / 1048576.0, peakRss / 1024.0);
+	} else {
+		printf("%-18s %-8s %9.2f ms %8.2f MB native %8s peak rss\n", name, version, best, peakMemory / 1048576.0, "n/a");
+	}
+}
+
+int main(int argc, char* argv[]) {
+	int width = (argc > 2) ? atoi(argv[1]) : 4000;
+	int height = (argc > 2) ? atoi(argv[2]) : 3000;
+	int iterations = (argc > 3) ? atoi(argv[3]) : 5;
+	int threads = (argc > 4) ? atoi(argv[4]) : 0;
+	int failures = 0;
+	unsigned int t;
+
+	if (width <= 0 || height <= 0 || iterations <= 0 || threads < 0) {
+		printf("Usage: transform_bench [width height [iterations [threads]]]\n");
+		return 2;
+	}
+
+	// Android maps every large block separately and unmaps it when it's freed, glibc only does once a block is
+	// bigger than a threshold it keeps raising. Fixing the threshold makes the resident set size behave the same.
+	mallopt(M_MMAP_THRESHOLD, 128 * 1024);
+	setThreadCount(threads);
+
+	printf("# %dx%d, best of %d, %d threads\n", width, height, iterations, getThreadCount());
+	for (t = 0; t < sizeof(TRANSFORMS) / sizeof(TRANSFORMS[0]); t++) {
+		Bitmap* current = NULL;
+		Bitmap* reference = NULL;
+		measure(TRANSFORMS[t].name, "old", TRANSFORMS[t].reference, width, height, iterations, &reference);
+		measure(TRANSFORMS[t].name, "current", TRANSFORMS[t].current, width, height, iterations, &current);
+		if (!sameBitmaps(current, reference)) {
+			printf("FAILED %s gave different pixels from the old version\n", TRANSFORMS[t].name);
+			failures++;
+		}
+		freeBitmap(&current);
+		freeBitmap(&reference);
+	}
+
+	if (getMemoryInUse() != 0) {
+		printf("FAILED %u bytes still in use\n", getMemoryInUse());
+		failures++;
+	}
+	return (failures > 0) ? 1 : 0;
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef HOST_ANDROID_LOG
+#define HOST_ANDROID_LOG
+
+#include <stdio.h>
+#include <stdarg.h>
+
+// Stands in for the NDK's logging when the library is built to run off the device.
+// Only errors are printed, to stderr, so a batch run's output isn't buried under the info logs.
+
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_ERROR 6
+
+static inline int __android_log_print(int priority, const char* tag, const char* format, ...) {
+	if (priority < ANDROID_LOG_ERROR) {
+		return 0;
+	}
+
+	va_list args;
+	va_start(args, format);
+	fprintf(stderr, "E/%s: ", tag);
+	int written = vfprintf(stderr, format, args);
+	fputc('\n', stderr);
+	va_end(args);
+
+	return written;
+}
+
+#endif
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+import com.lightbox.android.photoprocessing.Orientation;
+import com.lightbox.android.photoprocessing.host.HostPhotoProcessing;
+
+/**
+ * BatchMain
+ * The command line for {@link BatchProcessor}, run with --help for the options.
+ * Exits with 1 if any image couldn't be processed and 2 if the arguments are wrong.
+ */
+public class BatchMain {
+	private static final String USAGE =
+			"Usage: photoprocessing-batch (--input-dir DIR | --manifest FILE) --output-dir DIR --filter NAME [options]\n" +
+			"\n" +
+			"  --input-dir DIR        every .jpg and .jpeg in DIR\n" +
+			"  --manifest FILE        one jpeg path a line, relative to the manifest's directory, # starts a comment\n" +
+			"  --output-dir DIR       where the results go, named after their inputs\n" +
+			"  --filter NAME          " + join(HostPhotoProcessing.FILTER_NAMES) + " or an index\n" +
+			"  --edit ACTIONS         comma separated, applied in order: " + join(HostPhotoProcessing.EDIT_ACTION_NAMES) + "\n" +
+			"  --quality N            jpeg quality from 0 to 100, 95 by default\n" +
+			"  --max-pixels N         shrink anything bigger than this, full size by default\n" +
+			"  --workers N            images filtered and encoded at once, one per core by default\n" +
+			"  --queue N              images waiting between each pair of stages, 2 by default\n" +
+			"  --filter-threads N     threads each filter is split across, 1 by default as the workers keep the cores busy\n" +
+			"\n" +
+			"Inputs finished by an earlier run with the same settings are skipped, so a stopped batch can be run again to carry on.\n";
+
+	public static void main(String[] args) {
+		File inputDir = null;
+		File manifest = null;
+		File outputDir = null;
+		int filter = -1;
+		List<Integer> editActions = new ArrayList<Integer>();
+		int quality = 95;
+		int maxPixels = Integer.MAX_VALUE;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int queueSize = 2;
+		int filterThreads = 1;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help") || arg.equals("-h")) {
+					System.out.print(USAGE);
+					return;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("--input-dir")) {
+					inputDir = new File(value);
+				} else if (arg.equals("--manifest")) {
+					manifest = new File(value);
+				} else if (arg.equals("--output-dir")) {
+					outputDir = new File(value);
+				} else if (arg.equals("--filter")) {
+					filter = parseName(value, HostPhotoProcessing.FILTER_NAMES, "filter");
+				} else if (arg.equals("--edit")) {
+					for (String action : value.split(",")) {
+						editActions.add(parseName(action.trim(), HostPhotoProcessing.EDIT_ACTION_NAMES, "edit action"));
+					}
+				} else if (arg.equals("--quality")) {
+					quality = parseInt(arg, value, 0, 100);
+				} else if (arg.equals("--max-pixels")) {
+					maxPixels = parseInt(arg, value, 1, Integer.MAX_VALUE);
+				} else if (arg.equals("--workers")) {
+					workers = parseInt(arg, value, 1, 256);
+				} else if (arg.equals("--queue")) {
+					queueSize = parseInt(arg, value, 1, 256);
+				} else if (arg.equals("--filter-threads")) {
+					filterThreads = parseInt(arg, value, 0, 256);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			if ((inputDir == null) == (manifest == null)) {
+				throw new IllegalArgumentException("Give one of --input-dir or --manifest");
+			}
+			if (outputDir == null) {
+				throw new IllegalArgumentException("Missing --output-dir");
+			}
+			if (filter < 0) {
+				throw new IllegalArgumentException("Missing --filter");
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		try {
+			List<File> inputs = (inputDir != null) ? listJpegs(inputDir) : readManifest(manifest);
+			NativeImage.setThreadCount(filterThreads);
+			BatchProcessor processor = new BatchProcessor(filter, Orientation.fromEditActions(editActions), quality, maxPixels, workers, queueSize);
+			BatchProcessor.Result result = processor.run(inputs, outputDir, new BatchProcessor.Listener() {
+				@Override
+				public void onImageFinished(File input, File output, Exception error) {
+					if (error != null) {
+						System.err.println("Failed " + input + ": " + error.getMessage());
+					}
+				}
+			});
+
+			System.out.println(String.format("%d written, %d failed, %d skipped in %.1fs, %.2f images/s", result.getProcessedCount(),
+					result.getFailedCount(), result.getSkippedCount(), result.getElapsedMillis() / 1000.0, result.getImagesPerSecond()));
+			for (int stage = 0; stage < BatchProcessor.STAGE_NAMES.length; stage++) {
+				System.out.println(result.getStageStats(stage));
+			}
+			System.exit((result.getFailedCount() > 0) ? 1 : 0);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (InterruptedException e) {
+			System.exit(1);
+		}
+	}
+
+	private static List<File> listJpegs(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list " + dir);
+		}
+		Arrays.sort(files);
+
+		List<File> jpegs = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName().toLowerCase();
+			if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+				jpegs.add(file);
+			}
+		}
+		return jpegs;
+	}
+
+	private static List<File> readManifest(File manifest) throws IOException {
+		File dir = manifest.getAbsoluteFile().getParentFile();
+		List<File> jpegs = new ArrayList<File>();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				File file = new File(line);
+				jpegs.add(file.isAbsolute() ? file : new File(dir, line));
+			}
+		} finally {
+			reader.close();
+		}
+		return jpegs;
+	}
+
+	private static int parseName(String value, String[] names, String what) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(value)) {
+				return i;
+			}
+		}
+		try {
+			int index = Integer.parseInt(value);
+			if (index >= 0 && index < names.length) {
+				return index;
+			}
+		} catch (NumberFormatException e) {
+			// Not an index either
+		}
+		throw new IllegalArgumentException("Unknown " + what + " " + value);
+	}
+
+	private static int parseInt(String arg, String value, int min, int max) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= min && number <= max) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException(arg + " must be a number from " + min + " to " + max);
+	}
+
+	private static String join(String[] names) {
+		StringBuilder builder = new StringBuilder();
+		for (String name : names) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(name);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+import com.lightbox.android.photoprocessing.Orientation;
+
+/**
+ * BatchProcessor
+ * Applies a filter and orientation to a list of jpegs and writes the results to a directory, without the Android framework.
+ * Each image goes through a pipeline of stages joined by bounded queues, so reading and writing files overlaps
+ * with the native work and a slow stage holds up the ones before it rather than letting images pile up in memory:
+ * <pre>
+ * read (1 thread) -> decode (1 thread) -> filter and encode (worker threads) -> write (1 thread)
+ * </pre>
+ * There's a single decode thread as the decoder only handles one jpeg at a time anyway.
+ * At most workers + 3 * queue size + 3 images are in memory at once.
+ * Finished inputs are recorded in a {@link BatchProgress} journal so running the same batch again skips them.
+ */
+public class BatchProcessor {
+	public static final int STAGE_READ = 0;
+	public static final int STAGE_DECODE = 1;
+	public static final int STAGE_FILTER = 2;
+	public static final int STAGE_ENCODE = 3;
+	public static final int STAGE_WRITE = 4;
+	public static final String[] STAGE_NAMES = {"read", "decode", "filter", "encode", "write"};
+
+	public interface Listener {
+		/**
+		 * Called on the write thread as each input is finished
+		 * @param error why the input couldn't be processed or null if it was written
+		 */
+		void onImageFinished(File input, File output, Exception error);
+	}
+
+	public static class Result {
+		private final int mProcessedCount;
+		private final int mSkippedCount;
+		private final int mFailedCount;
+		private final long mElapsedNanos;
+		private final StageStats[] mStageStats;
+
+		private Result(int processedCount, int skippedCount, int failedCount, long elapsedNanos, StageStats[] stageStats) {
+			mProcessedCount = processedCount;
+			mSkippedCount = skippedCount;
+			mFailedCount = failedCount;
+			mElapsedNanos = elapsedNanos;
+			mStageStats = stageStats;
+		}
+
+		public int getProcessedCount() {
+			return mProcessedCount;
+		}
+
+		/** @return how many inputs were left alone as an earlier run had already finished them */
+		public int getSkippedCount() {
+			return mSkippedCount;
+		}
+
+		public int getFailedCount() {
+			return mFailedCount;
+		}
+
+		public long getElapsedMillis() {
+			return mElapsedNanos / 1000000;
+		}
+
+		/** @return the images written a second, counting from when the first was read until the last was written */
+		public double getImagesPerSecond() {
+			return (mElapsedNanos > 0) ? mProcessedCount * 1e9 / mElapsedNanos : 0;
+		}
+
+		/** @param stage one of the STAGE constants */
+		public StageStats getStageStats(int stage) {
+			return mStageStats[stage];
+		}
+	}
+
+	/** An input on its way through the pipeline */
+	private static class Item {
+		private final File mInput;
+		private final File mOutput;
+		// The jpeg that's been read, then the one that's been encoded
+		private byte[] mData;
+		private NativeImage mImage;
+		private Exception mError;
+
+		public Item(File input, File output) {
+			mInput = input;
+			mOutput = output;
+		}
+	}
+
+	// Passed along behind the last item so each stage knows to stop
+	private static final Item END = new Item(null, null);
+
+	private final int mFilter;
+	private final Orientation mOrientation;
+	private final int mQuality;
+	private final int mMaxPixels;
+	private final int mWorkerCount;
+	private final int mQueueSize;
+
+	private BlockingQueue<Item> mDecodeQueue;
+	private BlockingQueue<Item> mFilterQueue;
+	private BlockingQueue<Item> mWriteQueue;
+	private StageStats[] mStageStats;
+	// Also the lock for stopping the stages, run() holds the processor's own lock while it waits for them
+	private final ArrayList<Thread> mThreads = new ArrayList<Thread>();
+	private volatile Throwable mFailure;
+
+	/**
+	 * @param filter the index of the filter in PhotoProcessing.FILTERS
+	 * @param orientation applied to the pixels after the filter
+	 * @param quality 0 to 100
+	 * @param maxPixels the images are shrunk to this many pixels if they're bigger, Integer.MAX_VALUE keeps them at full size
+	 * @param workerCount how many images are filtered and encoded at once
+	 * @param queueSize how many images can wait between each pair of stages
+	 */
+	public BatchProcessor(int filter, Orientation orientation, int quality, int maxPixels, int workerCount, int queueSize) {
+		mFilter = filter;
+		mOrientation = orientation;
+		mQuality = quality;
+		mMaxPixels = maxPixels;
+		mWorkerCount = workerCount;
+		mQueueSize = queueSize;
+	}
+
+	/** @return everything that changes the outputs, so a journal is only resumed with the same settings */
+	public String getSettings() {
+		return "filter=" + mFilter + " orientation=" + mOrientation + " quality=" + mQuality + " maxPixels=" + mMaxPixels;
+	}
+
+	/**
+	 * Processes the inputs that haven't been already, each is written to the output directory under its own name.
+	 * Only one batch can be run at a time.
+	 * @throws IllegalArgumentException if two inputs have the same name
+	 * @throws IOException if the journal can't be written or a stage stopped unexpectedly
+	 */
+	public synchronized Result run(List<File> inputs, File outputDir, final Listener listener) throws IOException, InterruptedException {
+		outputDir.mkdirs();
+		final BatchProgress progress = new BatchProgress(outputDir, getSettings());
+
+		final ArrayList<Item> items = new ArrayList<Item>();
+		HashSet<String> names = new HashSet<String>();
+		int skipped = 0;
+		for (File input : inputs) {
+			if (!names.add(input.getName())) {
+				progress.close();
+				throw new IllegalArgumentException("More than one input is called " + input.getName());
+			}
+			File output = new File(outputDir, input.getName());
+			if (progress.isFinished(input, output)) {
+				skipped++;
+			} else {
+				items.add(new Item(input, output));
+			}
+		}
+
+		mDecodeQueue = new ArrayBlockingQueue<Item>(mQueueSize);
+		mFilterQueue = new ArrayBlockingQueue<Item>(mQueueSize);
+		mWriteQueue = new ArrayBlockingQueue<Item>(mQueueSize);
+		mStageStats = new StageStats[STAGE_NAMES.length];
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			mStageStats[i] = new StageStats(STAGE_NAMES[i]);
+		}
+		synchronized (mThreads) {
+			mThreads.clear();
+		}
+		mFailure = null;
+		final int[] counts = new int[2]; // written, failed
+
+		long startTime = System.nanoTime();
+		startStage("read", new Stage() {
+			@Override
+			public void run() throws InterruptedException {
+				read(items);
+			}
+		});
+		startStage("decode", new Stage() {
+			@Override
+			public void run() throws InterruptedException {
+				decode();
+			}
+		});
+		for (int i = 0; i < mWorkerCount; i++) {
+			startStage("filter-" + i, new Stage() {
+				@Override
+				public void run() throws InterruptedException {
+					filterAndEncode();
+				}
+			});
+		}
+		Thread writeThread = startStage("write", new Stage() {
+			@Override
+			public void run() throws InterruptedException {
+				write(progress, listener, counts);
+			}
+		});
+
+		try {
+			writeThread.join();
+			for (Thread thread : getThreads()) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			// The stages have to be finished with the queues before they're emptied
+			stop(e);
+			for (Thread thread : getThreads()) {
+				thread.join();
+			}
+			throw e;
+		} finally {
+			// Only left over if the batch was stopped
+			closeImages(mDecodeQueue);
+			closeImages(mFilterQueue);
+			closeImages(mWriteQueue);
+			progress.close();
+		}
+		long elapsed = System.nanoTime() - startTime;
+
+		if (mFailure != null) {
+			throw new IOException("Batch stopped", mFailure);
+		}
+		return new Result(counts[0], skipped, counts[1], elapsed, mStageStats);
+	}
+
+	private interface Stage {
+		void run() throws InterruptedException;
+	}
+
+	private Thread startStage(String name, final Stage stage) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stage.run();
+				} catch (InterruptedException e) {
+					// Stopped by another stage failing
+				} catch (Throwable t) {
+					stop(t);
+				}
+			}
+		}, "batch-" + name);
+		synchronized (mThreads) {
+			mThreads.add(thread);
+		}
+		thread.start();
+		return thread;
+	}
+
+	private Thread[] getThreads() {
+		synchronized (mThreads) {
+			return mThreads.toArray(new Thread[mThreads.size()]);
+		}
+	}
+
+	// Any stage dying would leave the others waiting on their queues forever so they're all stopped
+	private void stop(Throwable failure) {
+		synchronized (mThreads) {
+			if (mFailure == null) {
+				mFailure = failure;
+			}
+			for (Thread thread : mThreads) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	private void read(List<Item> items) throws InterruptedException {
+		for (Item item : items) {
+			long start = System.nanoTime();
+			try {
+				item.mData = readFile(item.mInput);
+				mStageStats[STAGE_READ].add(System.nanoTime() - start);
+			} catch (IOException e) {
+				item.mError = e;
+			}
+			mDecodeQueue.put(item);
+		}
+		mDecodeQueue.put(END);
+	}
+
+	private void decode() throws InterruptedException {
+		Item item;
+		while ((item = mDecodeQueue.take()) != END) {
+			if (item.mError == null) {
+				long start = System.nanoTime();
+				try {
+					item.mImage = NativeImage.loadResizedJpeg(item.mData, item.mData.length, mMaxPixels);
+					mStageStats[STAGE_DECODE].add(System.nanoTime() - start);
+				} catch (IOException e) {
+					item.mError = e;
+				}
+				item.mData = null;
+			}
+			mFilterQueue.put(item);
+		}
+		for (int i = 0; i < mWorkerCount; i++) {
+			mFilterQueue.put(END);
+		}
+	}
+
+	private void filterAndEncode() throws InterruptedException {
+		Item item;
+		while ((item = mFilterQueue.take()) != END) {
+			if (item.mImage != null) {
+				try {
+					long start = System.nanoTime();
+					item.mImage.applyFilter(mFilter);
+					item.mImage.applyOrientation(mOrientation);
+					mStageStats[STAGE_FILTER].add(System.nanoTime() - start);
+
+					start = System.nanoTime();
+					item.mData = item.mImage.compressJpeg(mQuality);
+					mStageStats[STAGE_ENCODE].add(System.nanoTime() - start);
+				} catch (IOException e) {
+					item.mError = e;
+				} finally {
+					item.mImage.close();
+					item.mImage = null;
+				}
+			}
+			mWriteQueue.put(item);
+		}
+		mWriteQueue.put(END);
+	}
+
+	private void write(BatchProgress progress, Listener listener, int[] counts) throws InterruptedException {
+		int workersEnded = 0;
+		while (workersEnded < mWorkerCount) {
+			Item item = mWriteQueue.take();
+			if (item == END) {
+				workersEnded++;
+				continue;
+			}
+
+			if (item.mError == null) {
+				long start = System.nanoTime();
+				try {
+					writeFile(item.mOutput, item.mData);
+					progress.setFinished(item.mInput);
+					mStageStats[STAGE_WRITE].add(System.nanoTime() - start);
+				} catch (IOException e) {
+					item.mError = e;
+				}
+				item.mData = null;
+			}
+
+			counts[(item.mError == null) ? 0 : 1]++;
+			if (listener != null) {
+				listener.onImageFinished(item.mInput, item.mOutput, item.mError);
+			}
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		long length = file.length();
+		if (length <= 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("Unable to read " + file + " length=" + length);
+		}
+
+		byte[] data = new byte[(int)length];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				int read = in.read(data, offset, data.length - offset);
+				if (read < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				offset += read;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	// Written next to the output and renamed so a half written file is never mistaken for a finished one
+	private static void writeFile(File file, byte[] data) throws IOException {
+		File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to rename " + temp + " to " + file);
+		}
+	}
+
+	private static void closeImages(BlockingQueue<Item> queue) {
+		for (Item item : queue) {
+			if (item.mImage != null) {
+				item.mImage.close();
+			}
+		}
+		queue.clear();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+
+/**
+ * BatchProgress
+ * A journal in the output directory of the inputs that have been finished, so a batch that's stopped
+ * part way through can carry on from where it was. The first line holds the settings the outputs were
+ * made with and the journal is started again if they've changed. A line is only added once its output
+ * has been renamed into place, so anything in the journal is complete.
+ */
+public class BatchProgress {
+	public static final String FILE_NAME = ".photoprocessing-batch";
+
+	private final File mFile;
+	private final HashSet<String> mFinished = new HashSet<String>();
+	private Writer mWriter;
+
+	/**
+	 * Reads the journal if there's one for the same settings, otherwise starts a new one
+	 * @param settings describes everything that changes the outputs
+	 */
+	public BatchProgress(File outputDir, String settings) throws IOException {
+		mFile = new File(outputDir, FILE_NAME);
+
+		boolean resume = false;
+		if (mFile.exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(mFile));
+			try {
+				resume = settings.equals(reader.readLine());
+				String line;
+				while (resume && (line = reader.readLine()) != null) {
+					mFinished.add(line);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		if (!resume) {
+			mFinished.clear();
+		}
+		mWriter = new OutputStreamWriter(new FileOutputStream(mFile, resume), "UTF-8");
+		if (!resume) {
+			mWriter.write(settings + "\n");
+			mWriter.flush();
+		}
+	}
+
+	/** @return true if the input was finished by an earlier run and its output is still there */
+	public synchronized boolean isFinished(File input, File output) {
+		return mFinished.contains(input.getAbsolutePath()) && output.exists();
+	}
+
+	/** @return how many inputs the journal had in it when it was read */
+	public synchronized int getResumedCount() {
+		return mFinished.size();
+	}
+
+	/** Records an input as finished, it's flushed straight away so it isn't lost if the process is killed */
+	public synchronized void setFinished(File input) throws IOException {
+		String path = input.getAbsolutePath();
+		if (mFinished.add(path)) {
+			mWriter.write(path + "\n");
+			mWriter.flush();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		mWriter.close();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.batch;
+
+import java.util.Arrays;
+
+/**
+ * StageStats
+ * The latencies of one stage of the batch pipeline. Every sample is kept, in microseconds,
+ * so the percentiles are exact. Samples can be added from any thread.
+ */
+public class StageStats {
+	private final String mName;
+	private int[] mSamples = new int[64];
+	private int mCount = 0;
+	private long mTotalMicros = 0;
+
+	public StageStats(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public synchronized void add(long nanos) {
+		if (mCount == mSamples.length) {
+			mSamples = Arrays.copyOf(mSamples, mCount * 2);
+		}
+		int micros = (int)Math.min(nanos / 1000, Integer.MAX_VALUE);
+		mSamples[mCount++] = micros;
+		mTotalMicros += micros;
+	}
+
+	public synchronized int getCount() {
+		return mCount;
+	}
+
+	public synchronized double getMeanMillis() {
+		return (mCount > 0) ? mTotalMicros / 1000.0 / mCount : 0;
+	}
+
+	/**
+	 * @param percentile 0 to 100, 50 for the median
+	 * @return the latency at the percentile in milliseconds, 0 if there aren't any samples
+	 */
+	public synchronized double getPercentileMillis(double percentile) {
+		if (mCount == 0) {
+			return 0;
+		}
+		int[] sorted = Arrays.copyOf(mSamples, mCount);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percentile / 100 * mCount) - 1;
+		return sorted[Math.max(0, Math.min(mCount - 1, index))] / 1000.0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%-7s count=%d mean=%.1fms p50=%.1fms p95=%.1fms max=%.1fms", mName, mCount, getMeanMillis(),
+				getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(100));
+	}
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+
+/**
+ * FilterBenchmark
+ * Times every filter, transform, the jpeg decoder, the resize and copying pixels in and out at a range of image sizes,
+ * run with --help for the options.
+ * Each benchmark is run a few times to warm up and then timed over a number of iterations. In place operations work on
+ * a fresh copy of the source each time and only the operation itself is timed, not the copy.
+ * Results can be written as JSON in the same layout as JMH's so its tools can read them, and compared with an earlier
+ * run to catch regressions.
+ */
+public class FilterBenchmark {
+	private static final String USAGE =
+			"Usage: photoprocessing-bench [options]\n" +
+			"\n" +
+			"  --sizes LIST           megapixels to run at, comma separated, 1,4,12,24 by default\n" +
+			"  --include REGEX        only the benchmarks whose names contain a match, all by default\n" +
+			"  --warmup N             untimed runs before measuring, 2 by default\n" +
+			"  --iterations N         timed runs, 5 by default\n" +
+			"  --threads LIST         threads the filters are split across, 0 for one per core, the default. With more than\n" +
+			"                         one, comma separated, everything is run at each and the speedups are listed at the end\n" +
+			"  --json FILE            write the results to FILE\n" +
+			"  --compare FILE         compare against results written by --json, exits with 1 if anything regressed\n" +
+			"  --threshold PERCENT    how much slower counts as a regression, 10 by default\n";
+
+	// 99.9% of a normal distribution is within this many standard deviations, the same confidence as JMH's score error
+	private static final double Z_999 = 3.29;
+
+	/** One thing to time at every size */
+	private static abstract class Benchmark {
+		private final String mName;
+
+		public Benchmark(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** @return how long the operation took in nanoseconds, not counting anything it needed setting up */
+		public abstract long run(NativeImage source, byte[] jpeg) throws IOException;
+	}
+
+	/** Times an operation that changes the image in place on a copy of the source */
+	private static abstract class InPlaceBenchmark extends Benchmark {
+		public InPlaceBenchmark(String name) {
+			super(name);
+		}
+
+		protected abstract void apply(NativeImage image);
+
+		@Override
+		public long run(NativeImage source, byte[] jpeg) {
+			NativeImage image = source.copy();
+			try {
+				long start = System.nanoTime();
+				apply(image);
+				return System.nanoTime() - start;
+			} finally {
+				image.close();
+			}
+		}
+	}
+
+	/**
+	 * Times copying the whole image between the JVM and native memory, either a row at a time through an int[]
+	 * like PhotoProcessing did with Bitmap.getPixels() or in one go through a direct buffer of r, g, b, a bytes.
+	 * The pixels on the Java side are taken from the source the first time it's seen and kept for the later runs.
+	 */
+	private static abstract class TransferBenchmark extends Benchmark {
+		private NativeImage mSource;
+		private int[] mPixels;
+		private byte[] mRgba;
+
+		public TransferBenchmark(String name) {
+			super(name);
+		}
+
+		protected abstract void transfer(NativeImage image, int[] pixels, byte[] rgba);
+
+		@Override
+		public long run(NativeImage source, byte[] jpeg) {
+			if (source != mSource) {
+				readPixels(source);
+			}
+			NativeImage image = source.copy();
+			try {
+				long start = System.nanoTime();
+				transfer(image, mPixels, mRgba);
+				return System.nanoTime() - start;
+			} finally {
+				image.close();
+			}
+		}
+
+		private void readPixels(NativeImage source) {
+			int width = source.getWidth();
+			int height = source.getHeight();
+			mPixels = new int[width * height];
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				source.getRow(y, row);
+				System.arraycopy(row, 0, mPixels, y * width, width);
+			}
+			mRgba = new byte[width * height * 4];
+			ByteBuffer buffer = source.allocatePixelBuffer();
+			if (buffer == null) {
+				throw new OutOfMemoryError("Unable to allocate a pixel buffer");
+			}
+			buffer.get(mRgba);
+			NativeImage.freePixelBuffer(buffer);
+			mSource = source;
+		}
+	}
+
+	private static class Result {
+		private final String mBenchmark;
+		private final int mMegapixels;
+		private final int mThreads;
+		private final double[] mMillis;
+
+		public Result(String benchmark, int megapixels, int threads, double[] millis) {
+			mBenchmark = benchmark;
+			mMegapixels = megapixels;
+			mThreads = threads;
+			mMillis = millis;
+		}
+
+		public double getMean() {
+			double sum = 0;
+			for (double millis : mMillis) {
+				sum += millis;
+			}
+			return sum / mMillis.length;
+		}
+
+		// Half the width of the 99.9% confidence interval of the mean
+		public double getError() {
+			if (mMillis.length < 2) {
+				return 0;
+			}
+			double mean = getMean();
+			double squares = 0;
+			for (double millis : mMillis) {
+				squares += (millis - mean) * (millis - mean);
+			}
+			return Z_999 * Math.sqrt(squares / (mMillis.length - 1)) / Math.sqrt(mMillis.length);
+		}
+
+		public String getKey() {
+			return mBenchmark + "@" + mMegapixels + "x" + mThreads;
+		}
+	}
+
+	private static final String[] FILTER_NAMES = {"Original", "Instafix", "Ansel", "Testino", "XPro", "Retro",
+			"BW", "Sepia", "Cyano", "Georgia", "Sahara", "HDR"};
+
+	private static List<Benchmark> createBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		// Original doesn't do anything so it's left out
+		for (int i = 1; i < FILTER_NAMES.length; i++) {
+			final int filter = i;
+			benchmarks.add(new InPlaceBenchmark("filter." + FILTER_NAMES[i]) {
+				@Override
+				protected void apply(NativeImage image) {
+					image.applyFilter(filter);
+				}
+			});
+		}
+		benchmarks.add(new InPlaceBenchmark("transform.rotate90") {
+			@Override
+			protected void apply(NativeImage image) {
+				image.rotate90();
+			}
+		});
+		benchmarks.add(new InPlaceBenchmark("transform.rotate180") {
+			@Override
+			protected void apply(NativeImage image) {
+				image.rotate180();
+			}
+		});
+		benchmarks.add(new InPlaceBenchmark("transform.flipHorizontally") {
+			@Override
+			protected void apply(NativeImage image) {
+				image.flipHorizontally();
+			}
+		});
+		benchmarks.add(new InPlaceBenchmark("resize.half") {
+			@Override
+			protected void apply(NativeImage image) {
+				image.resize(image.getWidth() / 2, image.getHeight() / 2);
+			}
+		});
+		benchmarks.add(new TransferBenchmark("transfer.rows.in") {
+			@Override
+			protected void transfer(NativeImage image, int[] pixels, byte[] rgba) {
+				int width = image.getWidth();
+				int[] row = new int[width];
+				for (int y = 0; y < image.getHeight(); y++) {
+					System.arraycopy(pixels, y * width, row, 0, width);
+					image.setRow(y, row);
+				}
+			}
+		});
+		benchmarks.add(new TransferBenchmark("transfer.rows.out") {
+			@Override
+			protected void transfer(NativeImage image, int[] pixels, byte[] rgba) {
+				int width = image.getWidth();
+				int[] row = new int[width];
+				for (int y = 0; y < image.getHeight(); y++) {
+					image.getRow(y, row);
+					System.arraycopy(row, 0, pixels, y * width, width);
+				}
+			}
+		});
+		benchmarks.add(new TransferBenchmark("transfer.bulk.in") {
+			@Override
+			protected void transfer(NativeImage image, int[] pixels, byte[] rgba) {
+				ByteBuffer buffer = image.allocatePixelBuffer();
+				buffer.put(rgba);
+				buffer.rewind();
+				image.setPixels(buffer);
+				NativeImage.freePixelBuffer(buffer);
+			}
+		});
+		benchmarks.add(new TransferBenchmark("transfer.bulk.out") {
+			@Override
+			protected void transfer(NativeImage image, int[] pixels, byte[] rgba) {
+				ByteBuffer buffer = image.allocatePixelBuffer();
+				image.getPixels(buffer);
+				buffer.get(rgba);
+				NativeImage.freePixelBuffer(buffer);
+			}
+		});
+		benchmarks.add(new Benchmark("decode.loadResizedJpeg") {
+			@Override
+			public long run(NativeImage source, byte[] jpeg) throws IOException {
+				long start = System.nanoTime();
+				NativeImage image = NativeImage.loadResizedJpeg(jpeg, jpeg.length, Integer.MAX_VALUE);
+				long elapsed = System.nanoTime() - start;
+				image.close();
+				return elapsed;
+			}
+		});
+		return benchmarks;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = {1, 4, 12, 24};
+		Pattern include = null;
+		int warmup = 2;
+		int iterations = 5;
+		int[] threads = {0};
+		File jsonFile = null;
+		File compareFile = null;
+		double threshold = 10;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help") || arg.equals("-h")) {
+					System.out.print(USAGE);
+					return;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("--sizes")) {
+					String[] parts = value.split(",");
+					sizes = new int[parts.length];
+					for (int j = 0; j < parts.length; j++) {
+						sizes[j] = parseInt(arg, parts[j].trim(), 1, 200);
+					}
+				} else if (arg.equals("--include")) {
+					include = Pattern.compile(value);
+				} else if (arg.equals("--warmup")) {
+					warmup = parseInt(arg, value, 0, 1000);
+				} else if (arg.equals("--iterations")) {
+					iterations = parseInt(arg, value, 1, 1000);
+				} else if (arg.equals("--threads")) {
+					String[] parts = value.split(",");
+					threads = new int[parts.length];
+					for (int j = 0; j < parts.length; j++) {
+						threads[j] = parseInt(arg, parts[j].trim(), 0, 256);
+					}
+				} else if (arg.equals("--json")) {
+					jsonFile = new File(value);
+				} else if (arg.equals("--compare")) {
+					compareFile = new File(value);
+				} else if (arg.equals("--threshold")) {
+					threshold = parseInt(arg, value, 0, 1000);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (Benchmark benchmark : createBenchmarks()) {
+			if (include == null || include.matcher(benchmark.getName()).find()) {
+				benchmarks.add(benchmark);
+			}
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for (int megapixels : sizes) {
+			NativeImage source = createSource(megapixels);
+			byte[] jpeg = source.compressJpeg(95);
+			try {
+				for (int threadCount : threads) {
+					NativeImage.setThreadCount(threadCount);
+					System.out.println(String.format(Locale.US, "# %dMP %dx%d, %d threads", megapixels, source.getWidth(), source.getHeight(),
+							NativeImage.getThreadCount()));
+					for (Benchmark benchmark : benchmarks) {
+						for (int i = 0; i < warmup; i++) {
+							benchmark.run(source, jpeg);
+						}
+						double[] millis = new double[iterations];
+						for (int i = 0; i < iterations; i++) {
+							millis[i] = benchmark.run(source, jpeg) / 1e6;
+						}
+						Result result = new Result(benchmark.getName(), megapixels, NativeImage.getThreadCount(), millis);
+						results.add(result);
+						System.out.println(String.format(Locale.US, "%-28s %4dMP %10.3f +- %8.3f ms/op", benchmark.getName(), megapixels,
+								result.getMean(), result.getError()));
+					}
+				}
+			} finally {
+				source.close();
+			}
+		}
+
+		if (threads.length > 1) {
+			printScaling(results);
+		}
+		if (jsonFile != null) {
+			writeJson(jsonFile, results, warmup, iterations);
+		}
+		if (compareFile != null && compare(readJson(compareFile), results, threshold) > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Makes an image with smooth gradients and some fine detail, so the jpeg made from it
+	 * takes about as long to decode as a photo would. It's the same every time for a given size.
+	 */
+	private static NativeImage createSource(int megapixels) {
+		// 4:3 like most camera sensors
+		int width = (int)Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+		int height = (int)Math.round(megapixels * 1e6 / width);
+		NativeImage image = new NativeImage(width, height);
+
+		int[] row = new int[width];
+		int seed = 12345;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				seed = seed * 1103515245 + 12345;
+				int noise = (seed >>> 16) & 31;
+				int red = Math.min(255, x * 255 / width + noise);
+				int green = Math.min(255, y * 255 / height + noise);
+				int blue = Math.min(255, ((x + y) & 255) / 2 + 64 + noise);
+				row[x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+			}
+			image.setRow(y, row);
+		}
+		return image;
+	}
+
+	/**
+	 * Lists how much quicker each benchmark was with each number of threads than with the first one it was run with.
+	 * Perfect scaling would be a speedup equal to the ratio of the thread counts.
+	 */
+	private static void printScaling(List<Result> results) {
+		System.out.println("# speedup over the first thread count");
+		LinkedHashMap<String, List<Result>> byBenchmark = new LinkedHashMap<String, List<Result>>();
+		for (Result result : results) {
+			String key = result.mBenchmark + "@" + result.mMegapixels;
+			List<Result> sameBenchmark = byBenchmark.get(key);
+			if (sameBenchmark == null) {
+				sameBenchmark = new ArrayList<Result>();
+				byBenchmark.put(key, sameBenchmark);
+			}
+			sameBenchmark.add(result);
+		}
+		for (List<Result> sameBenchmark : byBenchmark.values()) {
+			Result first = sameBenchmark.get(0);
+			for (Result result : sameBenchmark) {
+				System.out.println(String.format(Locale.US, "%-28s %4dMP %3d threads %10.3f ms/op %6.2fx", result.mBenchmark, result.mMegapixels,
+						result.mThreads, result.getMean(), first.getMean() / result.getMean()));
+			}
+		}
+	}
+
+	// One result a line so compare() can read them back without a JSON library
+	private static void writeJson(File file, List<Result> results, int warmup, int iterations) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.println("[");
+			for (int i = 0; i < results.size(); i++) {
+				Result result = results.get(i);
+				StringBuilder rawData = new StringBuilder();
+				for (double millis : result.mMillis) {
+					if (rawData.length() > 0) {
+						rawData.append(", ");
+					}
+					rawData.append(String.format(Locale.US, "%.6f", millis));
+				}
+				writer.print(String.format(Locale.US, "  {\"benchmark\": \"%s\", \"mode\": \"avgt\", \"threads\": 1, \"forks\": 1, "
+						+ "\"warmupIterations\": %d, \"measurementIterations\": %d, \"params\": {\"megapixels\": \"%d\", \"nativeThreads\": \"%d\"}, "
+						+ "\"primaryMetric\": {\"score\": %.6f, \"scoreError\": %.6f, \"scoreUnit\": \"ms/op\", \"rawData\": [[%s]]}}",
+						result.mBenchmark, warmup, iterations, result.mMegapixels, result.mThreads, result.getMean(), result.getError(), rawData));
+				writer.println((i < results.size() - 1) ? "," : "");
+			}
+			writer.println("]");
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private static final Pattern JSON_RESULT = Pattern.compile(
+			"\"benchmark\": \"([^\"]+)\".*\"megapixels\": \"(\\d+)\", \"nativeThreads\": \"(\\d+)\".*\"score\": ([0-9.eE+-]+), \"scoreError\": ([0-9.eE+-]+)");
+
+	// Benchmark keys to their score and error
+	private static HashMap<String, double[]> readJson(File file) throws IOException {
+		HashMap<String, double[]> scores = new HashMap<String, double[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Matcher matcher = JSON_RESULT.matcher(line);
+				if (matcher.find()) {
+					scores.put(matcher.group(1) + "@" + matcher.group(2) + "x" + matcher.group(3),
+							new double[] {Double.parseDouble(matcher.group(4)), Double.parseDouble(matcher.group(5))});
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return scores;
+	}
+
+	/**
+	 * Something has only regressed if it's slower by more than the threshold and by more than the two errors together,
+	 * so noise on a busy machine isn't reported
+	 * @return how many benchmarks regressed
+	 */
+	private static int compare(HashMap<String, double[]> baseline, List<Result> results, double thresholdPercent) {
+		System.out.println("# compared with the baseline");
+		int regressions = 0;
+		for (Result result : results) {
+			double[] before = baseline.get(result.getKey());
+			if (before == null) {
+				continue;
+			}
+			double change = (result.getMean() - before[0]) / before[0] * 100;
+			boolean regressed = change > thresholdPercent && result.getMean() - before[0] > result.getError() + before[1];
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println(String.format(Locale.US, "%-28s %4dMP %3d threads %10.3f -> %10.3f ms/op %+7.1f%%%s", result.mBenchmark,
+					result.mMegapixels, result.mThreads, before[0], result.getMean(), change, regressed ? "  REGRESSED" : ""));
+		}
+		System.out.println("# " + regressions + " regressed");
+		return regressions;
+	}
+
+	private static int parseInt(String arg, String value, int min, int max) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= min && number <= max) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException(arg + " must be a number from " + min + " to " + max);
+	}
+}
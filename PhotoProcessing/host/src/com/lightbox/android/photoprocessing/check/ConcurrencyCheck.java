@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.check;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+import com.lightbox.android.photoprocessing.host.HostPhotoProcessing;
+
+/**
+ * ConcurrencyCheck
+ * Stress tests NativeImage from many threads at once. Every thread loads, filters, copies, halves and compresses its own
+ * images, all started together so the native calls overlap, and each result has to be exactly what the same work gave
+ * on one thread first. Afterwards no native memory may be left in use. Run with --help for the options.
+ */
+public class ConcurrencyCheck {
+	private static final String USAGE =
+			"Usage: java -cp photoprocessing-check.jar " + ConcurrencyCheck.class.getName() + " [options]\n" +
+			"\n" +
+			"  --threads N            Java threads working at once, 8 by default\n" +
+			"  --rounds N             how many times each thread goes through the work, 6 by default\n" +
+			"  --native-threads N     threads each filter is split across, 2 by default so the strips overlap too\n";
+
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+	/** What one thread does each round, the same work always gives the same checksum */
+	private static class Work {
+		private final NativeImage mSource;
+		private final byte[] mJpeg;
+
+		public Work(NativeImage source, byte[] jpeg) {
+			mSource = source;
+			mJpeg = jpeg;
+		}
+
+		/** @return a checksum of everything the work produced */
+		public long run(int filter) throws IOException {
+			CRC32 crc = new CRC32();
+			NativeImage image = sendToNative(mSource);
+			try {
+				image.applyFilter(filter);
+				update(crc, image);
+
+				NativeImage half = image.halve();
+				try {
+					update(crc, half);
+				} finally {
+					half.close();
+				}
+				crc.update(image.compressJpeg(90));
+			} finally {
+				image.close();
+			}
+
+			NativeImage decoded = NativeImage.loadResizedJpeg(mJpeg, mJpeg.length, WIDTH * HEIGHT / 4);
+			try {
+				update(crc, decoded);
+			} finally {
+				decoded.close();
+			}
+			return crc.getValue();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = 8;
+		int rounds = 6;
+		int nativeThreads = 2;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help") || arg.equals("-h")) {
+					System.out.print(USAGE);
+					return;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("--threads")) {
+					threads = parseInt(arg, value, 1, 256);
+				} else if (arg.equals("--rounds")) {
+					rounds = parseInt(arg, value, 1, 1000);
+				} else if (arg.equals("--native-threads")) {
+					nativeThreads = parseInt(arg, value, 0, 256);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		NativeImage.setThreadCount(nativeThreads);
+		long memoryBefore = NativeImage.getNativeMemoryInUse();
+		NativeImage source = createImage();
+		final int filterCount = HostPhotoProcessing.FILTER_NAMES.length;
+		final Work work;
+		final long[] expected = new long[filterCount];
+		try {
+			work = new Work(source, source.compressJpeg(95));
+			for (int filter = 0; filter < filterCount; filter++) {
+				expected[filter] = work.run(filter);
+			}
+
+			final int roundCount = rounds;
+			final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] workers = new Thread[threads];
+			for (int i = 0; i < workers.length; i++) {
+				final int worker = i;
+				workers[i] = new Thread("worker-" + i) {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int round = 0; round < roundCount; round++) {
+								// Each thread starts on a different filter so different filters run side by side
+								int filter = (worker + round) % filterCount;
+								long checksum = work.run(filter);
+								if (checksum != expected[filter]) {
+									failures.add(String.format(Locale.US, "%s round %d: %s gave %08x instead of %08x", getName(), round,
+											HostPhotoProcessing.FILTER_NAMES[filter], checksum, expected[filter]));
+								}
+							}
+						} catch (Throwable e) {
+							failures.add(getName() + ": " + e);
+						}
+					}
+				};
+				workers[i].start();
+			}
+			long startTime = System.nanoTime();
+			start.countDown();
+			for (Thread worker : workers) {
+				worker.join();
+			}
+
+			for (String failure : failures) {
+				System.out.println("FAILED " + failure);
+			}
+			System.out.println(String.format(Locale.US, "# %d threads x %d rounds with %d native threads in %.0fms, %d failed",
+					threads, rounds, NativeImage.getThreadCount(), (System.nanoTime() - startTime) / 1e6, failures.size()));
+			if (!failures.isEmpty()) {
+				System.exit(1);
+			}
+		} finally {
+			source.close();
+		}
+
+		long leaked = NativeImage.getNativeMemoryInUse() - memoryBefore;
+		if (leaked != 0) {
+			System.out.println("FAILED " + leaked + " bytes of native memory still in use");
+			System.exit(1);
+		}
+	}
+
+	private static NativeImage sendToNative(NativeImage source) {
+		NativeImage image = new NativeImage(source.getWidth(), source.getHeight());
+		int[] row = new int[source.getWidth()];
+		for (int y = 0; y < source.getHeight(); y++) {
+			source.getRow(y, row);
+			image.setRow(y, row);
+		}
+		return image;
+	}
+
+	private static void update(CRC32 crc, NativeImage image) {
+		int[] row = new int[image.getWidth()];
+		byte[] bytes = new byte[row.length * 3];
+		for (int y = 0; y < image.getHeight(); y++) {
+			image.getRow(y, row);
+			for (int x = 0; x < row.length; x++) {
+				bytes[x * 3] = (byte)(row[x] >> 16);
+				bytes[x * 3 + 1] = (byte)(row[x] >> 8);
+				bytes[x * 3 + 2] = (byte)row[x];
+			}
+			crc.update(bytes);
+		}
+	}
+
+	/** Gradients with noise over them, so every filter changes most of the pixels */
+	private static NativeImage createImage() {
+		NativeImage image = new NativeImage(WIDTH, HEIGHT);
+		int[] row = new int[WIDTH];
+		int seed = 12345;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				seed = seed * 1103515245 + 12345;
+				int noise = (seed >>> 16) & 63;
+				int red = Math.min(255, x * 255 / WIDTH + noise);
+				int green = Math.min(255, y * 255 / HEIGHT + noise);
+				int blue = Math.min(255, (x + y) * 128 / (WIDTH + HEIGHT) + noise);
+				row[x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+			}
+			image.setRow(y, row);
+		}
+		return image;
+	}
+
+	private static int parseInt(String arg, String value, int min, int max) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= min && number <= max) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException(arg + " must be a number from " + min + " to " + max);
+	}
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.check;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+import com.lightbox.android.photoprocessing.Orientation;
+import com.lightbox.android.photoprocessing.host.HostPhotoProcessing;
+
+/**
+ * ExportCheck
+ * Checks NativeImage.exportJpeg, which filters a strip at a time, writes the same jpeg as loading the whole image,
+ * filtering it and compressing it, for every filter. The synthetic sizes are chosen so the heights aren't a multiple of
+ * the strip or of a jpeg block row and some are shorter than a strip and HDR's margin, so the blur margins and the two
+ * passes of Instafix meet every edge. Then that an oriented export still decodes to the same pixels and its exif
+ * orientation turns them into what applyOrientation gives. Any jpegs given as arguments are checked as well.
+ */
+public class ExportCheck {
+	private static final int QUALITY = 90;
+
+	/** Width and height of each synthetic image, jni/export.h has 128 row strips and HDR needs 27 rows either side */
+	private static final int[][] SIZES = {{37, 23}, {200, 150}, {333, 300}, {640, 300}, {1003, 777}};
+
+	private static final int EXIF_ORIENTATION_TAG = 0x0112;
+
+	private static int sChecks = 0;
+	private static final List<String> sFailures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+		NativeImage.setThreadCount(2);
+		long memoryBefore = NativeImage.getNativeMemoryInUse();
+
+		for (int[] size : SIZES) {
+			NativeImage source = createImage(size[0], size[1]);
+			byte[] jpeg;
+			try {
+				jpeg = source.compressJpeg(95);
+			} finally {
+				source.close();
+			}
+			String name = size[0] + "x" + size[1];
+			checkFilters(name, jpeg);
+			checkOrientations(name, jpeg);
+		}
+		for (String path : args) {
+			byte[] jpeg = readFile(new File(path));
+			String name = new File(path).getName();
+			checkFilters(name, jpeg);
+			checkOrientations(name, jpeg);
+		}
+
+		long leaked = NativeImage.getNativeMemoryInUse() - memoryBefore;
+		check("native memory in use after the export checks", 0L, leaked);
+
+		for (String failure : sFailures) {
+			System.out.println("FAILED " + failure);
+		}
+		System.out.println("# export: " + sChecks + " checks, " + sFailures.size() + " failed");
+		if (!sFailures.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/** The export of every filter has to be byte for byte the jpeg of the whole image filtered at once */
+	private static void checkFilters(String name, byte[] jpeg) throws IOException {
+		for (int filter = 0; filter < HostPhotoProcessing.FILTER_NAMES.length; filter++) {
+			String check = name + " " + HostPhotoProcessing.FILTER_NAMES[filter];
+			byte[] exported = export(jpeg, filter, Orientation.NORMAL);
+
+			NativeImage image = NativeImage.loadResizedJpeg(jpeg, jpeg.length, Integer.MAX_VALUE);
+			byte[] expected;
+			try {
+				image.applyFilter(filter);
+				expected = image.compressJpeg(QUALITY);
+			} finally {
+				image.close();
+			}
+			sChecks++;
+			if (!Arrays.equals(expected, exported)) {
+				sFailures.add(check + ": export differs from the filtered image " + describeDifference(expected, exported));
+			}
+		}
+	}
+
+	/**
+	 * Every orientation is exported with HDR, the filter with the widest margin. The pixels have to be left as they are
+	 * and the exif orientation has to be the one that turns them into what applyOrientation gives.
+	 */
+	private static void checkOrientations(String name, byte[] jpeg) throws IOException {
+		int filter = HostPhotoProcessing.FILTER_NAMES.length - 1;
+		byte[] normal = export(jpeg, filter, Orientation.NORMAL);
+		check(name + " normal exif orientation", 1, readExifOrientation(normal));
+
+		// The ones a single edit gives, written down from the exif spec rather than from jpeg_encoder.c
+		check(name + " flipped exif orientation", 2, readExifOrientation(export(jpeg, filter, Orientation.NORMAL.flipHorizontally())));
+		check(name + " rotated 90 exif orientation", 6, readExifOrientation(export(jpeg, filter, Orientation.fromAngle(90))));
+		check(name + " rotated 180 exif orientation", 3, readExifOrientation(export(jpeg, filter, Orientation.fromAngle(180))));
+		check(name + " rotated 270 exif orientation", 8, readExifOrientation(export(jpeg, filter, Orientation.fromAngle(270))));
+
+		NativeImage stored = NativeImage.loadResizedJpeg(normal, normal.length, Integer.MAX_VALUE);
+		try {
+			for (int flip = 0; flip < 2; flip++) {
+				for (int angle = 0; angle < 360; angle += 90) {
+					Orientation orientation = flip == 0 ? Orientation.NORMAL : Orientation.NORMAL.flipHorizontally();
+					orientation = orientation.rotate(angle);
+					checkOrientation(name + " " + orientation, jpeg, filter, orientation, stored);
+				}
+			}
+		} finally {
+			stored.close();
+		}
+	}
+
+	private static void checkOrientation(String name, byte[] jpeg, int filter, Orientation orientation, NativeImage stored) throws IOException {
+		byte[] exported = export(jpeg, filter, orientation);
+		NativeImage decoded = NativeImage.loadResizedJpeg(exported, exported.length, Integer.MAX_VALUE);
+		int[][] shown;
+		try {
+			check(name + " decoded pixels", null, compare(stored, decoded));
+			shown = applyExifOrientation(decoded, readExifOrientation(exported));
+		} finally {
+			decoded.close();
+		}
+
+		NativeImage expected = stored.copy();
+		try {
+			expected.applyOrientation(orientation);
+			check(name + " exif orientation applied", null, compare(expected, shown));
+		} finally {
+			expected.close();
+		}
+	}
+
+	private static byte[] export(byte[] jpeg, int filter, Orientation orientation) throws IOException {
+		File file = File.createTempFile("export", ".jpg");
+		try {
+			NativeImage.exportJpeg(jpeg, jpeg.length, filter, orientation, QUALITY, file.getPath());
+			return readFile(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/** @return the exif orientation of a jpeg, 1 if it has none as a viewer would take it */
+	private static int readExifOrientation(byte[] jpeg) {
+		int offset = 2;
+		while (offset + 4 <= jpeg.length && (jpeg[offset] & 0xff) == 0xff) {
+			int marker = jpeg[offset + 1] & 0xff;
+			int length = readShort(jpeg, offset + 2, true);
+			if (marker == 0xda) {
+				break;
+			}
+			int start = offset + 4;
+			if (marker == 0xe1 && length >= 8 && new String(jpeg, start, 6).equals("Exif\0\0")) {
+				return readTiffOrientation(jpeg, start + 6, offset + 2 + length);
+			}
+			offset += 2 + length;
+		}
+		return 1;
+	}
+
+	private static int readTiffOrientation(byte[] jpeg, int tiff, int end) {
+		boolean bigEndian = jpeg[tiff] == 'M';
+		int ifd = tiff + readInt(jpeg, tiff + 4, bigEndian);
+		int entries = readShort(jpeg, ifd, bigEndian);
+		for (int i = 0; i < entries; i++) {
+			int entry = ifd + 2 + i * 12;
+			if (entry + 12 > end) {
+				break;
+			}
+			if (readShort(jpeg, entry, bigEndian) == EXIF_ORIENTATION_TAG) {
+				return readShort(jpeg, entry + 8, bigEndian);
+			}
+		}
+		return 1;
+	}
+
+	/** @return the pixels as a viewer shows them, from the definition of each orientation in the exif spec */
+	private static int[][] applyExifOrientation(NativeImage image, int exifOrientation) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[][] stored = new int[height][width];
+		for (int y = 0; y < height; y++) {
+			image.getRow(y, stored[y]);
+		}
+		boolean swap = exifOrientation >= 5;
+		int[][] shown = new int[swap ? width : height][swap ? height : width];
+		for (int y = 0; y < shown.length; y++) {
+			for (int x = 0; x < shown[y].length; x++) {
+				int sx;
+				int sy;
+				switch (exifOrientation) {
+				case 2: // Mirrored left to right
+					sx = width - 1 - x;
+					sy = y;
+					break;
+				case 3: // Rotated 180
+					sx = width - 1 - x;
+					sy = height - 1 - y;
+					break;
+				case 4: // Mirrored top to bottom
+					sx = x;
+					sy = height - 1 - y;
+					break;
+				case 5: // Transposed
+					sx = y;
+					sy = x;
+					break;
+				case 6: // Rotated 90 clockwise
+					sx = y;
+					sy = height - 1 - x;
+					break;
+				case 7: // Transversed
+					sx = width - 1 - y;
+					sy = height - 1 - x;
+					break;
+				case 8: // Rotated 90 anticlockwise
+					sx = width - 1 - y;
+					sy = x;
+					break;
+				default:
+					sx = x;
+					sy = y;
+					break;
+				}
+				shown[y][x] = stored[sy][sx];
+			}
+		}
+		return shown;
+	}
+
+	/** @return null if the images are the same, otherwise where they first differ */
+	private static String compare(NativeImage expected, NativeImage actual) {
+		int[][] pixels = new int[actual.getHeight()][actual.getWidth()];
+		for (int y = 0; y < pixels.length; y++) {
+			actual.getRow(y, pixels[y]);
+		}
+		return compare(expected, pixels);
+	}
+
+	private static String compare(NativeImage expected, int[][] actual) {
+		int width = expected.getWidth();
+		int height = expected.getHeight();
+		if (actual.length != height || (height > 0 && actual[0].length != width)) {
+			return "size " + (actual.length > 0 ? actual[0].length : 0) + "x" + actual.length + " instead of " + width + "x" + height;
+		}
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			expected.getRow(y, row);
+			for (int x = 0; x < width; x++) {
+				if (row[x] != actual[y][x]) {
+					return String.format("%08x instead of %08x at %d,%d", actual[y][x], row[x], x, y);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String describeDifference(byte[] expected, byte[] actual) {
+		int length = Math.min(expected.length, actual.length);
+		int i = 0;
+		while (i < length && expected[i] == actual[i]) {
+			i++;
+		}
+		return "at byte " + i + ", " + actual.length + " bytes instead of " + expected.length;
+	}
+
+	private static void check(String name, Object expected, Object actual) {
+		sChecks++;
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			sFailures.add(name + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	private static int readShort(byte[] data, int offset, boolean bigEndian) {
+		int first = data[offset] & 0xff;
+		int second = data[offset + 1] & 0xff;
+		return bigEndian ? (first << 8) | second : (second << 8) | first;
+	}
+
+	private static int readInt(byte[] data, int offset, boolean bigEndian) {
+		int first = readShort(data, offset, bigEndian);
+		int second = readShort(data, offset + 2, bigEndian);
+		return bigEndian ? (first << 16) | second : (second << 16) | first;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int)file.length()];
+			int offset = 0;
+			while (offset < data.length) {
+				int read = in.read(data, offset, data.length - offset);
+				if (read < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				offset += read;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Gradients with noise and hard edges over them, so every filter and both blurs change most of the pixels */
+	private static NativeImage createImage(int width, int height) {
+		NativeImage image = new NativeImage(width, height);
+		int[] row = new int[width];
+		int seed = width * 31 + height;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				seed = seed * 1103515245 + 12345;
+				int noise = (seed >>> 16) & 63;
+				int edge = ((x / 24 + y / 24) & 1) * 64;
+				int red = Math.min(255, x * 191 / width + noise);
+				int green = Math.min(255, y * 191 / height + edge);
+				int blue = Math.min(255, (x + y) * 128 / (width + height) + noise + edge);
+				row[x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+			}
+			image.setRow(y, row);
+		}
+		return image;
+	}
+}
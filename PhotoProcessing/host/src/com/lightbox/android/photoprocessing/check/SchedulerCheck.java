@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.check;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.lightbox.android.photoprocessing.RenderScheduler;
+
+/**
+ * SchedulerCheck
+ * Checks RenderScheduler coalesces previews, runs saves first and never drops them, and hands failures to the listener.
+ * The worker and the main thread are queues run by hand, so every interleaving checked is the same each time.
+ */
+public class SchedulerCheck {
+	/** Runs nothing until it's asked to, then in the order it was given like a single thread */
+	private static class QueueExecutor implements Executor {
+		private final LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+
+		@Override
+		public void execute(Runnable runnable) {
+			mQueue.add(runnable);
+		}
+
+		public boolean runNext() {
+			if (mQueue.isEmpty()) {
+				return false;
+			}
+			mQueue.removeFirst().run();
+			return true;
+		}
+
+		public void drain() {
+			while (runNext()) {
+			}
+		}
+	}
+
+	/** Writes down everything the scheduler tells it, in order */
+	private static class RecordingListener implements RenderScheduler.Listener {
+		private final List<String> mEvents = new ArrayList<String>();
+
+		@Override
+		public void onJobFinished(RenderScheduler.Job job) {
+			mEvents.add("finished " + job);
+		}
+
+		@Override
+		public void onJobFailed(RenderScheduler.Job job, Throwable failure) {
+			mEvents.add("failed " + job + " " + failure.getMessage());
+		}
+
+		@Override
+		public void onJobProgress(RenderScheduler.Job job, Object progress) {
+			mEvents.add("progress " + job + " " + progress);
+		}
+
+		@Override
+		public void onIdle() {
+			mEvents.add("idle");
+		}
+	}
+
+	/** Records when it runs, and can throw or do something while it's running */
+	private static class TestJob extends RenderScheduler.Job {
+		private final String mName;
+		private final List<String> mRuns;
+		private Runnable mDuringRun;
+		private Throwable mThrow;
+
+		public TestJob(String name, int priority, List<String> runs) {
+			super(priority);
+			mName = name;
+			mRuns = runs;
+		}
+
+		@Override
+		protected void run() throws Exception {
+			mRuns.add(mName);
+			if (mDuringRun != null) {
+				mDuringRun.run();
+			}
+			publishProgress("stage");
+			if (mThrow instanceof Exception) {
+				throw (Exception)mThrow;
+			} else if (mThrow instanceof Error) {
+				throw (Error)mThrow;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return mName;
+		}
+	}
+
+	private static int sChecks = 0;
+	private static final List<String> sFailures = new ArrayList<String>();
+
+	public static void main(String[] args) {
+		checkRapidTaps();
+		checkTapWhileRendering();
+		checkSavesFirst();
+		checkFailures();
+		checkHeldWithoutListener();
+
+		for (String failure : sFailures) {
+			System.out.println("FAILED " + failure);
+		}
+		System.out.println("# scheduler: " + sChecks + " checks, " + sFailures.size() + " failed");
+		if (!sFailures.isEmpty()) {
+			System.exit(1);
+		}
+	}
+
+	/** A burst of taps before the worker gets to any of them is a single render of the last one */
+	private static void checkRapidTaps() {
+		QueueExecutor worker = new QueueExecutor();
+		QueueExecutor mainThread = new QueueExecutor();
+		RenderScheduler scheduler = new RenderScheduler(worker, mainThread);
+		RecordingListener listener = new RecordingListener();
+		scheduler.setListener(listener);
+		List<String> runs = new ArrayList<String>();
+
+		for (int i = 0; i < 20; i++) {
+			scheduler.submit(new TestJob("tap" + i, RenderScheduler.PRIORITY_PREVIEW, runs));
+		}
+		runAll(worker, mainThread);
+
+		check("rapid taps run count", 1, scheduler.getRunCount());
+		check("rapid taps runs", Arrays.asList("tap19"), runs);
+		check("rapid taps events", Arrays.asList("progress tap19 stage", "finished tap19", "idle"), listener.mEvents);
+		check("rapid taps busy", false, scheduler.isBusy());
+	}
+
+	/** A tap while a preview renders cancels it, only the newest preview is delivered */
+	private static void checkTapWhileRendering() {
+		QueueExecutor worker = new QueueExecutor();
+		QueueExecutor mainThread = new QueueExecutor();
+		final RenderScheduler scheduler = new RenderScheduler(worker, mainThread);
+		RecordingListener listener = new RecordingListener();
+		scheduler.setListener(listener);
+		final List<String> runs = new ArrayList<String>();
+
+		final TestJob first = new TestJob("first", RenderScheduler.PRIORITY_PREVIEW, runs);
+		first.mDuringRun = new Runnable() {
+			@Override
+			public void run() {
+				scheduler.submit(new TestJob("second", RenderScheduler.PRIORITY_PREVIEW, runs));
+				scheduler.submit(new TestJob("third", RenderScheduler.PRIORITY_PREVIEW, runs));
+			}
+		};
+		scheduler.submit(first);
+		runAll(worker, mainThread);
+
+		check("tap while rendering cancels", true, first.isCancelled());
+		check("tap while rendering runs", Arrays.asList("first", "third"), runs);
+		check("tap while rendering events", Arrays.asList("progress third stage", "finished third", "idle"), listener.mEvents);
+	}
+
+	/** Saves run before a waiting preview, and neither a preview nor cancelling previews drops one */
+	private static void checkSavesFirst() {
+		QueueExecutor worker = new QueueExecutor();
+		QueueExecutor mainThread = new QueueExecutor();
+		final RenderScheduler scheduler = new RenderScheduler(worker, mainThread);
+		RecordingListener listener = new RecordingListener();
+		scheduler.setListener(listener);
+		final List<String> runs = new ArrayList<String>();
+
+		final TestJob save1 = new TestJob("save1", RenderScheduler.PRIORITY_SAVE, runs);
+		save1.mDuringRun = new Runnable() {
+			@Override
+			public void run() {
+				scheduler.submit(new TestJob("preview3", RenderScheduler.PRIORITY_PREVIEW, runs));
+				scheduler.cancelPreviews();
+				scheduler.submit(new TestJob("preview4", RenderScheduler.PRIORITY_PREVIEW, runs));
+			}
+		};
+		scheduler.submit(new TestJob("preview1", RenderScheduler.PRIORITY_PREVIEW, runs));
+		scheduler.submit(save1);
+		scheduler.submit(new TestJob("preview2", RenderScheduler.PRIORITY_PREVIEW, runs));
+		scheduler.submit(new TestJob("save2", RenderScheduler.PRIORITY_SAVE, runs));
+		check("saves first current job", "save1", String.valueOf(scheduler.getCurrentJob()));
+		runAll(worker, mainThread);
+
+		check("saves first not cancelled", false, save1.isCancelled());
+		check("saves first runs", Arrays.asList("save1", "save2", "preview4"), runs);
+		check("saves first events", Arrays.asList("progress save1 stage", "finished save1", "progress save2 stage", "finished save2",
+				"progress preview4 stage", "finished preview4", "idle"), listener.mEvents);
+	}
+
+	/** A job that throws is passed to onJobFailed rather than reported as finished, and the jobs after it still run */
+	private static void checkFailures() {
+		QueueExecutor worker = new QueueExecutor();
+		QueueExecutor mainThread = new QueueExecutor();
+		RenderScheduler scheduler = new RenderScheduler(worker, mainThread);
+		RecordingListener listener = new RecordingListener();
+		scheduler.setListener(listener);
+		List<String> runs = new ArrayList<String>();
+
+		TestJob runtime = new TestJob("runtime", RenderScheduler.PRIORITY_SAVE, runs);
+		runtime.mThrow = new IllegalStateException("broken");
+		TestJob io = new TestJob("io", RenderScheduler.PRIORITY_SAVE, runs);
+		io.mThrow = new IOException("disk full");
+		TestJob memory = new TestJob("memory", RenderScheduler.PRIORITY_SAVE, runs);
+		memory.mThrow = new OutOfMemoryError("Unable to filter");
+		scheduler.submit(runtime);
+		scheduler.submit(io);
+		scheduler.submit(memory);
+		scheduler.submit(new TestJob("after", RenderScheduler.PRIORITY_PREVIEW, runs));
+		runAll(worker, mainThread);
+
+		check("failures runs", Arrays.asList("runtime", "io", "memory", "after"), runs);
+		check("failures events", Arrays.asList("progress runtime stage", "failed runtime broken", "progress io stage", "failed io disk full",
+				"progress memory stage", "failed memory Unable to filter", "progress after stage", "finished after", "idle"), listener.mEvents);
+		check("failures kept on the job", io.mThrow, io.getFailure());
+		check("failures busy", false, scheduler.isBusy());
+	}
+
+	/** Without a listener finished and failed jobs are held and delivered in order once there is one, progress is dropped */
+	private static void checkHeldWithoutListener() {
+		QueueExecutor worker = new QueueExecutor();
+		QueueExecutor mainThread = new QueueExecutor();
+		RenderScheduler scheduler = new RenderScheduler(worker, mainThread);
+		RecordingListener listener = new RecordingListener();
+		List<String> runs = new ArrayList<String>();
+
+		TestJob failing = new TestJob("failing", RenderScheduler.PRIORITY_SAVE, runs);
+		failing.mThrow = new IOException("unreadable");
+		scheduler.submit(failing);
+		scheduler.submit(new TestJob("saved", RenderScheduler.PRIORITY_SAVE, runs));
+		runAll(worker, mainThread);
+		check("held without listener runs", Arrays.asList("failing", "saved"), runs);
+
+		scheduler.setListener(listener);
+		check("held without listener events", Arrays.asList("failed failing unreadable", "finished saved"), listener.mEvents);
+	}
+
+	/** Runs the worker a task at a time with the main thread keeping up between them */
+	private static void runAll(QueueExecutor worker, QueueExecutor mainThread) {
+		while (worker.runNext()) {
+			mainThread.drain();
+		}
+	}
+
+	private static void check(String name, Object expected, Object actual) {
+		sChecks++;
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			sFailures.add(name + ": expected " + expected + " but was " + actual);
+		}
+	}
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.golden;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+import com.lightbox.android.photoprocessing.PhotoProcessing;
+import com.lightbox.android.photoprocessing.host.HostPhotoProcessing;
+
+/**
+ * GoldenCheck
+ * Renders a corpus of images through every filter and compares the results with golden images from a known good
+ * build, so a change to the filters that alters what they output is caught. Run with --help for the options.
+ * The corpus is a few synthetic images made here, which cover smooth gradients, noise, hard edges and sizes that
+ * don't divide evenly between threads, plus every jpeg in the corpus directory, which also goes through the decoder.
+ * Small differences are allowed per filter as a different compiler can round floating point differently.
+ * The filters can also be timed and compared with timings saved on the same machine, to catch one getting slower.
+ * With --baseline everything is rendered by a library built from the baseline commit instead, through the one bitmap
+ * its PhotoProcessing kept in native memory, which is how the golden images are made.
+ */
+public class GoldenCheck {
+	private static final String USAGE =
+			"Usage: photoprocessing-check [options]\n" +
+			"\n" +
+			"  --golden DIR           where the golden images are, with the jpegs to check in DIR/corpus, golden by default\n" +
+			"  --update               write the golden images from this build instead of checking against them\n" +
+			"  --baseline             render with the baseline commit's library on java.library.path instead of this build,\n" +
+			"                         make baseline-golden builds it and writes the golden images with it\n" +
+			"  --diff-dir DIR         write what each filter rendered that didn't match to DIR\n" +
+			"  --threads N            threads the filters are split across, 0 for one per core, the default\n" +
+			"  --save-timings FILE    time every filter and write the timings to FILE\n" +
+			"  --compare-timings FILE time every filter and exit with 1 if one is slower than the timings in FILE\n" +
+			"  --threshold PERCENT    how much slower counts as a regression, 25 by default\n" +
+			"  --megapixels N         the size of the image the filters are timed on, 2 by default\n" +
+			"  --iterations N         timed runs of each filter, the median is used, 5 by default\n";
+
+	private static final String CORPUS_DIR = "corpus";
+
+	/**
+	 * The biggest difference allowed in any one channel of any pixel and the lowest peak signal to noise ratio over
+	 * the whole image, in dB, for each filter in the same order as HostPhotoProcessing.FILTER_NAMES.
+	 * HDR blurs and then rescales so it drifts further than the rest when its rounding changes.
+	 */
+	private static final double[][] TOLERANCES = {
+			{0, Double.POSITIVE_INFINITY}, // original
+			{2, 50}, // instafix
+			{2, 50}, // ansel
+			{2, 50}, // testino
+			{2, 50}, // xpro
+			{2, 50}, // retro
+			{2, 50}, // bw
+			{2, 50}, // sepia
+			{2, 50}, // cyano
+			{2, 50}, // georgia
+			{2, 50}, // sahara
+			{6, 40}}; // hdr
+
+	/** An image from the corpus */
+	private static abstract class Input {
+		private final String mName;
+
+		public Input(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** @return a new image which the caller has to close */
+		public abstract NativeImage load() throws IOException;
+
+		/** Loads the image into the baseline library's bitmap instead, replacing what was there */
+		public abstract void loadBaseline() throws IOException;
+	}
+
+	/** One of the images made here, they're the same every time */
+	private static class SyntheticInput extends Input {
+		private final int mWidth;
+		private final int mHeight;
+		private final int mPattern;
+
+		public SyntheticInput(String name, int width, int height, int pattern) {
+			super(name);
+			mWidth = width;
+			mHeight = height;
+			mPattern = pattern;
+		}
+
+		@Override
+		public NativeImage load() {
+			return createImage(mWidth, mHeight, mPattern);
+		}
+
+		@Override
+		public void loadBaseline() throws IOException {
+			int resultCode = PhotoProcessing.nativeInitBitmap(mWidth, mHeight);
+			if (resultCode != 0) {
+				throw new IOException("Unable to make " + getName() + " in the baseline library resultCode=" + resultCode);
+			}
+			int[] row = new int[mWidth];
+			int seed = 12345;
+			for (int y = 0; y < mHeight; y++) {
+				seed = createRow(mWidth, mHeight, mPattern, y, row, seed);
+				PhotoProcessing.nativeSetBitmapRow(y, row);
+			}
+		}
+	}
+
+	/** A jpeg from the corpus directory, which goes through the decoder too */
+	private static class JpegInput extends Input {
+		private final File mFile;
+
+		public JpegInput(String name, File file) {
+			super(name);
+			mFile = file;
+		}
+
+		@Override
+		public NativeImage load() throws IOException {
+			return NativeImage.loadResizedJpeg(mFile.getPath(), Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void loadBaseline() throws IOException {
+			byte[] jpeg = readFile(mFile);
+			int resultCode = PhotoProcessing.nativeLoadResizedJpegBitmap(jpeg, jpeg.length, Integer.MAX_VALUE);
+			if (resultCode != 0) {
+				throw new IOException("Unable to decode " + mFile + " with the baseline library resultCode=" + resultCode);
+			}
+		}
+	}
+
+	/** The result of comparing one rendered image with its golden image */
+	private static class Difference {
+		public int maxError;
+		public double psnr;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File goldenDir = new File("golden");
+		File diffDir = null;
+		boolean update = false;
+		boolean baseline = false;
+		int threads = 0;
+		File saveTimings = null;
+		File compareTimings = null;
+		double threshold = 25;
+		int megapixels = 2;
+		int iterations = 5;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("--help") || arg.equals("-h")) {
+					System.out.print(USAGE);
+					return;
+				}
+				if (arg.equals("--update")) {
+					update = true;
+					continue;
+				}
+				if (arg.equals("--baseline")) {
+					baseline = true;
+					continue;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("--golden")) {
+					goldenDir = new File(value);
+				} else if (arg.equals("--diff-dir")) {
+					diffDir = new File(value);
+				} else if (arg.equals("--threads")) {
+					threads = parseInt(arg, value, 0, 256);
+				} else if (arg.equals("--save-timings")) {
+					saveTimings = new File(value);
+				} else if (arg.equals("--compare-timings")) {
+					compareTimings = new File(value);
+				} else if (arg.equals("--threshold")) {
+					threshold = parseInt(arg, value, 0, 1000);
+				} else if (arg.equals("--megapixels")) {
+					megapixels = parseInt(arg, value, 1, 200);
+				} else if (arg.equals("--iterations")) {
+					iterations = parseInt(arg, value, 1, 1000);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+			if (baseline && (saveTimings != null || compareTimings != null)) {
+				throw new IllegalArgumentException("The filters can't be timed with --baseline");
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		// The baseline library has no threads and NativeImage isn't in it
+		if (!baseline) {
+			NativeImage.setThreadCount(threads);
+		}
+		int failures = 0;
+		List<Input> inputs = createInputs(new File(goldenDir, CORPUS_DIR));
+		if (update) {
+			writeGolden(inputs, goldenDir, baseline);
+		} else {
+			failures += checkGolden(inputs, goldenDir, diffDir, baseline);
+		}
+
+		if (saveTimings != null || compareTimings != null) {
+			double[] millis = timeFilters(megapixels, iterations);
+			if (saveTimings != null) {
+				writeTimings(saveTimings, millis, megapixels);
+			}
+			if (compareTimings != null) {
+				failures += compareTimings(readTimings(compareTimings, megapixels), millis, threshold);
+			}
+		}
+
+		System.out.println("# " + failures + " failed");
+		System.exit((failures > 0) ? 1 : 0);
+	}
+
+	private static List<Input> createInputs(File corpusDir) throws IOException {
+		List<Input> inputs = new ArrayList<Input>();
+		inputs.add(new SyntheticInput("gradient", 96, 72, 0));
+		inputs.add(new SyntheticInput("noise", 64, 48, 1));
+		inputs.add(new SyntheticInput("edges", 128, 96, 2));
+		// Odd sizes leave a remainder after the rows are shared between threads and after the vector loops
+		inputs.add(new SyntheticInput("odd", 37, 23, 1));
+
+		File[] files = corpusDir.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list " + corpusDir);
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName().toLowerCase(Locale.US);
+			if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+				inputs.add(new JpegInput(name.substring(0, name.lastIndexOf('.')), file));
+			}
+		}
+		return inputs;
+	}
+
+	/**
+	 * Makes one of the synthetic inputs, they're the same every time
+	 * @param pattern 0 for gradients, 1 for noise over the whole range, 2 for hard edges in saturated colours
+	 */
+	private static NativeImage createImage(int width, int height, int pattern) {
+		NativeImage image = new NativeImage(width, height);
+		int[] row = new int[width];
+		int seed = 12345;
+		for (int y = 0; y < height; y++) {
+			seed = createRow(width, height, pattern, y, row, seed);
+			image.setRow(y, row);
+		}
+		return image;
+	}
+
+	/**
+	 * Fills in one row of a synthetic input
+	 * @param seed the noise so far, 12345 for the first row
+	 * @return the seed for the next row
+	 */
+	private static int createRow(int width, int height, int pattern, int y, int[] row, int seed) {
+		for (int x = 0; x < width; x++) {
+			int red, green, blue;
+			if (pattern == 0) {
+				red = x * 255 / (width - 1);
+				green = y * 255 / (height - 1);
+				blue = 255 - (x + y) * 255 / (width + height - 2);
+			} else if (pattern == 1) {
+				seed = seed * 1103515245 + 12345;
+				red = (seed >>> 8) & 255;
+				green = (seed >>> 16) & 255;
+				blue = (seed >>> 24) & 255;
+			} else {
+				boolean check = ((x / 8) + (y / 8)) % 2 == 0;
+				int dx = x - width / 2;
+				int dy = y - height / 2;
+				boolean circle = dx * dx + dy * dy < height * height / 9;
+				red = circle ? 255 : (check ? 0 : 200);
+				green = circle ? 32 : (check ? 0 : 220);
+				blue = circle ? 0 : (check ? 255 : 20);
+			}
+			row[x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+		}
+		return seed;
+	}
+
+	private static File getGoldenFile(File goldenDir, Input input, int filter) {
+		return new File(goldenDir, input.getName() + "." + HostPhotoProcessing.FILTER_NAMES[filter] + ".png");
+	}
+
+	private static BufferedImage render(Input input, int filter, boolean baseline) throws IOException {
+		if (baseline) {
+			return renderBaseline(input, filter);
+		}
+		NativeImage image = input.load();
+		try {
+			return HostPhotoProcessing.filterPhoto(image, filter);
+		} finally {
+			image.close();
+		}
+	}
+
+	/** Like HostPhotoProcessing.filterPhoto() with the baseline library, which keeps the one bitmap until it's deleted */
+	private static BufferedImage renderBaseline(Input input, int filter) throws IOException {
+		input.loadBaseline();
+		try {
+			PhotoProcessing.applyFilter(filter);
+			int width = PhotoProcessing.nativeGetBitmapWidth();
+			int height = PhotoProcessing.nativeGetBitmapHeight();
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			int[] row = new int[width];
+			for (int y = 0; y < height; y++) {
+				PhotoProcessing.nativeGetBitmapRow(y, row);
+				image.setRGB(0, y, width, 1, row, 0, width);
+			}
+			return image;
+		} finally {
+			PhotoProcessing.nativeDeleteBitmap();
+		}
+	}
+
+	private static void writeGolden(List<Input> inputs, File goldenDir, boolean baseline) throws IOException {
+		for (Input input : inputs) {
+			for (int filter = 0; filter < HostPhotoProcessing.FILTER_NAMES.length; filter++) {
+				writePng(render(input, filter, baseline), getGoldenFile(goldenDir, input, filter));
+			}
+		}
+		System.out.println("Wrote " + inputs.size() * HostPhotoProcessing.FILTER_NAMES.length + " golden images to " + goldenDir);
+	}
+
+	/** @return how many images didn't match */
+	private static int checkGolden(List<Input> inputs, File goldenDir, File diffDir, boolean baseline) throws IOException {
+		int failures = 0;
+		for (Input input : inputs) {
+			for (int filter = 0; filter < HostPhotoProcessing.FILTER_NAMES.length; filter++) {
+				String name = input.getName() + "." + HostPhotoProcessing.FILTER_NAMES[filter];
+				File goldenFile = getGoldenFile(goldenDir, input, filter);
+				if (!goldenFile.exists()) {
+					System.out.println(String.format(Locale.US, "%-24s MISSING %s, run with --update to make it", name, goldenFile));
+					failures++;
+					continue;
+				}
+
+				BufferedImage golden = ImageIO.read(goldenFile);
+				BufferedImage actual = render(input, filter, baseline);
+				if (golden == null || golden.getWidth() != actual.getWidth() || golden.getHeight() != actual.getHeight()) {
+					System.out.println(String.format(Locale.US, "%-24s FAILED rendered %dx%d but the golden image isn't the same size", name,
+							actual.getWidth(), actual.getHeight()));
+					failures++;
+					writeDiff(actual, diffDir, name);
+					continue;
+				}
+
+				Difference difference = compare(golden, actual);
+				boolean failed = difference.maxError > TOLERANCES[filter][0] || difference.psnr < TOLERANCES[filter][1];
+				System.out.println(String.format(Locale.US, "%-24s %s max error %d, psnr %s", name, failed ? "FAILED" : "ok    ",
+						difference.maxError, Double.isInfinite(difference.psnr) ? "inf" : String.format(Locale.US, "%.1fdB", difference.psnr)));
+				if (failed) {
+					failures++;
+					writeDiff(actual, diffDir, name);
+				}
+			}
+		}
+		return failures;
+	}
+
+	private static Difference compare(BufferedImage golden, BufferedImage actual) {
+		int width = golden.getWidth();
+		int height = golden.getHeight();
+		int[] goldenRow = new int[width];
+		int[] actualRow = new int[width];
+		Difference difference = new Difference();
+		long squares = 0;
+		for (int y = 0; y < height; y++) {
+			golden.getRGB(0, y, width, 1, goldenRow, 0, width);
+			actual.getRGB(0, y, width, 1, actualRow, 0, width);
+			for (int x = 0; x < width; x++) {
+				for (int shift = 0; shift <= 16; shift += 8) {
+					int error = Math.abs(((goldenRow[x] >> shift) & 0xff) - ((actualRow[x] >> shift) & 0xff));
+					difference.maxError = Math.max(difference.maxError, error);
+					squares += error * error;
+				}
+			}
+		}
+		double meanSquare = (double)squares / (width * height * 3);
+		difference.psnr = (squares == 0) ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / meanSquare);
+		return difference;
+	}
+
+	private static void writeDiff(BufferedImage actual, File diffDir, String name) throws IOException {
+		if (diffDir != null) {
+			writePng(actual, new File(diffDir, name + ".png"));
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] bytes = new byte[(int)file.length()];
+			int read = 0;
+			while (read < bytes.length) {
+				int count = in.read(bytes, read, bytes.length - read);
+				if (count < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				read += count;
+			}
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writePng(BufferedImage image, File file) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		if (!ImageIO.write(image, "png", file)) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	/**
+	 * Times each filter on a fresh copy of the same image, only the filter itself is timed
+	 * @return the median time of each filter in milliseconds, in the same order as HostPhotoProcessing.FILTER_NAMES
+	 */
+	private static double[] timeFilters(int megapixels, int iterations) {
+		// 4:3 like most camera sensors, made from the same gradients the golden images use
+		int width = (int)Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+		int height = (int)Math.round(megapixels * 1e6 / width);
+		NativeImage source = createImage(width, height, 0);
+		try {
+			System.out.println(String.format(Locale.US, "# timing at %dMP %dx%d, %d threads", megapixels, width, height, NativeImage.getThreadCount()));
+			double[] medians = new double[HostPhotoProcessing.FILTER_NAMES.length];
+			for (int filter = 0; filter < medians.length; filter++) {
+				// One untimed run first so the timings don't include the first touch of the pages
+				double[] millis = new double[iterations + 1];
+				for (int i = 0; i < millis.length; i++) {
+					NativeImage image = source.copy();
+					long start = System.nanoTime();
+					image.applyFilter(filter);
+					millis[i] = (System.nanoTime() - start) / 1e6;
+					image.close();
+				}
+				millis = Arrays.copyOfRange(millis, 1, millis.length);
+				Arrays.sort(millis);
+				medians[filter] = millis[millis.length / 2];
+			}
+			return medians;
+		} finally {
+			source.close();
+		}
+	}
+
+	private static void writeTimings(File file, double[] millis, int megapixels) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.println("# Median milliseconds for each filter, only comparable on the machine they were timed on");
+			writer.println("megapixels=" + megapixels);
+			for (int filter = 0; filter < millis.length; filter++) {
+				writer.println(String.format(Locale.US, "%s=%.3f", HostPhotoProcessing.FILTER_NAMES[filter], millis[filter]));
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private static Properties readTimings(File file, int megapixels) throws IOException {
+		Properties timings = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			timings.load(in);
+		} finally {
+			in.close();
+		}
+		if (!String.valueOf(megapixels).equals(timings.getProperty("megapixels"))) {
+			throw new IOException(file + " was timed at " + timings.getProperty("megapixels") + "MP, run with --megapixels to match");
+		}
+		return timings;
+	}
+
+	/**
+	 * Filters that take under a millisecond aren't reported, there's too little to measure for the threshold to mean anything
+	 * @return how many filters got slower by more than the threshold
+	 */
+	private static int compareTimings(Properties baseline, double[] millis, double thresholdPercent) {
+		System.out.println("# compared with the saved timings");
+		int regressions = 0;
+		for (int filter = 0; filter < millis.length; filter++) {
+			String name = HostPhotoProcessing.FILTER_NAMES[filter];
+			String value = baseline.getProperty(name);
+			if (value == null) {
+				continue;
+			}
+			double before = Double.parseDouble(value);
+			double change = (millis[filter] - before) / before * 100;
+			boolean regressed = change > thresholdPercent && millis[filter] - before >= 1;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.println(String.format(Locale.US, "%-24s %10.3f -> %10.3f ms %+7.1f%%%s", name, before, millis[filter], change,
+					regressed ? "  SLOWER" : ""));
+		}
+		return regressions;
+	}
+
+	private static int parseInt(String arg, String value, int min, int max) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number >= min && number <= max) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException(arg + " must be a number from " + min + " to " + max);
+	}
+}
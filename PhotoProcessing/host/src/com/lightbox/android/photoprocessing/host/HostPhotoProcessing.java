@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.host;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.List;
+
+import com.lightbox.android.photoprocessing.NativeImage;
+import com.lightbox.android.photoprocessing.Orientation;
+import com.lightbox.android.photoprocessing.PhotoProcessingMetrics;
+import com.lightbox.android.photoprocessing.StageTimer;
+
+/**
+ * HostPhotoProcessing
+ * The same calls as PhotoProcessing for a plain JVM, with a {@link BufferedImage} in place of
+ * android.graphics.Bitmap, so the filters can be run and checked off the device.
+ * Needs libphotoprocessing from the host Makefile on java.library.path.
+ */
+public class HostPhotoProcessing {
+	/** The filters by name, in the same order as PhotoProcessing.FILTERS */
+	public static final String[] FILTER_NAMES = {"original", "instafix", "ansel", "testino", "xpro", "retro",
+			"bw", "sepia", "cyano", "georgia", "sahara", "hdr"};
+	/** The edit actions by name, in the same order as PhotoProcessing.EDIT_ACTIONS */
+	public static final String[] EDIT_ACTION_NAMES = {"flip", "rotate90right", "rotate90left", "rotate180"};
+
+	private HostPhotoProcessing() {
+	}
+
+	/**
+	 * @param name one of {@link #FILTER_NAMES}, in any case
+	 * @return the filter's position or -1 if there isn't one by that name
+	 */
+	public static int getFilter(String name) {
+		return indexOf(FILTER_NAMES, name);
+	}
+
+	/**
+	 * @param name one of {@link #EDIT_ACTION_NAMES}, in any case
+	 * @return the edit action's position or -1 if there isn't one by that name
+	 */
+	public static int getEditAction(String name) {
+		return indexOf(EDIT_ACTION_NAMES, name);
+	}
+
+	public static BufferedImage filterPhoto(BufferedImage image, int position) {
+		return filterPhoto(image, position, Orientation.NORMAL);
+	}
+
+	/**
+	 * Filters an image and then puts it in an orientation, both are done in the same trip through native memory.
+	 * @return a new image, the one passed in isn't changed
+	 */
+	public static BufferedImage filterPhoto(BufferedImage image, int position, Orientation orientation) {
+		NativeImage nativeImage = sendImageToNative(image);
+		try {
+			nativeImage.applyFilter(position);
+			nativeImage.applyOrientation(orientation);
+			return getImageFromNative(nativeImage);
+		} finally {
+			nativeImage.close();
+		}
+	}
+
+	/**
+	 * Filters an image already in native memory and copies the result to a new image.
+	 * The native image is left open and still belongs to the caller.
+	 */
+	public static BufferedImage filterPhoto(NativeImage image, int position) {
+		image.applyFilter(position);
+		return getImageFromNative(image);
+	}
+
+	/**
+	 * Sets how many threads the filters use, 0 uses one per CPU core.
+	 * @see NativeImage#setThreadCount(int)
+	 */
+	public static void setThreadCount(int threadCount) {
+		NativeImage.setThreadCount(threadCount);
+	}
+
+	/**
+	 * Applies any number of edit actions with a single copy of the pixels.
+	 * @param editActions indexes into {@link #EDIT_ACTION_NAMES} in the order they were applied
+	 */
+	public static BufferedImage applyEditActions(BufferedImage image, List<Integer> editActions) {
+		return applyOrientation(image, Orientation.fromEditActions(editActions));
+	}
+
+	/** @return a new image, or the same one if the orientation is normal */
+	public static BufferedImage applyOrientation(BufferedImage image, Orientation orientation) {
+		if (orientation.isNormal()) {
+			return image;
+		}
+
+		NativeImage nativeImage = sendImageToNative(image);
+		try {
+			nativeImage.applyOrientation(orientation);
+			return getImageFromNative(nativeImage);
+		} finally {
+			nativeImage.close();
+		}
+	}
+
+	/** Copies an image of any type to native memory, any alpha is dropped */
+	public static NativeImage sendImageToNative(BufferedImage image) {
+		StageTimer timer = StageTimer.start();
+		try {
+			int width = image.getWidth();
+			int height = image.getHeight();
+			NativeImage nativeImage = new NativeImage(width, height);
+
+			int[] pixels = new int[width];
+			int[] data = getIntPixels(image);
+			for (int y = 0; y < height; y++) {
+				if (data != null) { //Straight from the raster, no colour model in the way
+					System.arraycopy(data, y * width, pixels, 0, width);
+				} else {
+					image.getRGB(0, y, width, 1, pixels, 0, width);
+				}
+				nativeImage.setRow(y, pixels);
+			}
+			return nativeImage;
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_COPY_IN);
+		}
+	}
+
+	/** @return a new {@link BufferedImage#TYPE_INT_RGB} image with the native image's pixels */
+	public static BufferedImage getImageFromNative(NativeImage nativeImage) {
+		StageTimer timer = StageTimer.start();
+		try {
+			int width = nativeImage.getWidth();
+			int height = nativeImage.getHeight();
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			int[] data = getIntPixels(image);
+
+			int[] pixels = new int[width];
+			for (int y = 0; y < height; y++) {
+				nativeImage.getRow(y, pixels);
+				System.arraycopy(pixels, 0, data, y * width, width);
+			}
+			return image;
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_COPY_OUT);
+		}
+	}
+
+	/** @return the pixels behind an int rgb or argb image, or null if it's stored any other way */
+	private static int[] getIntPixels(BufferedImage image) {
+		int type = image.getType();
+		if ((type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) || image.getRaster().getParent() != null) {
+			return null; //Sub images share a bigger raster so the rows aren't packed
+		}
+		return ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Compares the blur with the one it replaced, in reference_blur.c, at the radii the filters use and a few more,
+// on images smaller than the radius and with sizes that don't divide between the threads or the column blocks.
+// Exits with 1 if any case differed by more than the tolerance.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <mem_utils.h>
+#include <parallel.h>
+#include <bitmap.h>
+#include <filter.h>
+#include <blur.h>
+
+// The most any one pixel may differ from the old blur, and the most the differences may average
+#define MAX_ERROR 1
+#define MAX_MEAN_ERROR 0.05
+
+int referenceStackBlurComponent(float* radius, unsigned char* srcComponent, int* width, int* height, unsigned char* dstComponent);
+
+static const char* PATTERN_NAMES[] = {"gradient", "noise", "edges"};
+
+static void fillChannel(unsigned char* pixels, int width, int height, int pattern, int channel) {
+	unsigned int seed = 12345 + channel;
+	int x, y;
+	for (y = 0; y < height; y++) {
+		for (x = 0; x < width; x++) {
+			if (pattern == 0) {
+				pixels[y * width + x] = (channel == 0) ? x * 255 / width : ((channel == 1) ? y * 255 / height : (x + y) * 255 / (width + height));
+			} else if (pattern == 1) {
+				seed = seed * 1103515245 + 12345;
+				pixels[y * width + x] = (seed >> 16) & 255;
+			} else {
+				pixels[y * width + x] = ((x / 8 + y / 8 + channel) % 2 == 0) ? 255 : 0;
+			}
+		}
+	}
+}
+
+// Prints how the two blurs compare and returns 1 if they're too far apart
+static int check(const char* name, float radius, int width, int height, int pattern, int threads, int channels) {
+	unsigned int size = width * height;
+	unsigned char* src[3];
+	unsigned char* actual[3];
+	unsigned char* expected[3];
+	int c, failed, maxError = 0, resultCode = MEMORY_OK;
+	unsigned long long totalError = 0;
+	unsigned int i;
+
+	for (c = 0; c < 3; c++) {
+		if (newUnsignedCharArray(size, &src[c]) != MEMORY_OK || newUnsignedCharArray(size, &actual[c]) != MEMORY_OK
+				|| newUnsignedCharArray(size, &expected[c]) != MEMORY_OK) {
+			printf("%s: out of memory\n", name);
+			exit(1);
+		}
+		fillChannel(src[c], width, height, pattern, c);
+		resultCode |= referenceStackBlurComponent(&radius, src[c], &width, &height, expected[c]);
+	}
+
+	setThreadCount(threads);
+	if (channels == 3) {
+		resultCode |= stackBlur(&radius, src[0], src[1], src[2], (unsigned int*) &width, (unsigned int*) &height, actual[0], actual[1], actual[2]);
+	} else {
+		for (c = 0; c < 3; c++) {
+			resultCode |= stackBlurComponent(&radius, src[c], (unsigned int*) &width, (unsigned int*) &height, actual[c]);
+		}
+	}
+
+	for (c = 0; c < 3; c++) {
+		for (i = 0; i < size; i++) {
+			int error = abs(actual[c][i] - expected[c][i]);
+			totalError += error;
+			if (error > maxError) {
+				maxError = error;
+			}
+		}
+		freeUnsignedCharArray(&src[c]);
+		freeUnsignedCharArray(&actual[c]);
+		freeUnsignedCharArray(&expected[c]);
+	}
+
+	double meanError = (double) totalError / (size * 3);
+	failed = resultCode != MEMORY_OK || maxError > MAX_ERROR || meanError > MAX_MEAN_ERROR;
+	printf("%-20s radius %2d %-8s %4dx%-4d %d threads %s max error %d, mean error %.4f\n", name, (int) radius, PATTERN_NAMES[pattern],
+			width, height, threads, failed ? "FAILED" : "ok    ", maxError, meanError);
+	return failed;
+}
+
+int main(int argc, char* argv[]) {
+	static const int RADII[] = {SAHARA_BLUR_RADIUS, 2, 5, HDR_BLUR_RADIUS, 25};
+	static const int SIZES[][2] = {{96, 72}, {37, 23}, {5, 3}, {1, 40}, {333, 257}};
+	static const int THREADS[] = {1, 3};
+	unsigned int r, s, p, t;
+	int failures = 0;
+
+	for (r = 0; r < sizeof(RADII) / sizeof(RADII[0]); r++) {
+		for (s = 0; s < sizeof(SIZES) / sizeof(SIZES[0]); s++) {
+			for (p = 0; p < 3; p++) {
+				for (t = 0; t < sizeof(THREADS) / sizeof(THREADS[0]); t++) {
+					failures += check("stackBlur", RADII[r], SIZES[s][0], SIZES[s][1], p, THREADS[t], 3);
+				}
+			}
+		}
+		failures += check("stackBlurComponent", RADII[r], 96, 72, 1, 3, 1);
+	}
+
+	if (getMemoryInUse() != 0) {
+		printf("FAILED %u bytes still in use\n", getMemoryInUse());
+		failures++;
+	}
+	printf("# blur: %d failed\n", failures);
+	return (failures > 0) ? 1 : 0;
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// A plain C model of the NEON intrinsics jni/simd_neon.c uses, lane by lane as the ARM reference describes them,
+// so the NEON kernels can be compiled and checked against the scalar code on a machine without NEON.
+// Only for the checks, it has to be built with -ffp-contract=off so vmlaq_n_f32 rounds like VMLA does.
+
+#ifndef HOST_ARM_NEON
+#define HOST_ARM_NEON
+
+#include <stdint.h>
+
+typedef struct { uint8_t val[8]; } uint8x8_t;
+typedef struct { uint8_t val[16]; } uint8x16_t;
+typedef struct { uint16_t val[4]; } uint16x4_t;
+typedef struct { uint16_t val[8]; } uint16x8_t;
+typedef struct { uint32_t val[4]; } uint32x4_t;
+typedef struct { float val[4]; } float32x4_t;
+typedef struct { uint8x16_t val[4]; } uint8x16x4_t;
+
+static inline uint8x8_t vld1_u8(const uint8_t* p) {
+	uint8x8_t r; int i;
+	for (i = 0; i < 8; i++) r.val[i] = p[i];
+	return r;
+}
+
+static inline void vst1_u8(uint8_t* p, uint8x8_t a) {
+	int i;
+	for (i = 0; i < 8; i++) p[i] = a.val[i];
+}
+
+static inline uint8x16_t vld1q_u8(const uint8_t* p) {
+	uint8x16_t r; int i;
+	for (i = 0; i < 16; i++) r.val[i] = p[i];
+	return r;
+}
+
+static inline void vst1q_u8(uint8_t* p, uint8x16_t a) {
+	int i;
+	for (i = 0; i < 16; i++) p[i] = a.val[i];
+}
+
+static inline uint8x16_t vdupq_n_u8(uint8_t value) {
+	uint8x16_t r; int i;
+	for (i = 0; i < 16; i++) r.val[i] = value;
+	return r;
+}
+
+// Element i of each of the 4 vectors goes to p[i * 4 + vector]
+static inline void vst4q_u8(uint8_t* p, uint8x16x4_t a) {
+	int i, v;
+	for (i = 0; i < 16; i++) for (v = 0; v < 4; v++) p[i * 4 + v] = a.val[v].val[i];
+}
+
+static inline uint8x16x4_t vld4q_u8(const uint8_t* p) {
+	uint8x16x4_t r; int i, v;
+	for (i = 0; i < 16; i++) for (v = 0; v < 4; v++) r.val[v].val[i] = p[i * 4 + v];
+	return r;
+}
+
+static inline uint16x8_t vmovl_u8(uint8x8_t a) {
+	uint16x8_t r; int i;
+	for (i = 0; i < 8; i++) r.val[i] = a.val[i];
+	return r;
+}
+
+static inline uint32x4_t vmovl_u16(uint16x4_t a) {
+	uint32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = a.val[i];
+	return r;
+}
+
+static inline uint16x4_t vget_low_u16(uint16x8_t a) {
+	uint16x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = a.val[i];
+	return r;
+}
+
+static inline uint16x4_t vget_high_u16(uint16x8_t a) {
+	uint16x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = a.val[i + 4];
+	return r;
+}
+
+static inline uint16x8_t vcombine_u16(uint16x4_t low, uint16x4_t high) {
+	uint16x8_t r; int i;
+	for (i = 0; i < 4; i++) {
+		r.val[i] = low.val[i];
+		r.val[i + 4] = high.val[i];
+	}
+	return r;
+}
+
+// The narrowing moves keep the low half of each element
+static inline uint16x4_t vmovn_u32(uint32x4_t a) {
+	uint16x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = (uint16_t) a.val[i];
+	return r;
+}
+
+static inline uint8x8_t vmovn_u16(uint16x8_t a) {
+	uint8x8_t r; int i;
+	for (i = 0; i < 8; i++) r.val[i] = (uint8_t) a.val[i];
+	return r;
+}
+
+static inline float32x4_t vcvtq_f32_u32(uint32x4_t a) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = (float) a.val[i];
+	return r;
+}
+
+// Rounds towards zero and saturates, NaN becomes 0
+static inline uint32x4_t vcvtq_u32_f32(float32x4_t a) {
+	uint32x4_t r; int i;
+	for (i = 0; i < 4; i++) {
+		float value = a.val[i];
+		r.val[i] = !(value > 0.0f) ? 0 : ((value >= 4294967296.0f) ? 0xFFFFFFFFu : (uint32_t) value);
+	}
+	return r;
+}
+
+static inline float32x4_t vdupq_n_f32(float value) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = value;
+	return r;
+}
+
+static inline float32x4_t vaddq_f32(float32x4_t a, float32x4_t b) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = a.val[i] + b.val[i];
+	return r;
+}
+
+static inline float32x4_t vmulq_n_f32(float32x4_t a, float b) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = a.val[i] * b;
+	return r;
+}
+
+// Not fused, the product is rounded before it's added
+static inline float32x4_t vmlaq_n_f32(float32x4_t a, float32x4_t b, float c) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) {
+		float product = b.val[i] * c;
+		r.val[i] = a.val[i] + product;
+	}
+	return r;
+}
+
+static inline float32x4_t vminq_f32(float32x4_t a, float32x4_t b) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = (a.val[i] < b.val[i]) ? a.val[i] : b.val[i];
+	return r;
+}
+
+static inline float32x4_t vmaxq_f32(float32x4_t a, float32x4_t b) {
+	float32x4_t r; int i;
+	for (i = 0; i < 4; i++) r.val[i] = (a.val[i] > b.val[i]) ? a.val[i] : b.val[i];
+	return r;
+}
+
+#endif
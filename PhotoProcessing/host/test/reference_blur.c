@@ -0,0 +1,121 @@
+// Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
+// Ported to C by Nilesh Patel from the source code found here
+// http://incubator.quasimondo.com/processing/stackblur.pde
+// and altered to process each colour channel (r, g, b) separately.
+//
+// The blur as it was before it was reworked into sliding box passes over all the channels, kept unchanged apart
+// from the names so blur_check.c can compare the two. Not built into the library.
+
+#include <mem_utils.h>
+#include <string.h>
+
+static int referenceFastBlurComponent(int radius, unsigned char* srcComponent, int width, int height, unsigned char* dstComponent) {
+	unsigned int windowSize = radius * 2 + 1;
+	unsigned int radiusPlusOne = radius + 1;
+
+	unsigned int sumComponent;
+
+	register unsigned int srcIndex = 0;
+	register unsigned int dstIndex;
+
+	unsigned int sumLookupTableSize = 256 * windowSize;
+	unsigned int* sumLookupTable;
+	int returnCode = newUnsignedIntArray(sumLookupTableSize, &sumLookupTable);
+	if (returnCode != MEMORY_OK) {
+		return returnCode;
+	}
+
+	register unsigned int i;
+	for (i = sumLookupTableSize; i--;) {
+		sumLookupTable[i] = i / windowSize;
+	}
+
+	unsigned int* indexLookupTable;
+	returnCode = newUnsignedIntArray(radiusPlusOne, &indexLookupTable);
+	if (returnCode != MEMORY_OK) {
+		freeUnsignedIntArray(&sumLookupTable);
+		return returnCode;
+	}
+
+	if (radius < width) {
+		for (i = radiusPlusOne; i--; ) {
+			indexLookupTable[i] = i;
+		}
+	} else {
+		for (i = width; i--; ) {
+			indexLookupTable[i] = i;
+		}
+		for (i = width; i < radiusPlusOne; i++) {
+			indexLookupTable[i] = width - 1;
+		}
+	}
+
+	register unsigned int x, y;
+	register int nextPixelIndex;
+	register int previousPixelIndex;
+	for (y = 0; y < height; y++) {
+		sumComponent = 0;
+		dstIndex = y;
+
+		sumComponent += radiusPlusOne * srcComponent[srcIndex];
+
+		for (i = 1; i <= radius; i++) {
+			sumComponent += srcComponent[srcIndex + indexLookupTable[i]];
+		}
+
+		for (x = 0; x < width; x++) {
+			dstComponent[dstIndex] = sumLookupTable[sumComponent];
+			dstIndex += height;
+
+			nextPixelIndex = x + radiusPlusOne;
+			if (nextPixelIndex >= width) {
+				nextPixelIndex = width - 1;
+			}
+
+			previousPixelIndex = x - radius;
+			if (previousPixelIndex < 0) {
+				previousPixelIndex = 0;
+			}
+
+			sumComponent += srcComponent[srcIndex + nextPixelIndex];
+			sumComponent -= srcComponent[srcIndex + previousPixelIndex];
+		}
+
+		srcIndex += width;
+	}
+
+	freeUnsignedIntArray(&sumLookupTable);
+	freeUnsignedIntArray(&indexLookupTable);
+
+	return MEMORY_OK;
+}
+
+int referenceStackBlurComponent(float* radius, unsigned char* srcComponent, int* width, int* height, unsigned char* dstComponent) {
+	int size = (*width) * (*height);
+	unsigned char* srcComponentCopy;
+	int returnCode = newUnsignedCharArray(size, &srcComponentCopy);
+	if (returnCode != MEMORY_OK) {
+		return returnCode;
+	}
+
+	int i;
+	memcpy(srcComponentCopy, srcComponent, size);
+	for (i = 3; i--; ) {
+		//horizontal pass
+		returnCode = referenceFastBlurComponent((int)(*radius), srcComponentCopy, *width, *height, dstComponent);
+		if (returnCode != MEMORY_OK) {
+			freeUnsignedCharArray(&srcComponentCopy);
+			return returnCode;
+		}
+		//vertical pass
+		returnCode = referenceFastBlurComponent((int)(*radius), dstComponent, *height, *width, srcComponentCopy);
+		if (returnCode != MEMORY_OK) {
+			freeUnsignedCharArray(&srcComponentCopy);
+			return returnCode;
+		}
+	}
+	memcpy(dstComponent, srcComponentCopy, size);
+	freeUnsignedCharArray(&srcComponentCopy);
+
+	return MEMORY_OK;
+}
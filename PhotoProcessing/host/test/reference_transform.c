@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// The flips and rotations as they were before applyOrientation() replaced them, kept unchanged apart from the names
+// so bench/transform_bench.c can compare the two. Not built into the library.
+
+#include <bitmap.h>
+#include <mem_utils.h>
+
+// In memory horizontal flip
+// Can perform flip on entire bitmap on specific colour components specified using the parameter flags
+void referenceFlipHorizontally(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	int y, x, leftPos, rightPos;
+
+	if (doRed) {
+		unsigned char leftR;
+		int width = (*bitmap).redWidth;
+		int height = (*bitmap).redHeight;
+		for (y = 0; y < height; y++) {
+			for (x = 0; x < width/2; x++) {
+				leftPos = (y * width) + x;
+				rightPos = (y * width) + (width-1-x);
+				// Copy the red component from the left column
+				leftR = (*bitmap).red[leftPos];
+				// Copy red component from right column to left column
+				(*bitmap).red[leftPos] = (*bitmap).red[rightPos];
+				// Copy original left column red component in the right column
+				(*bitmap).red[rightPos] = leftR;
+			}
+		}
+	}
+
+	if (doGreen) {
+		unsigned char leftG;
+		int width = (*bitmap).greenWidth;
+		int height = (*bitmap).greenHeight;
+		for (y = 0; y < height; y++) {
+			for (x = 0; x < width/2; x++) {
+				leftPos = (y * width) + x;
+				rightPos = (y * width) + (width-1-x);
+				// Copy the green component from the left column
+				leftG = (*bitmap).green[leftPos];
+				// Copy green component from right column to left column
+				(*bitmap).green[leftPos] = (*bitmap).green[rightPos];
+				// Copy original left column green component in the right column
+				(*bitmap).green[rightPos] = leftG;
+			}
+		}
+	}
+
+	if (doBlue) {
+		unsigned char leftB;
+		int width = (*bitmap).blueWidth;
+		int height = (*bitmap).blueHeight;
+		for (y = 0; y < height; y++) {
+			for (x = 0; x < width/2; x++) {
+				leftPos = (y * width) + x;
+				rightPos = (y * width) + (width-1-x);
+				// Copy the blue component from the left column
+				leftB = (*bitmap).blue[leftPos];
+				// Copy blue component from right column to left column
+				(*bitmap).blue[leftPos] = (*bitmap).blue[rightPos];
+				// Copy original left column blue component in the right column
+				(*bitmap).blue[rightPos] = leftB;
+			}
+		}
+	}
+}
+
+// In memory vertical flip
+// Can perform flip on entire bitmap on specific colour components specified using the parameter flags
+void referenceFlipVertically(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	int y, x, topPos, bottomPos;
+
+	if (doRed) {
+		unsigned char topR;
+		int width = (*bitmap).redWidth;
+		int height = (*bitmap).redHeight;
+		for (y = 0; y < height/2; y++) {
+			for (x = 0; x < width; x++) {
+				topPos = (y * width) + x;
+				bottomPos = (((height - 1) - y) * width) + x;
+				// Copy the red component from the top row
+				topR = (*bitmap).red[topPos];
+				// Copy red component from bottom row to top row
+				(*bitmap).red[topPos] = (*bitmap).red[bottomPos];
+				// Copy original top row red component to the bottom row
+				(*bitmap).red[bottomPos] = topR;
+			}
+		}
+	}
+
+	if (doGreen) {
+		unsigned char topG;
+		int width = (*bitmap).greenWidth;
+		int height = (*bitmap).greenHeight;
+		for (y = 0; y < height/2; y++) {
+			for (x = 0; x < width; x++) {
+				topPos = (y * width) + x;
+				bottomPos = (((height - 1) - y) * width) + x;
+				// Copy the green component from the top row
+				topG = (*bitmap).green[topPos];
+				// Copy green component from bottom row to top row
+				(*bitmap).green[topPos] = (*bitmap).green[bottomPos];
+				// Copy original top row green component to the bottom row
+				(*bitmap).green[bottomPos] = topG;
+			}
+		}
+	}
+
+	if (doBlue) {
+		unsigned char topB;
+		int width = (*bitmap).blueWidth;
+		int height = (*bitmap).blueHeight;
+		for (y = 0; y < height/2; y++) {
+			for (x = 0; x < width; x++) {
+				topPos = (y * width) + x;
+				bottomPos = (((height - 1) - y) * width) + x;
+				// Copy the blue component from the top row
+				topB = (*bitmap).blue[topPos];
+				// Copy blue component from bottom row to top row
+				(*bitmap).blue[topPos] = (*bitmap).blue[bottomPos];
+				// Copy original top row blue component to the bottom row
+				(*bitmap).blue[bottomPos] = topB;
+			}
+		}
+	}
+}
+
+// Rotates a colour component by 90 degrees clockwise
+// The rotated values are inside unsigned char* rotated
+static void referenceRotate90Component(unsigned char* componentPixels, unsigned char* rotated, int width, int height) {
+	int x, y, newPos, oldPos;
+
+	for (y = 0; y < height; y++) {
+		for (x = 0; x < width; x++) {
+			newPos = (x * height) + (height - y - 1);
+			oldPos = (y * width) + x;
+
+			rotated[newPos] = componentPixels[oldPos];
+		}
+	}
+}
+
+// Rotates an entire bitmap or just individual colour components by 90 degrees clockwise
+// Use the parameter flags to indicate which colour components should be rotated.
+//TODO what about the bitmaps width and height being swapped?
+int referenceRotate90(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	unsigned char* rotatedRed;
+	unsigned char* rotatedGreen;
+	unsigned char* rotatedBlue;
+
+	if (doRed) {
+		int returnCode = newUnsignedCharArray((*bitmap).redWidth * (*bitmap).redHeight, &rotatedRed);
+		if (returnCode != MEMORY_OK) {
+			return returnCode;
+		}
+
+		referenceRotate90Component((*bitmap).red, rotatedRed, (*bitmap).redWidth, (*bitmap).redHeight);
+
+		freeUnsignedCharArray(&(*bitmap).red);
+		(*bitmap).red = rotatedRed;
+
+		//Swap the red dimensions
+		int temp = (*bitmap).redWidth;
+		(*bitmap).redWidth = (*bitmap).redHeight;
+		(*bitmap).redHeight = temp;
+	}
+
+	if (doGreen) {
+		int returnCode = newUnsignedCharArray((*bitmap).greenWidth * (*bitmap).greenHeight, &rotatedGreen);
+		if (returnCode != MEMORY_OK) {
+			freeUnsignedCharArray(&rotatedRed);
+			return returnCode;
+		}
+
+		referenceRotate90Component((*bitmap).green, rotatedGreen, (*bitmap).greenWidth, (*bitmap).greenHeight);
+
+		freeUnsignedCharArray(&(*bitmap).green);
+		(*bitmap).green = rotatedGreen;
+
+		//Swap the green dimensions
+		int temp = (*bitmap).greenWidth;
+		(*bitmap).greenWidth = (*bitmap).greenHeight;
+		(*bitmap).greenHeight = temp;
+	}
+
+	if (doBlue) {
+		int returnCode = newUnsignedCharArray((*bitmap).blueWidth * (*bitmap).blueHeight, &rotatedBlue);
+		if (returnCode != MEMORY_OK) {
+			freeUnsignedCharArray(&rotatedRed);
+			freeUnsignedCharArray(&rotatedGreen);
+			return returnCode;
+		}
+
+		referenceRotate90Component((*bitmap).blue, rotatedBlue, (*bitmap).blueWidth, (*bitmap).blueHeight);
+
+		freeUnsignedCharArray(&(*bitmap).blue);
+		(*bitmap).blue = rotatedBlue;
+
+		//Swap the blue dimensions
+		int temp = (*bitmap).blueWidth;
+		(*bitmap).blueWidth = (*bitmap).blueHeight;
+		(*bitmap).blueHeight = temp;
+	}
+
+	return MEMORY_OK;
+}
+
+// Performs an in-memory 180 degrees rotation of an entire bitmap or just a colour component
+void referenceRotate180(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	referenceFlipVertically(bitmap, doRed, doGreen, doBlue);
+	referenceFlipHorizontally(bitmap, doRed, doGreen, doBlue);
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Checks the vector kernels give exactly what the scalar ones do. The dispatching functions are checked with whatever
+// this machine uses (SSE2 on x86) and the NEON kernels through the C model of the intrinsics in test/neon/, on counts
+// either side of the vector widths, unaligned buffers and matrices that push the sums past both ends of the clamp.
+// Exits with 1 if any output differed.
+
+#define HAVE_NEON
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <simd.h>
+
+static const unsigned int COUNTS[] = {0, 1, 7, 8, 15, 16, 17, 33, 255, 256, 1000};
+#define MAX_COUNT 1000
+
+// Extra bytes in front of each buffer so the kernels see addresses that aren't aligned
+#define MAX_OFFSET 3
+
+static float MATRICES[][4][4] = {
+	{{1, 0, 0, 0}, {0, 1, 0, 0}, {0, 0, 1, 0}, {0, 0, 0, 1}},
+	{{0.393f, 0.349f, 0.272f, 0}, {0.769f, 0.686f, 0.534f, 0}, {0.189f, 0.168f, 0.131f, 0}, {0, 0, 0, 1}},
+	{{1.5f, -0.25f, -0.25f, 0}, {-0.25f, 1.5f, -0.25f, 0}, {-0.25f, -0.25f, 1.5f, 0}, {-40.5f, 12.25f, 30, 1}},
+	{{-1, 0, 0, 0}, {0, -1, 0, 0}, {0, 0, -1, 0}, {255, 255, 255, 1}},
+	{{2.7f, 0.1f, -3.3f, 0}, {0.33f, 2.2f, 0.9f, 0}, {-0.6f, 0.41f, 2.9f, 0}, {-300, 200.75f, -0.5f, 1}},
+};
+
+static unsigned int seed = 12345;
+
+static void fillRandom(unsigned char* bytes, unsigned int count) {
+	unsigned int i;
+	for (i = 0; i < count; i++) {
+		seed = seed * 1103515245 + 12345;
+		bytes[i] = (seed >> 16) & 255;
+	}
+}
+
+static int report(const char* name, unsigned int count, unsigned int offset, int differed) {
+	if (differed) {
+		printf("FAILED %s %u pixels at offset %u\n", name, count, offset);
+	}
+	return differed;
+}
+
+// Calls a kernel that returns how many pixels it did and finishes the rest with the scalar code, like simd.c does
+static void multiplyWithNeon(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]) {
+	unsigned int done = multiplyPixelsByMatrixNeon(red, green, blue, count, matrix);
+	multiplyPixelsByMatrixScalar(red + done, green + done, blue + done, count - done, matrix);
+}
+
+static int checkMatrix(unsigned int count, unsigned int offset, float matrix[4][4]) {
+	static unsigned char input[3][MAX_COUNT + MAX_OFFSET];
+	static unsigned char expected[3][MAX_COUNT + MAX_OFFSET];
+	static unsigned char actual[3][MAX_COUNT + MAX_OFFSET];
+	int c, failures = 0;
+
+	for (c = 0; c < 3; c++) {
+		fillRandom(input[c], count + offset);
+		memcpy(expected[c], input[c], count + offset);
+	}
+	multiplyPixelsByMatrixScalar(expected[0] + offset, expected[1] + offset, expected[2] + offset, count, matrix);
+
+	for (c = 0; c < 3; c++) {
+		memcpy(actual[c], input[c], count + offset);
+	}
+	multiplyPixelsByMatrix(actual[0] + offset, actual[1] + offset, actual[2] + offset, count, matrix);
+	failures += report("multiplyPixelsByMatrix", count, offset, memcmp(actual, expected, sizeof(actual)) != 0);
+
+	for (c = 0; c < 3; c++) {
+		memcpy(actual[c], input[c], count + offset);
+	}
+	multiplyWithNeon(actual[0] + offset, actual[1] + offset, actual[2] + offset, count, matrix);
+	failures += report("multiplyPixelsByMatrixNeon", count, offset, memcmp(actual, expected, sizeof(actual)) != 0);
+	return failures;
+}
+
+static int checkInterleave(unsigned int count, unsigned int offset) {
+	static unsigned char planes[3][MAX_COUNT + MAX_OFFSET];
+	static unsigned char expected[(MAX_COUNT + MAX_OFFSET) * 4];
+	static unsigned char actual[(MAX_COUNT + MAX_OFFSET) * 4];
+	static unsigned char expectedPlanes[3][MAX_COUNT + MAX_OFFSET];
+	static unsigned char actualPlanes[3][MAX_COUNT + MAX_OFFSET];
+	static int expectedPixels[MAX_COUNT + MAX_OFFSET];
+	static int actualPixels[MAX_COUNT + MAX_OFFSET];
+	unsigned int done;
+	int c, failures = 0;
+
+	for (c = 0; c < 3; c++) {
+		fillRandom(planes[c], count + offset);
+	}
+
+	memset(expected, 0, sizeof(expected));
+	memset(actual, 0, sizeof(actual));
+	interleaveRgbaScalar(planes[0] + offset, planes[1] + offset, planes[2] + offset, expected + offset, count);
+	interleaveRgba(planes[0] + offset, planes[1] + offset, planes[2] + offset, actual + offset, count);
+	failures += report("interleaveRgba", count, offset, memcmp(actual, expected, sizeof(actual)) != 0);
+
+	memset(actual, 0, sizeof(actual));
+	done = interleaveNeon(planes[0] + offset, planes[1] + offset, planes[2] + offset, actual + offset, count);
+	interleaveRgbaScalar(planes[0] + offset + done, planes[1] + offset + done, planes[2] + offset + done, actual + offset + (done * 4), count - done);
+	failures += report("interleaveNeon", count, offset, memcmp(actual, expected, sizeof(actual)) != 0);
+
+	// Back again from bytes that aren't all 0xFF in the alpha, which has to be ignored
+	fillRandom(expected, (count + offset) * 4);
+	memset(expectedPlanes, 0, sizeof(expectedPlanes));
+	memset(actualPlanes, 0, sizeof(actualPlanes));
+	deinterleaveRgbaScalar(expected + offset, expectedPlanes[0] + offset, expectedPlanes[1] + offset, expectedPlanes[2] + offset, count);
+	deinterleaveRgba(expected + offset, actualPlanes[0] + offset, actualPlanes[1] + offset, actualPlanes[2] + offset, count);
+	failures += report("deinterleaveRgba", count, offset, memcmp(actualPlanes, expectedPlanes, sizeof(actualPlanes)) != 0);
+
+	memset(actualPlanes, 0, sizeof(actualPlanes));
+	done = deinterleaveNeon(expected + offset, actualPlanes[0] + offset, actualPlanes[1] + offset, actualPlanes[2] + offset, count);
+	deinterleaveRgbaScalar(expected + offset + (done * 4), actualPlanes[0] + offset + done, actualPlanes[1] + offset + done,
+			actualPlanes[2] + offset + done, count - done);
+	failures += report("deinterleaveNeon", count, offset, memcmp(actualPlanes, expectedPlanes, sizeof(actualPlanes)) != 0);
+
+	// The ARGB integers are the same kernels with red and blue swapped
+	memset(expectedPixels, 0, sizeof(expectedPixels));
+	memset(actualPixels, 0, sizeof(actualPixels));
+	packArgbScalar(planes[0] + offset, planes[1] + offset, planes[2] + offset, expectedPixels + offset, count);
+	packArgb(planes[0] + offset, planes[1] + offset, planes[2] + offset, actualPixels + offset, count);
+	failures += report("packArgb", count, offset, memcmp(actualPixels, expectedPixels, sizeof(actualPixels)) != 0);
+
+	memset(expectedPlanes, 0, sizeof(expectedPlanes));
+	memset(actualPlanes, 0, sizeof(actualPlanes));
+	unpackArgbScalar(expectedPixels + offset, expectedPlanes[0] + offset, expectedPlanes[1] + offset, expectedPlanes[2] + offset, count);
+	unpackArgb(expectedPixels + offset, actualPlanes[0] + offset, actualPlanes[1] + offset, actualPlanes[2] + offset, count);
+	failures += report("unpackArgb", count, offset, memcmp(actualPlanes, expectedPlanes, sizeof(actualPlanes)) != 0);
+	return failures;
+}
+
+int main(int argc, char* argv[]) {
+	unsigned int c, o, m;
+	int failures = 0, cases = 0;
+
+	for (c = 0; c < sizeof(COUNTS) / sizeof(COUNTS[0]); c++) {
+		for (o = 0; o <= MAX_OFFSET; o++) {
+			for (m = 0; m < sizeof(MATRICES) / sizeof(MATRICES[0]); m++) {
+				failures += checkMatrix(COUNTS[c], o, MATRICES[m]);
+				cases += 2;
+			}
+			failures += checkInterleave(COUNTS[c], o);
+			cases += 6;
+		}
+	}
+
+	printf("# simd: %d cases, %d failed\n", cases, failures);
+	return (failures > 0) ? 1 : 0;
+}
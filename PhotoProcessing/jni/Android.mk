@@ -7,7 +7,21 @@ LOCAL_MODULE    := photoprocessing
 LOCAL_CFLAGS := -DANDROID_NDK \
                 -DDISABLE_IMPORTGL
                 
-LOCAL_SRC_FILES := nanojpeg.c mem_utils.c bitmap.c bicubic_resize.c filter.c transform.c colour_space.c matrix.c blur.c photo_processing.c
+LOCAL_SRC_FILES := nanojpeg.c mem_utils.c bitmap.c bicubic_resize.c filter.c transform.c colour_space.c matrix.c blur.c parallel.c pipeline.c simd.c jpeg_encoder.c export.c metrics.c photo_processing.c
 LOCAL_LDLIBS    := -lm -llog
 
-include $(BUILD_SHARED_LIBRARY)
\ No newline at end of file
+# armeabi has no hardware floating point so the colour matrices use fixed point there
+ifeq ($(TARGET_ARCH_ABI),armeabi)
+    LOCAL_CFLAGS += -DMATRIX_FIXED_POINT
+endif
+
+# The NEON kernels are only built for armeabi-v7a and only used when the cpu has NEON
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+    LOCAL_CFLAGS += -DHAVE_NEON=1
+    LOCAL_SRC_FILES += simd_neon.c.neon
+    LOCAL_STATIC_LIBRARIES += cpufeatures
+endif
+
+include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,cpufeatures)
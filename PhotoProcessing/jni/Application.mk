@@ -1,2 +1,2 @@
 APP_OPTIM := release
-APP_ABI := armeabi armeabi-v7a
\ No newline at end of file
+APP_ABI := armeabi armeabi-v7a x86
\ No newline at end of file
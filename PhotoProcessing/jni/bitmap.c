@@ -21,14 +21,22 @@
 
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
 
 #include <mem_utils.h>
 #include <bitmap.h>
+#include <simd.h>
+#include <metrics.h>
+
+#include <nanojpeg.h>
 
 #define  LOG_TAG    "bitmap.c"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
+// nanojpeg decodes into a single static context so only one jpeg can be decoded at a time
+static pthread_mutex_t decodeMutex = PTHREAD_MUTEX_INITIALIZER;
 
 inline int rgb(int red, int green, int blue) {
 	return (0xFF << 24) | (red << 16) | (green << 8) | blue;
@@ -100,16 +108,143 @@ int initBitmapMemory(Bitmap* bitmap, int width, int height) {
 	if (resultCode != MEMORY_OK) {
 		return resultCode;
 	}
+
+	return MEMORY_OK;
 }
 
-int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap) {
+// Allocates an empty bitmap struct, the pixel memory is allocated separately with initBitmapMemory()
+int newBitmap(Bitmap** bitmapPointer) {
+	*bitmapPointer = (Bitmap*) malloc(sizeof(Bitmap));
+	if (*bitmapPointer == NULL) {
+		return BITMAP_ALLOCATION_ERROR;
+	}
+
+	memset(*bitmapPointer, 0, sizeof(Bitmap));
+	return MEMORY_OK;
+}
+
+// Frees the bitmap's pixel memory as well as the bitmap struct itself
+void freeBitmap(Bitmap** bitmapPointer) {
+	if (*bitmapPointer != NULL) {
+		deleteBitmap(*bitmapPointer);
+		free(*bitmapPointer);
+		*bitmapPointer = NULL;
+	}
+}
+
+int copyBitmap(Bitmap* src, Bitmap* dst) {
+	int resultCode = initBitmapMemory(dst, (*src).width, (*src).height);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	unsigned int size = (*src).width * (*src).height;
+	memcpy((*dst).red, (*src).red, size);
+	memcpy((*dst).green, (*src).green, size);
+	memcpy((*dst).blue, (*src).blue, size);
+
+	return MEMORY_OK;
+}
+
+static void halveChannel(unsigned char* src, unsigned int srcWidth, unsigned int srcHeight, unsigned char* dst, unsigned int dstWidth, unsigned int dstHeight) {
+	unsigned int x, y;
+	for (y = 0; y < dstHeight; y++) {
+		unsigned char* top = src + y * 2 * srcWidth;
+		unsigned char* bottom = (y * 2 + 1 < srcHeight) ? top + srcWidth : top;
+		unsigned char* out = dst + y * dstWidth;
+		for (x = 0; x < srcWidth / 2; x++) {
+			out[x] = (top[x * 2] + top[x * 2 + 1] + bottom[x * 2] + bottom[x * 2 + 1] + 2) >> 2;
+		}
+		if (x < dstWidth) {
+			out[x] = (top[x * 2] + bottom[x * 2] + 1) >> 1;
+		}
+	}
+}
+
+// Makes a copy of the bitmap at half its width and height by averaging each 2x2 block of pixels,
+// an odd last row or column is averaged on its own. Cheaper than a bicubic resize for the halvings
+// of a preview pyramid and doesn't alias.
+int halveBitmap(Bitmap* src, Bitmap* dst) {
+	unsigned int width = ((*src).width + 1) / 2;
+	unsigned int height = ((*src).height + 1) / 2;
+	int resultCode = initBitmapMemory(dst, width, height);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	halveChannel((*src).red, (*src).width, (*src).height, (*dst).red, width, height);
+	halveChannel((*src).green, (*src).width, (*src).height, (*dst).green, width, height);
+	halveChannel((*src).blue, (*src).width, (*src).height, (*dst).blue, width, height);
+
+	return MEMORY_OK;
+}
+
+// A raw planes file is this, the width and the height as native unsigned ints followed by the
+// red, green and blue planes. They're only ever read back on the device that wrote them.
+#define BITMAP_PLANES_MAGIC 0x4c425250
+#define BITMAP_PLANES_MAX_SIZE 16384
+
+int writeBitmapPlanes(Bitmap* bitmap, FILE* file) {
+	unsigned int header[3] = {BITMAP_PLANES_MAGIC, (*bitmap).width, (*bitmap).height};
+	size_t size = (*bitmap).width * (*bitmap).height;
+
+	if (fwrite(header, sizeof(unsigned int), 3, file) != 3
+			|| fwrite((*bitmap).red, 1, size, file) != size
+			|| fwrite((*bitmap).green, 1, size, file) != size
+			|| fwrite((*bitmap).blue, 1, size, file) != size) {
+		return BITMAP_FILE_ERROR;
+	}
+
+	return MEMORY_OK;
+}
+
+int readBitmapPlanes(FILE* file, Bitmap* bitmap) {
+	unsigned int header[3];
+	if (fread(header, sizeof(unsigned int), 3, file) != 3 || header[0] != BITMAP_PLANES_MAGIC
+			|| header[1] == 0 || header[1] > BITMAP_PLANES_MAX_SIZE || header[2] == 0 || header[2] > BITMAP_PLANES_MAX_SIZE) {
+		return BITMAP_FILE_ERROR;
+	}
+
+	int resultCode = initBitmapMemory(bitmap, header[1], header[2]);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	size_t size = header[1] * header[2];
+	if (fread((*bitmap).red, 1, size, file) != size
+			|| fread((*bitmap).green, 1, size, file) != size
+			|| fread((*bitmap).blue, 1, size, file) != size) {
+		deleteBitmap(bitmap);
+		return BITMAP_FILE_ERROR;
+	}
+
+	return MEMORY_OK;
+}
+
+static int decodeJpegDataLocked(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap) {
 	int returnCode;
 
 	int maxWidth;
 	int maxHeight;
+	long long stageStart;
+
+	// Decode the jpeg once, the YCbCr data is kept so the channels can be converted one at a time.
+	// The IDCT already scales the image down as far as possible without going below maxPixels,
+	// the rest is done by the bicubic resize.
+	njInit();
+	stageStart = beginStage();
+	returnCode = njDecodeScaled(jpegData, jpegSize, maxPixels);
+	endStage(METRICS_STAGE_DECODE, stageStart);
+	if (returnCode != 0) {
+		LOGE("Failed to njDecode()");
+		njDone();
+		return returnCode;
+	}
 
-	// Decode red channel
-	returnCode = decodeJpegChannel(jpegData, jpegSize, 0, &(*bitmap).red, &(*bitmap).redWidth, &(*bitmap).redHeight);
+	// Convert red channel
+	stageStart = beginStage();
+	returnCode = decodeJpegChannel(0, &(*bitmap).red, &(*bitmap).redWidth, &(*bitmap).redHeight);
+	endStage(METRICS_STAGE_DECODE, stageStart);
 	if (returnCode != MEMORY_OK) {
 		LOGE("Failed to decode red channel");
 		njDone();
@@ -120,20 +255,24 @@ int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap)
 	doTransforms(bitmap, 1, 0, 0);
 	// Resize red channel
 	getScaledSize((*bitmap).redWidth, (*bitmap).redHeight, maxPixels, &maxWidth, &maxHeight); //We only need to do this once as r, g, b should be the same sizes
+	stageStart = beginStage();
 	returnCode = resizeChannel(&(*bitmap).red, (*bitmap).redWidth, (*bitmap).redHeight, maxWidth, maxHeight);
+	endStage(METRICS_STAGE_RESIZE, stageStart);
 	if (returnCode != MEMORY_OK) {
 		njDone();
 		freeUnsignedCharArray(&(*bitmap).red);
 		return returnCode;
 	}
 	// Set red channel dimensions
-	if ((*bitmap).redWidth >= maxWidth && (*bitmap).redHeight >= maxHeight) {
+	if ((*bitmap).redWidth > maxWidth && (*bitmap).redHeight > maxHeight) {
 		(*bitmap).redWidth = maxWidth;
 		(*bitmap).redHeight = maxHeight;
 	}
 
-	// Decode green channel
-	returnCode = decodeJpegChannel(jpegData, jpegSize, 1, &(*bitmap).green, &(*bitmap).greenWidth, &(*bitmap).greenHeight);
+	// Convert green channel
+	stageStart = beginStage();
+	returnCode = decodeJpegChannel(1, &(*bitmap).green, &(*bitmap).greenWidth, &(*bitmap).greenHeight);
+	endStage(METRICS_STAGE_DECODE, stageStart);
 	if (returnCode != MEMORY_OK) {
 		LOGE("Failed to decode green channel");
 		njDone();
@@ -144,7 +283,9 @@ int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap)
 
 	doTransforms(bitmap, 0, 1, 0);
 	// Resize green channel
+	stageStart = beginStage();
 	returnCode = resizeChannel(&(*bitmap).green, (*bitmap).greenWidth, (*bitmap).greenHeight, maxWidth, maxHeight);
+	endStage(METRICS_STAGE_RESIZE, stageStart);
 	if (returnCode != MEMORY_OK) {
 		njDone();
 		freeUnsignedCharArray(&(*bitmap).red);
@@ -152,13 +293,15 @@ int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap)
 		return returnCode;
 	}
 	// Set green channel dimensions
-	if ((*bitmap).greenWidth >= maxWidth && (*bitmap).greenHeight >= maxHeight) {
+	if ((*bitmap).greenWidth > maxWidth && (*bitmap).greenHeight > maxHeight) {
 		(*bitmap).greenWidth = maxWidth;
 		(*bitmap).greenHeight = maxHeight;
 	}
 
-	// Decode blue channel
-	returnCode = decodeJpegChannel(jpegData, jpegSize, 2, &(*bitmap).blue, &(*bitmap).blueWidth, &(*bitmap).blueHeight);
+	// Convert blue channel
+	stageStart = beginStage();
+	returnCode = decodeJpegChannel(2, &(*bitmap).blue, &(*bitmap).blueWidth, &(*bitmap).blueHeight);
+	endStage(METRICS_STAGE_DECODE, stageStart);
 	if (returnCode != MEMORY_OK) {
 		LOGE("Failed to decode blue channel");
 		njDone();
@@ -170,7 +313,9 @@ int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap)
 
 	doTransforms(bitmap, 0, 0, 1);
 	// Resize blue channel
+	stageStart = beginStage();
 	returnCode = resizeChannel(&(*bitmap).blue, (*bitmap).blueWidth, (*bitmap).blueHeight, maxWidth, maxHeight);
+	endStage(METRICS_STAGE_RESIZE, stageStart);
 	if (returnCode != MEMORY_OK) {
 		njDone();
 		freeUnsignedCharArray(&(*bitmap).red);
@@ -179,7 +324,7 @@ int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap)
 		return returnCode;
 	}
 	// Set blue channel dimensions
-	if ((*bitmap).blueWidth >= maxWidth && (*bitmap).blueHeight >= maxHeight) {
+	if ((*bitmap).blueWidth > maxWidth && (*bitmap).blueHeight > maxHeight) {
 		(*bitmap).blueWidth = maxWidth;
 		(*bitmap).blueHeight = maxHeight;
 	}
@@ -197,41 +342,45 @@ int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap)
 		return INCONSISTENT_BITMAP_ERROR;
 	}
 
-	njDoneLeaveRGBData();
+	njDone();
 
 	return MEMORY_OK;
 }
 
-int decodeJpegChannel(char* jpegData, int jpegSize, int channel, unsigned char** channelPixels, int* srcWidth, int* srcHeight) {
-	int returnCode;
-	if (channel == 0) { // Decode the red channel
-		njInit();
-		returnCode = njDecode(jpegData, jpegSize, 1, 0, 0);
-	} else if (channel == 1) { // Decode the green channel
-		njInit();
-		returnCode = njDecode(jpegData, jpegSize, 0, 1, 0);
-	} else if (channel == 2) { // Decode the blue channel
-		njInit();
-		returnCode = njDecode(jpegData, jpegSize, 0, 0, 1);
-	}
+int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap) {
+	pthread_mutex_lock(&decodeMutex);
+	int returnCode = decodeJpegDataLocked(jpegData, jpegSize, maxPixels, bitmap);
+	pthread_mutex_unlock(&decodeMutex);
 
+	return returnCode;
+}
+
+// Decodes the jpeg a row at a time at its full size, only a few rows of macroblocks are held in memory.
+// Returning anything other than 0 from the row function stops the decode.
+int decodeJpegRows(char* jpegData, int jpegSize, JpegRowFunction function, void* args) {
+	pthread_mutex_lock(&decodeMutex);
+	njInit();
+	int returnCode = njDecodeRows(jpegData, jpegSize, function, args);
 	if (returnCode != 0) {
-		LOGE("Failed to njDecode()");
-		njDone();
-		return returnCode;
+		LOGE("Failed to njDecodeRows() returnCode=%d", returnCode);
 	}
+	njDone();
+	pthread_mutex_unlock(&decodeMutex);
 
-	*srcWidth = njGetWidth();
-	*srcHeight = njGetHeight();
+	return returnCode;
+}
 
-	if (channel == 0) { // Get the red channel pixels
-		*channelPixels = (unsigned char*)njGetRedImage();
-	} else if (channel == 1) { // Get the green channel pixels
-		*channelPixels = (unsigned char*)njGetGreenImage();
-	} else if (channel == 2) { // Get the blue channel pixels
-		*channelPixels = (unsigned char*)njGetBlueImage();
+// Converts one colour channel of the jpeg most recently decoded by njDecode()
+int decodeJpegChannel(int channel, unsigned char** channelPixels, unsigned int* srcWidth, unsigned int* srcHeight) {
+	*channelPixels = njConvertChannel(channel);
+	if (*channelPixels == NULL) {
+		LOGE("Failed to njConvertChannel()");
+		return UCHAR_ARRAY_ERROR;
 	}
 
+	*srcWidth = njGetWidth();
+	*srcHeight = njGetHeight();
+
 	return MEMORY_OK;
 }
 
@@ -259,21 +408,22 @@ int resizeChannel(unsigned char** channelPixels, int srcWidth, int srcHeight, in
 }
 
 void getBitmapRowAsIntegers(Bitmap* bitmap, int y, int* pixels) {
-	unsigned int width = (*bitmap).width;
-	register unsigned int i = (width*y) + width - 1;
-	register unsigned int x;
-	for (x = width; x--; i--) {
-		pixels[x] = rgb((int)(*bitmap).red[i], (int)(*bitmap).green[i], (int)(*bitmap).blue[i]);
-	}
+	unsigned int offset = (*bitmap).width * y;
+	packArgb((*bitmap).red + offset, (*bitmap).green + offset, (*bitmap).blue + offset, pixels, (*bitmap).width);
+}
+
+// Copies the whole bitmap into an interleaved buffer laid out the same way as an
+// ARGB_8888 android.graphics.Bitmap's pixel buffer (r, g, b, a bytes per pixel)
+void getBitmapAsRgbaBytes(Bitmap* bitmap, unsigned char* rgba) {
+	interleaveRgba((*bitmap).red, (*bitmap).green, (*bitmap).blue, rgba, (*bitmap).width * (*bitmap).height);
+}
+
+// Fills the whole bitmap from an interleaved r, g, b, a buffer, the alpha byte is ignored
+void setBitmapFromRgbaBytes(Bitmap* bitmap, unsigned char* rgba) {
+	deinterleaveRgba(rgba, (*bitmap).red, (*bitmap).green, (*bitmap).blue, (*bitmap).width * (*bitmap).height);
 }
 
 void setBitmapRowFromIntegers(Bitmap* bitmap, int y, int* pixels) {
-	unsigned int width = (*bitmap).width;
-	register unsigned int i = (width*y) + width - 1;
-	register unsigned int x;
-	for (x = width; x--; i--) {
-		(*bitmap).red[i] = red(pixels[x]);
-		(*bitmap).green[i] = green(pixels[x]);
-		(*bitmap).blue[i] = blue(pixels[x]);
-	}
+	unsigned int offset = (*bitmap).width * y;
+	unpackArgb(pixels, (*bitmap).red + offset, (*bitmap).green + offset, (*bitmap).blue + offset, (*bitmap).width);
 }
@@ -18,11 +18,16 @@
 #define BITMAP
 #endif
 
+#include <stdio.h>
 #include <transform.h>
 
 static const int INCONSISTENT_BITMAP_ERROR = 5;
+static const int BITMAP_ALLOCATION_ERROR = 6;
+// A raw planes file couldn't be written or wasn't one written by writeBitmapPlanes()
+static const int BITMAP_FILE_ERROR = 10;
 
-typedef struct {
+// Named so transform.h can declare functions that take one before this is defined
+typedef struct Bitmap {
 	unsigned int width;
 	unsigned int height;
 
@@ -38,4 +43,43 @@ typedef struct {
 	unsigned char* blue;
 
 	TransformList transformList;
+
+	// Set by NativeImage.cancel() from another thread, see setCancelFlag() in parallel.h
+	volatile int cancelled;
 } Bitmap;
+
+// Receives the rows decoded by decodeJpegRows(), same as nj_row_function_t in nanojpeg.c
+typedef int (*JpegRowFunction)(void* args, int y, const unsigned char* red, const unsigned char* green, const unsigned char* blue);
+
+// Every Bitmap behind a NativeImage handle comes from newBitmap() and goes back through freeBitmap(),
+// initBitmapMemory() and deleteBitmap() allocate and free its channels
+int newBitmap(Bitmap** bitmapPointer);
+void freeBitmap(Bitmap** bitmapPointer);
+int initBitmapMemory(Bitmap* bitmap, int width, int height);
+void deleteBitmap(Bitmap* bitmap);
+
+// Copies for a preview pyramid into dst, any channels it already had are freed first.
+// halveBitmap() averages each 2x2 block of pixels into one.
+int copyBitmap(Bitmap* src, Bitmap* dst);
+int halveBitmap(Bitmap* src, Bitmap* dst);
+
+// The raw planes as they are in memory with a small header, to cache a decoded photo on the device that decoded it.
+// Both return MEMORY_OK, BITMAP_FILE_ERROR or the error from allocating the channels.
+int writeBitmapPlanes(Bitmap* bitmap, FILE* file);
+int readBitmapPlanes(FILE* file, Bitmap* bitmap);
+
+// nanojpeg only decodes one jpeg at a time so decodeJpegData() and decodeJpegRows() take turns on a lock.
+// decodeJpegData() decodes and shrinks to fit maxPixels, decodeJpegRows() hands the rows over as they're decoded.
+// decodeJpegChannel() takes one channel of the jpeg just decoded, so only while the lock is held.
+int decodeJpegData(char* jpegData, int jpegSize, int maxPixels, Bitmap* bitmap);
+int decodeJpegRows(char* jpegData, int jpegSize, JpegRowFunction function, void* args);
+int decodeJpegChannel(int channel, unsigned char** channelPixels, unsigned int* srcWidth, unsigned int* srcHeight);
+int resizeChannel(unsigned char** channelPixels, int srcWidth, int srcHeight, int maxWidth, int maxHeight);
+// In bicubic_resize.c
+int resizeChannelBicubic(const unsigned char *src, int srcWidth, int srcHeight, unsigned char *dst, int dstWidth, int dstHeight);
+
+// Planar channels to and from ARGB integers a row at a time, or the whole image to and from r, g, b, a bytes
+void getBitmapRowAsIntegers(Bitmap* bitmap, int y, int* pixels);
+void setBitmapRowFromIntegers(Bitmap* bitmap, int y, int* pixels);
+void getBitmapAsRgbaBytes(Bitmap* bitmap, unsigned char* rgba);
+void setBitmapFromRgbaBytes(Bitmap* bitmap, unsigned char* rgba);
@@ -1,263 +1,217 @@
-// Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
-// Ported to C by Nilesh Patel from the source code found here
+// Blur based on the Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
 // http://incubator.quasimondo.com/processing/stackblur.pde
-// and altered to process each colour channel (r, g, b) separately.
+// Approximates a gaussian blur with three horizontal and vertical box blur passes.
+// The box sums slide along the rows and columns so the cost doesn't depend on the radius.
+// Rows are blurred in place with a copy of the current row and columns are blurred in place
+// in blocks, keeping the rows that are still needed for the sliding sums in a small ring buffer.
 
 #include <mem_utils.h>
+#include <parallel.h>
+#include <blur.h>
 #include <stdlib.h>
+#include <string.h>
 #include <android/log.h>
 
 #define  LOG_TAG    "blur.c"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
-static int fastBlur(int radius, unsigned char* srcRed, unsigned char* srcGreen, unsigned char* srcBlue, int width, int height, unsigned char* dstRed, unsigned char* dstGreen, unsigned char* dstBlue) {
-	int windowSize = radius * 2 + 1;
-	int radiusPlusOne = radius + 1;
-
-	int sumRed;
-	int sumGreen;
-	int sumBlue;
-
-	int srcIndex = 0;
-	int dstIndex;
-
-	int sumLookupTableSize = 256 * windowSize;
-	int* sumLookupTable;
-	int returnCode = newIntArray(sumLookupTableSize, &sumLookupTable);
+#define BLUR_PASSES 3
+
+// Number of columns blurred side by side by the vertical pass
+#define BLUR_COLUMN_BLOCK 64
+
+// Divides a window sum by the window size using the reciprocal set up in boxBlur, exact for every 8 bit sum
+#define divide(sum, divisor) ((unsigned char)(((unsigned long long)(sum) * (divisor)) >> 32))
+
+typedef struct {
+	unsigned char* src[3];
+	unsigned char* dst[3];
+	int channels;
+	int width;
+	int height;
+	int radius;
+	unsigned int divisor;
+	volatile int resultCode;
+} BlurPass;
+
+// Box blurs the rows [start, end) from src into dst, src and dst may be the same
+static void horizontalBlurStrip(void* args, unsigned int start, unsigned int end) {
+	BlurPass* pass = (BlurPass*) args;
+	const int width = (*pass).width;
+	const int radius = (*pass).radius;
+	const int lastIndex = width - 1;
+	const unsigned int divisor = (*pass).divisor;
+
+	unsigned char* row;
+	int returnCode = newUnsignedCharArray(width, &row);
 	if (returnCode != MEMORY_OK) {
-		return returnCode;
-	}
-
-	int i;
-	for (i = 0; i < sumLookupTableSize; i++) {
-		sumLookupTable[i] = i / windowSize;
+		(*pass).resultCode = returnCode;
+		return;
 	}
 
-	int* indexLookupTable;
-	returnCode = newIntArray(radiusPlusOne, &indexLookupTable);
-	if (returnCode != MEMORY_OK) {
-		free(sumLookupTable);
-		return returnCode;
-	}
-
-	if (radius < width) {
-		for (i = 0; i < radiusPlusOne; i++) {
-			indexLookupTable[i] = i;
-		}
-	} else {
-		for (i = 0; i < width; i++) {
-			indexLookupTable[i] = i;
-		}
-		for (i = width; i < radiusPlusOne; i++) {
-			indexLookupTable[i] = width - 1;
-		}
-	}
-
-	int x, y;
-	for (y = 0; y < height; y++) {
-		sumRed = sumGreen = sumBlue = 0;
-		dstIndex = y;
-
-
-		sumRed += radiusPlusOne * srcRed[srcIndex];
-		sumGreen += radiusPlusOne * srcGreen[srcIndex];
-		sumBlue += radiusPlusOne * srcBlue[srcIndex];
-
-		for (i = 1; i <= radius; i++) {
-			sumRed += srcRed[srcIndex + indexLookupTable[i]];
-			sumGreen += srcGreen[srcIndex + indexLookupTable[i]];
-			sumBlue += srcBlue[srcIndex + indexLookupTable[i]];
-		}
-
-		for (x = 0; x < width; x++) {
-			dstRed[dstIndex] = sumLookupTable[sumRed];
-			dstGreen[dstIndex] = sumLookupTable[sumGreen];
-			dstBlue[dstIndex] = sumLookupTable[sumBlue];
-			dstIndex += height;
-
-			int nextPixelIndex = x + radiusPlusOne;
-			if (nextPixelIndex >= width) {
-				nextPixelIndex = width - 1;
+	register unsigned int sum;
+	register int x, i;
+	unsigned int y;
+	int c;
+	for (y = start; y < end; y++) {
+		for (c = 0; c < (*pass).channels; c++) {
+			unsigned char* dst = (*pass).dst[c] + (y * width);
+			memcpy(row, (*pass).src[c] + (y * width), width);
+
+			sum = (radius + 1) * row[0];
+			for (i = 1; i <= radius; i++) {
+				sum += row[(i < lastIndex) ? i : lastIndex];
 			}
 
-			int previousPixelIndex = x - radius;
-			if (previousPixelIndex < 0) {
-				previousPixelIndex = 0;
+			// Only the pixels close to the edges need their window clamped
+			int left = (radius < width) ? radius : width;
+			int right = width - radius - 1;
+			if (right < left) {
+				right = left;
+			}
+			for (x = 0; x < left; x++) {
+				dst[x] = divide(sum, divisor);
+				i = x + radius + 1;
+				sum += row[(i < lastIndex) ? i : lastIndex];
+				sum -= row[0];
+			}
+			for (; x < right; x++) {
+				dst[x] = divide(sum, divisor);
+				sum += row[x + radius + 1];
+				sum -= row[x - radius];
+			}
+			for (; x < width; x++) {
+				dst[x] = divide(sum, divisor);
+				i = x - radius;
+				sum += row[lastIndex];
+				sum -= row[(i > 0) ? i : 0];
 			}
-
-			sumRed += srcRed[srcIndex + nextPixelIndex];
-			sumRed -= srcRed[srcIndex + previousPixelIndex];
-
-			sumGreen += srcGreen[srcIndex + nextPixelIndex];
-			sumGreen -= srcGreen[srcIndex + previousPixelIndex];
-
-			sumBlue += srcBlue[srcIndex + nextPixelIndex];
-			sumBlue -= srcBlue[srcIndex + previousPixelIndex];
 		}
-
-		srcIndex += width;
 	}
 
-	free(sumLookupTable);
-	free(indexLookupTable);
-
-	return MEMORY_OK;
+	freeUnsignedCharArray(&row);
 }
 
-static int fastBlurComponent(int radius, unsigned char* srcComponent, int width, int height, unsigned char* dstComponent) {
-	unsigned int windowSize = radius * 2 + 1;
-	unsigned int radiusPlusOne = radius + 1;
-
-	unsigned int sumComponent;
-
-	register unsigned int srcIndex = 0;
-	register unsigned int dstIndex;
-
-	unsigned int sumLookupTableSize = 256 * windowSize;
-	unsigned int* sumLookupTable;
-	int returnCode = newUnsignedIntArray(sumLookupTableSize, &sumLookupTable);
+// Box blurs the columns [start, end) of dst in place
+static void verticalBlurStrip(void* args, unsigned int start, unsigned int end) {
+	BlurPass* pass = (BlurPass*) args;
+	const int width = (*pass).width;
+	const int height = (*pass).height;
+	const int radius = (*pass).radius;
+	const int ringSize = radius + 1;
+	const int lastRow = height - 1;
+	const unsigned int divisor = (*pass).divisor;
+
+	// The ring holds the original values of the last radius + 1 rows which have already been overwritten
+	unsigned char* ring;
+	int returnCode = newUnsignedCharArray(ringSize * BLUR_COLUMN_BLOCK, &ring);
 	if (returnCode != MEMORY_OK) {
-		return returnCode;
-	}
-
-	register unsigned int i;
-	for (i = sumLookupTableSize; i--;) {
-		sumLookupTable[i] = i / windowSize;
+		(*pass).resultCode = returnCode;
+		return;
 	}
 
-	unsigned int* indexLookupTable;
-	returnCode = newUnsignedIntArray(radiusPlusOne, &indexLookupTable);
-	if (returnCode != MEMORY_OK) {
-		freeUnsignedIntArray(&sumLookupTable);
-		return returnCode;
-	}
-
-	if (radius < width) {
-		for (i = radiusPlusOne; i--; ) {
-			indexLookupTable[i] = i;
-		}
-	} else {
-		for (i = width; i--; ) {
-			indexLookupTable[i] = i;
-		}
-		for (i = width; i < radiusPlusOne; i++) {
-			indexLookupTable[i] = width - 1;
-		}
-	}
-
-	register unsigned int x, y;
-	register int nextPixelIndex;
-	register int previousPixelIndex;
-	for (y = 0; y < height; y++) {
-		sumComponent = 0;
-		dstIndex = y;
-
-		sumComponent += radiusPlusOne * srcComponent[srcIndex];
-
-		for (i = 1; i <= radius; i++) {
-			sumComponent += srcComponent[srcIndex + indexLookupTable[i]];
+	unsigned int sums[BLUR_COLUMN_BLOCK];
+	register int x;
+	int i, y, c, blockWidth, ringRow;
+	unsigned int blockStart;
+	for (blockStart = start; blockStart < end; blockStart += BLUR_COLUMN_BLOCK) {
+		blockWidth = end - blockStart;
+		if (blockWidth > BLUR_COLUMN_BLOCK) {
+			blockWidth = BLUR_COLUMN_BLOCK;
 		}
 
-		for (x = 0; x < width; x++) {
-			dstComponent[dstIndex] = sumLookupTable[sumComponent];
-			dstIndex += height;
+		for (c = 0; c < (*pass).channels; c++) {
+			unsigned char* column = (*pass).dst[c] + blockStart;
 
-			nextPixelIndex = x + radiusPlusOne;
-			if (nextPixelIndex >= width) {
-				nextPixelIndex = width - 1;
+			for (x = 0; x < blockWidth; x++) {
+				sums[x] = (radius + 1) * column[x];
 			}
-
-			previousPixelIndex = x - radius;
-			if (previousPixelIndex < 0) {
-				previousPixelIndex = 0;
+			for (i = 1; i <= radius; i++) {
+				unsigned char* addRow = column + (((i < lastRow) ? i : lastRow) * width);
+				for (x = 0; x < blockWidth; x++) {
+					sums[x] += addRow[x];
+				}
 			}
 
-			sumComponent += srcComponent[srcIndex + nextPixelIndex];
-			sumComponent -= srcComponent[srcIndex + previousPixelIndex];
+			ringRow = 0;
+			for (y = 0; y < height; y++) {
+				unsigned char* dst = column + (y * width);
+				unsigned char* saved = ring + (ringRow * BLUR_COLUMN_BLOCK);
+				for (x = 0; x < blockWidth; x++) {
+					saved[x] = dst[x];
+					dst[x] = divide(sums[x], divisor);
+				}
+
+				i = y + radius + 1;
+				unsigned char* addRow = column + (((i < lastRow) ? i : lastRow) * width);
+				i = y - radius;
+				unsigned char* subtractRow = ring + ((((i > 0) ? i : 0) % ringSize) * BLUR_COLUMN_BLOCK);
+				for (x = 0; x < blockWidth; x++) {
+					sums[x] += addRow[x];
+					sums[x] -= subtractRow[x];
+				}
+
+				if (++ringRow == ringSize) {
+					ringRow = 0;
+				}
+			}
 		}
-
-		srcIndex += width;
 	}
 
-	freeUnsignedIntArray(&sumLookupTable);
-	freeUnsignedIntArray(&indexLookupTable);
-
-	return MEMORY_OK;
+	freeUnsignedCharArray(&ring);
 }
 
-int stackBlur(float* radius, unsigned char* srcRed, unsigned char* srcGreen, unsigned char* srcBlue, int* width, int* height,
-		unsigned char* dstRed, unsigned char* dstGreen, unsigned char* dstBlue) {
-	unsigned int size = (*width) * (*height);
-
-	unsigned char* srcComponentCopy;
-	int returnCode = newUnsignedCharArray(size, &srcComponentCopy);
-	if (returnCode != MEMORY_OK) {
-		return returnCode;
+static int boxBlur(int radius, int channels, unsigned char** src, unsigned char** dst, int width, int height) {
+	int c;
+	if (radius < 1) {
+		for (c = 0; c < channels; c++) {
+			if (src[c] != dst[c]) {
+				memcpy(dst[c], src[c], width * height);
+			}
+		}
+		return MEMORY_OK;
 	}
 
-	unsigned int i, c;
-	unsigned char* srcComponent;
-	unsigned char* dstComponent;
-	for (c = 3; c--; ) {
-		if (c == 0) {
-			srcComponent = srcRed;
-			dstComponent = dstRed;
-		} else if (c == 1) {
-			srcComponent = srcGreen;
-			dstComponent = dstGreen;
-		} else {
-			srcComponent = srcBlue;
-			dstComponent = dstBlue;
+	unsigned int windowSize = radius * 2 + 1;
+	unsigned int i;
+
+	BlurPass pass;
+	for (c = 0; c < channels; c++) {
+		pass.src[c] = src[c];
+		pass.dst[c] = dst[c];
+	}
+	pass.channels = channels;
+	pass.width = width;
+	pass.height = height;
+	pass.radius = radius;
+	pass.divisor = (unsigned int)((0x100000000ULL + windowSize - 1) / windowSize);
+	pass.resultCode = MEMORY_OK;
+
+	unsigned int rowsPerStrip = PIXELS_PER_STRIP / width + 1;
+	for (i = 0; i < BLUR_PASSES && pass.resultCode == MEMORY_OK; i++) {
+		runParallel(height, rowsPerStrip, horizontalBlurStrip, &pass);
+		if (pass.resultCode == MEMORY_OK) {
+			runParallel(width, BLUR_COLUMN_BLOCK, verticalBlurStrip, &pass);
 		}
 
-		memcpy(srcComponentCopy, srcComponent, size);
-		for (i = 3; i--; ) {
-			//horizontal pass
-			returnCode = fastBlurComponent((int)(*radius), srcComponentCopy, *width, *height, dstComponent);
-			if (returnCode != MEMORY_OK) {
-				freeUnsignedCharArray(&srcComponentCopy);
-				return returnCode;
-			}
-			//vertical pass
-			returnCode = fastBlurComponent((int)(*radius), dstComponent, *height, *width, srcComponentCopy);
-			if (returnCode != MEMORY_OK) {
-				freeUnsignedCharArray(&srcComponentCopy);
-				return returnCode;
-			}
+		// After the first pass everything happens in place
+		for (c = 0; c < channels; c++) {
+			pass.src[c] = dst[c];
 		}
-		memcpy(dstComponent, srcComponentCopy, size);
 	}
-	freeUnsignedCharArray(&srcComponentCopy);
-	return MEMORY_OK;
+
+	return pass.resultCode;
 }
 
-int stackBlurComponent(float* radius, unsigned char* srcComponent, int* width, int* height, unsigned char* dstComponent) {
-	int size = (*width) * (*height);
-	unsigned char* srcComponentCopy;
-	int returnCode = newUnsignedCharArray(size, &srcComponentCopy);
-	if (returnCode != MEMORY_OK) {
-		return returnCode;
-	}
+int stackBlur(float* radius, unsigned char* srcRed, unsigned char* srcGreen, unsigned char* srcBlue, unsigned int* width, unsigned int* height,
+		unsigned char* dstRed, unsigned char* dstGreen, unsigned char* dstBlue) {
+	unsigned char* src[3] = {srcRed, srcGreen, srcBlue};
+	unsigned char* dst[3] = {dstRed, dstGreen, dstBlue};
 
-	int i;
-	memcpy(srcComponentCopy, srcComponent, size);
-	for (i = 3; i--; ) {
-		//horizontal pass
-		returnCode = fastBlurComponent((int)(*radius), srcComponentCopy, *width, *height, dstComponent);
-		if (returnCode != MEMORY_OK) {
-			freeUnsignedCharArray(&srcComponentCopy);
-			return returnCode;
-		}
-		//vertical pass
-		returnCode = fastBlurComponent((int)(*radius), dstComponent, *height, *width, srcComponentCopy);
-		if (returnCode != MEMORY_OK) {
-			freeUnsignedCharArray(&srcComponentCopy);
-			return returnCode;
-		}
-	}
-	memcpy(dstComponent, srcComponentCopy, size);
-	freeUnsignedCharArray(&srcComponentCopy);
+	return boxBlur((int)(*radius), 3, src, dst, *width, *height);
+}
 
-	return MEMORY_OK;
+int stackBlurComponent(float* radius, unsigned char* srcComponent, unsigned int* width, unsigned int* height, unsigned char* dstComponent) {
+	return boxBlur((int)(*radius), 1, &srcComponent, &dstComponent, *width, *height);
 }
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef BLUR
+#define BLUR
+
+// Blurs the three channels of an image from src into dst, which may be the same memory
+int stackBlur(float* radius, unsigned char* srcRed, unsigned char* srcGreen, unsigned char* srcBlue, unsigned int* width, unsigned int* height,
+		unsigned char* dstRed, unsigned char* dstGreen, unsigned char* dstBlue);
+int stackBlurComponent(float* radius, unsigned char* srcComponent, unsigned int* width, unsigned int* height, unsigned char* dstComponent);
+
+#endif
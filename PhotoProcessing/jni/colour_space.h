@@ -23,3 +23,7 @@ typedef struct {
     float s;        /* Saturation between 0.0 (gray) and 1.0 */
     float b;        /* Value between 0.0 (black) and 1.0 */
 } HSBColour ;
+
+void rgbToHsb(unsigned char red, unsigned char green, unsigned char blue, HSBColour* hsb);
+void hsbToRgb(HSBColour* hsb, unsigned char* red, unsigned char* green, unsigned char* blue);
+void getBrightness(unsigned char red, unsigned char green, unsigned char blue, float* brightness);
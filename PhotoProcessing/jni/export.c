@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <bitmap.h>
+#include <mem_utils.h>
+#include <filter.h>
+#include <export.h>
+#include <nanojpeg.h>
+#include <string.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "export.c"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+// Indexes into PhotoProcessing.FILTERS
+#define FILTER_INSTAFIX 1
+#define FILTER_SAHARA 10
+#define FILTER_HDR 11
+
+typedef struct {
+	int filter;
+	int margin;
+	int quality;
+	int orientation;
+	JpegWriteFunction write;
+	void* writeArgs;
+
+	unsigned int width;
+	unsigned int height;
+
+	// The decoded rows which haven't been encoded yet or are still needed as a margin,
+	// window.height is the number of rows held and windowStart the image row of the first one
+	Bitmap window;
+	unsigned int windowCapacity;
+	unsigned int windowStart;
+	// The window is copied here to be filtered when the filter needs the margins
+	Bitmap strip;
+	// The first image row which hasn't been encoded
+	unsigned int nextRow;
+
+	InstafixStats instafixStats;
+	JpegEncoder encoder;
+	int hasEncoder;
+	int resultCode;
+} Export;
+
+// The blurs are three box blur passes so the edge of a strip changes the rows up to three radii away.
+// With that many extra rows above and below, the rows in the middle come out the same as they would
+// if the whole image was filtered at once.
+static int getFilterMargin(int filter) {
+	switch (filter) {
+	case FILTER_SAHARA:
+		return SAHARA_BLUR_RADIUS * 3;
+	case FILTER_HDR:
+		return HDR_BLUR_RADIUS * 3;
+	}
+	return 0;
+}
+
+static int applyStripFilter(Export* export, Bitmap* bitmap) {
+	switch ((*export).filter) {
+	case 0: // Original
+		break;
+	case FILTER_INSTAFIX:
+		applyInstafixWithStats(bitmap, &(*export).instafixStats);
+		break;
+	case 2:
+		applyAnselFilter(bitmap);
+		break;
+	case 3:
+		applyTestino(bitmap);
+		break;
+	case 4:
+		applyXPro(bitmap);
+		break;
+	case 5:
+		applyRetro(bitmap);
+		break;
+	case 6:
+		applyBlackAndWhiteFilter(bitmap);
+		break;
+	case 7:
+		applySepia(bitmap);
+		break;
+	case 8:
+		applyCyano(bitmap);
+		break;
+	case 9:
+		applyGeorgia(bitmap);
+		break;
+	case FILTER_SAHARA:
+		return applySahara(bitmap);
+	case FILTER_HDR:
+		return applyHDR(bitmap);
+	}
+	return MEMORY_OK;
+}
+
+// Called with the first decoded row, by then the size of the image is known
+static int initExport(Export* export) {
+	(*export).width = njGetWidth();
+	(*export).height = njGetHeight();
+	(*export).windowCapacity = EXPORT_STRIP_ROWS + (*export).margin * 2;
+	if ((*export).windowCapacity > (*export).height) {
+		(*export).windowCapacity = (*export).height;
+	}
+
+	int resultCode = initBitmapMemory(&(*export).window, (*export).width, (*export).windowCapacity);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+	(*export).window.height = 0;
+	(*export).windowStart = 0;
+	(*export).nextRow = 0;
+
+	if ((*export).margin > 0 && (*export).strip.red == NULL) {
+		resultCode = initBitmapMemory(&(*export).strip, (*export).width, (*export).windowCapacity);
+		if (resultCode != MEMORY_OK) {
+			return resultCode;
+		}
+	}
+
+	return MEMORY_OK;
+}
+
+static void addWindowRow(Export* export, const unsigned char* red, const unsigned char* green, const unsigned char* blue) {
+	Bitmap* window = &(*export).window;
+	unsigned int offset = (*window).height * (*window).width;
+	memcpy((*window).red + offset, red, (*window).width);
+	memcpy((*window).green + offset, green, (*window).width);
+	memcpy((*window).blue + offset, blue, (*window).width);
+	(*window).height++;
+}
+
+// Gathers the statistics instafix needs from the whole image before anything is encoded
+static int instafixStatsRow(void* args, int y, const unsigned char* red, const unsigned char* green, const unsigned char* blue) {
+	Export* export = (Export*) args;
+	if (y == 0) {
+		(*export).resultCode = initExport(export);
+		if ((*export).resultCode != MEMORY_OK) {
+			return 1;
+		}
+	}
+
+	addWindowRow(export, red, green, blue);
+	if ((*export).window.height == (*export).windowCapacity || y == (*export).height - 1) {
+		addInstafixStats(&(*export).instafixStats, &(*export).window);
+		(*export).window.height = 0;
+	}
+
+	return 0;
+}
+
+// Filters the window and encodes the rows in the middle of it, the rows still needed
+// as the top margin of the next strip are moved to the start of the window
+static int encodeStrip(Export* export, unsigned int stripEnd) {
+	Bitmap* window = &(*export).window;
+	Bitmap* bitmap = window;
+	const unsigned int width = (*window).width;
+	int resultCode;
+
+	if ((*export).margin > 0) {
+		bitmap = &(*export).strip;
+		(*bitmap).height = (*window).height;
+		memcpy((*bitmap).red, (*window).red, (*window).height * width);
+		memcpy((*bitmap).green, (*window).green, (*window).height * width);
+		memcpy((*bitmap).blue, (*window).blue, (*window).height * width);
+	}
+
+	resultCode = applyStripFilter(export, bitmap);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	unsigned int offset = ((*export).nextRow - (*export).windowStart) * width;
+	resultCode = jpegEncoderAddRows(&(*export).encoder, (*bitmap).red + offset, (*bitmap).green + offset, (*bitmap).blue + offset,
+			stripEnd - (*export).nextRow);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+	(*export).nextRow = stripEnd;
+
+	unsigned int windowStart = ((*export).nextRow > (*export).margin) ? (*export).nextRow - (*export).margin : 0;
+	unsigned int dropped = windowStart - (*export).windowStart;
+	unsigned int kept = (*window).height - dropped;
+	memmove((*window).red, (*window).red + dropped * width, kept * width);
+	memmove((*window).green, (*window).green + dropped * width, kept * width);
+	memmove((*window).blue, (*window).blue + dropped * width, kept * width);
+	(*window).height = kept;
+	(*export).windowStart = windowStart;
+
+	return MEMORY_OK;
+}
+
+static int exportRow(void* args, int y, const unsigned char* red, const unsigned char* green, const unsigned char* blue) {
+	Export* export = (Export*) args;
+	if (y == 0) {
+		(*export).resultCode = initExport(export);
+		if ((*export).resultCode == MEMORY_OK) {
+			(*export).resultCode = initJpegEncoder(&(*export).encoder, (*export).width, (*export).height,
+					(*export).quality, (*export).orientation, (*export).write, (*export).writeArgs);
+			(*export).hasEncoder = 1;
+		}
+		if ((*export).resultCode != MEMORY_OK) {
+			return 1;
+		}
+	}
+
+	addWindowRow(export, red, green, blue);
+
+	// A strip can be filtered once its bottom margin has been decoded, at the bottom of the
+	// image the last row completes the margin of more than one strip
+	unsigned int stripEnd, neededEnd;
+	while ((*export).resultCode == MEMORY_OK && (*export).nextRow < (*export).height) {
+		stripEnd = (*export).nextRow + EXPORT_STRIP_ROWS;
+		if (stripEnd > (*export).height) {
+			stripEnd = (*export).height;
+		}
+		neededEnd = stripEnd + (*export).margin;
+		if (neededEnd > (*export).height) {
+			neededEnd = (*export).height;
+		}
+		if ((*export).windowStart + (*export).window.height < neededEnd) {
+			break;
+		}
+		(*export).resultCode = encodeStrip(export, stripEnd);
+	}
+
+	return (*export).resultCode != MEMORY_OK;
+}
+
+int exportJpeg(char* jpegData, int jpegSize, int filter, int orientation, int quality, JpegWriteFunction write, void* writeArgs) {
+	Export export;
+	memset(&export, 0, sizeof(Export));
+	export.filter = filter;
+	export.margin = getFilterMargin(filter);
+	export.quality = quality;
+	export.orientation = orientation;
+	export.write = write;
+	export.writeArgs = writeArgs;
+	export.resultCode = MEMORY_OK;
+
+	int resultCode = MEMORY_OK;
+	if (filter == FILTER_INSTAFIX) {
+		// Instafix depends on the whole image so it's decoded twice
+		initInstafixStats(&export.instafixStats);
+		resultCode = decodeJpegRows(jpegData, jpegSize, instafixStatsRow, &export);
+		deleteBitmap(&export.window);
+	}
+
+	if (resultCode == MEMORY_OK && export.resultCode == MEMORY_OK) {
+		resultCode = decodeJpegRows(jpegData, jpegSize, exportRow, &export);
+	}
+
+	if (export.resultCode != MEMORY_OK) {
+		resultCode = export.resultCode;
+	} else if (resultCode == MEMORY_OK) {
+		resultCode = finishJpegEncoder(&export.encoder);
+	}
+
+	if (resultCode != MEMORY_OK) {
+		LOGE("error exporting jpeg resultCode=%d", resultCode);
+	}
+
+	if (export.hasEncoder) {
+		freeJpegEncoder(&export.encoder);
+	}
+	deleteBitmap(&export.window);
+	deleteBitmap(&export.strip);
+
+	return resultCode;
+}
+
+int compressBitmapJpeg(Bitmap* bitmap, int quality, JpegWriteFunction write, void* writeArgs) {
+	JpegEncoder encoder;
+	int resultCode = initJpegEncoder(&encoder, (*bitmap).width, (*bitmap).height, quality, 0, write, writeArgs);
+	if (resultCode == MEMORY_OK) {
+		resultCode = jpegEncoderAddRows(&encoder, (*bitmap).red, (*bitmap).green, (*bitmap).blue, (*bitmap).height);
+	}
+	if (resultCode == MEMORY_OK) {
+		resultCode = finishJpegEncoder(&encoder);
+	}
+	freeJpegEncoder(&encoder);
+
+	if (resultCode != MEMORY_OK) {
+		LOGE("error compressing bitmap resultCode=%d", resultCode);
+	}
+
+	return resultCode;
+}
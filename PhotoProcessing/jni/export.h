@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef JPEG_EXPORT
+#define JPEG_EXPORT
+
+#include <jpeg_encoder.h>
+
+// The jpeg file couldn't be opened or mapped into memory
+static const int JPEG_READ_ERROR = 9;
+
+// Number of rows filtered and encoded at a time, a multiple of the macroblock height
+#define EXPORT_STRIP_ROWS 128
+
+// Decodes, filters and encodes a jpeg at its full size a strip at a time so the memory used
+// depends on the width of the image and not its height.
+// filter is the index into PhotoProcessing.FILTERS and orientation is one of the orientations
+// in transform.h, the orientation is written to the exif data rather than applied to the pixels.
+int exportJpeg(char* jpegData, int jpegSize, int filter, int orientation, int quality, JpegWriteFunction write, void* writeArgs);
+
+// Encodes straight from the bitmap's planes without making a copy of the image
+int compressBitmapJpeg(Bitmap* bitmap, int quality, JpegWriteFunction write, void* writeArgs);
+
+#endif
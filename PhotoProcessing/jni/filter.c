@@ -17,9 +17,16 @@
 #include <bitmap.h>
 #include <mem_utils.h>
 #include <colour_space.h>
+#include <parallel.h>
+#include <pipeline.h>
+#include <filter.h>
+#include <blur.h>
+#include <simd.h>
 #include <math.h>
 #include <android/log.h>
 #include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
 
 #define  LOG_TAG    "filter.c"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
@@ -106,14 +113,77 @@ static float applyContrastToPixelComponent(float pixelComponent, float contrast)
 	return min(1.0f, ((pixelComponent - 0.5f) * (tan ((contrast + 1) * PI/4) ) + 0.5f));
 }
 
-void applyBlackAndWhiteFilter(Bitmap* bitmap) {
+// Blend mode luts shared by every filter call, indexed by [overlay or mask component][image component].
+// Each one is filled the first time it's needed through pthread_once and is only read afterwards,
+// so any number of threads and images can use them without locking.
+static unsigned char overlayLut[256][256];
+static unsigned char multiplyLut[256][256];
+static unsigned char grainMergeLut[256][256];
+static unsigned char hardLightLut[256][256];
+static unsigned char greyscaleInvertMaskScreenLut[256][256]; // with an alpha of 0.5
+static pthread_once_t overlayLutOnce = PTHREAD_ONCE_INIT;
+static pthread_once_t multiplyLutOnce = PTHREAD_ONCE_INIT;
+static pthread_once_t grainMergeLutOnce = PTHREAD_ONCE_INIT;
+static pthread_once_t hardLightLutOnce = PTHREAD_ONCE_INIT;
+static pthread_once_t greyscaleInvertMaskScreenLutOnce = PTHREAD_ONCE_INIT;
+
+static void fillOverlayLut(void) {
+	unsigned int i, j;
+	for (i = 256; i--;) {
+		for (j = 256; j--;) {
+			overlayLut[i][j] = overlayPixelComponents(i, j, 1.0f);
+		}
+	}
+}
+
+static void fillMultiplyLut(void) {
+	unsigned int i, j;
+	for (i = 256; i--;) {
+		for (j = 256; j--;) {
+			multiplyLut[i][j] = multiplyPixelComponents(i, j);
+		}
+	}
+}
+
+static void fillGrainMergeLut(void) {
+	unsigned int i, j;
+	for (i = 256; i--;) {
+		for (j = 256; j--;) {
+			grainMergeLut[i][j] = grainMergePixelsComponent(i, j);
+		}
+	}
+}
+
+static void fillHardLightLut(void) {
+	unsigned int i, j;
+	for (i = 256; i--;) {
+		for (j = 256; j--;) {
+			hardLightLut[i][j] = hardLightLayerPixelComponents(i, j);
+		}
+	}
+}
+
+static void fillGreyscaleInvertMaskScreenLut(void) {
+	unsigned int i, j;
+	for (i = 256; i--;) {
+		for (j = 256; j--;) {
+			greyscaleInvertMaskScreenLut[i][j] = greyscaleInvertMaskScreenComponent(i, 0.5f, j);
+		}
+	}
+}
+
+static void runFilterStrips(Bitmap* bitmap, ParallelFunction function, void* args) {
+	runParallel((*bitmap).width * (*bitmap).height, PIXELS_PER_STRIP, function, args);
+}
+
+static void blackAndWhiteStrip(void* args, unsigned int start, unsigned int end) {
+	Bitmap* bitmap = (Bitmap*) args;
 	register unsigned int i;
-	unsigned int length = (*bitmap).width * (*bitmap).height;
 	register unsigned char grey;
 	unsigned char* red = (*bitmap).red;
 	unsigned char* green = (*bitmap).green;
 	unsigned char* blue = (*bitmap).blue;
-	for (i = length; i--;) {
+	for (i = start; i < end; i++) {
 		grey = blackAndWhite(red[i], green[i], blue[i]);
 
 		red[i] = grey;
@@ -122,31 +192,40 @@ void applyBlackAndWhiteFilter(Bitmap* bitmap) {
 	}
 }
 
-void applyAnselFilter(Bitmap* bitmap) {
-	applyBlackAndWhiteFilter(bitmap);
+void applyBlackAndWhiteFilter(Bitmap* bitmap) {
+	runFilterStrips(bitmap, blackAndWhiteStrip, bitmap);
+}
+
+static void anselStrip(void* args, unsigned int start, unsigned int end) {
+	blackAndWhiteStrip(args, start, end);
+
+	Bitmap* bitmap = (Bitmap*) args;
 	register unsigned int i;
-	unsigned int length = (*bitmap).width * (*bitmap).height;
-	Bitmap localBitmap = *bitmap;
 	register unsigned char grey;
 	unsigned char* red = (*bitmap).red;
 	unsigned char* green = (*bitmap).green;
 	unsigned char* blue = (*bitmap).blue;
-	for (i = length; i--; ) {
+	for (i = start; i < end; i++) {
 		grey = blackAndWhite(red[i], green[i], blue[i]);
-		localBitmap.red[i] = green[i] = blue[i] = hardLightLayerPixelComponents(grey, grey);
+		red[i] = green[i] = blue[i] = hardLightLut[grey][grey];
 	}
 }
 
+void applyAnselFilter(Bitmap* bitmap) {
+	pthread_once(&hardLightLutOnce, fillHardLightLut);
+	runFilterStrips(bitmap, anselStrip, bitmap);
+}
+
 const unsigned char sepiaRedLut[256] = {24, 24, 25, 26, 27, 28, 29, 30, 30, 30, 31, 32, 33, 34, 35, 36, 37, 37, 38, 38, 39, 40, 41, 42, 43, 43, 44, 45, 46, 47, 47, 48, 49, 50, 50, 51, 52, 53, 54, 55, 56, 57, 57, 58, 58, 59, 60, 61, 62, 63, 64, 64, 65, 66, 67, 68, 69, 70, 71, 71, 72, 72, 73, 74, 75, 76, 77, 78, 78, 79, 80, 81, 82, 83, 84, 85, 85, 86, 87, 88, 89, 89, 90, 91, 92, 93, 93, 94, 95, 96, 97, 97, 98, 99, 100, 101, 102, 102, 103, 104, 105, 106, 107, 108, 109, 109, 110, 111, 112, 113, 114, 115, 116, 117, 118, 118, 119, 120, 121, 122, 123, 124, 125, 126, 127, 128, 129, 129, 130, 131, 132, 133, 134, 135, 136, 137, 138, 139, 140, 141, 142, 143, 144, 145, 146, 146, 147, 148, 149, 150, 151, 152, 153, 153, 154, 155, 156, 157, 158, 159, 160, 161, 162, 163, 164, 165, 166, 167, 168, 169, 170, 171, 172, 173, 174, 175, 176, 177, 178, 178, 180, 181, 182, 183, 184, 185, 186, 186, 187, 188, 189, 190, 191, 193, 194, 195, 195, 196, 197, 198, 199, 200, 201, 202, 203, 204, 205, 206, 207, 208, 209, 210, 211, 212, 213, 214, 215, 216, 217, 218, 219, 220, 221, 222, 223, 224, 225, 226, 227, 228, 229, 230, 231, 232, 233, 234, 235, 236, 237, 238, 239, 240, 241, 242, 243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 255};
 const unsigned char sepiaGreenLut[256] = {16, 16, 16, 17, 18, 18, 19, 20, 20, 20, 21, 22, 22, 23, 24, 24, 25, 25, 26, 26, 27, 28, 28, 29, 30, 30, 31, 31, 32, 33, 33, 34, 35, 36, 36, 36, 37, 38, 39, 39, 40, 41, 42, 43, 43, 44, 45, 46, 47, 47, 48, 48, 49, 50, 51, 51, 52, 53, 54, 54, 55, 55, 56, 57, 58, 59, 60, 61, 61, 61, 62, 63, 64, 65, 66, 67, 67, 68, 68, 69, 70, 72, 73, 74, 75, 75, 76, 77, 78, 78, 79, 80, 81, 81, 82, 83, 84, 85, 86, 87, 88, 90, 90, 91, 92, 93, 94, 95, 96, 97, 97, 98, 99, 100, 101, 103, 104, 105, 106, 106, 107, 108, 109, 110, 111, 112, 113, 114, 115, 116, 117, 118, 119, 120, 122, 123, 123, 124, 125, 127, 128, 129, 130, 131, 132, 132, 134, 135, 136, 137, 138, 139, 141, 141, 142, 144, 145, 146, 147, 148, 149, 150, 151, 152, 154, 155, 156, 157, 158, 160, 160, 161, 162, 163, 165, 166, 167, 168, 169, 170, 171, 173, 174, 175, 176, 177, 178, 179, 180, 182, 183, 184, 185, 187, 188, 189, 189, 191, 192, 193, 194, 196, 197, 198, 198, 200, 201, 202, 203, 205, 206, 207, 208, 209, 210, 211, 212, 213, 215, 216, 217, 218, 219, 220, 221, 223, 224, 225, 226, 227, 228, 229, 230, 231, 232, 233, 235, 236, 237, 238, 239, 240, 241, 242, 243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 255};
 const unsigned char sepiaBlueLut[256] = {5, 5, 5, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 9, 10, 10, 11, 11, 11, 11, 12, 12, 13, 13, 14, 14, 14, 14, 15, 15, 16, 16, 17, 17, 17, 18, 18, 19, 20, 20, 21, 21, 21, 22, 22, 23, 23, 24, 25, 25, 26, 27, 28, 28, 29, 29, 30, 31, 31, 31, 32, 33, 33, 34, 35, 36, 37, 38, 38, 39, 39, 40, 41, 42, 43, 43, 44, 45, 46, 47, 47, 48, 49, 50, 51, 52, 53, 53, 54, 55, 56, 57, 58, 59, 60, 60, 61, 62, 63, 65, 66, 67, 67, 68, 69, 70, 72, 73, 74, 75, 75, 76, 78, 79, 80, 81, 82, 83, 84, 85, 86, 87, 88, 90, 91, 92, 93, 93, 95, 97, 98, 99, 100, 101, 102, 104, 104, 106, 107, 108, 109, 111, 112, 114, 115, 115, 117, 118, 120, 121, 122, 123, 124, 125, 127, 128, 129, 131, 132, 133, 135, 136, 137, 138, 139, 141, 142, 144, 145, 147, 147, 149, 150, 151, 153, 154, 156, 157, 159, 159, 161, 162, 164, 165, 167, 168, 169, 170, 172, 173, 174, 176, 177, 178, 180, 181, 182, 184, 185, 186, 188, 189, 191, 192, 193, 194, 196, 197, 198, 200, 201, 203, 204, 205, 206, 207, 209, 210, 211, 213, 214, 215, 216, 218, 219, 220, 221, 223, 224, 225, 226, 227, 229, 230, 231, 232, 234, 235, 236, 237, 238, 239, 241, 242, 243, 244, 245, 246, 247, 248, 249, 250, 251, 252, 253, 255};
-void applySepia(Bitmap* bitmap) {
+static void sepiaStrip(void* args, unsigned int start, unsigned int end) {
+	Bitmap* bitmap = (Bitmap*) args;
 	register unsigned int i;
-	unsigned int length = (*bitmap).width * (*bitmap).height;
 	unsigned char* red = (*bitmap).red;
 	unsigned char* green = (*bitmap).green;
 	unsigned char* blue = (*bitmap).blue;
-	for (i = length; i--; ) {
+	for (i = start; i < end; i++) {
 		register float r = (float) red[i] / 255;
 		register float g = (float) green[i] / 255;
 		register float b = (float) blue[i] / 255;
@@ -191,63 +270,71 @@ void applySepia(Bitmap* bitmap) {
 	}
 }
 
-void applyGeorgia(Bitmap* bitmap) {
-	register unsigned int i;
-	unsigned int length = (*bitmap).width * (*bitmap).height;
-	unsigned char r, g, b;
-	unsigned char* red = (*bitmap).red;
-	unsigned char* green = (*bitmap).green;
-	unsigned char* blue = (*bitmap).blue;
+void applySepia(Bitmap* bitmap) {
+	runFilterStrips(bitmap, sepiaStrip, bitmap);
+}
 
+void applyGeorgia(Bitmap* bitmap) {
 	unsigned char brightnessLut[256];
 	unsigned char contrastLut[256];
-	unsigned char multiplyLut250[256];
-	unsigned char multiplyLut220[256];
-	unsigned char multiplyLut175[256];
+	unsigned char greenCompressionLut[256];
+	unsigned char blueCompressionLut[256];
+	unsigned int i;
 	for (i = 0; i < 256; i++) {
 		float pixelf = i/255.0f;
 		brightnessLut[i] = 255*applyBrightnessToPixelComponent(pixelf, 0.4724f);
 		contrastLut[i] = 255*applyContrastToPixelComponent(pixelf, 0.3149f);
-		multiplyLut250[i] = multiplyPixelComponents(250, i);
-		multiplyLut220[i] = multiplyPixelComponents(220, i);
-		multiplyLut175[i] = multiplyPixelComponents(175, i);
-	}
-
-	for (i = length; i--; ) {
-		//r = (float)(red[i])/255;
-		//g = (float)(green[i])/255;
-		//b = (float)(blue[i])/255;
-
-		r = brightnessLut[red[i]]; //applyBrightnessToPixelComponent(r, 0.4724f);
-		g = brightnessLut[green[i]]; //applyBrightnessToPixelComponent(g, 0.4724f);
-		b = brightnessLut[blue[i]]; //applyBrightnessToPixelComponent(b, 0.4724f);
-
-		r = contrastLut[r]; //applyContrastToPixelComponent(r, 0.3149f);
-		g = contrastLut[g]; //applyContrastToPixelComponent(g, 0.3149f);
-		b = contrastLut[b]; //applyContrastToPixelComponent(b, 0.3149f);
-
-		//r *= 255;
-		g = (g * 0.87f/*222*/) + 33; //compress the green channel between 33 - 255
-		b = (b * 0.439f/*112*/) + 143; //compress the blue channel between 143 - 255
+		greenCompressionLut[i] = (i * 0.87f/*222*/) + 33; //compress the green channel between 33 - 255
+		blueCompressionLut[i] = (i * 0.439f/*112*/) + 143; //compress the blue channel between 143 - 255
+	}
+	pthread_once(&multiplyLutOnce, fillMultiplyLut);
+
+	Pipeline pipeline;
+	initPipeline(&pipeline);
+	pipelineAddLuts(&pipeline, brightnessLut, brightnessLut, brightnessLut);
+	pipelineAddLuts(&pipeline, contrastLut, contrastLut, contrastLut);
+	pipelineAddLuts(&pipeline, NULL, greenCompressionLut, blueCompressionLut);
+	// multiply by a wheat colour rgb(250, 220, 175)
+	pipelineAddLuts(&pipeline, multiplyLut[250], multiplyLut[220], multiplyLut[175]);
+	runPipeline(bitmap, &pipeline);
+}
 
-		// multiply by a wheat colour rgb(250, 220, 175)
-		red[i] = multiplyLut250[r]; //multiplyPixelComponents(250, r);
-		green[i] = multiplyLut220[g]; //multiplyPixelComponents(220, g);
-		blue[i] = multiplyLut175[b]; //multiplyPixelComponents(175, b);
+typedef struct {
+	Bitmap* bitmap;
+	int redLut[256];
+	int greenLut[256];
+	int blueLut[256];
+} ChannelLutArgs;
+
+// Maps each channel through its own lut
+static void channelLutStrip(void* args, unsigned int start, unsigned int end) {
+	ChannelLutArgs* luts = (ChannelLutArgs*) args;
+	unsigned char* red = (*(*luts).bitmap).red;
+	unsigned char* green = (*(*luts).bitmap).green;
+	unsigned char* blue = (*(*luts).bitmap).blue;
+	int* redLut = (*luts).redLut;
+	int* greenLut = (*luts).greenLut;
+	int* blueLut = (*luts).blueLut;
+	register unsigned int i;
+	for (i = start; i < end; i++) {
+		red[i] = redLut[red[i]];
+		green[i] = greenLut[green[i]];
+		blue[i] = blueLut[blue[i]];
 	}
 }
 
-void gammaCorrection(Bitmap* bitmap) {
+// Carries on the running average of each channel, count is the number of pixels already averaged
+static void addChannelAverages(Bitmap* bitmap, float average[3], unsigned int* count) {
 	unsigned char* red = (*bitmap).red;
 	unsigned char* green = (*bitmap).green;
 	unsigned char* blue = (*bitmap).blue;
 	unsigned int length = (*bitmap).width * (*bitmap).height;
 
 	unsigned int i;
-	float redAverage = 0;
-	float greenAverage = 0;
-	float blueAverage = 0;
-	unsigned int n = 1;
+	float redAverage = average[0];
+	float greenAverage = average[1];
+	float blueAverage = average[2];
+	unsigned int n = *count + 1;
 	for (i = 0; i < length; i++) {
 		redAverage = ((n-1)*redAverage + red[i])/n;
 		greenAverage = ((n-1)*greenAverage + green[i])/n;
@@ -255,33 +342,38 @@ void gammaCorrection(Bitmap* bitmap) {
 		n++;
 	}
 
-	float gammaRed = log(128.0f/255)/log(redAverage/255);
-	float gammaGreen = log(128.0f/255)/log(greenAverage/255);
-	float gammaBlue = log(128.0f/255)/log(blueAverage/255);
-	int redLut[256];
-	int greenLut[256];
-	int blueLut[256];
+	average[0] = redAverage;
+	average[1] = greenAverage;
+	average[2] = blueAverage;
+	*count = n - 1;
+}
+
+// Works out the gamma that brings the average of each channel to the middle
+static void calculateGammaLutsFromAverages(float average[3], ChannelLutArgs* gamma) {
+	unsigned int i;
+	float gammaRed = log(128.0f/255)/log(average[0]/255);
+	float gammaGreen = log(128.0f/255)/log(average[1]/255);
+	float gammaBlue = log(128.0f/255)/log(average[2]/255);
 	for (i = 0; i < 256; i++) {
-		redLut[i] = -1;
-		greenLut[i] = -1;
-		blueLut[i] = -1;
+		(*gamma).redLut[i] = clampComponent(255.0f * powf((i/255.0f), gammaRed));
+		(*gamma).greenLut[i] = clampComponent(255.0f * powf((i/255.0f), gammaGreen));
+		(*gamma).blueLut[i] = clampComponent(255.0f * powf((i/255.0f), gammaBlue));
 	}
-	for (i = 0; i < length; i++) {
-		if (redLut[red[i]] == -1) {
-			redLut[red[i]] = clampComponent(255.0f * powf((red[i]/255.0f), gammaRed));
-		}
-		red[i] = redLut[red[i]];
+}
 
-		if (greenLut[green[i]] == -1) {
-			greenLut[green[i]] = clampComponent(255.0f * powf((green[i]/255.0f), gammaGreen));
-		}
-		green[i] = greenLut[green[i]];
+static void calculateGammaLuts(Bitmap* bitmap, ChannelLutArgs* gamma) {
+	float average[3] = {0, 0, 0};
+	unsigned int count = 0;
+	addChannelAverages(bitmap, average, &count);
+	calculateGammaLutsFromAverages(average, gamma);
+}
 
-		if (blueLut[blue[i]] == -1) {
-			blueLut[blue[i]] = clampComponent(255.0f * powf((blue[i]/255.0f), gammaBlue));
-		}
-		blue[i] = blueLut[blue[i]];
-	}
+void gammaCorrection(Bitmap* bitmap) {
+	ChannelLutArgs gamma;
+	gamma.bitmap = bitmap;
+	calculateGammaLuts(bitmap, &gamma);
+
+	runFilterStrips(bitmap, channelLutStrip, &gamma);
 }
 
 // amount is 0.0 to 1.0
@@ -321,41 +413,19 @@ int unsharpMask(Bitmap* bitmap, int radius, float amount, int threshold) {
 		return resultCode;
 	}
 
+	// Depends on the amount and threshold so it's filled for every call, but up front so the loop doesn't branch
 	int i, j;
-	short int lut[256][256];
+	unsigned char lut[256][256];
 	float a = (4 * amount) + 1;
 	for (i = 0; i < 256; i++) {
 		for (j = 0; j < 256; j++) {
-			lut[i][j] = -1;//clampComponent((int) (a * (i - j) + j));
+			lut[i][j] = (fabs(i - j) >= threshold) ? clampComponent((int) ((a + 1) * (i - j) + j)) : i;
 		}
 	}
 	for (i = length; i--;) {
-		int r1 = red[i];
-		int g1 = green[i];
-		int b1 = blue[i];
-
-		int r2 = blurRed[i];
-		int g2 = blurGreen[i];
-		int b2 = blurBlue[i];
-
-		if (fabs(r1 - r2) >= threshold) {
-			if (lut[r1][r2] == -1) {
-				lut[r1][r2] = clampComponent((int) ((a + 1) * (r1 - r2) + r2));
-			}
-			r1 = lut[r1][r2]; //clampComponent((int) ((a + 1) * (r1 - r2) + r2));
-		}
-		if (fabs(g1 - g2) >= threshold) {
-			if (lut[g1][g2] == -1) {
-				lut[g1][g2] = clampComponent((int) ((a + 1) * (g1 - g2) + g2));
-			}
-			g1 = lut[g1][g2]; //clampComponent((int) ((a + 1) * (g1 - g2) + g2));
-		}
-		if (fabs(b1 - b2) >= threshold) {
-			if (lut[b1][b2] == -1) {
-				lut[b1][b2] = clampComponent((int) ((a + 1) * (b1 - b2) + b2));
-			}
-			b1 = lut[b1][b2]; //clampComponent((int) ((a + 1) * (b1 - b2) + b2));
-		}
+		int r1 = lut[red[i]][blurRed[i]];
+		int g1 = lut[green[i]][blurGreen[i]];
+		int b1 = lut[blue[i]][blurBlue[i]];
 
 		red[i] = r1;
 		green[i] = g1;
@@ -367,36 +437,56 @@ int unsharpMask(Bitmap* bitmap, int radius, float amount, int threshold) {
 	freeUnsignedCharArray(&blurBlue);
 }
 
-// Normalise the colours
-void normaliseColours(Bitmap* bitmap) {
-	unsigned char* red = (*bitmap).red;
-	unsigned char* green = (*bitmap).green;
-	unsigned char* blue = (*bitmap).blue;
+typedef struct {
+	Bitmap* bitmap;
+	unsigned int (*histogram)[256];
+} HistogramArgs;
 
-	unsigned int histogram[3][256];
+// Counts the strip into a local histogram and adds it to the shared one
+static void histogramStrip(void* args, unsigned int start, unsigned int end) {
+	HistogramArgs* histogramArgs = (HistogramArgs*) args;
+	unsigned char* red = (*(*histogramArgs).bitmap).red;
+	unsigned char* green = (*(*histogramArgs).bitmap).green;
+	unsigned char* blue = (*(*histogramArgs).bitmap).blue;
+	unsigned int (*histogram)[256] = (*histogramArgs).histogram;
+
+	unsigned int localHistogram[3][256];
+	memset(localHistogram, 0, sizeof(localHistogram));
+
+	register unsigned int n;
+	for (n = start; n < end; n++) {
+		localHistogram[0][red[n]]++;
+		localHistogram[1][green[n]]++;
+		localHistogram[2][blue[n]]++;
+	}
 
 	unsigned int channel, i;
 	for (channel = 3; channel--;) {
 		for (i = 256; i--;) {
-			histogram[channel][i] = 0;
+			if (localHistogram[channel][i] != 0) {
+				__sync_fetch_and_add(&histogram[channel][i], localHistogram[channel][i]);
+			}
 		}
 	}
+}
 
-	unsigned int width = (*bitmap).width;
-	unsigned int height = (*bitmap).height;
+// Adds the bitmap's pixels to the counts already in the histogram
+static void addToHistogram(Bitmap* bitmap, unsigned int histogram[3][256]) {
+	HistogramArgs histogramArgs;
+	histogramArgs.bitmap = bitmap;
+	histogramArgs.histogram = histogram;
+	runFilterStrips(bitmap, histogramStrip, &histogramArgs);
+}
 
-	register unsigned int n = 0;
-	unsigned int x, y;
-	for (y = height; y--;) {
-		for (x = width; x--;) {
-			histogram[0][red[n]]++;
-			histogram[1][green[n]]++;
-			histogram[2][blue[n]]++;
-			n++;
-		}
-	}
+static void calculateHistogram(Bitmap* bitmap, unsigned int histogram[3][256]) {
+	memset(histogram, 0, 3 * 256 * sizeof(unsigned int));
+	addToHistogram(bitmap, histogram);
+}
 
-	float count = width * height;
+// Stretches each channel so that its darkest and brightest 0.6% become 0 and 255, the histogram is overwritten
+static void calculateNormalisationLuts(unsigned int histogram[3][256], unsigned int pixelCount, ChannelLutArgs* luts) {
+	unsigned int channel, i;
+	float count = pixelCount;
 	float percentage;
 	float nextPercentage;
 	unsigned int low = 0;
@@ -439,64 +529,103 @@ void normaliseColours(Bitmap* bitmap) {
 		}
 	}
 
-	n = 0;
-	for (y = height; y--;) {
-		for (x = width; x--;) {
-			red[n] = histogram[0][red[n]];
-			green[n] = histogram[1][green[n]];
-			blue[n] = histogram[2][blue[n]];
-			n++;
-		}
+	for (i = 0; i < 256; i++) {
+		(*luts).redLut[i] = histogram[0][i];
+		(*luts).greenLut[i] = histogram[1][i];
+		(*luts).blueLut[i] = histogram[2][i];
+	}
+}
+
+// Normalise the colours
+void normaliseColours(Bitmap* bitmap) {
+	unsigned int histogram[3][256];
+	calculateHistogram(bitmap, histogram);
+
+	ChannelLutArgs luts;
+	luts.bitmap = bitmap;
+	calculateNormalisationLuts(histogram, (*bitmap).width * (*bitmap).height, &luts);
+
+	runFilterStrips(bitmap, channelLutStrip, &luts);
+}
+
+void initInstafixStats(InstafixStats* stats) {
+	memset(stats, 0, sizeof(InstafixStats));
+}
+
+void addInstafixStats(InstafixStats* stats, Bitmap* bitmap) {
+	addChannelAverages(bitmap, (*stats).average, &(*stats).count);
+	addToHistogram(bitmap, (*stats).histogram);
+}
+
+// Same as gammaCorrection() followed by normaliseColours() but the image is only written once.
+// The histogram of the gamma corrected image is worked out from the histogram of the original
+// and the two luts are composed.
+void applyInstafixWithStats(Bitmap* bitmap, InstafixStats* stats) {
+	ChannelLutArgs gamma;
+	gamma.bitmap = bitmap;
+	calculateGammaLutsFromAverages((*stats).average, &gamma);
+
+	unsigned int correctedHistogram[3][256];
+	memset(correctedHistogram, 0, sizeof(correctedHistogram));
+	unsigned int i;
+	for (i = 0; i < 256; i++) {
+		correctedHistogram[0][(unsigned char)gamma.redLut[i]] += (*stats).histogram[0][i];
+		correctedHistogram[1][(unsigned char)gamma.greenLut[i]] += (*stats).histogram[1][i];
+		correctedHistogram[2][(unsigned char)gamma.blueLut[i]] += (*stats).histogram[2][i];
 	}
+
+	ChannelLutArgs luts;
+	luts.bitmap = bitmap;
+	calculateNormalisationLuts(correctedHistogram, (*stats).count, &luts);
+
+	for (i = 0; i < 256; i++) {
+		gamma.redLut[i] = luts.redLut[(unsigned char)gamma.redLut[i]];
+		gamma.greenLut[i] = luts.greenLut[(unsigned char)gamma.greenLut[i]];
+		gamma.blueLut[i] = luts.blueLut[(unsigned char)gamma.blueLut[i]];
+	}
+
+	runFilterStrips(bitmap, channelLutStrip, &gamma);
 }
 
 void applyInstafix(Bitmap* bitmap) {
 	//unsharpMask(bitmap, 3, 0.25f, 2);
-	gammaCorrection(bitmap);
-	normaliseColours(bitmap);
+	InstafixStats stats;
+	initInstafixStats(&stats);
+	addInstafixStats(&stats, bitmap);
+	applyInstafixWithStats(bitmap, &stats);
 }
 
 int applySahara(Bitmap* bitmap) {
 	int length = (*bitmap).width * (*bitmap).height;
 	int i;
-	unsigned char r, g, b;
 
 	//HSBColour hsb;
-	unsigned char* red = (*bitmap).red;
-	unsigned char* green = (*bitmap).green;
-	unsigned char* blue = (*bitmap).blue;
 	unsigned char brightnessLut[256];
 	unsigned char contrastLut[256];
+	unsigned char redCompressionLut[256];
+	unsigned char blueCompressionLut[256];
 	for (i = 0; i < 256; i++) {
 		float pixelf = i/255.0f;
 		//brightnessLut[i] = 255*applyBrightnessToPixelComponent(pixelf, 0.35433f);
 		//contrastLut[i] = 255*applyContrastToPixelComponent(pixelf, 0.1496f);
 		brightnessLut[i] = 255*applyBrightnessToPixelComponent(pixelf, 0.45f);
 		contrastLut[i] = 255*applyContrastToPixelComponent(pixelf, 0.1f);
-	}
-	for (i = length; i--; ) {
-		r = brightnessLut[red[i]];
-		g = brightnessLut[green[i]];
-		b = brightnessLut[blue[i]];
-
-		r = contrastLut[r];
-		green[i] = contrastLut[g];
-		b = contrastLut[b];
-
-		red[i] = (r*0.8431f/*215*/)+40; //compress the red channel between 18 - 237
-		blue[i] = (b*0.8823f/*225*/)+30; //compress the blue channel between 50 - 205
-
-		//rgbToHsb(red[i], green[i], blue[i], &hsb);
-		//hsb.s = hsb.s * 0.55f;
-
-		//hsbToRgb(&hsb, &red[i], &green[i], &blue[i]);
+		redCompressionLut[i] = (i*0.8431f/*215*/)+40; //compress the red channel between 18 - 237
+		blueCompressionLut[i] = (i*0.8823f/*225*/)+30; //compress the blue channel between 50 - 205
 	}
 
 	float matrix[4][4];
-	identMatrix(matrix);
+	identMatrix((float*) matrix);
 	float saturation = 0.65f;
 	saturateMatrix(matrix, &saturation);
-	applyMatrix(bitmap, matrix);
+
+	Pipeline pipeline;
+	initPipeline(&pipeline);
+	pipelineAddLuts(&pipeline, brightnessLut, brightnessLut, brightnessLut);
+	pipelineAddLuts(&pipeline, contrastLut, contrastLut, contrastLut);
+	pipelineAddLuts(&pipeline, redCompressionLut, NULL, blueCompressionLut);
+	pipelineAddMatrix(&pipeline, matrix);
+	runPipeline(bitmap, &pipeline);
 
 	unsigned char* blurRed;
 	unsigned char* blurGreen;
@@ -517,7 +646,7 @@ int applySahara(Bitmap* bitmap) {
 		return resultCode;
 	}
 
-	float blurRadius = 1.0f;
+	float blurRadius = SAHARA_BLUR_RADIUS;
 	resultCode = stackBlur(&blurRadius, (*bitmap).red, (*bitmap).green, (*bitmap).blue, &((*bitmap).width), &((*bitmap).height), blurRed, blurGreen, blurBlue);
 	if (resultCode != MEMORY_OK) {
 		freeUnsignedCharArray(&blurRed);
@@ -526,40 +655,14 @@ int applySahara(Bitmap* bitmap) {
 		return resultCode;
 	}
 
-	short int overlayLut[256][256];
-	unsigned char multiplyLut255[256];
-	unsigned char multiplyLut227[256];
-	unsigned char multiplyLut187[256];
-	unsigned int j;
-	for (i = 0; i < 256; i++) {
-		for (j = 0; j < 256; j++) {
-			overlayLut[i][j] = -1;//overlayPixelComponents(i, j, 1.0f);
-		}
-		multiplyLut255[i] = multiplyPixelComponents(255, i);
-		multiplyLut227[i] = multiplyPixelComponents(227, i);
-		multiplyLut187[i] = multiplyPixelComponents(187, i);
-	}
-	for (i = length; i--; ) {
-		if (overlayLut[blurRed[i]][red[i]] == -1) {
-			overlayLut[blurRed[i]][red[i]] = overlayPixelComponents(blurRed[i], red[i], 1.0f);
-		}
-		red[i] = overlayLut[blurRed[i]][red[i]];//overlayPixelComponents(blurRed[i], red[i], 1.0f);
-
-		if (overlayLut[blurGreen[i]][green[i]] == -1) {
-			overlayLut[blurGreen[i]][green[i]] = overlayPixelComponents(blurGreen[i], green[i], 1.0f);
-		}
-		green[i] = overlayLut[blurGreen[i]][green[i]];//overlayPixelComponents(blurGreen[i], green[i], 1.0f);
+	pthread_once(&overlayLutOnce, fillOverlayLut);
+	pthread_once(&multiplyLutOnce, fillMultiplyLut);
 
-		if (overlayLut[blurBlue[i]][blue[i]] == -1) {
-			overlayLut[blurBlue[i]][blue[i]] = overlayPixelComponents(blurBlue[i], blue[i], 1.0f);
-		}
-		blue[i] = overlayLut[blurBlue[i]][blue[i]];//overlayPixelComponents(blurBlue[i], blue[i], 1.0f);
-
-		// Multiply by a wheat colour rgb(255, 227, 187)
-		red[i] = multiplyLut255[red[i]];//multiplyPixelComponents(255, red[i]);
-		green[i] = multiplyLut227[green[i]];//multiplyPixelComponents(227, green[i]);
-		blue[i] = multiplyLut187[blue[i]];//multiplyPixelComponents(187, blue[i]);
-	}
+	initPipeline(&pipeline);
+	pipelineAddBlend(&pipeline, blurRed, blurGreen, blurBlue, overlayLut);
+	// Multiply by a wheat colour rgb(255, 227, 187)
+	pipelineAddLuts(&pipeline, multiplyLut[255], multiplyLut[227], multiplyLut[187]);
+	runPipeline(bitmap, &pipeline);
 
 	freeUnsignedCharArray(&blurRed);
 	freeUnsignedCharArray(&blurGreen);
@@ -568,6 +671,55 @@ int applySahara(Bitmap* bitmap) {
 	return MEMORY_OK;
 }
 
+typedef struct {
+	Bitmap* bitmap;
+	unsigned char* blurRed;
+	unsigned char* blurGreen;
+	unsigned char* blurBlue;
+	ColourMatrix matrix;
+} HDRArgs;
+
+static void hdrStrip(void* args, unsigned int start, unsigned int end) {
+	HDRArgs* hdr = (HDRArgs*) args;
+	unsigned char* red = (*(*hdr).bitmap).red;
+	unsigned char* green = (*(*hdr).bitmap).green;
+	unsigned char* blue = (*(*hdr).bitmap).blue;
+	unsigned char* blurRed = (*hdr).blurRed;
+	unsigned char* blurGreen = (*hdr).blurGreen;
+	unsigned char r1[SIMD_BLOCK_SIZE], g1[SIMD_BLOCK_SIZE];
+	unsigned int blockStart, blockSize, i, j;
+	for (blockStart = start; blockStart < end; blockStart += blockSize) {
+		blockSize = end - blockStart;
+		if (blockSize > SIMD_BLOCK_SIZE) {
+			blockSize = SIMD_BLOCK_SIZE;
+		}
+
+		for (i = blockStart, j = 0; j < blockSize; i++, j++) {
+			// Grain merge the inverted blurred pixel with the original
+			r1[j] = grainMergeLut[255 - blurRed[i]][red[i]];
+			g1[j] = grainMergeLut[255 - blurGreen[i]][green[i]];
+		}
+
+		// boost the saturation of the original pixel
+		//HSBColour hsb;
+		//rgbToHsb(red[i], green[i], blue[i], &hsb);
+		//hsb.s = min(1.0f, hsb.s * 1.3f);
+		multiplyPixelsByColourMatrix(red + blockStart, green + blockStart, blue + blockStart, blockSize, &(*hdr).matrix);
+		//hsbToRgb(&hsb, &r2, &g2, &b2);
+
+		// grain merge the saturated pixel with the inverted grain merged pixel,
+		// blue has always been merged with the green channel and it's part of the look
+		for (i = blockStart, j = 0; j < blockSize; i++, j++) {
+			red[i] = grainMergeLut[red[i]][r1[j]];
+			green[i] = grainMergeLut[green[i]][g1[j]];
+			blue[i] = grainMergeLut[blue[i]][g1[j]];
+		}
+
+		// and boost the saturation of the result
+		multiplyPixelsByColourMatrix(red + blockStart, green + blockStart, blue + blockStart, blockSize, &(*hdr).matrix);
+	}
+}
+
 //TODO memory usage may be reduced by using component based blur
 int applyHDR(Bitmap* bitmap) {
 	//Cache to local variables
@@ -594,7 +746,7 @@ int applyHDR(Bitmap* bitmap) {
 		freeUnsignedCharArray(&blurGreen);
 		return resultCode;
 	}
-	float blurRadius = 9.0f;
+	float blurRadius = HDR_BLUR_RADIUS;
 	resultCode = stackBlur(&blurRadius, red, green, blue, &((*bitmap).width), &((*bitmap).height), blurRed, blurGreen, blurBlue);
 	if (resultCode != MEMORY_OK) {
 		freeUnsignedCharArray(&blurRed);
@@ -603,40 +755,19 @@ int applyHDR(Bitmap* bitmap) {
 		return resultCode;
 	}
 
-	unsigned int i, j;
-	unsigned char r1, g1, b1, r2, g2, b2;
+	pthread_once(&grainMergeLutOnce, fillGrainMergeLut);
+
+	HDRArgs hdr;
+	hdr.bitmap = bitmap;
+	hdr.blurRed = blurRed;
+	hdr.blurGreen = blurGreen;
+	hdr.blurBlue = blurBlue;
 	float matrix[4][4];
-	identMatrix(matrix);
+	identMatrix((float*) matrix);
 	float saturation = 1.3f;
 	saturateMatrix(matrix, &saturation);
-	for (i = length; i--;) {
-		// invert the blurred pixel
-		r1 = 255 - blurRed[i];
-		g1 = 255 - blurGreen[i];
-		b1 = 255 - blurBlue[i];
-
-		// Grain merge the inverted blurred pixel with the original
-		r1 = grainMergePixelsComponent(r1, red[i]);
-		g1 = grainMergePixelsComponent(g1, green[i]);
-		b1 = grainMergePixelsComponent(b1, blue[i]);
-
-		// boost the saturation of the original pixel
-		//HSBColour hsb;
-		//rgbToHsb(red[i], green[i], blue[i], &hsb);
-		//hsb.s = min(1.0f, hsb.s * 1.3f);
-		r2 = red[i];
-		g2 = green[i];
-		b2 = blue[i];
-		applyMatrixToPixel(&r2, &g2, &b2, matrix);
-		//hsbToRgb(&hsb, &r2, &g2, &b2);
-
-		// grain merge the saturated pixel with the inverted grain merged pixel
-		red[i] = grainMergePixelsComponent(r2, r1);
-		green[i] = grainMergePixelsComponent(g2, g1);
-		blue[i] = grainMergePixelsComponent(b2, g1);
-	}
-
-	applyMatrix(bitmap, matrix);
+	initColourMatrix(&hdr.matrix, matrix);
+	runFilterStrips(bitmap, hdrStrip, &hdr);
 
 	freeUnsignedCharArray(&blurRed);
 	freeUnsignedCharArray(&blurGreen);
@@ -645,57 +776,67 @@ int applyHDR(Bitmap* bitmap) {
 	return MEMORY_OK;
 }
 
-void applyTestino(Bitmap* bitmap) {
-	//Cache to local variables
-	unsigned char* red = (*bitmap).red;
-	unsigned char* green = (*bitmap).green;
-	unsigned char* blue = (*bitmap).blue;
+typedef struct {
+	Bitmap* bitmap;
+	ColourMatrix matrix;
+} TestinoArgs;
 
-	unsigned int length = (*bitmap).width * (*bitmap).height;
+static void testinoStrip(void* args, unsigned int start, unsigned int end) {
+	TestinoArgs* testino = (TestinoArgs*) args;
+	unsigned char* red = (*(*testino).bitmap).red;
+	unsigned char* green = (*(*testino).bitmap).green;
+	unsigned char* blue = (*(*testino).bitmap).blue;
 	register unsigned int i;
 	unsigned char r, g, b;
-	//HSBColour hsb;
 	register unsigned char grey;
-	short int greyscaleInvertMaskScreenComponentLut[256][256];
-	short int overlayLut[256][256];
-	unsigned int j;
-	for (i = 256; i--;) {
-		for (j = 256; j--;) {
-			greyscaleInvertMaskScreenComponentLut[i][j] = -1;
-			overlayLut[i][j] = -1;
+	unsigned int blockStart, blockEnd;
+	for (blockStart = start; blockStart < end; blockStart = blockEnd) {
+		blockEnd = blockStart + SIMD_BLOCK_SIZE;
+		if (blockEnd > end) {
+			blockEnd = end;
 		}
-	}
-
-	float matrix[4][4];
-	identMatrix(matrix);
-	float saturation = 1.5f;
-	saturateMatrix(matrix, &saturation);
-	applyMatrix(bitmap, matrix);
 
-	for (i = length; i--;) {
 		//rgbToHsb(red[i], green[i], blue[i], &hsb);
 		//hsb.s = min(hsb.s * 1.5f, 1.0f);
 		//hsbToRgb(&hsb, &r, &g, &b);
+		multiplyPixelsByColourMatrix(red + blockStart, green + blockStart, blue + blockStart, blockEnd - blockStart, &(*testino).matrix);
+
+		for (i = blockStart; i < blockEnd; i++) {
+			r = red[i];
+			g = green[i];
+			b = blue[i];
+
+			grey = ((unsigned int)red[i] + (unsigned int)green[i] + (unsigned int)blue[i])/3;
+			r = greyscaleInvertMaskScreenLut[grey][r];
+			g = greyscaleInvertMaskScreenLut[grey][g];
+			b = greyscaleInvertMaskScreenLut[grey][b];
+
+			// Create black and white pixel
+			grey = blackAndWhite(red[i], green[i], blue[i]);
+
+			r = overlayLut[grey][r];
+			g = overlayLut[grey][g];
+			b = overlayLut[grey][b];
+			red[i] = overlayLut[grey][r];
+			green[i] = overlayLut[grey][g];
+			blue[i] = overlayLut[grey][b];
+		}
+	}
+}
 
-		r = red[i];
-		g = green[i];
-		b = blue[i];
-
-		grey = ((unsigned int)red[i] + (unsigned int)green[i] + (unsigned int)blue[i])/3;
-		r = (greyscaleInvertMaskScreenComponentLut[grey][r] == -1) ? greyscaleInvertMaskScreenComponentLut[grey][r] = greyscaleInvertMaskScreenComponent(grey, 0.5f, r) : greyscaleInvertMaskScreenComponentLut[grey][r];
-		g = (greyscaleInvertMaskScreenComponentLut[grey][g] == -1) ? greyscaleInvertMaskScreenComponentLut[grey][g] = greyscaleInvertMaskScreenComponent(grey, 0.5f, g) : greyscaleInvertMaskScreenComponentLut[grey][g];
-		b = (greyscaleInvertMaskScreenComponentLut[grey][b] == -1) ? greyscaleInvertMaskScreenComponentLut[grey][b] = greyscaleInvertMaskScreenComponent(grey, 0.5f, b) : greyscaleInvertMaskScreenComponentLut[grey][b];
-
-		// Create black and white pixel
-		grey = blackAndWhite(red[i], green[i], blue[i]);
+void applyTestino(Bitmap* bitmap) {
+	//HSBColour hsb;
+	pthread_once(&greyscaleInvertMaskScreenLutOnce, fillGreyscaleInvertMaskScreenLut);
+	pthread_once(&overlayLutOnce, fillOverlayLut);
 
-		r = (overlayLut[grey][r] == -1) ? overlayLut[grey][r] = overlayPixelComponents(grey, r, 1.0f) : overlayLut[grey][r];
-		g = (overlayLut[grey][g] == -1) ? overlayLut[grey][g] = overlayPixelComponents(grey, g, 1.0f) : overlayLut[grey][g];
-		b = (overlayLut[grey][b] == -1) ? overlayLut[grey][b] = overlayPixelComponents(grey, b, 1.0f) : overlayLut[grey][b];
-		red[i] = (overlayLut[grey][r] == -1) ? overlayLut[grey][r] = overlayPixelComponents(grey, r, 1.0f) : overlayLut[grey][r];
-		green[i] = (overlayLut[grey][g] == -1) ? overlayLut[grey][g] = overlayPixelComponents(grey, g, 1.0f) : overlayLut[grey][g];
-		blue[i] = (overlayLut[grey][b] == -1) ? overlayLut[grey][b] = overlayPixelComponents(grey, b, 1.0f) : overlayLut[grey][b];
-	}
+	TestinoArgs testino;
+	testino.bitmap = bitmap;
+	float matrix[4][4];
+	identMatrix((float*) matrix);
+	float saturation = 1.5f;
+	saturateMatrix(matrix, &saturation);
+	initColourMatrix(&testino.matrix, matrix);
+	runFilterStrips(bitmap, testinoStrip, &testino);
 }
 
 const unsigned char xproRedCurveLut[256] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1,
@@ -751,22 +892,13 @@ const unsigned char xproBlueCurveLut[256] = { 21, 21, 21, 22, 23, 24, 25, 26,
 		207, 208, 208, 209, 210, 211, 212, 213, 213, 214, 215, 216, 217, 218,
 		218, 219, 220, 221, 222, 223, 223, 224, 225, 226, 227, 228, 228, 229,
 		230, 231, 232, 232, 233 };
-void applyXPro(Bitmap* bitmap) {
-	//Cache to local variables
+static void xproStrip(void* args, unsigned int start, unsigned int end) {
+	Bitmap* bitmap = (Bitmap*) args;
 	unsigned char* red = (*bitmap).red;
 	unsigned char* green = (*bitmap).green;
 	unsigned char* blue = (*bitmap).blue;
-
-	unsigned int length = (*bitmap).width * (*bitmap).height;
 	register unsigned int i;
-	short int overlayLut[256][256];
-	int j;
-	for (i = 256; i--;) {
-		for (j = 256; j--;) {
-			overlayLut[i][j] = -1;
-		}
-	}
-	for (i = length; i--;) {
+	for (i = start; i < end; i++) {
 		HSBColour hsb;
 		//rgbToHsb(red[i], green[i], blue[i], &hsb);
 		//float value = hsb.b;
@@ -781,31 +913,26 @@ void applyXPro(Bitmap* bitmap) {
 
 		hsbToRgb(&hsb, &r, &g, &b);
 
-		if (overlayLut[red[i]][r] == -1) {
-			overlayLut[red[i]][r] = overlayPixelComponents(red[i], r, 1.0f);
-		}
 		red[i] = overlayLut[red[i]][r]; //overlayPixelComponents(red[i], r, 1.0f);
-		if (overlayLut[green[i]][g] == -1) {
-			overlayLut[green[i]][g] = overlayPixelComponents(green[i], g, 1.0f);
-		}
 		green[i] = overlayLut[green[i]][g]; //overlayPixelComponents(green[i], g, 1.0f);
-		if (overlayLut[blue[i]][b] == -1) {
-			overlayLut[blue[i]][b] = overlayPixelComponents(blue[i], b, 1.0f);
-		}
 		blue[i] = overlayLut[blue[i]][b]; //overlayPixelComponents(blue[i], b, 1.0f);
 	}
 }
 
-void applyCyano(Bitmap* bitmap) {
-	//Cache to local variables
+void applyXPro(Bitmap* bitmap) {
+	pthread_once(&overlayLutOnce, fillOverlayLut);
+
+	runFilterStrips(bitmap, xproStrip, bitmap);
+}
+
+static void cyanoStrip(void* args, unsigned int start, unsigned int end) {
+	Bitmap* bitmap = (Bitmap*) args;
 	unsigned char* red = (*bitmap).red;
 	unsigned char* green = (*bitmap).green;
 	unsigned char* blue = (*bitmap).blue;
-
-	unsigned int length = (*bitmap).width * (*bitmap).height;
 	register unsigned int i;
 	register unsigned char grey, r, g, b;
-	for (i = length; i--;) {
+	for (i = start; i < end; i++) {
 		grey = ((red[i] * 0.222f) + (green[i] * 0.222f) + (blue[i] * 0.222f));
 		r = componentCeiling(61.0f + grey);
 		g = componentCeiling(87.0f + grey);
@@ -818,33 +945,52 @@ void applyCyano(Bitmap* bitmap) {
 	}
 }
 
-void applyRetro(Bitmap* bitmap) {
-	//Cache to local variables
-	unsigned char* red = (*bitmap).red;
-	unsigned char* green = (*bitmap).green;
-	unsigned char* blue = (*bitmap).blue;
+void applyCyano(Bitmap* bitmap) {
+	runFilterStrips(bitmap, cyanoStrip, bitmap);
+}
 
-	unsigned int length = (*bitmap).width * (*bitmap).height;
+typedef struct {
+	Bitmap* bitmap;
+	Pipeline colourLuts;
+} RetroArgs;
+
+static void retroStrip(void* args, unsigned int start, unsigned int end) {
+	RetroArgs* retro = (RetroArgs*) args;
+	unsigned char* red = (*(*retro).bitmap).red;
+	unsigned char* green = (*(*retro).bitmap).green;
+	unsigned char* blue = (*(*retro).bitmap).blue;
+	unsigned char* redLut = (*retro).colourLuts.preLut[0];
+	unsigned char* greenLut = (*retro).colourLuts.preLut[1];
+	unsigned char* blueLut = (*retro).colourLuts.preLut[2];
 	register unsigned int i;
 	register unsigned int grey;
 	register unsigned char r, g, b;
+	for (i = start; i < end; i++) {
+		// Overlay grey
+		grey = blackAndWhite(red[i], green[i], blue[i]);
+		r = overlayLut[grey][red[i]];
+		g = overlayLut[grey][green[i]];
+		b = overlayLut[grey][blue[i]];
+		//r = overlayPixelComponents(grey, (*bitmap).red[i], 1.0f);
+		//g = overlayPixelComponents(grey, (*bitmap).green[i], 1.0f);
+		//b = overlayPixelComponents(grey, (*bitmap).blue[i], 1.0f);
 
-	short int overlayLut[256][256];
-	unsigned int j;
-	for (i = 256; i--; ) {
-		for (j = 256; j--; ) {
-			overlayLut[i][j] = -1;
-		}
+		// Multiply and screen merge the colours set up in applyRetro()
+		red[i] = redLut[r];
+		green[i] = greenLut[g];
+		blue[i] = blueLut[b];
 	}
-	unsigned char multiply251Lut[256];
-	unsigned char multiply242Lut[256];
-	unsigned char multiply163Lut[256];
-	unsigned char screen232Lut[256];
-	unsigned char screen101Lut[256];
-	unsigned char screen179Lut[256];
-	unsigned char screen9Lut[256];
-	unsigned char screen73Lut[256];
-	unsigned char screen233Lut[256];
+}
+
+void applyRetro(Bitmap* bitmap) {
+	pthread_once(&overlayLutOnce, fillOverlayLut);
+
+	RetroArgs retro;
+	retro.bitmap = bitmap;
+	unsigned char multiply251Lut[256], multiply242Lut[256], multiply163Lut[256];
+	unsigned char screen232Lut[256], screen101Lut[256], screen179Lut[256];
+	unsigned char screen9Lut[256], screen73Lut[256], screen233Lut[256];
+	unsigned int i;
 	for (i = 256; i--; ) {
 		multiply251Lut[i] = multiplyPixelComponentsWithAlpha(251, 0.588235f, i);
 		multiply242Lut[i] = multiplyPixelComponentsWithAlpha(242, 0.588235f, i);
@@ -858,30 +1004,15 @@ void applyRetro(Bitmap* bitmap) {
 		screen73Lut[i] = screenPixelComponent(73, 0.168627f, i);
 		screen233Lut[i] = screenPixelComponent(233, 0.168627f, i);
 	}
-	for (i = length; i--;) {
-		// Overlay grey
-		grey = blackAndWhite(red[i], green[i], blue[i]);
-		r = overlayLut[grey][red[i]] == -1 ? overlayLut[grey][red[i]] = overlayPixelComponents(grey, red[i], 1.0f) : overlayLut[grey][red[i]];
-		g = overlayLut[grey][green[i]] == -1 ? overlayLut[grey][green[i]] = overlayPixelComponents(grey, green[i], 1.0f) : overlayLut[grey][green[i]];
-		b = overlayLut[grey][blue[i]] == -1 ? overlayLut[grey][blue[i]] = overlayPixelComponents(grey, blue[i], 1.0f) : overlayLut[grey][blue[i]];
-		//r = overlayPixelComponents(grey, (*bitmap).red[i], 1.0f);
-		//g = overlayPixelComponents(grey, (*bitmap).green[i], 1.0f);
-		//b = overlayPixelComponents(grey, (*bitmap).blue[i], 1.0f);
-
-		// Multiply rgba(251, 242, 163, 150) colour
-		r = multiply251Lut[r]; //multiplyPixelComponentsWithAlpha(251, 0.588235f, r);
-		g = multiply242Lut[g]; //multiplyPixelComponentsWithAlpha(242, 0.588235f, g);
-		b = multiply163Lut[b]; //multiplyPixelComponentsWithAlpha(163, 0.588235f, b);
 
-		// Screen merge rgba(232, 101, 179, 51) colour
-		r = screen232Lut[r]; //screenPixelComponent(232, 0.2f, r);
-		g = screen101Lut[g]; //screenPixelComponent(101, 0.2f, g);
-		b = screen179Lut[b]; //screenPixelComponent(179, 0.2f, b);
+	// The overlay depends on each pixel's grey so only what follows it can be composed
+	initPipeline(&retro.colourLuts);
+	// Multiply rgba(251, 242, 163, 150) colour
+	pipelineAddLuts(&retro.colourLuts, multiply251Lut, multiply242Lut, multiply163Lut);
+	// Screen merge rgba(232, 101, 179, 51) colour
+	pipelineAddLuts(&retro.colourLuts, screen232Lut, screen101Lut, screen179Lut);
+	// Screen merge rgba(9, 73, 233, 43) colour
+	pipelineAddLuts(&retro.colourLuts, screen9Lut, screen73Lut, screen233Lut);
 
-		// Screen merge rgba(9, 73, 233, 43) colour
-		red[i] = screen9Lut[r]; //screenPixelComponent(9, 0.168627f, r);
-		green[i] = screen73Lut[g]; //screenPixelComponent(73, 0.168627f, g);
-		blue[i] = screen233Lut[b]; //screenPixelComponent(233, 0.168627f, b);
-	}
+	runFilterStrips(bitmap, retroStrip, &retro);
 }
-
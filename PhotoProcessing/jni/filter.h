@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef FILTER
+#define FILTER
+
+#define SAHARA_BLUR_RADIUS 1
+#define HDR_BLUR_RADIUS 9
+
+// The whole image statistics instafix works from. They can be gathered from
+// consecutive strips of an image when it's too big to be held in memory at once.
+typedef struct {
+	float average[3];
+	unsigned int count;
+	unsigned int histogram[3][256];
+} InstafixStats;
+
+void initInstafixStats(InstafixStats* stats);
+// The strips have to be added from the top of the image to the bottom
+void addInstafixStats(InstafixStats* stats, Bitmap* bitmap);
+void applyInstafixWithStats(Bitmap* bitmap, InstafixStats* stats);
+
+// The filters in the same order as PhotoProcessing.FILTERS, all of them work in place.
+// Sahara and HDR need memory for a blurred copy and return MEMORY_OK or the error from allocating it.
+void applyInstafix(Bitmap* bitmap);
+void applyAnselFilter(Bitmap* bitmap);
+void applyTestino(Bitmap* bitmap);
+void applyXPro(Bitmap* bitmap);
+void applyRetro(Bitmap* bitmap);
+void applyBlackAndWhiteFilter(Bitmap* bitmap);
+void applySepia(Bitmap* bitmap);
+void applyCyano(Bitmap* bitmap);
+void applyGeorgia(Bitmap* bitmap);
+int applySahara(Bitmap* bitmap);
+int applyHDR(Bitmap* bitmap);
+
+#endif
@@ -0,0 +1,563 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <jpeg_encoder.h>
+#include <mem_utils.h>
+#include <string.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "jpeg_encoder.c"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+// Natural order index of each coefficient in zigzag order
+static const unsigned char zigzag[64] = {
+	0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+	12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+	35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+	58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+
+// The example tables from annex K of the jpeg standard, in natural order
+static const unsigned char lumaQuantisation[64] = {
+	16, 11, 10, 16, 24, 40, 51, 61,
+	12, 12, 14, 19, 26, 58, 60, 55,
+	14, 13, 16, 24, 40, 57, 69, 56,
+	14, 17, 22, 29, 51, 87, 80, 62,
+	18, 22, 37, 56, 68, 109, 103, 77,
+	24, 35, 55, 64, 81, 104, 113, 92,
+	49, 64, 78, 87, 103, 121, 120, 101,
+	72, 92, 95, 98, 112, 100, 103, 99};
+static const unsigned char chromaQuantisation[64] = {
+	17, 18, 24, 47, 99, 99, 99, 99,
+	18, 21, 26, 66, 99, 99, 99, 99,
+	24, 26, 56, 99, 99, 99, 99, 99,
+	47, 66, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99,
+	99, 99, 99, 99, 99, 99, 99, 99};
+
+// Number of codes of each length from 1 to 16 bits followed by the values they encode
+static const unsigned char dcLumaBits[16] = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+static const unsigned char dcLumaValues[12] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+static const unsigned char dcChromaBits[16] = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+static const unsigned char dcChromaValues[12] = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+static const unsigned char acLumaBits[16] = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+static const unsigned char acLumaValues[162] = {
+	0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+	0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+	0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+	0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+	0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+	0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+	0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+	0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+	0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+	0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+	0xf9, 0xfa};
+static const unsigned char acChromaBits[16] = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+static const unsigned char acChromaValues[162] = {
+	0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+	0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+	0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+	0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+	0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+	0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+	0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+	0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+	0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+	0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+	0xf9, 0xfa};
+
+static const unsigned char* huffmanBits[4] = {dcLumaBits, acLumaBits, dcChromaBits, acChromaBits};
+static const unsigned char* huffmanValues[4] = {dcLumaValues, acLumaValues, dcChromaValues, acChromaValues};
+static const unsigned char huffmanClasses[4] = {0x00, 0x10, 0x01, 0x11};
+
+// Exif orientation tag value for each orientation in transform.h
+static const unsigned char exifOrientations[8] = {1, 6, 3, 8, 2, 7, 4, 5};
+
+// Fixed point constants of the islow integer forward DCT from the IJG library
+#define DCT_CONST_BITS 13
+#define DCT_PASS1_BITS 2
+#define FIX_0_298631336 2446
+#define FIX_0_390180644 3196
+#define FIX_0_541196100 4433
+#define FIX_0_765366865 6270
+#define FIX_0_899976223 7373
+#define FIX_1_175875602 9633
+#define FIX_1_501321110 12299
+#define FIX_1_847759065 15137
+#define FIX_1_961570560 16069
+#define FIX_2_053119869 16819
+#define FIX_2_562915447 20995
+#define FIX_3_072711026 25172
+#define descale(x, n) (((x) + (1 << ((n) - 1))) >> (n))
+
+static void flushOutput(JpegEncoder* encoder) {
+	if ((*encoder).outputSize == 0) {
+		return;
+	}
+	if ((*encoder).resultCode == MEMORY_OK) {
+		if ((*encoder).write((*encoder).writeArgs, (*encoder).output, (*encoder).outputSize) != 0) {
+			LOGE("failed to write %d bytes", (*encoder).outputSize);
+			(*encoder).resultCode = JPEG_WRITE_ERROR;
+		}
+	}
+	(*encoder).outputSize = 0;
+}
+
+static inline void writeByte(JpegEncoder* encoder, unsigned char value) {
+	if ((*encoder).outputSize == JPEG_OUTPUT_BUFFER_SIZE) {
+		flushOutput(encoder);
+	}
+	(*encoder).output[(*encoder).outputSize++] = value;
+}
+
+static void writeShort(JpegEncoder* encoder, unsigned int value) {
+	writeByte(encoder, value >> 8);
+	writeByte(encoder, value);
+}
+
+static void writeBytes(JpegEncoder* encoder, const unsigned char* values, unsigned int count) {
+	unsigned int i;
+	for (i = 0; i < count; i++) {
+		writeByte(encoder, values[i]);
+	}
+}
+
+// Appends the low size bits of code to the entropy coded data
+static inline void writeBits(JpegEncoder* encoder, unsigned int code, int size) {
+	unsigned int bitBuffer = ((*encoder).bitBuffer << size) | code;
+	int bitCount = (*encoder).bitCount + size;
+	while (bitCount >= 8) {
+		bitCount -= 8;
+		unsigned char value = bitBuffer >> bitCount;
+		writeByte(encoder, value);
+		if (value == 0xff) {
+			writeByte(encoder, 0); // stuffed so it isn't read as a marker
+		}
+	}
+	(*encoder).bitBuffer = bitBuffer & ((1 << bitCount) - 1);
+	(*encoder).bitCount = bitCount;
+}
+
+static void initHuffmanTable(JpegEncoder* encoder, int table) {
+	const unsigned char* bits = huffmanBits[table];
+	const unsigned char* values = huffmanValues[table];
+	unsigned int code = 0;
+	int length, i, k = 0;
+	for (length = 1; length <= 16; length++) {
+		for (i = 0; i < bits[length - 1]; i++, k++) {
+			(*encoder).huffmanCodes[table][values[k]] = code++;
+			(*encoder).huffmanSizes[table][values[k]] = length;
+		}
+		code <<= 1;
+	}
+}
+
+// Scales the example table the same way as the IJG library so the quality matches android.graphics.Bitmap.compress()
+static void initQuantisationTable(JpegEncoder* encoder, int table, const unsigned char* base, int quality) {
+	int scale = (quality < 50) ? 5000 / quality : 200 - quality * 2;
+	int i;
+	for (i = 0; i < 64; i++) {
+		int value = (base[zigzag[i]] * scale + 50) / 100;
+		value = (value < 1) ? 1 : (value > 255) ? 255 : value;
+		(*encoder).quantisation[table][i] = value;
+		// The forward DCT leaves the coefficients 8 times too big
+		(*encoder).divisors[table][zigzag[i]] = value * 8;
+	}
+}
+
+static void writeHeaders(JpegEncoder* encoder, int orientation) {
+	static const unsigned char jfif[14] = {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+	int table, i;
+
+	writeShort(encoder, 0xffd8);
+
+	writeShort(encoder, 0xffe0);
+	writeShort(encoder, 2 + sizeof(jfif));
+	writeBytes(encoder, jfif, sizeof(jfif));
+
+	// A big endian tiff header with a single directory entry for the orientation
+	if (orientation != 0) {
+		static const unsigned char exif[24] = {'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 0x2a, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1};
+		writeShort(encoder, 0xffe1);
+		writeShort(encoder, 2 + sizeof(exif) + 8);
+		writeBytes(encoder, exif, sizeof(exif));
+		writeShort(encoder, exifOrientations[orientation & 7]);
+		writeShort(encoder, 0);
+		writeShort(encoder, 0); // no more directories
+		writeShort(encoder, 0);
+	}
+
+	writeShort(encoder, 0xffdb);
+	writeShort(encoder, 2 + 2 * 65);
+	for (table = 0; table < 2; table++) {
+		writeByte(encoder, table);
+		writeBytes(encoder, (*encoder).quantisation[table], 64);
+	}
+
+	// Luma is sampled at twice the resolution of the chroma in both directions
+	writeShort(encoder, 0xffc0);
+	writeShort(encoder, 17);
+	writeByte(encoder, 8);
+	writeShort(encoder, (*encoder).height);
+	writeShort(encoder, (*encoder).width);
+	writeByte(encoder, 3);
+	writeByte(encoder, 1);
+	writeByte(encoder, 0x22);
+	writeByte(encoder, 0);
+	for (i = 2; i <= 3; i++) {
+		writeByte(encoder, i);
+		writeByte(encoder, 0x11);
+		writeByte(encoder, 1);
+	}
+
+	int length = 2;
+	for (table = 0; table < 4; table++) {
+		length += 17;
+		for (i = 0; i < 16; i++) {
+			length += huffmanBits[table][i];
+		}
+	}
+	writeShort(encoder, 0xffc4);
+	writeShort(encoder, length);
+	for (table = 0; table < 4; table++) {
+		int count = 0;
+		writeByte(encoder, huffmanClasses[table]);
+		for (i = 0; i < 16; i++) {
+			count += huffmanBits[table][i];
+		}
+		writeBytes(encoder, huffmanBits[table], 16);
+		writeBytes(encoder, huffmanValues[table], count);
+	}
+
+	writeShort(encoder, 0xffda);
+	writeShort(encoder, 12);
+	writeByte(encoder, 3);
+	writeByte(encoder, 1);
+	writeByte(encoder, 0x00);
+	writeByte(encoder, 2);
+	writeByte(encoder, 0x11);
+	writeByte(encoder, 3);
+	writeByte(encoder, 0x11);
+	writeByte(encoder, 0);
+	writeByte(encoder, 63);
+	writeByte(encoder, 0);
+}
+
+// The islow forward DCT from the IJG library, the results are 8 times the true coefficients
+static void forwardDct(int* data) {
+	int tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7;
+	int tmp10, tmp11, tmp12, tmp13;
+	int z1, z2, z3, z4, z5;
+	int* p;
+	int i;
+
+	for (p = data, i = 8; i--; p += 8) {
+		tmp0 = p[0] + p[7];
+		tmp7 = p[0] - p[7];
+		tmp1 = p[1] + p[6];
+		tmp6 = p[1] - p[6];
+		tmp2 = p[2] + p[5];
+		tmp5 = p[2] - p[5];
+		tmp3 = p[3] + p[4];
+		tmp4 = p[3] - p[4];
+
+		tmp10 = tmp0 + tmp3;
+		tmp13 = tmp0 - tmp3;
+		tmp11 = tmp1 + tmp2;
+		tmp12 = tmp1 - tmp2;
+
+		p[0] = (tmp10 + tmp11) << DCT_PASS1_BITS;
+		p[4] = (tmp10 - tmp11) << DCT_PASS1_BITS;
+
+		z1 = (tmp12 + tmp13) * FIX_0_541196100;
+		p[2] = descale(z1 + tmp13 * FIX_0_765366865, DCT_CONST_BITS - DCT_PASS1_BITS);
+		p[6] = descale(z1 - tmp12 * FIX_1_847759065, DCT_CONST_BITS - DCT_PASS1_BITS);
+
+		z1 = tmp4 + tmp7;
+		z2 = tmp5 + tmp6;
+		z3 = tmp4 + tmp6;
+		z4 = tmp5 + tmp7;
+		z5 = (z3 + z4) * FIX_1_175875602;
+
+		tmp4 *= FIX_0_298631336;
+		tmp5 *= FIX_2_053119869;
+		tmp6 *= FIX_3_072711026;
+		tmp7 *= FIX_1_501321110;
+		z1 *= -FIX_0_899976223;
+		z2 *= -FIX_2_562915447;
+		z3 = z3 * -FIX_1_961570560 + z5;
+		z4 = z4 * -FIX_0_390180644 + z5;
+
+		p[7] = descale(tmp4 + z1 + z3, DCT_CONST_BITS - DCT_PASS1_BITS);
+		p[5] = descale(tmp5 + z2 + z4, DCT_CONST_BITS - DCT_PASS1_BITS);
+		p[3] = descale(tmp6 + z2 + z3, DCT_CONST_BITS - DCT_PASS1_BITS);
+		p[1] = descale(tmp7 + z1 + z4, DCT_CONST_BITS - DCT_PASS1_BITS);
+	}
+
+	for (p = data, i = 8; i--; p++) {
+		tmp0 = p[0] + p[56];
+		tmp7 = p[0] - p[56];
+		tmp1 = p[8] + p[48];
+		tmp6 = p[8] - p[48];
+		tmp2 = p[16] + p[40];
+		tmp5 = p[16] - p[40];
+		tmp3 = p[24] + p[32];
+		tmp4 = p[24] - p[32];
+
+		tmp10 = tmp0 + tmp3;
+		tmp13 = tmp0 - tmp3;
+		tmp11 = tmp1 + tmp2;
+		tmp12 = tmp1 - tmp2;
+
+		p[0] = descale(tmp10 + tmp11, DCT_PASS1_BITS);
+		p[32] = descale(tmp10 - tmp11, DCT_PASS1_BITS);
+
+		z1 = (tmp12 + tmp13) * FIX_0_541196100;
+		p[16] = descale(z1 + tmp13 * FIX_0_765366865, DCT_CONST_BITS + DCT_PASS1_BITS);
+		p[48] = descale(z1 - tmp12 * FIX_1_847759065, DCT_CONST_BITS + DCT_PASS1_BITS);
+
+		z1 = tmp4 + tmp7;
+		z2 = tmp5 + tmp6;
+		z3 = tmp4 + tmp6;
+		z4 = tmp5 + tmp7;
+		z5 = (z3 + z4) * FIX_1_175875602;
+
+		tmp4 *= FIX_0_298631336;
+		tmp5 *= FIX_2_053119869;
+		tmp6 *= FIX_3_072711026;
+		tmp7 *= FIX_1_501321110;
+		z1 *= -FIX_0_899976223;
+		z2 *= -FIX_2_562915447;
+		z3 = z3 * -FIX_1_961570560 + z5;
+		z4 = z4 * -FIX_0_390180644 + z5;
+
+		p[56] = descale(tmp4 + z1 + z3, DCT_CONST_BITS + DCT_PASS1_BITS);
+		p[40] = descale(tmp5 + z2 + z4, DCT_CONST_BITS + DCT_PASS1_BITS);
+		p[24] = descale(tmp6 + z2 + z3, DCT_CONST_BITS + DCT_PASS1_BITS);
+		p[8] = descale(tmp7 + z1 + z4, DCT_CONST_BITS + DCT_PASS1_BITS);
+	}
+}
+
+// Number of bits needed for the magnitude of value
+static inline int bitLength(int value) {
+	int length = 0;
+	if (value < 0) {
+		value = -value;
+	}
+	while (value) {
+		length++;
+		value >>= 1;
+	}
+	return length;
+}
+
+// Transforms, quantises and huffman codes one 8x8 block of samples centred around 0
+static void encodeBlock(JpegEncoder* encoder, int* block, int component) {
+	const int table = (component == 0) ? 0 : 1;
+	const int* divisors = (*encoder).divisors[table];
+	const unsigned short* dcCodes = (*encoder).huffmanCodes[table * 2];
+	const unsigned char* dcSizes = (*encoder).huffmanSizes[table * 2];
+	const unsigned short* acCodes = (*encoder).huffmanCodes[table * 2 + 1];
+	const unsigned char* acSizes = (*encoder).huffmanSizes[table * 2 + 1];
+	int coefficients[64];
+	int i, value, divisor, size, run;
+
+	forwardDct(block);
+
+	for (i = 0; i < 64; i++) {
+		value = block[zigzag[i]];
+		divisor = divisors[zigzag[i]];
+		// Rounds to the nearest like the IJG library
+		if (value < 0) {
+			value = -((divisor / 2 - value) / divisor);
+		} else {
+			value = (value + divisor / 2) / divisor;
+		}
+		coefficients[i] = value;
+	}
+
+	value = coefficients[0] - (*encoder).dcPrediction[component];
+	(*encoder).dcPrediction[component] = coefficients[0];
+	size = bitLength(value);
+	writeBits(encoder, dcCodes[size], dcSizes[size]);
+	if (size) {
+		writeBits(encoder, ((value < 0) ? value - 1 : value) & ((1 << size) - 1), size);
+	}
+
+	run = 0;
+	for (i = 1; i < 64; i++) {
+		value = coefficients[i];
+		if (value == 0) {
+			run++;
+			continue;
+		}
+		while (run > 15) {
+			writeBits(encoder, acCodes[0xf0], acSizes[0xf0]);
+			run -= 16;
+		}
+		size = bitLength(value);
+		writeBits(encoder, acCodes[(run << 4) | size], acSizes[(run << 4) | size]);
+		writeBits(encoder, ((value < 0) ? value - 1 : value) & ((1 << size) - 1), size);
+		run = 0;
+	}
+	if (run > 0) {
+		writeBits(encoder, acCodes[0], acSizes[0]); // end of block
+	}
+}
+
+// Encodes a row of macroblocks from the first rows of the planes,
+// the right and bottom edges are padded by repeating the last column and row
+static void encodeMacroblockRow(JpegEncoder* encoder, const unsigned char* red, const unsigned char* green, const unsigned char* blue, int rows) {
+	const int width = (*encoder).width;
+	int y[4][64];
+	int cb[64], cr[64];
+	int mbx, bx, by, i, j, x, offset, r, g, b;
+
+	for (mbx = 0; mbx < width; mbx += JPEG_MCU_SIZE) {
+		memset(cb, 0, sizeof(cb));
+		memset(cr, 0, sizeof(cr));
+
+		for (j = 0; j < JPEG_MCU_SIZE; j++) {
+			offset = ((j < rows) ? j : rows - 1) * width;
+			for (i = 0; i < JPEG_MCU_SIZE; i++) {
+				x = mbx + i;
+				if (x >= width) {
+					x = width - 1;
+				}
+				r = red[offset + x];
+				g = green[offset + x];
+				b = blue[offset + x];
+
+				// JFIF YCbCr in 16.16 fixed point, the chroma is summed over each 2x2 square before it's rounded
+				y[(j >> 3) * 2 + (i >> 3)][(j & 7) * 8 + (i & 7)] = ((19595 * r + 38470 * g + 7471 * b + 32768) >> 16) - 128;
+				cb[(j >> 1) * 8 + (i >> 1)] += -11059 * r - 21709 * g + 32768 * b;
+				cr[(j >> 1) * 8 + (i >> 1)] += 32768 * r - 27439 * g - 5329 * b;
+			}
+		}
+
+		for (by = 0; by < 4; by++) {
+			encodeBlock(encoder, y[by], 0);
+		}
+		for (bx = 0; bx < 64; bx++) {
+			cb[bx] = (cb[bx] + (1 << 17)) >> 18;
+			cr[bx] = (cr[bx] + (1 << 17)) >> 18;
+		}
+		encodeBlock(encoder, cb, 1);
+		encodeBlock(encoder, cr, 2);
+	}
+}
+
+int initJpegEncoder(JpegEncoder* encoder, int width, int height, int quality, int orientation, JpegWriteFunction write, void* writeArgs) {
+	int resultCode, c, table;
+
+	memset(encoder, 0, sizeof(JpegEncoder));
+	(*encoder).width = width;
+	(*encoder).height = height;
+	(*encoder).write = write;
+	(*encoder).writeArgs = writeArgs;
+	(*encoder).resultCode = MEMORY_OK;
+
+	for (c = 0; c < 3; c++) {
+		resultCode = newUnsignedCharArray(width * JPEG_MCU_SIZE, &(*encoder).rows[c]);
+		if (resultCode != MEMORY_OK) {
+			freeJpegEncoder(encoder);
+			return resultCode;
+		}
+	}
+
+	if (quality < 1) {
+		quality = 1;
+	} else if (quality > 100) {
+		quality = 100;
+	}
+	initQuantisationTable(encoder, 0, lumaQuantisation, quality);
+	initQuantisationTable(encoder, 1, chromaQuantisation, quality);
+	for (table = 0; table < 4; table++) {
+		initHuffmanTable(encoder, table);
+	}
+
+	writeHeaders(encoder, orientation);
+
+	return (*encoder).resultCode;
+}
+
+int jpegEncoderAddRows(JpegEncoder* encoder, const unsigned char* red, const unsigned char* green, const unsigned char* blue, int count) {
+	const int width = (*encoder).width;
+	int rows;
+
+	if ((*encoder).rowsAdded + count > (*encoder).height) {
+		count = (*encoder).height - (*encoder).rowsAdded;
+	}
+	(*encoder).rowsAdded += count;
+
+	while (count > 0 && (*encoder).resultCode == MEMORY_OK) {
+		// Whole macroblocks can be encoded straight from the caller's rows
+		if ((*encoder).bufferedRows == 0 && count >= JPEG_MCU_SIZE) {
+			encodeMacroblockRow(encoder, red, green, blue, JPEG_MCU_SIZE);
+			rows = JPEG_MCU_SIZE;
+		} else {
+			rows = JPEG_MCU_SIZE - (*encoder).bufferedRows;
+			if (rows > count) {
+				rows = count;
+			}
+			memcpy((*encoder).rows[0] + (*encoder).bufferedRows * width, red, rows * width);
+			memcpy((*encoder).rows[1] + (*encoder).bufferedRows * width, green, rows * width);
+			memcpy((*encoder).rows[2] + (*encoder).bufferedRows * width, blue, rows * width);
+			(*encoder).bufferedRows += rows;
+			if ((*encoder).bufferedRows == JPEG_MCU_SIZE) {
+				encodeMacroblockRow(encoder, (*encoder).rows[0], (*encoder).rows[1], (*encoder).rows[2], JPEG_MCU_SIZE);
+				(*encoder).bufferedRows = 0;
+			}
+		}
+
+		red += rows * width;
+		green += rows * width;
+		blue += rows * width;
+		count -= rows;
+	}
+
+	return (*encoder).resultCode;
+}
+
+int finishJpegEncoder(JpegEncoder* encoder) {
+	if ((*encoder).rowsAdded < (*encoder).height) {
+		LOGE("only %d of %d rows were added", (*encoder).rowsAdded, (*encoder).height);
+	}
+
+	if ((*encoder).bufferedRows > 0) {
+		encodeMacroblockRow(encoder, (*encoder).rows[0], (*encoder).rows[1], (*encoder).rows[2], (*encoder).bufferedRows);
+		(*encoder).bufferedRows = 0;
+	}
+
+	// Pad the last byte with ones
+	if ((*encoder).bitCount > 0) {
+		writeBits(encoder, (1 << (8 - (*encoder).bitCount)) - 1, 8 - (*encoder).bitCount);
+	}
+	writeShort(encoder, 0xffd9);
+	flushOutput(encoder);
+
+	return (*encoder).resultCode;
+}
+
+void freeJpegEncoder(JpegEncoder* encoder) {
+	int c;
+	for (c = 0; c < 3; c++) {
+		freeUnsignedCharArray(&(*encoder).rows[c]);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef JPEG_ENCODER
+#define JPEG_ENCODER
+
+static const int JPEG_WRITE_ERROR = 8;
+
+// Rows are encoded 16 at a time, the height of a macroblock
+#define JPEG_MCU_SIZE 16
+
+#define JPEG_OUTPUT_BUFFER_SIZE 16384
+
+// Receives the encoded bytes as they are produced, returns 0 if they were written
+typedef int (*JpegWriteFunction)(void* args, const unsigned char* data, unsigned int size);
+
+// A baseline jpeg encoder with 2x2 chroma subsampling and the standard huffman tables.
+// Rows are added from top to bottom and only one row of macroblocks is buffered,
+// so the memory used depends on the width of the image and not its height.
+typedef struct {
+	int width;
+	int height;
+	int rowsAdded;
+
+	unsigned char quantisation[2][64]; // zigzag order as written to the file
+	int divisors[2][64]; // natural order, scaled to match the forward DCT
+
+	unsigned short huffmanCodes[4][256]; // dc luma, ac luma, dc chroma, ac chroma
+	unsigned char huffmanSizes[4][256];
+	int dcPrediction[3];
+
+	// Rows waiting for the rest of their row of macroblocks
+	unsigned char* rows[3];
+	int bufferedRows;
+
+	unsigned int bitBuffer;
+	int bitCount;
+	unsigned char output[JPEG_OUTPUT_BUFFER_SIZE];
+	unsigned int outputSize;
+	JpegWriteFunction write;
+	void* writeArgs;
+	int resultCode;
+} JpegEncoder;
+
+// quality is 1 to 100 like android.graphics.Bitmap.compress(), orientation is one of the
+// orientations in transform.h and is written as the exif orientation instead of moving any pixels
+int initJpegEncoder(JpegEncoder* encoder, int width, int height, int quality, int orientation, JpegWriteFunction write, void* writeArgs);
+
+// Adds count rows from planes that are the width of the image
+int jpegEncoderAddRows(JpegEncoder* encoder, const unsigned char* red, const unsigned char* green, const unsigned char* blue, int count);
+
+// Encodes whatever rows are left and writes the end of the file
+int finishJpegEncoder(JpegEncoder* encoder);
+
+void freeJpegEncoder(JpegEncoder* encoder);
+
+#endif
@@ -3,39 +3,89 @@
 
 #include <math.h>
 #include "bitmap.h"
+#include "parallel.h"
+#include "simd.h"
+#include "matrix.h"
 
 #define RLUM    (0.3086f)
 #define GLUM    (0.6094f)
 #define BLUM    (0.0820f)
 
-void applyMatrix(Bitmap* bitmap, float matrix[4][4])
+void initColourMatrix(ColourMatrix* colourMatrix, float matrix[4][4])
 {
-	unsigned char* red = (*bitmap).red;
-	unsigned char* green = (*bitmap).green;
-	unsigned char* blue = (*bitmap).blue;
+	int x, y;
+	for (y = 0; y < 4; y++) {
+		for (x = 0; x < 4; x++) {
+			(*colourMatrix).matrix[y][x] = matrix[y][x];
+		}
+	}
+
+#ifdef MATRIX_FIXED_POINT
+	// Every product is rounded to 16.16 so the sum of the three can be out by about 1/40000 at most
+	int input, output, value;
+	for (output = 0; output < 3; output++) {
+		for (input = 0; input < 3; input++) {
+			for (value = 0; value < 256; value++) {
+				(*colourMatrix).products[input][output][value] = (int)floor(value * (double)matrix[input][output] * 65536.0 + 0.5);
+			}
+		}
+		(*colourMatrix).offsets[output] = (int)floor(matrix[3][output] * 65536.0 + 0.5);
+	}
+#endif
+}
 
-	unsigned int length = (*bitmap).width * (*bitmap).height;
+#ifdef MATRIX_FIXED_POINT
+static inline unsigned char clampFixedPoint(int value)
+{
+	if (value < 0) {
+		return 0;
+	}
+	value >>= 16;
+	return (value > 255) ? 255 : value;
+}
+#endif
 
-    float r1, g1, b1, r2, g2, b2;
+void multiplyPixelsByColourMatrix(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, ColourMatrix* colourMatrix)
+{
+#ifdef MATRIX_FIXED_POINT
+	int (*redProducts)[256] = (*colourMatrix).products[0];
+	int (*greenProducts)[256] = (*colourMatrix).products[1];
+	int (*blueProducts)[256] = (*colourMatrix).products[2];
+	int* offsets = (*colourMatrix).offsets;
+	unsigned char r, g, b;
+
+	register unsigned int i;
+	for (i = 0; i < count; i++) {
+		r = red[i];
+		g = green[i];
+		b = blue[i];
+		red[i] = clampFixedPoint(redProducts[0][r] + greenProducts[0][g] + blueProducts[0][b] + offsets[0]);
+		green[i] = clampFixedPoint(redProducts[1][r] + greenProducts[1][g] + blueProducts[1][b] + offsets[1]);
+		blue[i] = clampFixedPoint(redProducts[2][r] + greenProducts[2][g] + blueProducts[2][b] + offsets[2]);
+	}
+#else
+	multiplyPixelsByMatrix(red, green, blue, count, (*colourMatrix).matrix);
+#endif
+}
 
-    unsigned int i;
-    for(i = 0; i < length; i++) {
-		r1 = red[i];
-		g1 = green[i];
-		b1 = blue[i];
-		r2 = r1*matrix[0][0] + g1*matrix[1][0] + b1*matrix[2][0] + matrix[3][0];
-		g2 = r1*matrix[0][1] + g1*matrix[1][1] + b1*matrix[2][1] + matrix[3][1];
-		b2 = r1*matrix[0][2] + g1*matrix[1][2] + b1*matrix[2][2] + matrix[3][2];
-		if(r2<0) r2 = 0;
-		if(r2>255) r2 = 255;
-		if(g2<0) g2 = 0;
-		if(g2>255) g2 = 255;
-		if(b2<0) b2 = 0;
-		if(b2>255) b2 = 255;
-		red[i] = r2;
-		green[i] = g2;
-		blue[i] = b2;
-    }
+typedef struct {
+	Bitmap* bitmap;
+	ColourMatrix colourMatrix;
+} MatrixArgs;
+
+static void matrixStrip(void* args, unsigned int start, unsigned int end)
+{
+	Bitmap* bitmap = (*(MatrixArgs*) args).bitmap;
+
+	multiplyPixelsByColourMatrix((*bitmap).red + start, (*bitmap).green + start, (*bitmap).blue + start, end - start, &(*(MatrixArgs*) args).colourMatrix);
+}
+
+void applyMatrix(Bitmap* bitmap, float matrix[4][4])
+{
+	MatrixArgs args;
+	args.bitmap = bitmap;
+	initColourMatrix(&args.colourMatrix, matrix);
+	runParallel((*bitmap).width * (*bitmap).height, PIXELS_PER_STRIP, matrixStrip, &args);
 }
 
 void applyMatrixToPixel(unsigned char* red, unsigned char* green, unsigned char* blue, float matrix[4][4])
@@ -59,7 +109,7 @@ void applyMatrixToPixel(unsigned char* red, unsigned char* green, unsigned char*
 	(*blue) = b2;
 }
 
-identMatrix(float *matrix) {
+void identMatrix(float *matrix) {
     *matrix++ = 1.0f;    /* row 1        */
     *matrix++ = 0.0f;
     *matrix++ = 0.0f;
@@ -120,7 +170,7 @@ void saturateMatrix(float matrix[4][4], float* saturation)
     multiplyMatricies(mmatrix, matrix, matrix);
 }
 
-multiplyMatricies(float a[4][4], float b[4][4], float c[4][4]) {
+void multiplyMatricies(float a[4][4], float b[4][4], float c[4][4]) {
     int x, y;
     float temp[4][4];
 
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef MATRIX
+#define MATRIX
+
+// A colour matrix ready to be applied to runs of pixels.
+// Building with MATRIX_FIXED_POINT swaps the float maths for tables of 16.16 fixed point products
+// which is much quicker on cpus without a fast fpu, the results are within 1 of the float ones.
+typedef struct {
+	float matrix[4][4];
+#ifdef MATRIX_FIXED_POINT
+	int products[3][3][256]; // [input channel][output channel][input value]
+	int offsets[3];
+#endif
+} ColourMatrix;
+
+void initColourMatrix(ColourMatrix* colourMatrix, float matrix[4][4]);
+void multiplyPixelsByColourMatrix(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, ColourMatrix* colourMatrix);
+
+// Building up matrices, identMatrix() takes the 16 floats of a float[4][4] and multiplyMatricies() sets c to b times a
+void identMatrix(float *matrix);
+void saturateMatrix(float matrix[4][4], float* saturation);
+void multiplyMatricies(float a[4][4], float b[4][4], float c[4][4]);
+
+// Needs bitmap.h included first
+void applyMatrix(Bitmap* bitmap, float matrix[4][4]);
+void applyMatrixToPixel(unsigned char* red, unsigned char* green, unsigned char* blue, float matrix[4][4]);
+
+#endif
@@ -15,12 +15,58 @@
  */
 
 #include <stdlib.h>
+#include <string.h>
 #include <mem_utils.h>
 
+// Keeps the memory after the size as aligned as malloc() left it
+#define BLOCK_HEADER_SIZE 16
+
+static volatile unsigned int memoryInUse = 0;
+static volatile unsigned int peakMemoryInUse = 0;
+
+void* newMemory(unsigned int numBytes) {
+	unsigned char* block = (unsigned char*) malloc(numBytes + BLOCK_HEADER_SIZE);
+	if (block == NULL) {
+		return NULL;
+	}
+	*((unsigned int*) block) = numBytes;
+
+	unsigned int inUse = __sync_add_and_fetch(&memoryInUse, numBytes);
+	unsigned int peak;
+	while ((peak = peakMemoryInUse) < inUse && !__sync_bool_compare_and_swap(&peakMemoryInUse, peak, inUse)) {
+		// Another thread raised the peak in between, try again against the new one
+	}
+	return block + BLOCK_HEADER_SIZE;
+}
+
+void freeMemory(void* memory) {
+	if (memory != NULL) {
+		unsigned char* block = (unsigned char*) memory - BLOCK_HEADER_SIZE;
+		__sync_fetch_and_sub(&memoryInUse, *((unsigned int*) block));
+		free(block);
+	}
+}
+
+unsigned int getMemoryInUse(void) {
+	return memoryInUse;
+}
+
+unsigned int getPeakMemoryInUse(void) {
+	return peakMemoryInUse;
+}
+
+// Swapped in only if the peak hasn't moved since memoryInUse was read, so an allocation that raised it in between isn't lost
+void resetPeakMemoryInUse(void) {
+	unsigned int peak;
+	do {
+		peak = peakMemoryInUse;
+	} while (!__sync_bool_compare_and_swap(&peakMemoryInUse, peak, memoryInUse));
+}
+
 int newIntArray(unsigned int size, int** arrayPointer) {
 	unsigned int numBytes = size * sizeof(int);
-	*arrayPointer = (int*) malloc(numBytes);
-	if (arrayPointer == NULL) {
+	*arrayPointer = (int*) newMemory(numBytes);
+	if (*arrayPointer == NULL) {
 		return INT_ARRAY_ERROR;
 	}
 
@@ -30,8 +76,8 @@ int newIntArray(unsigned int size, int** arrayPointer) {
 
 int newUnsignedIntArray(unsigned int size, unsigned int** arrayPointer) {
 	unsigned int numBytes = size * sizeof(unsigned int);
-	*arrayPointer = (int*) malloc(numBytes);
-	if (arrayPointer == NULL) {
+	*arrayPointer = (unsigned int*) newMemory(numBytes);
+	if (*arrayPointer == NULL) {
 		return INT_ARRAY_ERROR;
 	}
 
@@ -41,8 +87,8 @@ int newUnsignedIntArray(unsigned int size, unsigned int** arrayPointer) {
 
 int newDoubleArray(unsigned int size, double** arrayPointer) {
 	unsigned int numBytes = size * sizeof(double);
-	*arrayPointer = (double*) malloc(numBytes);
-	if (arrayPointer == NULL) {
+	*arrayPointer = (double*) newMemory(numBytes);
+	if (*arrayPointer == NULL) {
 		return DOUBLE_ARRAY_ERROR;
 	}
 
@@ -52,8 +98,8 @@ int newDoubleArray(unsigned int size, double** arrayPointer) {
 
 int newUnsignedCharArray(unsigned int size, unsigned char** arrayPointer) {
 	unsigned int numBytes = size * sizeof(unsigned char);
-	*arrayPointer = (unsigned char*) malloc(numBytes);
-	if (arrayPointer == NULL) {
+	*arrayPointer = (unsigned char*) newMemory(numBytes);
+	if (*arrayPointer == NULL) {
 		return UCHAR_ARRAY_ERROR;
 	}
 
@@ -63,8 +109,8 @@ int newUnsignedCharArray(unsigned int size, unsigned char** arrayPointer) {
 
 int newFloatArray(unsigned int size, float** arrayPointer) {
 	unsigned int numBytes = size * sizeof(float);
-	*arrayPointer = (float*) malloc(numBytes);
-	if (arrayPointer == NULL) {
+	*arrayPointer = (float*) newMemory(numBytes);
+	if (*arrayPointer == NULL) {
 		return FLOAT_ARRAY_ERROR;
 	}
 
@@ -74,35 +120,35 @@ int newFloatArray(unsigned int size, float** arrayPointer) {
 
 void freeIntArray(int** arrayPointer) {
 	if (*arrayPointer != NULL) {
-		free(*arrayPointer);
+		freeMemory(*arrayPointer);
 		*arrayPointer = NULL;
 	}
 }
 
 void freeUnsignedIntArray(unsigned int** arrayPointer) {
 	if (*arrayPointer != NULL) {
-		free(*arrayPointer);
+		freeMemory(*arrayPointer);
 		*arrayPointer = NULL;
 	}
 }
 
 void freeDoubleArray(double** arrayPointer) {
 	if (*arrayPointer != NULL) {
-		free(*arrayPointer);
+		freeMemory(*arrayPointer);
 		*arrayPointer = NULL;
 	}
 }
 
 void freeUnsignedCharArray(unsigned char** arrayPointer) {
 	if (*arrayPointer != NULL) {
-		free(*arrayPointer);
+		freeMemory(*arrayPointer);
 		*arrayPointer = NULL;
 	}
 }
 
 void freeFloatArray(float** arrayPointer) {
 	if (*arrayPointer != NULL) {
-		free(*arrayPointer);
+		freeMemory(*arrayPointer);
 		*arrayPointer = NULL;
 	}
 }
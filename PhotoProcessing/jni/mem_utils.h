@@ -25,6 +25,15 @@ static const int UCHAR_ARRAY_ERROR = 3;
 static const int FLOAT_ARRAY_ERROR = 4;
 static const int JNI_GET_INT_ARRAY_ERROR = 5;
 
+// Every block from here starts with its size so the bytes in use can be counted when it's freed.
+// Memory from these functions must only be freed by them.
+void* newMemory(unsigned int numBytes);
+void freeMemory(void* memory);
+unsigned int getMemoryInUse(void);
+// The most that's been in use at once since the last resetPeakMemoryInUse()
+unsigned int getPeakMemoryInUse(void);
+void resetPeakMemoryInUse(void);
+
 int newIntArray(unsigned int size, int** arrayPointer);
 int newUnsignedIntArray(unsigned int size, unsigned int** arrayPointer);
 int newDoubleArray(unsigned int size, double** arrayPointer);
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <metrics.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <time.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "metrics.c"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+static volatile int metricsEnabled = 0;
+
+// Each thread has its own totals as different images can be loaded on different threads
+static pthread_key_t stageTimesKey;
+static pthread_once_t stageTimesKeyOnce = PTHREAD_ONCE_INIT;
+
+static void createStageTimesKey(void) {
+	pthread_key_create(&stageTimesKey, free);
+}
+
+// Returns NULL if the totals couldn't be allocated, the times are dropped then
+static long long* getStageTimes(void) {
+	pthread_once(&stageTimesKeyOnce, createStageTimesKey);
+	long long* stageTimes = (long long*) pthread_getspecific(stageTimesKey);
+	if (stageTimes == NULL) {
+		stageTimes = (long long*) calloc(METRICS_STAGE_COUNT, sizeof(long long));
+		if (stageTimes == NULL) {
+			LOGE("Failed to allocate the stage times");
+			return NULL;
+		}
+		pthread_setspecific(stageTimesKey, stageTimes);
+	}
+	return stageTimes;
+}
+
+static long long getNanoTime(void) {
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (long long) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+void setMetricsEnabled(int enabled) {
+	metricsEnabled = enabled;
+}
+
+long long beginStage(void) {
+	return metricsEnabled ? getNanoTime() : 0;
+}
+
+void endStage(int stage, long long start) {
+	if (start == 0) {
+		return;
+	}
+	long long* stageTimes = getStageTimes();
+	if (stageTimes != NULL) {
+		stageTimes[stage] += getNanoTime() - start;
+	}
+}
+
+void takeStageTimes(long long* nanos) {
+	long long* stageTimes = getStageTimes();
+	int i;
+	for (i = 0; i < METRICS_STAGE_COUNT; i++) {
+		nanos[i] = (stageTimes != NULL) ? stageTimes[i] : 0;
+		if (stageTimes != NULL) {
+			stageTimes[i] = 0;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef METRICS
+#define METRICS
+
+// The stages timed inside the native code, Java reads them back with takeStageTimes() after the call they were in
+#define METRICS_STAGE_DECODE 0
+#define METRICS_STAGE_RESIZE 1
+#define METRICS_STAGE_COUNT 2
+
+void setMetricsEnabled(int enabled);
+
+// Returns the time from a monotonic clock in nanoseconds, or 0 without reading the clock when metrics are disabled
+long long beginStage(void);
+
+// Adds the time since beginStage() to the stage's total for the calling thread, does nothing if start is 0
+void endStage(int stage, long long start);
+
+// Copies the calling thread's totals to nanos, which has METRICS_STAGE_COUNT entries, and sets them back to 0
+void takeStageTimes(long long* nanos);
+
+#endif
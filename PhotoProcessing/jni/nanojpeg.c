@@ -113,6 +113,7 @@ typedef enum _nj_result {
     NJ_OUT_OF_MEM,    // out of memory
     NJ_INTERNAL_ERR,  // internal error
     NJ_SYNTAX_ERROR,  // syntax error
+    NJ_ABORTED,       // stopped by the row function of njDecodeRows()
     __NJ_FINISHED,    // used internally, will never be reported
 } nj_result_t;
 
@@ -129,6 +130,29 @@ void njInit(void);
 // Return value: The error code in case of failure, or NJ_OK (zero) on success.
 nj_result_t njDecode(const void* jpeg, const int size, int decodeRed, int decodeGreen, int decodeBlue);
 
+// njDecodeScaled: Decode a JPEG image at a reduced size.
+// Works like njDecode() with all the channel flags set to 0, but the IDCT
+// directly produces 1/2, 1/4 or 1/8 sized output. The smallest of those
+// sizes that still has at least minPixels pixels is used, or the full size
+// if none of them is large enough. njGetWidth() and njGetHeight() return the
+// scaled size.
+nj_result_t njDecodeScaled(const void* jpeg, const int size, int minPixels);
+
+// nj_row_function_t: Receives the rows of an image decoded by njDecodeRows(),
+// y is the number of the row and each channel holds njGetWidth() pixels.
+// Returning anything but 0 stops the decode.
+typedef int (*nj_row_function_t)(void* args, int y, const unsigned char* red, const unsigned char* green, const unsigned char* blue);
+
+// njDecodeRows: Decode a JPEG image a row at a time.
+// Only the last few rows of macroblocks are kept in memory, so the memory
+// used depends on the width of the image but not its height. The rows are
+// passed to function from top to bottom and are exactly the same as the
+// rows njDecode() produces. njGetWidth() and njGetHeight() can be used from
+// the first call to function. Components subsampled more than 2x
+// vertically are not supported. NJ_ABORTED is returned if function
+// stopped the decode.
+nj_result_t njDecodeRows(const void* jpeg, const int size, nj_row_function_t function, void* args);
+
 // njGetWidth: Return the width (in pixels) of the most recently decoded
 // image. If njDecode() failed, the result of njGetWidth() is undefined.
 int njGetWidth(void);
@@ -156,6 +180,14 @@ unsigned char* njGetRedImage(void);
 unsigned char* njGetGreenImage(void);
 unsigned char* njGetBlueImage(void);
 
+// njConvertChannel: Converts the YCbCr data of the most recently decoded
+// image into a single colour channel (0 = red, 1 = green, 2 = blue).
+// Decode with all the channel flags of njDecode() set to 0 to keep the
+// YCbCr data around, the channels can then be converted one at a time.
+// The returned buffer belongs to the caller, NULL is returned when out of
+// memory.
+unsigned char* njConvertChannel(int channel);
+
 // njGetImageSize: Returns the size (in bytes) of the image data returned
 // by njGetImage(). If njDecode() failed, the result of njGetImageSize() is
 // undefined.
@@ -265,8 +297,11 @@ int main(int argc, char* argv[]) {
 #if NJ_USE_LIBC
     #include <stdlib.h>
     #include <string.h>
-    #define njAllocMem malloc
-    #define njFreeMem  free
+    #include <mem_utils.h>
+    // Through mem_utils so the decoder's memory is counted, and so the channels from
+    // njConvertChannel() can be freed with freeUnsignedCharArray()
+    #define njAllocMem newMemory
+    #define njFreeMem  freeMemory
     #define njFillMem  memset
     #define njCopyMem  memcpy
 #elif NJ_USE_WIN32
@@ -305,6 +340,9 @@ typedef struct _nj_cmp {
     int actabsel, dctabsel;
     int dcpred;
     unsigned char *pixels;
+    // njDecodeRows(): horizontal upsampling done before and after the vertical upsampling
+    int hbefore, hafter, vupsample;
+    unsigned char *upsampled;
 } nj_component_t;
 
 typedef struct _nj_ctx {
@@ -326,6 +364,12 @@ typedef struct _nj_ctx {
     unsigned char *rchannel;
     unsigned char *gchannel;
     unsigned char *bchannel;
+    int minpixels;
+    int scale;
+    nj_row_function_t rowfunction;
+    void *rowargs;
+    unsigned char *rowbuf;
+    int rowwidth;
 } nj_context_t;
 
 static nj_context_t nj;
@@ -440,6 +484,45 @@ NJ_INLINE void njColIDCT(const int* blk, unsigned char *out, int stride) {
     *out = njClip(((x7 - x1) >> 14) + 128);
 }
 
+// Basis functions for the 4x4 and 2x2 scaled IDCTs:
+// round(2048 * sqrt(2) * C(u) * cos((2x + 1) * u * pi / 2n))
+static const int njBasis4[16] = {
+    2048,  2676,  2048,  1108,
+    2048,  1108, -2048, -2676,
+    2048, -1108, -2048,  2676,
+    2048, -2676,  2048, -1108 };
+
+static const int njBasis2[4] = {
+    2048,  2048,
+    2048, -2048 };
+
+// Scaled IDCT using only the top-left n x n coefficients of the block,
+// where n is 4, 2 or 1 for the 1/2, 1/4 and 1/8 scales
+NJ_INLINE void njScaledIDCT(const int* blk, unsigned char *out, int stride) {
+    const int n = 8 >> nj.scale;
+    const int* basis = (n == 4) ? njBasis4 : njBasis2;
+    int tmp[16];
+    int x, y, u, sum;
+    if (n == 1) {
+        *out = njClip(((blk[0] + 4) >> 3) + 128);
+        return;
+    }
+    for (y = 0;  y < n;  ++y)
+        for (x = 0;  x < n;  ++x) {
+            for (u = 0, sum = 256;  u < n;  ++u)
+                sum += basis[x * n + u] * blk[(y << 3) + u];
+            tmp[y * n + x] = sum >> 9;
+        }
+    for (y = 0;  y < n;  ++y) {
+        for (x = 0;  x < n;  ++x) {
+            for (u = 0, sum = 32768;  u < n;  ++u)
+                sum += basis[y * n + u] * tmp[u * n + x];
+            out[x] = njClip((sum >> 16) + 128);
+        }
+        out += stride;
+    }
+}
+
 #define njThrow(e) do { nj.error = e; return; } while (0)
 #define njCheckError() do { if (nj.error) return; } while (0)
 
@@ -517,6 +600,15 @@ NJ_INLINE void njSkipMarker(void) {
     njSkip(nj.length);
 }
 
+#define njScaled(x, scale) (((x) + (1 << (scale)) - 1) >> (scale))
+
+// njDecodeRows() keeps this many rows of macroblocks, a row is only converted
+// once the row below it has been decoded as upsampling looks at both neighbours
+#define NJ_STREAM_SLOTS 3
+
+static void njStreamInitComponent(nj_component_t* c);
+static void njStreamMacroblockRow(int mby);
+
 NJ_INLINE void njDecodeSOF(int decodeRed, int decodeGreen, int decodeBlue) {
     int i, ssxmax = 0, ssymax = 0;
     nj_component_t* c;
@@ -551,15 +643,38 @@ NJ_INLINE void njDecodeSOF(int decodeRed, int decodeGreen, int decodeBlue) {
     nj.mbsizey = ssymax << 3;
     nj.mbwidth = (nj.width + nj.mbsizex - 1) / nj.mbsizex;
     nj.mbheight = (nj.height + nj.mbsizey - 1) / nj.mbsizey;
+    // pick the smallest scale that still covers the requested number of pixels
+    nj.scale = 0;
+    if (nj.minpixels > 0)
+        while ((nj.scale < 3) && (njScaled(nj.width, nj.scale + 1) * njScaled(nj.height, nj.scale + 1) >= nj.minpixels))
+            ++nj.scale;
+    // subsampled components must stay large enough to be upsampled
+    for (;  nj.scale > 0;  --nj.scale) {
+        for (i = 0, c = nj.comp;  i < nj.ncomp;  ++i, ++c)
+            if (((njScaled((nj.width * c->ssx + ssxmax - 1) / ssxmax, nj.scale) < 3) && (c->ssx != ssxmax))
+             || ((njScaled((nj.height * c->ssy + ssymax - 1) / ssymax, nj.scale) < 3) && (c->ssy != ssymax)))
+                break;
+        if (i == nj.ncomp) break;
+    }
     for (i = 0, c = nj.comp;  i < nj.ncomp;  ++i, ++c) {
-        c->width = (nj.width * c->ssx + ssxmax - 1) / ssxmax;
+        c->width = njScaled((nj.width * c->ssx + ssxmax - 1) / ssxmax, nj.scale);
         c->stride = (c->width + 7) & 0x7FFFFFF8;
-        c->height = (nj.height * c->ssy + ssymax - 1) / ssymax;
-        c->stride = nj.mbwidth * nj.mbsizex * c->ssx / ssxmax;
+        c->height = njScaled((nj.height * c->ssy + ssymax - 1) / ssymax, nj.scale);
+        c->stride = (nj.mbwidth * nj.mbsizex * c->ssx / ssxmax) >> nj.scale;
         if (((c->width < 3) && (c->ssx != ssxmax)) || ((c->height < 3) && (c->ssy != ssymax))) njThrow(NJ_UNSUPPORTED);
-        if (!(c->pixels = njAllocMem(c->stride * (nj.mbheight * nj.mbsizey * c->ssy / ssymax)))) njThrow(NJ_OUT_OF_MEM);
+        if (nj.rowfunction) {
+            njStreamInitComponent(c);
+            njCheckError();
+            continue;
+        }
+        if (!(c->pixels = njAllocMem(c->stride * ((nj.mbheight * nj.mbsizey * c->ssy / ssymax) >> nj.scale)))) njThrow(NJ_OUT_OF_MEM);
     }
-    if (nj.ncomp == 3) {
+    nj.width = njScaled(nj.width, nj.scale);
+    nj.height = njScaled(nj.height, nj.scale);
+    if (nj.rowfunction) {
+        // a row of each component, the same again to upsample into and a row of each colour channel
+        if (!(nj.rowbuf = njAllocMem(nj.rowwidth * 9))) njThrow(NJ_OUT_OF_MEM);
+    } else if (nj.ncomp == 3) {
     	if (decodeRed == 1) {
     		nj.rchannel = njAllocMem(nj.width * nj.height);
         	if (!nj.rchannel) njThrow(NJ_OUT_OF_MEM);
@@ -670,6 +785,10 @@ NJ_INLINE void njDecodeBlock(nj_component_t* c, unsigned char* out) {
         if (coef > 63) njThrow(NJ_SYNTAX_ERROR);
         nj.block[(int) njZZ[coef]] = value * nj.qtab[c->qtsel][coef];
     } while (coef < 63);
+    if (nj.scale) {
+        njScaledIDCT(nj.block, out, c->stride);
+        return;
+    }
     for (coef = 0;  coef < 64;  coef += 8)
         njRowIDCT(&nj.block[coef]);
     for (coef = 0;  coef < 8;  ++coef)
@@ -679,6 +798,7 @@ NJ_INLINE void njDecodeBlock(nj_component_t* c, unsigned char* out) {
 NJ_INLINE void njDecodeScan(void) {
     int i, mbx, mby, sbx, sby;
     int rstcount = nj.rstinterval, nextrst = 0;
+    const int blockshift = 3 - nj.scale;
     nj_component_t* c;
     njDecodeLength();
     if (nj.length < (4 + 2 * nj.ncomp)) njThrow(NJ_SYNTAX_ERROR);
@@ -697,12 +817,16 @@ NJ_INLINE void njDecodeScan(void) {
         for (i = 0, c = nj.comp;  i < nj.ncomp;  ++i, ++c)
             for (sby = 0;  sby < c->ssy;  ++sby)
                 for (sbx = 0;  sbx < c->ssx;  ++sbx) {
-                    njDecodeBlock(c, &c->pixels[((mby * c->ssy + sby) * c->stride + mbx * c->ssx + sbx) << 3]);
+                    njDecodeBlock(c, &c->pixels[((((nj.rowfunction ? mby % NJ_STREAM_SLOTS : mby) * c->ssy) + sby) * c->stride + mbx * c->ssx + sbx) << blockshift]);
                     if (nj.error)
                     return;
                 }
         if (++mbx >= nj.mbwidth) {
             mbx = 0;
+            if (nj.rowfunction) {
+                njStreamMacroblockRow(mby);
+                njCheckError();
+            }
             if (++mby >= nj.mbheight) break;
         }
         if (nj.rstinterval && !(--rstcount)) {
@@ -734,27 +858,36 @@ NJ_INLINE void njDecodeScan(void) {
 #define CF2B (-11)
 #define CF(x) njClip(((x) + 64) >> 7)
 
+// The last 3 pixels are taken from the end of the stride rather than the
+// width, the same as the original nanojpeg
+NJ_INLINE void njUpsampleRowH(const unsigned char* lin, int width, int stride, unsigned char* lout) {
+    const int xmax = width - 3;
+    int x;
+    lout[0] = CF(CF2A * lin[0] + CF2B * lin[1]);
+    lout[1] = CF(CF3X * lin[0] + CF3Y * lin[1] + CF3Z * lin[2]);
+    lout[2] = CF(CF3A * lin[0] + CF3B * lin[1] + CF3C * lin[2]);
+    for (x = 0;  x < xmax;  ++x) {
+        lout[(x << 1) + 3] = CF(CF4A * lin[x] + CF4B * lin[x + 1] + CF4C * lin[x + 2] + CF4D * lin[x + 3]);
+        lout[(x << 1) + 4] = CF(CF4D * lin[x] + CF4C * lin[x + 1] + CF4B * lin[x + 2] + CF4A * lin[x + 3]);
+    }
+    lin += stride;
+    lout += width << 1;
+    lout[-3] = CF(CF3A * lin[-1] + CF3B * lin[-2] + CF3C * lin[-3]);
+    lout[-2] = CF(CF3X * lin[-1] + CF3Y * lin[-2] + CF3Z * lin[-3]);
+    lout[-1] = CF(CF2A * lin[-1] + CF2B * lin[-2]);
+}
+
 NJ_INLINE void njUpsampleH(nj_component_t* c) {
-    const int xmax = c->width - 3;
     unsigned char *out, *lin, *lout;
-    int x, y;
+    int y;
     out = njAllocMem((c->width * c->height) << 1);
     if (!out) njThrow(NJ_OUT_OF_MEM);
     lin = c->pixels;
     lout = out;
     for (y = c->height;  y;  --y) {
-        lout[0] = CF(CF2A * lin[0] + CF2B * lin[1]);
-        lout[1] = CF(CF3X * lin[0] + CF3Y * lin[1] + CF3Z * lin[2]);
-        lout[2] = CF(CF3A * lin[0] + CF3B * lin[1] + CF3C * lin[2]);
-        for (x = 0;  x < xmax;  ++x) {
-            lout[(x << 1) + 3] = CF(CF4A * lin[x] + CF4B * lin[x + 1] + CF4C * lin[x + 2] + CF4D * lin[x + 3]);
-            lout[(x << 1) + 4] = CF(CF4D * lin[x] + CF4C * lin[x + 1] + CF4B * lin[x + 2] + CF4A * lin[x + 3]);
-        }
+        njUpsampleRowH(lin, c->width, c->stride, lout);
         lin += c->stride;
         lout += c->width << 1;
-        lout[-3] = CF(CF3A * lin[-1] + CF3B * lin[-2] + CF3C * lin[-3]);
-        lout[-2] = CF(CF3X * lin[-1] + CF3Y * lin[-2] + CF3Z * lin[-3]);
-        lout[-1] = CF(CF2A * lin[-1] + CF2B * lin[-2]);
     }
     c->width <<= 1;
     c->stride = c->width;
@@ -762,28 +895,51 @@ NJ_INLINE void njUpsampleH(nj_component_t* c) {
     c->pixels = out;
 }
 
+// Finds the input rows and weights that make row y of a component of the
+// given height when it is upsampled vertically. Unused taps have 0 weight.
+static void njUpsampleTapsV(int y, int height, int rows[4], int taps[4]) {
+    int edge, dir, k;
+    if ((y < 3) || (y >= (height << 1) - 3)) {
+        // the first and last 3 rows only use the rows on one side
+        edge = (y < 3) ? 0 : height - 1;
+        dir = (y < 3) ? 1 : -1;
+        k = (y < 3) ? y : (height << 1) - 1 - y;
+        rows[0] = edge;  rows[1] = edge + dir;  rows[2] = edge + dir + dir;  rows[3] = edge;
+        switch (k) {
+            case 0:  taps[0] = CF2A;  taps[1] = CF2B;  taps[2] = 0;     break;
+            case 1:  taps[0] = CF3X;  taps[1] = CF3Y;  taps[2] = CF3Z;  break;
+            default: taps[0] = CF3A;  taps[1] = CF3B;  taps[2] = CF3C;  break;
+        }
+        taps[3] = 0;
+        return;
+    }
+    k = (y - 1) >> 1;
+    rows[0] = k - 1;  rows[1] = k;  rows[2] = k + 1;  rows[3] = k + 2;
+    if (y & 1) {
+        taps[0] = CF4A;  taps[1] = CF4B;  taps[2] = CF4C;  taps[3] = CF4D;
+    } else {
+        taps[0] = CF4D;  taps[1] = CF4C;  taps[2] = CF4B;  taps[3] = CF4A;
+    }
+}
+
+NJ_INLINE void njUpsampleRowV(const unsigned char* const* in, const int* taps, int width, unsigned char* out) {
+    int x;
+    for (x = 0;  x < width;  ++x)
+        out[x] = CF(taps[0] * in[0][x] + taps[1] * in[1][x] + taps[2] * in[2][x] + taps[3] * in[3][x]);
+}
+
 NJ_INLINE void njUpsampleV(nj_component_t* c) {
-    const int w = c->width, s1 = c->stride, s2 = s1 + s1;
-    unsigned char *out, *cin, *cout;
-    int x, y;
+    const unsigned char *in[4];
+    unsigned char *out;
+    int rows[4], taps[4];
+    int i, y;
     out = njAllocMem((c->width * c->height) << 1);
     if (!out) njThrow(NJ_OUT_OF_MEM);
-    for (x = 0;  x < w;  ++x) {
-        cin = &c->pixels[x];
-        cout = &out[x];
-        *cout = CF(CF2A * cin[0] + CF2B * cin[s1]);  cout += w;
-        *cout = CF(CF3X * cin[0] + CF3Y * cin[s1] + CF3Z * cin[s2]);  cout += w;
-        *cout = CF(CF3A * cin[0] + CF3B * cin[s1] + CF3C * cin[s2]);  cout += w;
-        cin += s1;
-        for (y = c->height - 3;  y;  --y) {
-            *cout = CF(CF4A * cin[-s1] + CF4B * cin[0] + CF4C * cin[s1] + CF4D * cin[s2]);  cout += w;
-            *cout = CF(CF4D * cin[-s1] + CF4C * cin[0] + CF4B * cin[s1] + CF4A * cin[s2]);  cout += w;
-            cin += s1;
-        }
-        cin += s1;
-        *cout = CF(CF3A * cin[0] + CF3B * cin[-s1] + CF3C * cin[-s2]);  cout += w;
-        *cout = CF(CF3X * cin[0] + CF3Y * cin[-s1] + CF3Z * cin[-s2]);  cout += w;
-        *cout = CF(CF2A * cin[0] + CF2B * cin[-s1]);
+    for (y = 0;  y < (c->height << 1);  ++y) {
+        njUpsampleTapsV(y, c->height, rows, taps);
+        for (i = 0;  i < 4;  ++i)
+            in[i] = &c->pixels[rows[i] * c->stride];
+        njUpsampleRowV(in, taps, c->width, &out[y * c->width]);
     }
     c->height <<= 1;
     c->stride = c->width;
@@ -815,6 +971,124 @@ NJ_INLINE void njUpsample(nj_component_t* c) {
 
 #endif
 
+NJ_FORCE_INLINE unsigned char* njStreamRow(const nj_component_t* c, unsigned char* slots, int stride, int y) {
+    const int rows = c->ssy << 3;
+    return &slots[((((y / rows) % NJ_STREAM_SLOTS) * rows) + (y % rows)) * stride];
+}
+
+// Works out the same upsampling steps as njConvert() and allocates the rows of macroblocks
+static void njStreamInitComponent(nj_component_t* c) {
+    int width = c->width, height = c->height;
+    while ((width < nj.width) || (height < nj.height)) {
+        if (width < nj.width) {
+            width <<= 1;
+            if (c->vupsample) ++c->hafter; else ++c->hbefore;
+        }
+        if (height < nj.height) {
+            height <<= 1;
+            ++c->vupsample;
+        }
+    }
+    if (c->vupsample > 1) njThrow(NJ_UNSUPPORTED);
+    #if NJ_CHROMA_FILTER
+        // with no vertical upsampling the order doesn't matter and it's all done as each row is output
+        if (c->vupsample && c->hbefore) {
+            if (!(c->upsampled = njAllocMem((c->width << 1) * (c->ssy << 3) * NJ_STREAM_SLOTS))) njThrow(NJ_OUT_OF_MEM);
+        } else {
+            c->hafter += c->hbefore;
+            c->hbefore = 0;
+        }
+    #endif
+    if (width > nj.rowwidth) nj.rowwidth = width;
+    if (!(c->pixels = njAllocMem(c->stride * (c->ssy << 3) * NJ_STREAM_SLOTS))) njThrow(NJ_OUT_OF_MEM);
+}
+
+// Returns row y of a component at the full image size, out and temp are
+// nj.rowwidth long and one of them may be used for the result
+static const unsigned char* njStreamComponentRow(nj_component_t* c, int y, unsigned char* out, unsigned char* temp) {
+    const unsigned char *row;
+    unsigned char *next;
+    int width = c->width, stride = c->stride, i;
+    #if NJ_CHROMA_FILTER
+        if (c->vupsample) {
+            const unsigned char *in[4];
+            int rows[4], taps[4];
+            unsigned char *slots = c->pixels;
+            if (c->hbefore) {
+                slots = c->upsampled;
+                width = c->width << 1;
+                stride = width;
+            }
+            njUpsampleTapsV(y, c->height, rows, taps);
+            for (i = 0;  i < 4;  ++i)
+                in[i] = njStreamRow(c, slots, stride, rows[i]);
+            njUpsampleRowV(in, taps, width, out);
+            row = out;
+            stride = width;
+        } else
+            row = njStreamRow(c, c->pixels, c->stride, y);
+        for (i = 0;  i < c->hafter;  ++i) {
+            next = (row == out) ? temp : out;
+            njUpsampleRowH(row, width, stride, next);
+            row = next;
+            width <<= 1;
+            stride = width;
+        }
+    #else
+        if (c->hafter + c->hbefore) {
+            const int xshift = c->hafter + c->hbefore;
+            row = njStreamRow(c, c->pixels, c->stride, y >> c->vupsample);
+            for (i = 0;  i < (width << xshift);  ++i)
+                out[i] = row[i >> xshift];
+            row = out;
+        } else
+            row = njStreamRow(c, c->pixels, c->stride, y >> c->vupsample);
+    #endif
+    return row;
+}
+
+// Called as each row of macroblocks is decoded, the image rows of the one
+// above are passed on now that everything they depend on is available
+static void njStreamMacroblockRow(int mby) {
+    int i, y, yend, x, mbrow;
+    nj_component_t* c;
+    unsigned char *red = nj.rowbuf + nj.rowwidth * 6;
+    unsigned char *green = red + nj.rowwidth;
+    unsigned char *blue = green + nj.rowwidth;
+    const unsigned char *py, *pcb, *pcr;
+    #if NJ_CHROMA_FILTER
+        for (i = 0, c = nj.comp;  i < nj.ncomp;  ++i, ++c) {
+            if (!c->hbefore) continue;
+            for (y = mby * (c->ssy << 3);  (y < (mby + 1) * (c->ssy << 3)) && (y < c->height);  ++y)
+                njUpsampleRowH(njStreamRow(c, c->pixels, c->stride, y), c->width, c->stride, njStreamRow(c, c->upsampled, c->width << 1, y));
+        }
+    #endif
+    for (mbrow = mby ? mby - 1 : 0;  mbrow <= mby;  ++mbrow) {
+        if ((mbrow == mby) && (mby < nj.mbheight - 1)) break;
+        yend = (mbrow + 1) * nj.mbsizey;
+        if (yend > nj.height) yend = nj.height;
+        for (y = mbrow * nj.mbsizey;  y < yend;  ++y) {
+            if (nj.ncomp == 1) {
+                py = njStreamComponentRow(nj.comp, y, nj.rowbuf, nj.rowbuf + nj.rowwidth * 3);
+                if (nj.rowfunction(nj.rowargs, y, py, py, py)) njThrow(NJ_ABORTED);
+                continue;
+            }
+            py = njStreamComponentRow(&nj.comp[0], y, nj.rowbuf, nj.rowbuf + nj.rowwidth * 3);
+            pcb = njStreamComponentRow(&nj.comp[1], y, nj.rowbuf + nj.rowwidth, nj.rowbuf + nj.rowwidth * 4);
+            pcr = njStreamComponentRow(&nj.comp[2], y, nj.rowbuf + nj.rowwidth * 2, nj.rowbuf + nj.rowwidth * 5);
+            for (x = 0;  x < nj.width;  ++x) {
+                register int luma = py[x] << 8;
+                register int cb = pcb[x] - 128;
+                register int cr = pcr[x] - 128;
+                red[x] = njClip((luma            + 359 * cr + 128) >> 8);
+                green[x] = njClip((luma -  88 * cb - 183 * cr + 128) >> 8);
+                blue[x] = njClip((luma + 454 * cb            + 128) >> 8);
+            }
+            if (nj.rowfunction(nj.rowargs, y, red, green, blue)) njThrow(NJ_ABORTED);
+        }
+    }
+}
+
 NJ_INLINE void njConvert(int decodeRed, int decodeGreen, int decodeBlue) {
     int i;
     nj_component_t* c;
@@ -832,7 +1106,7 @@ NJ_INLINE void njConvert(int decodeRed, int decodeGreen, int decodeBlue) {
         #endif
         if ((c->width < nj.width) || (c->height < nj.height)) njThrow(NJ_INTERNAL_ERR);
     }
-    if (nj.ncomp == 3) {
+    if ((nj.ncomp == 3) && (decodeRed || decodeGreen || decodeBlue)) {
         // convert to RGB
         int x, yy;
         unsigned char *prchannel = nj.rchannel;
@@ -863,7 +1137,7 @@ NJ_INLINE void njConvert(int decodeRed, int decodeGreen, int decodeBlue) {
             pcb += nj.comp[1].stride;
             pcr += nj.comp[2].stride;
         }
-    } else if (nj.comp[0].width != nj.comp[0].stride) {
+    } else if ((nj.ncomp == 1) && (nj.comp[0].width != nj.comp[0].stride)) {
         // grayscale -> only remove stride
         unsigned char *pin = &nj.comp[0].pixels[nj.comp[0].stride];
         unsigned char *pout = &nj.comp[0].pixels[nj.comp[0].width];
@@ -883,8 +1157,11 @@ void njInit(void) {
 
 void njDone(void) {
     int i;
-    for (i = 0;  i < 3;  ++i)
+    for (i = 0;  i < 3;  ++i) {
         if (nj.comp[i].pixels) njFreeMem((void*) nj.comp[i].pixels);
+        if (nj.comp[i].upsampled) njFreeMem((void*) nj.comp[i].upsampled);
+    }
+    if (nj.rowbuf) njFreeMem((void*) nj.rowbuf);
     if (nj.rchannel) njFreeMem((void*) nj.rchannel);
     if (nj.gchannel) njFreeMem((void*) nj.gchannel);
     if (nj.bchannel) njFreeMem((void*) nj.bchannel);
@@ -900,8 +1177,12 @@ void njDoneLeaveRGBData(void) {
 	}
 }
 
-nj_result_t njDecode(const void* jpeg, const int size, int decodeRed, int decodeGreen, int decodeBlue) {
+static nj_result_t njDecodeInternal(const void* jpeg, const int size, int decodeRed, int decodeGreen, int decodeBlue, int minPixels,
+        nj_row_function_t rowFunction, void* rowArgs) {
     njDone();
+    nj.minpixels = minPixels;
+    nj.rowfunction = rowFunction;
+    nj.rowargs = rowArgs;
     nj.pos = (const unsigned char*) jpeg;
     nj.size = size & 0x7FFFFFFF;
     if (nj.size < 2) return NJ_NO_JPEG;
@@ -926,10 +1207,23 @@ nj_result_t njDecode(const void* jpeg, const int size, int decodeRed, int decode
     }
     if (nj.error != __NJ_FINISHED) return nj.error;
     nj.error = NJ_OK;
+    if (nj.rowfunction) return NJ_OK;
     njConvert(decodeRed, decodeGreen, decodeBlue);
     return nj.error;
 }
 
+nj_result_t njDecode(const void* jpeg, const int size, int decodeRed, int decodeGreen, int decodeBlue) {
+    return njDecodeInternal(jpeg, size, decodeRed, decodeGreen, decodeBlue, 0, NULL, NULL);
+}
+
+nj_result_t njDecodeScaled(const void* jpeg, const int size, int minPixels) {
+    return njDecodeInternal(jpeg, size, 0, 0, 0, minPixels, NULL, NULL);
+}
+
+nj_result_t njDecodeRows(const void* jpeg, const int size, nj_row_function_t function, void* args) {
+    return njDecodeInternal(jpeg, size, 0, 0, 0, 0, function, args);
+}
+
 int njGetWidth(void)            { return nj.width; }
 int njGetHeight(void)           { return nj.height; }
 int njIsColor(void)             { return (nj.ncomp != 1); }
@@ -938,4 +1232,37 @@ unsigned char* njGetGreenImage(void) { return (nj.ncomp == 1) ? nj.comp[0].pixel
 unsigned char* njGetBlueImage(void) { return (nj.ncomp == 1) ? nj.comp[0].pixels : nj.bchannel; }
 int njGetImageSize(void)        { return nj.width * nj.height * nj.ncomp; }
 
+unsigned char* njConvertChannel(int channel) {
+    int x, yy;
+    unsigned char *out, *pout;
+    const unsigned char *py, *pcb, *pcr;
+    out = njAllocMem(nj.width * nj.height);
+    if (!out) return NULL;
+    if (nj.ncomp == 1) {
+        // grayscale -> every channel is the luminance
+        njCopyMem(out, nj.comp[0].pixels, nj.width * nj.height);
+        return out;
+    }
+    pout = out;
+    py  = nj.comp[0].pixels;
+    pcb = nj.comp[1].pixels;
+    pcr = nj.comp[2].pixels;
+    for (yy = nj.height;  yy;  --yy) {
+        if (channel == 0) {
+            for (x = 0;  x < nj.width;  ++x)
+                *pout++ = njClip(((py[x] << 8) + 359 * (pcr[x] - 128) + 128) >> 8);
+        } else if (channel == 1) {
+            for (x = 0;  x < nj.width;  ++x)
+                *pout++ = njClip(((py[x] << 8) - 88 * (pcb[x] - 128) - 183 * (pcr[x] - 128) + 128) >> 8);
+        } else {
+            for (x = 0;  x < nj.width;  ++x)
+                *pout++ = njClip(((py[x] << 8) + 454 * (pcb[x] - 128) + 128) >> 8);
+        }
+        py += nj.comp[0].stride;
+        pcb += nj.comp[1].stride;
+        pcr += nj.comp[2].stride;
+    }
+    return out;
+}
+
 #endif // _NJ_INCLUDE_HEADER_ONLY
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef NANOJPEG
+#define NANOJPEG
+
+// Just the declarations from nanojpeg.c, which is built on its own.
+// njConvertChannel() returns a pointer so it can't be left implicit on 64 bit targets.
+#define _NJ_INCLUDE_HEADER_ONLY
+#include <nanojpeg.c>
+#undef _NJ_INCLUDE_HEADER_ONLY
+
+#endif
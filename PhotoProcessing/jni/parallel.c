@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <parallel.h>
+#include <pthread.h>
+#include <unistd.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "parallel.c"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+// Each thread gets a few strips on average so uneven strips even out
+#define STRIPS_PER_THREAD 4
+
+typedef struct ParallelJob {
+	ParallelFunction function;
+	void* args;
+	unsigned int count;
+	unsigned int stripSize;
+	volatile unsigned int next;
+	volatile int* cancelFlag;
+
+	// Guarded by poolMutex. How many more workers may still join the job and how many are working on it.
+	int helpersWanted;
+	int helpersWorking;
+	struct ParallelJob* nextJob;
+} ParallelJob;
+
+// The workers are started the first time they're needed and then wait for jobs for as long as the process lives.
+// Jobs from different threads can be queued at once, each runParallel() caller removes its own job once it's done.
+static pthread_mutex_t poolMutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t jobQueued = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t helperFinished = PTHREAD_COND_INITIALIZER;
+static ParallelJob* jobs = NULL;
+static int workerCount = 0;
+
+// 0 means one thread per online core
+static int configuredThreadCount = 0;
+
+// Each thread has its own cancel flag as different images can be processed on different threads
+static pthread_key_t cancelFlagKey;
+static pthread_once_t cancelFlagKeyOnce = PTHREAD_ONCE_INIT;
+
+static void createCancelFlagKey(void) {
+	pthread_key_create(&cancelFlagKey, NULL);
+}
+
+void setCancelFlag(volatile int* cancelFlag) {
+	pthread_once(&cancelFlagKeyOnce, createCancelFlagKey);
+	pthread_setspecific(cancelFlagKey, (void*) cancelFlag);
+}
+
+static volatile int* getCancelFlag(void) {
+	pthread_once(&cancelFlagKeyOnce, createCancelFlagKey);
+	return (volatile int*) pthread_getspecific(cancelFlagKey);
+}
+
+int isCancelled(void) {
+	volatile int* cancelFlag = getCancelFlag();
+	return cancelFlag != NULL && *cancelFlag;
+}
+
+void setThreadCount(int threadCount) {
+	if (threadCount < 0) {
+		threadCount = 0;
+	} else if (threadCount > MAX_THREADS) {
+		threadCount = MAX_THREADS;
+	}
+	configuredThreadCount = threadCount;
+}
+
+int getThreadCount(void) {
+	int threadCount = configuredThreadCount;
+	if (threadCount == 0) {
+		threadCount = (int) sysconf(_SC_NPROCESSORS_ONLN);
+	}
+	if (threadCount < 1) {
+		threadCount = 1;
+	} else if (threadCount > MAX_THREADS) {
+		threadCount = MAX_THREADS;
+	}
+	return threadCount;
+}
+
+// Keeps taking the next free strip of the job until there are none left
+static void runStrips(ParallelJob* job) {
+	unsigned int start, end;
+	while ((start = __sync_fetch_and_add(&(*job).next, (*job).stripSize)) < (*job).count) {
+		if ((*job).cancelFlag != NULL && *(*job).cancelFlag) {
+			break;
+		}
+		end = start + (*job).stripSize;
+		if (end > (*job).count) {
+			end = (*job).count;
+		}
+		(*job).function((*job).args, start, end);
+	}
+}
+
+// The first queued job that still wants another worker, or NULL
+static ParallelJob* findJob(void) {
+	ParallelJob* job;
+	for (job = jobs; job != NULL; job = (*job).nextJob) {
+		if ((*job).helpersWanted > 0) {
+			return job;
+		}
+	}
+	return NULL;
+}
+
+static void* parallelWorker(void* unused) {
+	ParallelJob* job;
+	pthread_mutex_lock(&poolMutex);
+	for (;;) {
+		while ((job = findJob()) == NULL) {
+			pthread_cond_wait(&jobQueued, &poolMutex);
+		}
+		(*job).helpersWanted--;
+		(*job).helpersWorking++;
+		pthread_mutex_unlock(&poolMutex);
+
+		runStrips(job);
+
+		pthread_mutex_lock(&poolMutex);
+		(*job).helpersWorking--;
+		if ((*job).helpersWorking == 0) {
+			pthread_cond_broadcast(&helperFinished);
+		}
+	}
+	return NULL;
+}
+
+// Must be called with poolMutex held. Starts workers until there are at least count of them.
+// If one can't be started the jobs carry on with the workers there already are.
+static void startWorkers(int count) {
+	pthread_attr_t attributes;
+	pthread_t thread;
+	if (workerCount >= count) {
+		return;
+	}
+
+	pthread_attr_init(&attributes);
+	pthread_attr_setdetachstate(&attributes, PTHREAD_CREATE_DETACHED);
+	while (workerCount < count) {
+		if (pthread_create(&thread, &attributes, parallelWorker, NULL) != 0) {
+			LOGE("Failed to start worker thread, continuing with %d", workerCount);
+			break;
+		}
+		workerCount++;
+	}
+	pthread_attr_destroy(&attributes);
+}
+
+// Splits the items [0, count) into strips of at least minStripSize items and runs function on each of them.
+// The calling thread works on strips too and only returns once all of them are done, the rest are picked up by
+// the worker pool. If there are no workers everything is processed by the calling thread.
+// When the thread's cancel flag is set the strips not yet started are skipped, so a single thread
+// still works a strip at a time when there's a flag to check.
+void runParallel(unsigned int count, unsigned int minStripSize, ParallelFunction function, void* args) {
+	int threadCount = getThreadCount();
+	volatile int* cancelFlag = getCancelFlag();
+	if (minStripSize < 1) {
+		minStripSize = 1;
+	}
+
+	if (cancelFlag == NULL && (threadCount == 1 || count <= minStripSize)) {
+		function(args, 0, count);
+		return;
+	}
+
+	ParallelJob job;
+	job.function = function;
+	job.args = args;
+	job.count = count;
+	job.stripSize = (count + (threadCount * STRIPS_PER_THREAD) - 1) / (threadCount * STRIPS_PER_THREAD);
+	if (job.stripSize < minStripSize) {
+		job.stripSize = minStripSize;
+	}
+	job.next = 0;
+	job.cancelFlag = cancelFlag;
+
+	if (threadCount == 1 || count <= minStripSize) {
+		runStrips(&job);
+		return;
+	}
+
+	int strips = (count + job.stripSize - 1) / job.stripSize;
+	if (threadCount > strips) {
+		threadCount = strips;
+	}
+
+	pthread_mutex_lock(&poolMutex);
+	startWorkers(threadCount - 1);
+	job.helpersWanted = threadCount - 1;
+	job.helpersWorking = 0;
+	job.nextJob = jobs;
+	jobs = &job;
+	pthread_cond_broadcast(&jobQueued);
+	pthread_mutex_unlock(&poolMutex);
+
+	runStrips(&job);
+
+	// Every strip has been taken, so no worker that hasn't joined yet would find anything to do.
+	// Take the job out of the queue and wait for the ones still on their last strip.
+	pthread_mutex_lock(&poolMutex);
+	ParallelJob** link = &jobs;
+	while (*link != &job) {
+		link = &(**link).nextJob;
+	}
+	*link = job.nextJob;
+	while (job.helpersWorking > 0) {
+		pthread_cond_wait(&helperFinished, &poolMutex);
+	}
+	pthread_mutex_unlock(&poolMutex);
+}
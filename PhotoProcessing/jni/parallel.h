@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef PARALLEL
+#define PARALLEL
+
+#define MAX_THREADS 32
+
+// Number of pixels a point filter processes in one strip at the very least
+#define PIXELS_PER_STRIP 16384
+
+// Processes the items [start, end) of a job, args is passed through from runParallel()
+typedef void (*ParallelFunction)(void* args, unsigned int start, unsigned int end);
+
+void setThreadCount(int threadCount);
+int getThreadCount(void);
+void runParallel(unsigned int count, unsigned int minStripSize, ParallelFunction function, void* args);
+
+// Once *cancelFlag is set, runParallel() calls made from this thread skip the strips that haven't been started.
+// NULL stops the checks. The flag is the cancelled field of the bitmap being worked on.
+void setCancelFlag(volatile int* cancelFlag);
+int isCancelled(void);
+
+#endif
@@ -15,162 +15,571 @@
  */
 
 #include <jni.h>
+#include <stdio.h>
 #include <stdlib.h>
+#include <stdint.h>
+#include <string.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
 #include <bitmap.h>
 #include <mem_utils.h>
+#include <parallel.h>
+#include <filter.h>
+#include <export.h>
+#include <metrics.h>
 #include <android/log.h>
 
 #define  LOG_TAG    "PREVIEW_CACHE_IMAGE_PROCESSING"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
-static Bitmap bitmap;
+// Every NativeImage holds a handle which is the address of its own Bitmap struct
+static inline Bitmap* getBitmap(jlong handle) {
+	return (Bitmap*)(intptr_t)handle;
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeInitBitmap(JNIEnv* env, jclass clazz, jint width, jint height) {
+	Bitmap* bitmap;
+	int resultCode = newBitmap(&bitmap);
+	if (resultCode != MEMORY_OK) {
+		return 0;
+	}
+
+	resultCode = initBitmapMemory(bitmap, width, height);
+	if (resultCode != MEMORY_OK) {
+		LOGE("error allocating bitmap resultCode=%d", resultCode);
+		freeBitmap(&bitmap);
+		return 0;
+	}
+
+	return (jlong)(intptr_t)bitmap;
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetBitmapRow(JNIEnv* env, jclass clazz, jlong handle, jint y, jintArray pixels) {
+	Bitmap* bitmap = getBitmap(handle);
+	int cpixels[(*bitmap).width];
+	getBitmapRowAsIntegers(bitmap, (int)y, cpixels);
+	(*env)->SetIntArrayRegion(env, pixels, 0, (*bitmap).width, cpixels);
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeSetBitmapRow(JNIEnv* env, jclass clazz, jlong handle, jint y, jintArray pixels) {
+	Bitmap* bitmap = getBitmap(handle);
+	int cpixels[(*bitmap).width];
+	(*env)->GetIntArrayRegion(env, pixels, 0, (*bitmap).width, cpixels);
+	setBitmapRowFromIntegers(bitmap, (int)y, cpixels);
+}
+
+jobject Java_com_lightbox_android_photoprocessing_NativeImage_nativeAllocatePixelBuffer(JNIEnv* env, jclass clazz, jlong handle) {
+	Bitmap* bitmap = getBitmap(handle);
+	int size = (*bitmap).width * (*bitmap).height * 4;
+	// Not cleared like newUnsignedCharArray() would, every byte is written before it's read
+	unsigned char* pixels = (unsigned char*) newMemory(size);
+	if (pixels == NULL) {
+		LOGE("error allocating pixel buffer");
+		return NULL;
+	}
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeInitBitmap(JNIEnv* env, jobject thiz, jint width, jint height) {
-	return initBitmapMemory(&bitmap, width, height);
+	return (*env)->NewDirectByteBuffer(env, pixels, size);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeGetBitmapRow(JNIEnv* env, jobject thiz, jint y, jintArray pixels) {
-	int cpixels[bitmap.width];
-	getBitmapRowAsIntegers(&bitmap, (int)y, &cpixels);
-	(*env)->SetIntArrayRegion(env, pixels, 0, bitmap.width, cpixels);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeFreePixelBuffer(JNIEnv* env, jclass clazz, jobject buffer) {
+	unsigned char* pixels = (unsigned char*) (*env)->GetDirectBufferAddress(env, buffer);
+	freeUnsignedCharArray(&pixels);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeSetBitmapRow(JNIEnv* env, jobject thiz, jint y, jintArray pixels) {
-	int cpixels[bitmap.width];
-	(*env)->GetIntArrayRegion(env, pixels, 0, bitmap.width, cpixels);
-	setBitmapRowFromIntegers(&bitmap, (int)y, &cpixels);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetBitmapPixels(JNIEnv* env, jclass clazz, jlong handle, jobject buffer) {
+	unsigned char* pixels = (unsigned char*) (*env)->GetDirectBufferAddress(env, buffer);
+	getBitmapAsRgbaBytes(getBitmap(handle), pixels);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeGetBitmapWidth(JNIEnv* env, jobject thiz) {
-	return bitmap.width;
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeSetBitmapPixels(JNIEnv* env, jclass clazz, jlong handle, jobject buffer) {
+	unsigned char* pixels = (unsigned char*) (*env)->GetDirectBufferAddress(env, buffer);
+	setBitmapFromRgbaBytes(getBitmap(handle), pixels);
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeGetBitmapHeight(JNIEnv* env, jobject thiz) {
-	return bitmap.height;
+int Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetBitmapWidth(JNIEnv* env, jclass clazz, jlong handle) {
+	return (*getBitmap(handle)).width;
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeDeleteBitmap(JNIEnv* env, jobject thiz) {
-	deleteBitmap(&bitmap);
+int Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetBitmapHeight(JNIEnv* env, jclass clazz, jlong handle) {
+	return (*getBitmap(handle)).height;
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeFlipHorizontally(JNIEnv* env, jobject thiz) {
-	flipHorizontally(&bitmap, 1, 1, 1);
+// Filters watch the bitmap's cancelled flag so a cancel from another thread stops them at the next strip
+static inline Bitmap* beginCancellable(jlong handle) {
+	Bitmap* bitmap = getBitmap(handle);
+	setCancelFlag(&(*bitmap).cancelled);
+	return bitmap;
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeRotate90(JNIEnv* env, jobject thiz) {
-	int resultCode = rotate90(&bitmap, 1, 1, 1);
+static inline void endCancellable(void) {
+	setCancelFlag(NULL);
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeCancel(JNIEnv* env, jclass clazz, jlong handle) {
+	(*getBitmap(handle)).cancelled = 1;
+}
+
+jboolean Java_com_lightbox_android_photoprocessing_NativeImage_nativeIsCancelled(JNIEnv* env, jclass clazz, jlong handle) {
+	return (*getBitmap(handle)).cancelled ? JNI_TRUE : JNI_FALSE;
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeDeleteBitmap(JNIEnv* env, jclass clazz, jlong handle) {
+	Bitmap* bitmap = getBitmap(handle);
+	freeBitmap(&bitmap);
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeFlipHorizontally(JNIEnv* env, jclass clazz, jlong handle) {
+	flipHorizontally(getBitmap(handle), 1, 1, 1);
+}
+
+int Java_com_lightbox_android_photoprocessing_NativeImage_nativeRotate90(JNIEnv* env, jclass clazz, jlong handle) {
+	Bitmap* bitmap = getBitmap(handle);
+	int resultCode = rotate90(bitmap, 1, 1, 1);
 	if (resultCode != MEMORY_OK) {
 		return resultCode;
 	}
 
 	//All the component dimensions should have changed, so copy the correct dimensions
-	bitmap.width = bitmap.redWidth;
-	bitmap.height = bitmap.redHeight;
+	(*bitmap).width = (*bitmap).redWidth;
+	(*bitmap).height = (*bitmap).redHeight;
+
+	return MEMORY_OK;
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeRotate180(JNIEnv* env, jobject thiz) {
-	rotate180(&bitmap, 1, 1, 1);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeRotate180(JNIEnv* env, jclass clazz, jlong handle) {
+	rotate180(getBitmap(handle), 1, 1, 1);
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyInstafix(JNIEnv* env, jobject thiz) {
-	applyInstafix(&bitmap);
+int Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyOrientation(JNIEnv* env, jclass clazz, jlong handle, jint orientation) {
+	Bitmap* bitmap = getBitmap(handle);
+	int resultCode = applyOrientation(bitmap, orientation, 1, 1, 1);
+	if (resultCode != MEMORY_OK) {
+		return resultCode;
+	}
+
+	(*bitmap).width = (*bitmap).redWidth;
+	(*bitmap).height = (*bitmap).redHeight;
+
+	return MEMORY_OK;
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyAnsel(JNIEnv* env, jobject thiz) {
-	applyAnselFilter(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyInstafix(JNIEnv* env, jclass clazz, jlong handle) {
+	applyInstafix(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyTestino(JNIEnv* env, jobject thiz) {
-	applyTestino(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyAnsel(JNIEnv* env, jclass clazz, jlong handle) {
+	applyAnselFilter(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyXPro(JNIEnv* env, jobject thiz) {
-	applyXPro(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyTestino(JNIEnv* env, jclass clazz, jlong handle) {
+	applyTestino(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyRetro(JNIEnv* env, jobject thiz) {
-	applyRetro(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyXPro(JNIEnv* env, jclass clazz, jlong handle) {
+	applyXPro(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyBW(JNIEnv* env, jobject thiz) {
-	applyBlackAndWhiteFilter(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyRetro(JNIEnv* env, jclass clazz, jlong handle) {
+	applyRetro(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplySepia(JNIEnv* env, jobject thiz) {
-	applySepia(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyBW(JNIEnv* env, jclass clazz, jlong handle) {
+	applyBlackAndWhiteFilter(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyCyano(JNIEnv* env, jobject thiz) {
-	applyCyano(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplySepia(JNIEnv* env, jclass clazz, jlong handle) {
+	applySepia(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyGeorgia(JNIEnv* env, jobject thiz) {
-	applyGeorgia(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyCyano(JNIEnv* env, jclass clazz, jlong handle) {
+	applyCyano(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplySahara(JNIEnv* env, jobject thiz) {
-	applySahara(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyGeorgia(JNIEnv* env, jclass clazz, jlong handle) {
+	applyGeorgia(beginCancellable(handle));
+	endCancellable();
 }
 
-void Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeApplyHDR(JNIEnv* env, jobject thiz) {
-	applyHDR(&bitmap);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplySahara(JNIEnv* env, jclass clazz, jlong handle) {
+	applySahara(beginCancellable(handle));
+	endCancellable();
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeLoadResizedJpegBitmap(JNIEnv* env, jobject thiz, jbyteArray bytes, jint jpegSize, jint maxPixels) {
-	char* jpegData = (char*) (*env)->GetPrimitiveArrayCritical(env, bytes, NULL);
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeApplyHDR(JNIEnv* env, jclass clazz, jlong handle) {
+	applyHDR(beginCancellable(handle));
+	endCancellable();
+}
+
+// Maps a jpeg file into memory so it can be decoded without being read into the Java heap first.
+// The pages are only read in as the decoder reaches them and are dropped again under memory pressure.
+static char* mapJpegFile(JNIEnv* env, jstring jpegPath, int* jpegSize) {
+	const char* path = (*env)->GetStringUTFChars(env, jpegPath, NULL);
+	if (path == NULL) {
+		return NULL;
+	}
+	int fd = open(path, O_RDONLY);
+	if (fd < 0) {
+		LOGE("unable to open %s", path);
+		(*env)->ReleaseStringUTFChars(env, jpegPath, path);
+		return NULL;
+	}
+	(*env)->ReleaseStringUTFChars(env, jpegPath, path);
+
+	char* jpegData = NULL;
+	struct stat fileStat;
+	if (fstat(fd, &fileStat) == 0 && fileStat.st_size > 0) {
+		void* mapped = mmap(NULL, fileStat.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+		if (mapped != MAP_FAILED) {
+			madvise(mapped, fileStat.st_size, MADV_SEQUENTIAL);
+			jpegData = (char*) mapped;
+			*jpegSize = fileStat.st_size;
+		}
+	}
+	// The mapping stays valid after the file is closed
+	close(fd);
 
 	if (jpegData == NULL) {
-		LOGE("jpeg data was null");
-		return JNI_GET_INT_ARRAY_ERROR;
+		LOGE("unable to map jpeg file");
+	}
+	return jpegData;
+}
+
+static void unmapJpegFile(char* jpegData, int jpegSize) {
+	munmap(jpegData, jpegSize);
+}
+
+static jlong loadResizedJpegBitmap(char* jpegData, int jpegSize, int maxPixels) {
+	Bitmap* bitmap;
+	int resultCode = newBitmap(&bitmap);
+	if (resultCode != MEMORY_OK) {
+		return 0;
 	}
 
-	int resultCode = decodeJpegData(jpegData, jpegSize, maxPixels, &bitmap);
+	resultCode = decodeJpegData(jpegData, jpegSize, maxPixels, bitmap);
 	if (resultCode != MEMORY_OK) {
-		deleteBitmap(&bitmap);
 		LOGE("error decoding jpeg resultCode=%d", resultCode);
-		return resultCode;
+		freeBitmap(&bitmap);
+		return 0;
 	}
 
+	return (jlong)(intptr_t)bitmap;
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeLoadResizedJpegBitmap(JNIEnv* env, jclass clazz, jbyteArray bytes, jint jpegSize, jint maxPixels) {
+	char* jpegData = (char*) (*env)->GetPrimitiveArrayCritical(env, bytes, NULL);
+
+	if (jpegData == NULL) {
+		LOGE("jpeg data was null");
+		return 0;
+	}
+
+	jlong handle = loadResizedJpegBitmap(jpegData, jpegSize, maxPixels);
 	(*env)->ReleasePrimitiveArrayCritical(env, bytes, jpegData, 0);
 
+	return handle;
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeLoadResizedJpegFile(JNIEnv* env, jclass clazz, jstring jpegPath, jint maxPixels) {
+	int jpegSize;
+	char* jpegData = mapJpegFile(env, jpegPath, &jpegSize);
+	if (jpegData == NULL) {
+		return 0;
+	}
+
+	jlong handle = loadResizedJpegBitmap(jpegData, jpegSize, maxPixels);
+	unmapJpegFile(jpegData, jpegSize);
+
+	return handle;
+}
+
+static int writeJpegFile(void* args, const unsigned char* data, unsigned int size) {
+	return fwrite(data, 1, size, (FILE*) args) != size;
+}
+
+static FILE* openFile(JNIEnv* env, jstring filePath, const char* mode) {
+	const char* path = (*env)->GetStringUTFChars(env, filePath, NULL);
+	if (path == NULL) {
+		return NULL;
+	}
+	FILE* file = fopen(path, mode);
+	if (file == NULL) {
+		LOGE("unable to open %s", path);
+	}
+	(*env)->ReleaseStringUTFChars(env, filePath, path);
+
+	return file;
+}
+
+static int closeJpegFile(FILE* file, int resultCode) {
+	if (fclose(file) != 0 && resultCode == MEMORY_OK) {
+		return JPEG_WRITE_ERROR;
+	}
+	return resultCode;
+}
+
+jint Java_com_lightbox_android_photoprocessing_NativeImage_nativeCompressJpeg(JNIEnv* env, jclass clazz, jlong handle, jint quality, jstring outputPath) {
+	FILE* file = openFile(env, outputPath, "wb");
+	if (file == NULL) {
+		return JPEG_WRITE_ERROR;
+	}
+
+	int resultCode = compressBitmapJpeg(getBitmap(handle), quality, writeJpegFile, file);
+	return closeJpegFile(file, resultCode);
+}
+
+// An encoded jpeg collected in memory, the data grows as the encoder writes to it
+typedef struct {
+	unsigned char* data;
+	unsigned int size;
+	unsigned int capacity;
+} JpegBuffer;
+
+static int writeJpegBuffer(void* args, const unsigned char* data, unsigned int size) {
+	JpegBuffer* buffer = (JpegBuffer*) args;
+	if ((*buffer).size + size > (*buffer).capacity) {
+		unsigned int capacity = (*buffer).capacity * 2;
+		while (capacity < (*buffer).size + size) {
+			capacity *= 2;
+		}
+		unsigned char* grown = (unsigned char*) realloc((*buffer).data, capacity);
+		if (grown == NULL) {
+			return JPEG_WRITE_ERROR;
+		}
+		(*buffer).data = grown;
+		(*buffer).capacity = capacity;
+	}
+	memcpy((*buffer).data + (*buffer).size, data, size);
+	(*buffer).size += size;
 	return MEMORY_OK;
 }
 
-int Java_com_lightbox_android_photoprocessing_PhotoProcessing_nativeResizeBitmap(JNIEnv* env, jobject thiz, jint newWidth, jint newHeight) {
-	unsigned char* newRed;
-	int resultCode = newUnsignedCharArray(newWidth*newHeight, &newRed);
+jbyteArray Java_com_lightbox_android_photoprocessing_NativeImage_nativeCompressJpegBytes(JNIEnv* env, jclass clazz, jlong handle, jint quality) {
+	Bitmap* bitmap = getBitmap(handle);
+
+	// Most jpegs come out at well under a byte a pixel so this rarely has to grow more than once
+	JpegBuffer buffer;
+	buffer.size = 0;
+	buffer.capacity = (*bitmap).width * (*bitmap).height / 4;
+	if (buffer.capacity < JPEG_OUTPUT_BUFFER_SIZE) {
+		buffer.capacity = JPEG_OUTPUT_BUFFER_SIZE;
+	}
+	buffer.data = (unsigned char*) malloc(buffer.capacity);
+	if (buffer.data == NULL) {
+		LOGE("unable to allocate jpeg buffer");
+		return NULL;
+	}
+
+	jbyteArray bytes = NULL;
+	if (compressBitmapJpeg(bitmap, quality, writeJpegBuffer, &buffer) == MEMORY_OK) {
+		bytes = (*env)->NewByteArray(env, buffer.size);
+		if (bytes != NULL) {
+			(*env)->SetByteArrayRegion(env, bytes, 0, buffer.size, (jbyte*) buffer.data);
+		}
+	}
+	free(buffer.data);
+
+	return bytes;
+}
+
+jint Java_com_lightbox_android_photoprocessing_NativeImage_nativeExportJpeg(JNIEnv* env, jclass clazz, jbyteArray bytes, jint jpegSize, jint filter, jint orientation, jint quality, jstring outputPath) {
+	FILE* file = openFile(env, outputPath, "wb");
+	if (file == NULL) {
+		return JPEG_WRITE_ERROR;
+	}
+
+	// Not a critical array like nativeLoadResizedJpegBitmap() as the export takes long enough that the gc mustn't be held up
+	jbyte* jpegData = (*env)->GetByteArrayElements(env, bytes, NULL);
+	if (jpegData == NULL) {
+		LOGE("jpeg data was null");
+		fclose(file);
+		return UCHAR_ARRAY_ERROR;
+	}
+
+	int resultCode = exportJpeg((char*) jpegData, jpegSize, filter, orientation, quality, writeJpegFile, file);
+	(*env)->ReleaseByteArrayElements(env, bytes, jpegData, JNI_ABORT);
+
+	return closeJpegFile(file, resultCode);
+}
+
+jint Java_com_lightbox_android_photoprocessing_NativeImage_nativeExportJpegFile(JNIEnv* env, jclass clazz, jstring jpegPath, jint filter, jint orientation, jint quality, jstring outputPath) {
+	int jpegSize;
+	char* jpegData = mapJpegFile(env, jpegPath, &jpegSize);
+	if (jpegData == NULL) {
+		return JPEG_READ_ERROR;
+	}
+
+	FILE* file = openFile(env, outputPath, "wb");
+	if (file == NULL) {
+		unmapJpegFile(jpegData, jpegSize);
+		return JPEG_WRITE_ERROR;
+	}
+
+	int resultCode = exportJpeg(jpegData, jpegSize, filter, orientation, quality, writeJpegFile, file);
+	unmapJpegFile(jpegData, jpegSize);
+
+	return closeJpegFile(file, resultCode);
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeCopyBitmap(JNIEnv* env, jclass clazz, jlong handle) {
+	Bitmap* copy;
+	int resultCode = newBitmap(&copy);
 	if (resultCode != MEMORY_OK) {
-		return resultCode;
+		return 0;
 	}
-	resizeChannelBicubic(bitmap.red, bitmap.width, bitmap.height, newRed, (int)newWidth, (int)newHeight);
-	freeUnsignedCharArray(&bitmap.red);
-	bitmap.red = newRed;
-	bitmap.redWidth = newWidth;
-	bitmap.redHeight = newHeight;
 
-	unsigned char* newGreen;
-	resultCode = newUnsignedCharArray(newWidth*newHeight, &newGreen);
+	resultCode = copyBitmap(getBitmap(handle), copy);
 	if (resultCode != MEMORY_OK) {
-		return resultCode;
+		LOGE("error copying bitmap resultCode=%d", resultCode);
+		freeBitmap(&copy);
+		return 0;
+	}
+
+	return (jlong)(intptr_t)copy;
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeHalveBitmap(JNIEnv* env, jclass clazz, jlong handle) {
+	Bitmap* half;
+	int resultCode = newBitmap(&half);
+	if (resultCode != MEMORY_OK) {
+		return 0;
+	}
+
+	resultCode = halveBitmap(getBitmap(handle), half);
+	if (resultCode != MEMORY_OK) {
+		LOGE("error halving bitmap resultCode=%d", resultCode);
+		freeBitmap(&half);
+		return 0;
+	}
+
+	return (jlong)(intptr_t)half;
+}
+
+jint Java_com_lightbox_android_photoprocessing_NativeImage_nativeWriteBitmapPlanes(JNIEnv* env, jclass clazz, jlong handle, jstring outputPath) {
+	FILE* file = openFile(env, outputPath, "wb");
+	if (file == NULL) {
+		return BITMAP_FILE_ERROR;
+	}
+
+	int resultCode = writeBitmapPlanes(getBitmap(handle), file);
+	if (fclose(file) != 0 && resultCode == MEMORY_OK) {
+		resultCode = BITMAP_FILE_ERROR;
+	}
+	return resultCode;
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeReadBitmapPlanes(JNIEnv* env, jclass clazz, jstring inputPath) {
+	FILE* file = openFile(env, inputPath, "rb");
+	if (file == NULL) {
+		return 0;
+	}
+
+	Bitmap* bitmap;
+	int resultCode = newBitmap(&bitmap);
+	if (resultCode == MEMORY_OK) {
+		resultCode = readBitmapPlanes(file, bitmap);
+		if (resultCode != MEMORY_OK) {
+			LOGE("error reading bitmap planes resultCode=%d", resultCode);
+			freeBitmap(&bitmap);
+		}
 	}
-	resizeChannelBicubic(bitmap.green, bitmap.width, bitmap.height, newGreen, (int)newWidth, (int)newHeight);
-	freeUnsignedCharArray(&bitmap.green);
-	bitmap.green = newGreen;
-	bitmap.greenWidth = newWidth;
-	bitmap.greenHeight = newHeight;
+	fclose(file);
 
-	unsigned char* newBlue;
-	resultCode = newUnsignedCharArray(newWidth*newHeight, &newBlue);
+	return (resultCode == MEMORY_OK) ? (jlong)(intptr_t)bitmap : 0;
+}
+
+// Every new plane is made before any of the old ones is freed, so running out of memory leaves the image as it was
+int Java_com_lightbox_android_photoprocessing_NativeImage_nativeResizeBitmap(JNIEnv* env, jclass clazz, jlong handle, jint newWidth, jint newHeight) {
+	Bitmap* bitmap = getBitmap(handle);
+	unsigned char* newRed = NULL;
+	unsigned char* newGreen = NULL;
+	unsigned char* newBlue = NULL;
+	int resultCode = newUnsignedCharArray(newWidth*newHeight, &newRed);
+	if (resultCode == MEMORY_OK) {
+		resultCode = newUnsignedCharArray(newWidth*newHeight, &newGreen);
+	}
+	if (resultCode == MEMORY_OK) {
+		resultCode = newUnsignedCharArray(newWidth*newHeight, &newBlue);
+	}
+	if (resultCode == MEMORY_OK) {
+		resultCode = resizeChannelBicubic((*bitmap).red, (*bitmap).width, (*bitmap).height, newRed, (int)newWidth, (int)newHeight);
+	}
+	if (resultCode == MEMORY_OK) {
+		resultCode = resizeChannelBicubic((*bitmap).green, (*bitmap).width, (*bitmap).height, newGreen, (int)newWidth, (int)newHeight);
+	}
+	if (resultCode == MEMORY_OK) {
+		resultCode = resizeChannelBicubic((*bitmap).blue, (*bitmap).width, (*bitmap).height, newBlue, (int)newWidth, (int)newHeight);
+	}
 	if (resultCode != MEMORY_OK) {
+		freeUnsignedCharArray(&newRed);
+		freeUnsignedCharArray(&newGreen);
+		freeUnsignedCharArray(&newBlue);
 		return resultCode;
 	}
-	resizeChannelBicubic(bitmap.blue, bitmap.width, bitmap.height, newBlue, (int)newWidth, (int)newHeight);
-	freeUnsignedCharArray(&bitmap.blue);
-	bitmap.blue = newBlue;
-	bitmap.blueWidth = newWidth;
-	bitmap.blueHeight = newHeight;
 
-	bitmap.width = newWidth;
-	bitmap.height = newHeight;
+	freeUnsignedCharArray(&(*bitmap).red);
+	(*bitmap).red = newRed;
+	(*bitmap).redWidth = newWidth;
+	(*bitmap).redHeight = newHeight;
+
+	freeUnsignedCharArray(&(*bitmap).green);
+	(*bitmap).green = newGreen;
+	(*bitmap).greenWidth = newWidth;
+	(*bitmap).greenHeight = newHeight;
+
+	freeUnsignedCharArray(&(*bitmap).blue);
+	(*bitmap).blue = newBlue;
+	(*bitmap).blueWidth = newWidth;
+	(*bitmap).blueHeight = newHeight;
+
+	(*bitmap).width = newWidth;
+	(*bitmap).height = newHeight;
+
+	return MEMORY_OK;
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeSetThreadCount(JNIEnv* env, jclass clazz, jint threadCount) {
+	setThreadCount(threadCount);
+}
+
+jint Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetThreadCount(JNIEnv* env, jclass clazz) {
+	return getThreadCount();
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeSetMetricsEnabled(JNIEnv* env, jclass clazz, jboolean enabled) {
+	setMetricsEnabled(enabled == JNI_TRUE);
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetMemoryInUse(JNIEnv* env, jclass clazz) {
+	return getMemoryInUse();
+}
+
+jlong Java_com_lightbox_android_photoprocessing_NativeImage_nativeGetPeakMemoryInUse(JNIEnv* env, jclass clazz) {
+	return getPeakMemoryInUse();
+}
+
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeResetPeakMemoryInUse(JNIEnv* env, jclass clazz) {
+	resetPeakMemoryInUse();
+}
+
+// Fills nanos with the times of the stages timed on this thread since the last call, in the order of the METRICS_STAGE_ constants
+void Java_com_lightbox_android_photoprocessing_NativeImage_nativeTakeStageTimes(JNIEnv* env, jclass clazz, jlongArray nanos) {
+	long long stageTimes[METRICS_STAGE_COUNT];
+	jlong values[METRICS_STAGE_COUNT];
+	int i;
+	takeStageTimes(stageTimes);
+	for (i = 0; i < METRICS_STAGE_COUNT; i++) {
+		values[i] = stageTimes[i];
+	}
+	(*env)->SetLongArrayRegion(env, nanos, 0, METRICS_STAGE_COUNT, values);
 }
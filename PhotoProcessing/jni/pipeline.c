@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <bitmap.h>
+#include <mem_utils.h>
+#include <parallel.h>
+#include <pipeline.h>
+#include <simd.h>
+#include <string.h>
+#include <android/log.h>
+
+#define  LOG_TAG    "pipeline.c"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+// Replaces lut with next[lut]
+static void composeLut(unsigned char* lut, const unsigned char* next) {
+	register unsigned int i;
+	if (next == NULL) {
+		return;
+	}
+	for (i = 256; i--;) {
+		lut[i] = next[lut[i]];
+	}
+}
+
+void initPipeline(Pipeline* pipeline) {
+	unsigned int c, i;
+	for (c = 3; c--;) {
+		for (i = 256; i--;) {
+			(*pipeline).preLut[c][i] = i;
+			(*pipeline).postLut[c][i] = i;
+		}
+		(*pipeline).layer[c] = NULL;
+	}
+	(*pipeline).hasMatrix = 0;
+	(*pipeline).blendLut = NULL;
+	(*pipeline).hasPostLut = 0;
+}
+
+void pipelineAddLuts(Pipeline* pipeline, const unsigned char* redLut, const unsigned char* greenLut, const unsigned char* blueLut) {
+	// Once the values have been through a matrix or a blend a lut can only be applied afterwards
+	unsigned char (*luts)[256] = (*pipeline).preLut;
+	if ((*pipeline).hasMatrix || (*pipeline).blendLut != NULL) {
+		luts = (*pipeline).postLut;
+		(*pipeline).hasPostLut = 1;
+	}
+
+	composeLut(luts[0], redLut);
+	composeLut(luts[1], greenLut);
+	composeLut(luts[2], blueLut);
+}
+
+int pipelineAddMatrix(Pipeline* pipeline, float matrix[4][4]) {
+	if ((*pipeline).hasMatrix || (*pipeline).blendLut != NULL) {
+		LOGE("the matrix has to be the first stage after the luts");
+		return PIPELINE_STAGE_ERROR;
+	}
+
+	initColourMatrix(&(*pipeline).matrix, matrix);
+	(*pipeline).hasMatrix = 1;
+
+	return MEMORY_OK;
+}
+
+int pipelineAddBlend(Pipeline* pipeline, unsigned char* layerRed, unsigned char* layerGreen, unsigned char* layerBlue, unsigned char (*blendLut)[256]) {
+	if ((*pipeline).blendLut != NULL || (*pipeline).hasPostLut) {
+		LOGE("only one blend can be used and it has to come before the final luts");
+		return PIPELINE_STAGE_ERROR;
+	}
+
+	(*pipeline).layer[0] = layerRed;
+	(*pipeline).layer[1] = layerGreen;
+	(*pipeline).layer[2] = layerBlue;
+	(*pipeline).blendLut = blendLut;
+
+	return MEMORY_OK;
+}
+
+typedef struct {
+	Bitmap* bitmap;
+	Pipeline* pipeline;
+} PipelineArgs;
+
+// Only luts are used so they've all been composed into one
+static void lutStrip(void* args, unsigned int start, unsigned int end) {
+	Bitmap* bitmap = (*(PipelineArgs*) args).bitmap;
+	Pipeline* pipeline = (*(PipelineArgs*) args).pipeline;
+	unsigned char* red = (*bitmap).red;
+	unsigned char* green = (*bitmap).green;
+	unsigned char* blue = (*bitmap).blue;
+	unsigned char* redLut = (*pipeline).preLut[0];
+	unsigned char* greenLut = (*pipeline).preLut[1];
+	unsigned char* blueLut = (*pipeline).preLut[2];
+
+	register unsigned int i;
+	for (i = start; i < end; i++) {
+		red[i] = redLut[red[i]];
+		green[i] = greenLut[green[i]];
+		blue[i] = blueLut[blue[i]];
+	}
+}
+
+static void pipelineStrip(void* args, unsigned int start, unsigned int end) {
+	Bitmap* bitmap = (*(PipelineArgs*) args).bitmap;
+	Pipeline* pipeline = (*(PipelineArgs*) args).pipeline;
+	unsigned char* red = (*bitmap).red;
+	unsigned char* green = (*bitmap).green;
+	unsigned char* blue = (*bitmap).blue;
+	unsigned char (*preLut)[256] = (*pipeline).preLut;
+	unsigned char (*postLut)[256] = (*pipeline).postLut;
+	ColourMatrix* matrix = &(*pipeline).matrix;
+	const int hasMatrix = (*pipeline).hasMatrix;
+	unsigned char (*blendLut)[256] = (*pipeline).blendLut;
+	unsigned char* layerRed = (*pipeline).layer[0];
+	unsigned char* layerGreen = (*pipeline).layer[1];
+	unsigned char* layerBlue = (*pipeline).layer[2];
+
+	// The matrix is applied to a block at a time so it can use the vector kernel
+	unsigned char r[SIMD_BLOCK_SIZE], g[SIMD_BLOCK_SIZE], b[SIMD_BLOCK_SIZE];
+	unsigned int blockStart, blockSize, i, j;
+	for (blockStart = start; blockStart < end; blockStart += blockSize) {
+		blockSize = end - blockStart;
+		if (blockSize > SIMD_BLOCK_SIZE) {
+			blockSize = SIMD_BLOCK_SIZE;
+		}
+
+		for (i = blockStart, j = 0; j < blockSize; i++, j++) {
+			r[j] = preLut[0][red[i]];
+			g[j] = preLut[1][green[i]];
+			b[j] = preLut[2][blue[i]];
+		}
+
+		if (hasMatrix) {
+			multiplyPixelsByColourMatrix(r, g, b, blockSize, matrix);
+		}
+
+		if (blendLut != NULL) {
+			for (i = blockStart, j = 0; j < blockSize; i++, j++) {
+				r[j] = blendLut[layerRed[i]][r[j]];
+				g[j] = blendLut[layerGreen[i]][g[j]];
+				b[j] = blendLut[layerBlue[i]][b[j]];
+			}
+		}
+
+		for (i = blockStart, j = 0; j < blockSize; i++, j++) {
+			red[i] = postLut[0][r[j]];
+			green[i] = postLut[1][g[j]];
+			blue[i] = postLut[2][b[j]];
+		}
+	}
+}
+
+void runPipeline(Bitmap* bitmap, Pipeline* pipeline) {
+	PipelineArgs args;
+	args.bitmap = bitmap;
+	args.pipeline = pipeline;
+
+	ParallelFunction function = pipelineStrip;
+	if (!(*pipeline).hasMatrix && (*pipeline).blendLut == NULL) {
+		function = lutStrip;
+	}
+	runParallel((*bitmap).width * (*bitmap).height, PIXELS_PER_STRIP, function, &args);
+}
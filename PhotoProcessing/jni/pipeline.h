@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef PIPELINE
+#define PIPELINE
+
+#include <matrix.h>
+
+static const int PIPELINE_STAGE_ERROR = 7;
+
+// A chain of per pixel stages which is run over the bitmap in a single pass.
+// Stages are composed as they are added, consecutive luts collapse into one lut,
+// so whatever the chain looks like each pixel goes through at most
+// lut -> colour matrix -> blend with a layer -> lut
+typedef struct {
+	unsigned char preLut[3][256];
+	int hasMatrix;
+	ColourMatrix matrix;
+	unsigned char* layer[3];
+	unsigned char (*blendLut)[256];
+	int hasPostLut;
+	unsigned char postLut[3][256];
+} Pipeline;
+
+void initPipeline(Pipeline* pipeline);
+
+// Maps each channel through a lut, a NULL lut leaves the channel unchanged
+void pipelineAddLuts(Pipeline* pipeline, const unsigned char* redLut, const unsigned char* greenLut, const unsigned char* blueLut);
+
+// Multiplies the colour by a matrix like applyMatrix() does, only one matrix can be used and it must come before any blend
+int pipelineAddMatrix(Pipeline* pipeline, float matrix[4][4]);
+
+// Blends each channel with the same channel of the layer, the result is blendLut[layerComponent][pixelComponent]
+int pipelineAddBlend(Pipeline* pipeline, unsigned char* layerRed, unsigned char* layerGreen, unsigned char* layerBlue, unsigned char (*blendLut)[256]);
+
+void runPipeline(Bitmap* bitmap, Pipeline* pipeline);
+
+#endif
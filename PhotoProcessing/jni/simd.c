@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <simd.h>
+#include <pthread.h>
+#include <android/log.h>
+
+#ifdef HAVE_NEON
+#include <cpu-features.h>
+#endif
+
+#ifdef __SSE2__
+#include <emmintrin.h>
+#endif
+
+#define  LOG_TAG    "simd.c"
+#define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define  LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+
+// The vector code writes ARGB integers as b, g, r, a bytes which relies on the cpu being little endian like every Android ABI
+
+void multiplyPixelsByMatrixScalar(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]) {
+	float r1, g1, b1, r2, g2, b2;
+
+	register unsigned int i;
+	for (i = 0; i < count; i++) {
+		r1 = red[i];
+		g1 = green[i];
+		b1 = blue[i];
+		r2 = r1*matrix[0][0] + g1*matrix[1][0] + b1*matrix[2][0] + matrix[3][0];
+		g2 = r1*matrix[0][1] + g1*matrix[1][1] + b1*matrix[2][1] + matrix[3][1];
+		b2 = r1*matrix[0][2] + g1*matrix[1][2] + b1*matrix[2][2] + matrix[3][2];
+		if(r2<0) r2 = 0;
+		if(r2>255) r2 = 255;
+		if(g2<0) g2 = 0;
+		if(g2>255) g2 = 255;
+		if(b2<0) b2 = 0;
+		if(b2>255) b2 = 255;
+		red[i] = r2;
+		green[i] = g2;
+		blue[i] = b2;
+	}
+}
+
+void interleaveRgbaScalar(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned char* rgba, unsigned int count) {
+	register unsigned int i;
+	for (i = 0; i < count; i++) {
+		*rgba++ = red[i];
+		*rgba++ = green[i];
+		*rgba++ = blue[i];
+		*rgba++ = 0xFF;
+	}
+}
+
+void deinterleaveRgbaScalar(unsigned char* rgba, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count) {
+	register unsigned int i;
+	for (i = 0; i < count; i++) {
+		red[i] = *rgba++;
+		green[i] = *rgba++;
+		blue[i] = *rgba++;
+		rgba++;
+	}
+}
+
+void packArgbScalar(unsigned char* red, unsigned char* green, unsigned char* blue, int* pixels, unsigned int count) {
+	register unsigned int i;
+	for (i = 0; i < count; i++) {
+		pixels[i] = (0xFF << 24) | (red[i] << 16) | (green[i] << 8) | blue[i];
+	}
+}
+
+void unpackArgbScalar(int* pixels, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count) {
+	register unsigned int i;
+	for (i = 0; i < count; i++) {
+		red[i] = (pixels[i] >> 16) & 0xFF;
+		green[i] = (pixels[i] >> 8) & 0xFF;
+		blue[i] = pixels[i] & 0xFF;
+	}
+}
+
+#ifdef __SSE2__
+
+// Converts 4 pixels of a channel to floats, multiplies them and clamps them exactly like the scalar code
+static inline __m128i multiplyChannelSse2(__m128 r, __m128 g, __m128 b, float matrix[4][4], int column) {
+	__m128 sum = _mm_mul_ps(r, _mm_set1_ps(matrix[0][column]));
+	sum = _mm_add_ps(sum, _mm_mul_ps(g, _mm_set1_ps(matrix[1][column])));
+	sum = _mm_add_ps(sum, _mm_mul_ps(b, _mm_set1_ps(matrix[2][column])));
+	sum = _mm_add_ps(sum, _mm_set1_ps(matrix[3][column]));
+	sum = _mm_min_ps(_mm_max_ps(sum, _mm_setzero_ps()), _mm_set1_ps(255.0f));
+	return _mm_cvttps_epi32(sum);
+}
+
+static unsigned int multiplyPixelsByMatrixSse2(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]) {
+	const __m128i zero = _mm_setzero_si128();
+	__m128i outRed[4], outGreen[4], outBlue[4];
+	unsigned int i, j;
+	for (i = 0; i + 16 <= count; i += 16) {
+		__m128i r8 = _mm_loadu_si128((__m128i*)(red + i));
+		__m128i g8 = _mm_loadu_si128((__m128i*)(green + i));
+		__m128i b8 = _mm_loadu_si128((__m128i*)(blue + i));
+		__m128i r16[2], g16[2], b16[2];
+		r16[0] = _mm_unpacklo_epi8(r8, zero);
+		r16[1] = _mm_unpackhi_epi8(r8, zero);
+		g16[0] = _mm_unpacklo_epi8(g8, zero);
+		g16[1] = _mm_unpackhi_epi8(g8, zero);
+		b16[0] = _mm_unpacklo_epi8(b8, zero);
+		b16[1] = _mm_unpackhi_epi8(b8, zero);
+
+		for (j = 0; j < 4; j++) {
+			__m128 r, g, b;
+			if (j & 1) {
+				r = _mm_cvtepi32_ps(_mm_unpackhi_epi16(r16[j >> 1], zero));
+				g = _mm_cvtepi32_ps(_mm_unpackhi_epi16(g16[j >> 1], zero));
+				b = _mm_cvtepi32_ps(_mm_unpackhi_epi16(b16[j >> 1], zero));
+			} else {
+				r = _mm_cvtepi32_ps(_mm_unpacklo_epi16(r16[j >> 1], zero));
+				g = _mm_cvtepi32_ps(_mm_unpacklo_epi16(g16[j >> 1], zero));
+				b = _mm_cvtepi32_ps(_mm_unpacklo_epi16(b16[j >> 1], zero));
+			}
+			outRed[j] = multiplyChannelSse2(r, g, b, matrix, 0);
+			outGreen[j] = multiplyChannelSse2(r, g, b, matrix, 1);
+			outBlue[j] = multiplyChannelSse2(r, g, b, matrix, 2);
+		}
+
+		// The values are already clamped to 0 - 255 so the saturating packs don't change them
+		_mm_storeu_si128((__m128i*)(red + i), _mm_packus_epi16(_mm_packs_epi32(outRed[0], outRed[1]), _mm_packs_epi32(outRed[2], outRed[3])));
+		_mm_storeu_si128((__m128i*)(green + i), _mm_packus_epi16(_mm_packs_epi32(outGreen[0], outGreen[1]), _mm_packs_epi32(outGreen[2], outGreen[3])));
+		_mm_storeu_si128((__m128i*)(blue + i), _mm_packus_epi16(_mm_packs_epi32(outBlue[0], outBlue[1]), _mm_packs_epi32(outBlue[2], outBlue[3])));
+	}
+	return i;
+}
+
+// Writes first, second, third, 0xFF for every pixel
+static unsigned int interleaveSse2(unsigned char* first, unsigned char* second, unsigned char* third, unsigned char* interleaved, unsigned int count) {
+	const __m128i opaque = _mm_set1_epi8((char)0xFF);
+	unsigned int i;
+	for (i = 0; i + 16 <= count; i += 16) {
+		__m128i a = _mm_loadu_si128((__m128i*)(first + i));
+		__m128i b = _mm_loadu_si128((__m128i*)(second + i));
+		__m128i c = _mm_loadu_si128((__m128i*)(third + i));
+		__m128i ab0 = _mm_unpacklo_epi8(a, b);
+		__m128i ab1 = _mm_unpackhi_epi8(a, b);
+		__m128i c0 = _mm_unpacklo_epi8(c, opaque);
+		__m128i c1 = _mm_unpackhi_epi8(c, opaque);
+		__m128i* out = (__m128i*)(interleaved + (i * 4));
+		_mm_storeu_si128(out, _mm_unpacklo_epi16(ab0, c0));
+		_mm_storeu_si128(out + 1, _mm_unpackhi_epi16(ab0, c0));
+		_mm_storeu_si128(out + 2, _mm_unpacklo_epi16(ab1, c1));
+		_mm_storeu_si128(out + 3, _mm_unpackhi_epi16(ab1, c1));
+	}
+	return i;
+}
+
+// Splits 16 four byte pixels into the given byte of each pixel
+static inline __m128i extractByteSse2(__m128i* pixels, int shift) {
+	const __m128i mask = _mm_set1_epi32(0xFF);
+	__m128i p0 = _mm_and_si128(_mm_srli_epi32(_mm_loadu_si128(pixels), shift), mask);
+	__m128i p1 = _mm_and_si128(_mm_srli_epi32(_mm_loadu_si128(pixels + 1), shift), mask);
+	__m128i p2 = _mm_and_si128(_mm_srli_epi32(_mm_loadu_si128(pixels + 2), shift), mask);
+	__m128i p3 = _mm_and_si128(_mm_srli_epi32(_mm_loadu_si128(pixels + 3), shift), mask);
+	return _mm_packus_epi16(_mm_packs_epi32(p0, p1), _mm_packs_epi32(p2, p3));
+}
+
+static unsigned int deinterleaveSse2(unsigned char* interleaved, unsigned char* first, unsigned char* second, unsigned char* third, unsigned int count) {
+	unsigned int i;
+	for (i = 0; i + 16 <= count; i += 16) {
+		__m128i* pixels = (__m128i*)(interleaved + (i * 4));
+		_mm_storeu_si128((__m128i*)(first + i), extractByteSse2(pixels, 0));
+		_mm_storeu_si128((__m128i*)(second + i), extractByteSse2(pixels, 8));
+		_mm_storeu_si128((__m128i*)(third + i), extractByteSse2(pixels, 16));
+	}
+	return i;
+}
+
+#endif
+
+#ifdef HAVE_NEON
+static pthread_once_t neonCheckOnce = PTHREAD_ONCE_INIT;
+static int neonSupported = 0;
+
+static void checkNeon(void) {
+	neonSupported = android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM
+			&& (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+	LOGI("NEON supported: %d", neonSupported);
+}
+
+static int hasNeon(void) {
+	pthread_once(&neonCheckOnce, checkNeon);
+	return neonSupported;
+}
+#endif
+
+void multiplyPixelsByMatrix(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]) {
+	unsigned int done = 0;
+#ifdef HAVE_NEON
+	if (hasNeon()) {
+		done = multiplyPixelsByMatrixNeon(red, green, blue, count, matrix);
+	}
+#endif
+#ifdef __SSE2__
+	done = multiplyPixelsByMatrixSse2(red, green, blue, count, matrix);
+#endif
+	multiplyPixelsByMatrixScalar(red + done, green + done, blue + done, count - done, matrix);
+}
+
+void interleaveRgba(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned char* rgba, unsigned int count) {
+	unsigned int done = 0;
+#ifdef HAVE_NEON
+	if (hasNeon()) {
+		done = interleaveNeon(red, green, blue, rgba, count);
+	}
+#endif
+#ifdef __SSE2__
+	done = interleaveSse2(red, green, blue, rgba, count);
+#endif
+	interleaveRgbaScalar(red + done, green + done, blue + done, rgba + (done * 4), count - done);
+}
+
+void deinterleaveRgba(unsigned char* rgba, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count) {
+	unsigned int done = 0;
+#ifdef HAVE_NEON
+	if (hasNeon()) {
+		done = deinterleaveNeon(rgba, red, green, blue, count);
+	}
+#endif
+#ifdef __SSE2__
+	done = deinterleaveSse2(rgba, red, green, blue, count);
+#endif
+	deinterleaveRgbaScalar(rgba + (done * 4), red + done, green + done, blue + done, count - done);
+}
+
+void packArgb(unsigned char* red, unsigned char* green, unsigned char* blue, int* pixels, unsigned int count) {
+	unsigned int done = 0;
+#ifdef HAVE_NEON
+	if (hasNeon()) {
+		done = interleaveNeon(blue, green, red, (unsigned char*) pixels, count);
+	}
+#endif
+#ifdef __SSE2__
+	done = interleaveSse2(blue, green, red, (unsigned char*) pixels, count);
+#endif
+	packArgbScalar(red + done, green + done, blue + done, pixels + done, count - done);
+}
+
+void unpackArgb(int* pixels, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count) {
+	unsigned int done = 0;
+#ifdef HAVE_NEON
+	if (hasNeon()) {
+		done = deinterleaveNeon((unsigned char*) pixels, blue, green, red, count);
+	}
+#endif
+#ifdef __SSE2__
+	done = deinterleaveSse2((unsigned char*) pixels, blue, green, red, count);
+#endif
+	unpackArgbScalar(pixels + done, red + done, green + done, blue + done, count - done);
+}
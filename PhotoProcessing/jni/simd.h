@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifndef SIMD
+#define SIMD
+
+// Kernels that work on runs of pixels. They use NEON on ARM cpus that have it and SSE2 on x86,
+// otherwise they fall back to the scalar versions. Every version gives exactly the same output.
+
+// Loops that mix the kernels with per pixel code hand them this many pixels at a time from a buffer on the stack
+#define SIMD_BLOCK_SIZE 256
+
+// Multiplies count pixels by a colour matrix in place, the same as applyMatrixToPixel() on each pixel
+void multiplyPixelsByMatrix(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]);
+
+// Planar channels to and from r, g, b, a bytes, the alpha is written as 0xFF and ignored when reading
+void interleaveRgba(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned char* rgba, unsigned int count);
+void deinterleaveRgba(unsigned char* rgba, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count);
+
+// Planar channels to and from opaque ARGB integers as used by android.graphics.Bitmap.getPixels()
+void packArgb(unsigned char* red, unsigned char* green, unsigned char* blue, int* pixels, unsigned int count);
+void unpackArgb(int* pixels, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count);
+
+// The scalar versions, always available
+void multiplyPixelsByMatrixScalar(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]);
+void interleaveRgbaScalar(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned char* rgba, unsigned int count);
+void deinterleaveRgbaScalar(unsigned char* rgba, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count);
+void packArgbScalar(unsigned char* red, unsigned char* green, unsigned char* blue, int* pixels, unsigned int count);
+void unpackArgbScalar(int* pixels, unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count);
+
+#ifdef HAVE_NEON
+// Only built into the armeabi-v7a library and only called when the cpu supports NEON.
+// They process whole vectors and return how many pixels were done, the rest is left for the scalar code.
+unsigned int multiplyPixelsByMatrixNeon(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]);
+unsigned int interleaveNeon(unsigned char* first, unsigned char* second, unsigned char* third, unsigned char* interleaved, unsigned int count);
+unsigned int deinterleaveNeon(unsigned char* interleaved, unsigned char* first, unsigned char* second, unsigned char* third, unsigned int count);
+#endif
+
+#endif
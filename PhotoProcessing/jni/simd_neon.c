@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Built with -mfpu=neon for armeabi-v7a only, simd.c checks the cpu before calling into here
+
+#include <simd.h>
+
+#ifdef HAVE_NEON
+#include <arm_neon.h>
+
+// Multiplies 4 pixels of a channel and clamps them exactly like the scalar code.
+// vmlaq_f32 rounds the product before adding it so the sums match the scalar ones.
+static inline uint32x4_t multiplyChannelNeon(float32x4_t r, float32x4_t g, float32x4_t b, float matrix[4][4], int column) {
+	float32x4_t sum = vmulq_n_f32(r, matrix[0][column]);
+	sum = vmlaq_n_f32(sum, g, matrix[1][column]);
+	sum = vmlaq_n_f32(sum, b, matrix[2][column]);
+	sum = vaddq_f32(sum, vdupq_n_f32(matrix[3][column]));
+	sum = vminq_f32(vmaxq_f32(sum, vdupq_n_f32(0.0f)), vdupq_n_f32(255.0f));
+	return vcvtq_u32_f32(sum);
+}
+
+unsigned int multiplyPixelsByMatrixNeon(unsigned char* red, unsigned char* green, unsigned char* blue, unsigned int count, float matrix[4][4]) {
+	unsigned int i;
+	for (i = 0; i + 8 <= count; i += 8) {
+		uint16x8_t r16 = vmovl_u8(vld1_u8(red + i));
+		uint16x8_t g16 = vmovl_u8(vld1_u8(green + i));
+		uint16x8_t b16 = vmovl_u8(vld1_u8(blue + i));
+
+		float32x4_t r = vcvtq_f32_u32(vmovl_u16(vget_low_u16(r16)));
+		float32x4_t g = vcvtq_f32_u32(vmovl_u16(vget_low_u16(g16)));
+		float32x4_t b = vcvtq_f32_u32(vmovl_u16(vget_low_u16(b16)));
+		uint16x4_t outRedLow = vmovn_u32(multiplyChannelNeon(r, g, b, matrix, 0));
+		uint16x4_t outGreenLow = vmovn_u32(multiplyChannelNeon(r, g, b, matrix, 1));
+		uint16x4_t outBlueLow = vmovn_u32(multiplyChannelNeon(r, g, b, matrix, 2));
+
+		r = vcvtq_f32_u32(vmovl_u16(vget_high_u16(r16)));
+		g = vcvtq_f32_u32(vmovl_u16(vget_high_u16(g16)));
+		b = vcvtq_f32_u32(vmovl_u16(vget_high_u16(b16)));
+		uint16x4_t outRedHigh = vmovn_u32(multiplyChannelNeon(r, g, b, matrix, 0));
+		uint16x4_t outGreenHigh = vmovn_u32(multiplyChannelNeon(r, g, b, matrix, 1));
+		uint16x4_t outBlueHigh = vmovn_u32(multiplyChannelNeon(r, g, b, matrix, 2));
+
+		vst1_u8(red + i, vmovn_u16(vcombine_u16(outRedLow, outRedHigh)));
+		vst1_u8(green + i, vmovn_u16(vcombine_u16(outGreenLow, outGreenHigh)));
+		vst1_u8(blue + i, vmovn_u16(vcombine_u16(outBlueLow, outBlueHigh)));
+	}
+	return i;
+}
+
+// Writes first, second, third, 0xFF for every pixel
+unsigned int interleaveNeon(unsigned char* first, unsigned char* second, unsigned char* third, unsigned char* interleaved, unsigned int count) {
+	uint8x16x4_t pixels;
+	pixels.val[3] = vdupq_n_u8(0xFF);
+	unsigned int i;
+	for (i = 0; i + 16 <= count; i += 16) {
+		pixels.val[0] = vld1q_u8(first + i);
+		pixels.val[1] = vld1q_u8(second + i);
+		pixels.val[2] = vld1q_u8(third + i);
+		vst4q_u8(interleaved + (i * 4), pixels);
+	}
+	return i;
+}
+
+unsigned int deinterleaveNeon(unsigned char* interleaved, unsigned char* first, unsigned char* second, unsigned char* third, unsigned int count) {
+	uint8x16x4_t pixels;
+	unsigned int i;
+	for (i = 0; i + 16 <= count; i += 16) {
+		pixels = vld4q_u8(interleaved + (i * 4));
+		vst1q_u8(first + i, pixels.val[0]);
+		vst1q_u8(second + i, pixels.val[1]);
+		vst1q_u8(third + i, pixels.val[2]);
+	}
+	return i;
+}
+
+#endif
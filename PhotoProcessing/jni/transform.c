@@ -16,7 +16,9 @@
 
 #include <bitmap.h>
 #include <mem_utils.h>
+#include <parallel.h>
 #include <stdlib.h>
+#include <string.h>
 #include <android/log.h>
 
 #define  LOG_TAG    "transform.c"
@@ -66,208 +68,250 @@ void addTransformCrop(Bitmap* bitmap, float* left, float* top, float* right, flo
 	(*bitmap).transformList.cropBounds[3] = *bottom;
 }
 
-// In memory horizontal flip
-// Can perform flip on entire bitmap on specific colour components specified using the parameter flags
-void flipHorizontally(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
-	int y, x, leftPos, rightPos;
-
-	if (doRed) {
-		unsigned char leftR;
-		int width = (*bitmap).redWidth;
-		int height = (*bitmap).redHeight;
-		for (y = 0; y < height; y++) {
-			for (x = 0; x < width/2; x++) {
-				leftPos = (y * width) + x;
-				rightPos = (y * width) + (width-1-x);
-				// Copy the red component from the left column
-				leftR = (*bitmap).red[leftPos];
-				// Copy red component from right column to left column
-				(*bitmap).red[leftPos] = (*bitmap).red[rightPos];
-				// Copy original left column red component in the right column
-				(*bitmap).red[rightPos] = leftR;
-			}
-		}
+// Adds a flip or rotation to an orientation
+int composeOrientation(int orientation, char type) {
+	int turns = orientation & ORIENTATION_ROTATION_MASK;
+	int flipped = orientation & ORIENTATION_FLIPPED;
+
+	if (type == FLIP_HORIZONTALLY) {
+		// Flipping after turning is the same as flipping first and then turning the other way
+		turns = -turns;
+		flipped ^= ORIENTATION_FLIPPED;
+	} else if (type == FLIP_VERTICALLY) {
+		// A vertical flip is a horizontal flip followed by a half turn
+		turns = 2 - turns;
+		flipped ^= ORIENTATION_FLIPPED;
+	} else if (type == ROTATE_90) {
+		turns += 1;
+	} else if (type == ROTATE_180) {
+		turns += 2;
 	}
 
-	if (doGreen) {
-		unsigned char leftG;
-		int width = (*bitmap).greenWidth;
-		int height = (*bitmap).greenHeight;
-		for (y = 0; y < height; y++) {
-			for (x = 0; x < width/2; x++) {
-				leftPos = (y * width) + x;
-				rightPos = (y * width) + (width-1-x);
-				// Copy the green component from the left column
-				leftG = (*bitmap).green[leftPos];
-				// Copy green component from right column to left column
-				(*bitmap).green[leftPos] = (*bitmap).green[rightPos];
-				// Copy original left column green component in the right column
-				(*bitmap).green[rightPos] = leftG;
-			}
-		}
+	return (turns & ORIENTATION_ROTATION_MASK) | flipped;
+}
+
+// Finds where the pixel at x, y of the oriented component comes from in the original width x height component
+static int orientedSourcePosition(int orientation, int width, int height, int x, int y) {
+	int sourceX, sourceY;
+	switch (orientation & ORIENTATION_ROTATION_MASK) {
+	case 0:
+		sourceX = x;
+		sourceY = y;
+		break;
+	case 1:
+		sourceX = y;
+		sourceY = height - 1 - x;
+		break;
+	case 2:
+		sourceX = width - 1 - x;
+		sourceY = height - 1 - y;
+		break;
+	default:
+		sourceX = width - 1 - y;
+		sourceY = x;
+		break;
 	}
 
-	if (doBlue) {
-		unsigned char leftB;
-		int width = (*bitmap).blueWidth;
-		int height = (*bitmap).blueHeight;
-		for (y = 0; y < height; y++) {
-			for (x = 0; x < width/2; x++) {
-				leftPos = (y * width) + x;
-				rightPos = (y * width) + (width-1-x);
-				// Copy the blue component from the left column
-				leftB = (*bitmap).blue[leftPos];
-				// Copy blue component from right column to left column
-				(*bitmap).blue[leftPos] = (*bitmap).blue[rightPos];
-				// Copy original left column blue component in the right column
-				(*bitmap).blue[rightPos] = leftB;
-			}
-		}
+	if (orientation & ORIENTATION_FLIPPED) {
+		sourceX = width - 1 - sourceX;
 	}
-}
 
-// In memory vertical flip
-// Can perform flip on entire bitmap on specific colour components specified using the parameter flags
-void flipVertically(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
-	int y, x, topPos, bottomPos;
+	return (sourceY * width) + sourceX;
+}
 
-	if (doRed) {
-		unsigned char topR;
-		int width = (*bitmap).redWidth;
-		int height = (*bitmap).redHeight;
-		for (y = 0; y < height/2; y++) {
-			for (x = 0; x < width; x++) {
-				topPos = (y * width) + x;
-				bottomPos = (((height - 1) - y) * width) + x;
-				// Copy the red component from the top row
-				topR = (*bitmap).red[topPos];
-				// Copy red component from bottom row to top row
-				(*bitmap).red[topPos] = (*bitmap).red[bottomPos];
-				// Copy original top row red component to the bottom row
-				(*bitmap).red[bottomPos] = topR;
+// Tiles are square so both the rows being read and the rows being written stay in the cache
+#define ORIENTATION_TILE_SIZE 64
+
+typedef struct {
+	unsigned char* pixels;
+	unsigned char* oriented;
+	int width;
+	int height;
+	int orientation;
+	int start;
+	int stepX;
+	int stepY;
+} OrientArgs;
+
+// Copies rows of tiles of the oriented component from the original one, for the orientations that swap the width and height
+static void orientTileRows(void* args, unsigned int start, unsigned int end) {
+	OrientArgs* orient = (OrientArgs*) args;
+	unsigned char* pixels = (*orient).pixels;
+	unsigned char* oriented = (*orient).oriented;
+	int newWidth = (*orient).height;
+	int newHeight = (*orient).width;
+	int stepX = (*orient).stepX;
+	int stepY = (*orient).stepY;
+
+	int tileX, tileY, tileRight, tileBottom, x, y, oldPos;
+	unsigned char* newRow;
+	for (tileY = start * ORIENTATION_TILE_SIZE; tileY < end * ORIENTATION_TILE_SIZE && tileY < newHeight; tileY += ORIENTATION_TILE_SIZE) {
+		tileBottom = tileY + ORIENTATION_TILE_SIZE;
+		if (tileBottom > newHeight) {
+			tileBottom = newHeight;
+		}
+		for (tileX = 0; tileX < newWidth; tileX += ORIENTATION_TILE_SIZE) {
+			tileRight = tileX + ORIENTATION_TILE_SIZE;
+			if (tileRight > newWidth) {
+				tileRight = newWidth;
+			}
+			for (y = tileY; y < tileBottom; y++) {
+				newRow = oriented + (y * newWidth);
+				oldPos = (*orient).start + (y * stepY) + (tileX * stepX);
+				for (x = tileX; x < tileRight; x++, oldPos += stepX) {
+					newRow[x] = pixels[oldPos];
+				}
 			}
 		}
 	}
+}
 
-	if (doGreen) {
-		unsigned char topG;
-		int width = (*bitmap).greenWidth;
-		int height = (*bitmap).greenHeight;
-		for (y = 0; y < height/2; y++) {
+// The orientations that keep the width and height are all made of swapping pixels in pairs so they're done in place.
+// Rows are either reversed where they are or swapped with the row the same distance from the bottom, reversed or not.
+static void orientRowsInPlace(void* args, unsigned int start, unsigned int end) {
+	OrientArgs* orient = (OrientArgs*) args;
+	unsigned char* pixels = (*orient).pixels;
+	int width = (*orient).width;
+	int height = (*orient).height;
+	int swapRows = ((*orient).orientation & ORIENTATION_ROTATION_MASK) == 2;
+	int reverse = swapRows ^ (((*orient).orientation & ORIENTATION_FLIPPED) != 0);
+
+	unsigned char temp;
+	unsigned char* top;
+	unsigned char* bottom;
+	unsigned int y;
+	int x;
+	for (y = start; y < end; y++) {
+		top = pixels + (y * width);
+		bottom = swapRows ? pixels + ((height - 1 - y) * width) : top;
+		if (top == bottom) {
+			if (reverse) {
+				for (x = 0; x < width / 2; x++) {
+					temp = top[x];
+					top[x] = top[width - 1 - x];
+					top[width - 1 - x] = temp;
+				}
+			}
+		} else if (reverse) {
 			for (x = 0; x < width; x++) {
-				topPos = (y * width) + x;
-				bottomPos = (((height - 1) - y) * width) + x;
-				// Copy the green component from the top row
-				topG = (*bitmap).green[topPos];
-				// Copy green component from bottom row to top row
-				(*bitmap).green[topPos] = (*bitmap).green[bottomPos];
-				// Copy original top row green component to the bottom row
-				(*bitmap).green[bottomPos] = topG;
+				temp = top[x];
+				top[x] = bottom[width - 1 - x];
+				bottom[width - 1 - x] = temp;
 			}
-		}
-	}
-
-	if (doBlue) {
-		unsigned char topB;
-		int width = (*bitmap).blueWidth;
-		int height = (*bitmap).blueHeight;
-		for (y = 0; y < height/2; y++) {
+		} else {
 			for (x = 0; x < width; x++) {
-				topPos = (y * width) + x;
-				bottomPos = (((height - 1) - y) * width) + x;
-				// Copy the blue component from the top row
-				topB = (*bitmap).blue[topPos];
-				// Copy blue component from bottom row to top row
-				(*bitmap).blue[topPos] = (*bitmap).blue[bottomPos];
-				// Copy original top row blue component to the bottom row
-				(*bitmap).blue[bottomPos] = topB;
+				temp = top[x];
+				top[x] = bottom[x];
+				bottom[x] = temp;
 			}
 		}
 	}
 }
 
-// Rotates a colour component by 90 degrees clockwise
-// The rotated values are inside unsigned char* rotated
-static void rotate90Component(unsigned char* componentPixels, unsigned char* rotated, int width, int height) {
-	int x, y, newPos, oldPos;
-
-	for (y = 0; y < height; y++) {
-		for (x = 0; x < width; x++) {
-			newPos = (x * height) + (height - y - 1);
-			oldPos = (y * width) + x;
-
-			rotated[newPos] = componentPixels[oldPos];
+// Puts a colour component into an orientation.
+// If the width and height are swapped the oriented component is written to scratch, which must be big enough to hold it,
+// and the two are swapped so the old pixels become the scratch space for the next component.
+static void orientBitmapComponent(unsigned char** componentPixels, unsigned int* width, unsigned int* height, int orientation, unsigned char** scratch) {
+	OrientArgs args;
+	args.pixels = *componentPixels;
+	args.width = *width;
+	args.height = *height;
+	args.orientation = orientation;
+
+	if (orientation & 1) {
+		// The source position is linear in x and y so it can be stepped through
+		args.oriented = *scratch;
+		args.start = orientedSourcePosition(orientation, *width, *height, 0, 0);
+		args.stepX = orientedSourcePosition(orientation, *width, *height, 1, 0) - args.start;
+		args.stepY = orientedSourcePosition(orientation, *width, *height, 0, 1) - args.start;
+
+		unsigned int tileRows = (*width + ORIENTATION_TILE_SIZE - 1) / ORIENTATION_TILE_SIZE;
+		runParallel(tileRows, PIXELS_PER_STRIP / (ORIENTATION_TILE_SIZE * *height) + 1, orientTileRows, &args);
+
+		*scratch = *componentPixels;
+		*componentPixels = args.oriented;
+
+		unsigned int temp = *width;
+		*width = *height;
+		*height = temp;
+	} else {
+		unsigned int rows = *height;
+		if ((orientation & ORIENTATION_ROTATION_MASK) == 2) {
+			rows = (*height + 1) / 2;
 		}
+		runParallel(rows, PIXELS_PER_STRIP / *width + 1, orientRowsInPlace, &args);
 	}
 }
 
-// Rotates an entire bitmap or just individual colour components by 90 degrees clockwise
-// Use the parameter flags to indicate which colour components should be rotated.
-//TODO what about the bitmaps width and height being swapped?
-int rotate90(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
-	unsigned char* rotatedRed;
-	unsigned char* rotatedGreen;
-	unsigned char* rotatedBlue;
+// Puts an entire bitmap or just individual colour components into one of the 8 orientations with a single pass,
+// however many flips and rotations were composed into it.
+// Only one extra component's worth of memory is needed, and none at all if the width and height don't change.
+int applyOrientation(Bitmap* bitmap, int orientation, int doRed, int doGreen, int doBlue) {
+	unsigned char* scratch = NULL;
+	orientation &= ORIENTATION_ROTATION_MASK | ORIENTATION_FLIPPED;
+	if (orientation == 0) {
+		return MEMORY_OK;
+	}
 
-	if (doRed) {
-		int returnCode = newUnsignedCharArray((*bitmap).redWidth * (*bitmap).redHeight, &rotatedRed);
+	if (orientation & 1) {
+		unsigned int scratchSize = 0;
+		if (doRed && (*bitmap).redWidth * (*bitmap).redHeight > scratchSize) {
+			scratchSize = (*bitmap).redWidth * (*bitmap).redHeight;
+		}
+		if (doGreen && (*bitmap).greenWidth * (*bitmap).greenHeight > scratchSize) {
+			scratchSize = (*bitmap).greenWidth * (*bitmap).greenHeight;
+		}
+		if (doBlue && (*bitmap).blueWidth * (*bitmap).blueHeight > scratchSize) {
+			scratchSize = (*bitmap).blueWidth * (*bitmap).blueHeight;
+		}
+
+		int returnCode = newUnsignedCharArray(scratchSize, &scratch);
 		if (returnCode != MEMORY_OK) {
 			return returnCode;
 		}
+	}
 
-		rotate90Component((*bitmap).red, rotatedRed, (*bitmap).redWidth, (*bitmap).redHeight);
-
-		freeUnsignedCharArray(&(*bitmap).red);
-		(*bitmap).red = rotatedRed;
-
-		//Swap the red dimensions
-		int temp = (*bitmap).redWidth;
-		(*bitmap).redWidth = (*bitmap).redHeight;
-		(*bitmap).redHeight = temp;
+	if (doRed) {
+		orientBitmapComponent(&(*bitmap).red, &(*bitmap).redWidth, &(*bitmap).redHeight, orientation, &scratch);
 	}
 
 	if (doGreen) {
-		int returnCode = newUnsignedCharArray((*bitmap).greenWidth * (*bitmap).greenHeight, &rotatedGreen);
-		if (returnCode != MEMORY_OK) {
-			freeUnsignedCharArray(&rotatedRed);
-			return returnCode;
-		}
-
-		rotate90Component((*bitmap).green, rotatedGreen, (*bitmap).greenWidth, (*bitmap).greenHeight);
+		orientBitmapComponent(&(*bitmap).green, &(*bitmap).greenWidth, &(*bitmap).greenHeight, orientation, &scratch);
+	}
 
-		freeUnsignedCharArray(&(*bitmap).green);
-		(*bitmap).green = rotatedGreen;
+	if (doBlue) {
+		orientBitmapComponent(&(*bitmap).blue, &(*bitmap).blueWidth, &(*bitmap).blueHeight, orientation, &scratch);
+	}
 
-		//Swap the green dimensions
-		int temp = (*bitmap).greenWidth;
-		(*bitmap).greenWidth = (*bitmap).greenHeight;
-		(*bitmap).greenHeight = temp;
+	if (scratch != NULL) {
+		freeUnsignedCharArray(&scratch);
 	}
 
-	if (doBlue) {
-		int returnCode = newUnsignedCharArray((*bitmap).blueWidth * (*bitmap).blueHeight, &rotatedBlue);
-		if (returnCode != MEMORY_OK) {
-			freeUnsignedCharArray(&rotatedRed);
-			freeUnsignedCharArray(&rotatedGreen);
-			return returnCode;
-		}
+	return MEMORY_OK;
+}
 
-		rotate90Component((*bitmap).blue, rotatedBlue, (*bitmap).blueWidth, (*bitmap).blueHeight);
+// In memory horizontal flip
+// Can perform flip on entire bitmap on specific colour components specified using the parameter flags
+void flipHorizontally(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	applyOrientation(bitmap, ORIENTATION_FLIPPED, doRed, doGreen, doBlue);
+}
 
-		freeUnsignedCharArray(&(*bitmap).blue);
-		(*bitmap).blue = rotatedBlue;
+// In memory vertical flip
+// Can perform flip on entire bitmap on specific colour components specified using the parameter flags
+void flipVertically(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	applyOrientation(bitmap, ORIENTATION_FLIPPED | 2, doRed, doGreen, doBlue);
+}
 
-		//Swap the blue dimensions
-		int temp = (*bitmap).blueWidth;
-		(*bitmap).blueWidth = (*bitmap).blueHeight;
-		(*bitmap).blueHeight = temp;
-	}
+// Rotates an entire bitmap or just individual colour components by 90 degrees clockwise
+// Use the parameter flags to indicate which colour components should be rotated.
+//TODO what about the bitmaps width and height being swapped?
+int rotate90(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
+	return applyOrientation(bitmap, 1, doRed, doGreen, doBlue);
 }
 
 // Performs an in-memory 180 degrees rotation of an entire bitmap or just a colour component
 void rotate180(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
-	flipVertically(bitmap, doRed, doGreen, doBlue);
-	flipHorizontally(bitmap, doRed, doGreen, doBlue);
+	applyOrientation(bitmap, 2, doRed, doGreen, doBlue);
 }
 
 // Crops a bitmap's colour component to new dimensions
@@ -367,24 +411,32 @@ int doTransforms(Bitmap* bitmap, int doRed, int doGreen, int doBlue) {
 		return MEMORY_OK;
 	}
 
+	// Runs of flips and rotations are composed and applied in one go, only a crop has to stop and apply them
+	int orientation = 0;
+	int returnCode;
 	int numTransforms = (*bitmap).transformList.size;
 	int i;
 	for (i = 0; i < numTransforms; i++) {
 		char type = (*bitmap).transformList.transforms[i];
-		if (type == FLIP_HORIZONTALLY) {
-			flipHorizontally(bitmap, doRed, doGreen, doBlue);
-		} else if (type == FLIP_VERTICALLY) {
-			flipVertically(bitmap, doRed, doGreen, doBlue);
-		} else if (type == ROTATE_90) {
-			rotate90(bitmap, doRed, doGreen, doBlue);
-		} else if (type == ROTATE_180) {
-			rotate180(bitmap, doRed, doGreen, doBlue);
-		} else if (type == CROP) {
+		if (type == CROP) {
+			returnCode = applyOrientation(bitmap, orientation, doRed, doGreen, doBlue);
+			if (returnCode != MEMORY_OK) {
+				return returnCode;
+			}
+			orientation = 0;
+
 			float left = (*bitmap).transformList.cropBounds[0];
 			float top = (*bitmap).transformList.cropBounds[1];
 			float right = (*bitmap).transformList.cropBounds[2];
 			float bottom = (*bitmap).transformList.cropBounds[3];
-			crop(bitmap, &left, &top, &right, &bottom, doRed, doGreen, doBlue);
+			returnCode = crop(bitmap, &left, &top, &right, &bottom, doRed, doGreen, doBlue);
+			if (returnCode != MEMORY_OK) {
+				return returnCode;
+			}
+		} else {
+			orientation = composeOrientation(orientation, type);
 		}
 	}
+
+	return applyOrientation(bitmap, orientation, doRed, doGreen, doBlue);
 }
@@ -24,8 +24,36 @@ static const char ROTATE_90 = 'r';
 static const char ROTATE_180 = 'u';
 static const char CROP = 'c';
 
+// The flips and rotations reduce to one of 8 orientations: bits 0 and 1 are the number of
+// clockwise quarter turns and bit 2 is set when the image is flipped horizontally before turning.
+// Must match com.lightbox.android.photoprocessing.Orientation
+static const int ORIENTATION_ROTATION_MASK = 3;
+static const int ORIENTATION_FLIPPED = 4;
+
 typedef struct {
 	float cropBounds[4]; //left, top, right, bottom
 	unsigned char* transforms;
 	int size;
 } TransformList;
+
+struct Bitmap;
+
+// Transforms are recorded on the bitmap as they're made, doTransforms() applies them all in one go
+void expandTransformListByOne(struct Bitmap* bitmap);
+void addTransformFlipHorizontally(struct Bitmap* bitmap);
+void addTransformFlipVertically(struct Bitmap* bitmap);
+void addTransformRotate90(struct Bitmap* bitmap);
+void addTransformRotate180(struct Bitmap* bitmap);
+void addTransformCrop(struct Bitmap* bitmap, float* left, float* top, float* right, float* bottom);
+int doTransforms(struct Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+
+// Adds a flip or rotation to one of the 8 orientations
+int composeOrientation(int orientation, char type);
+
+// The ones that return an int return MEMORY_OK or the error from allocating the space they needed
+int applyOrientation(struct Bitmap* bitmap, int orientation, int doRed, int doGreen, int doBlue);
+void flipHorizontally(struct Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+void flipVertically(struct Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+int rotate90(struct Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+void rotate180(struct Bitmap* bitmap, int doRed, int doGreen, int doBlue);
+int crop(struct Bitmap* bitmap, float* leftPtr, float* topPtr, float* rightPtr, float* bottomPtr, int doRed, int doGreen, int doBlue);
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * FilterResultCache
+ * Keeps filtered previews so going back to a filter that's already been tried doesn't render it again.
+ * Results are held in native memory and moved to raw planes files in a directory when they're evicted from it,
+ * the files are evicted in turn once they take up more than the disk budget. Both are least recently used first.
+ * The files are named after their key so they're found again after the process is restarted.
+ */
+public class FilterResultCache {
+	/** Used to tag logs */
+	private static final String TAG = "FilterResultCache";
+
+	private static final String FILE_EXTENSION = ".planes";
+	/** A red, green and blue byte per pixel */
+	private static final int BYTES_PER_PIXEL = 3;
+
+	private final File mDir;
+	private final long mMaxMemoryBytes;
+	private final long mMaxDiskBytes;
+
+	private final LinkedHashMap<Key, NativeImage> mMemory = new LinkedHashMap<Key, NativeImage>(16, 0.75f, true);
+	private long mMemoryBytes = 0;
+	// File names to their sizes
+	private final LinkedHashMap<String, Long> mDisk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mDiskBytes = 0;
+
+	private int mMemoryHits = 0;
+	private int mDiskHits = 0;
+	private int mMisses = 0;
+	private int mMemoryEvictions = 0;
+	private int mDiskEvictions = 0;
+
+	/**
+	 * A filtered preview of a photo. The photo is identified by its size and when it was modified
+	 * as well as its path so a result isn't used after the file has changed. The size of the preview base
+	 * is part of it too, the files outlive the process and the base is decoded to fit the screen of the time.
+	 */
+	public static class Key {
+		private final String mPath;
+		private final long mLastModified;
+		private final long mLength;
+		private final int mBaseWidth;
+		private final int mBaseHeight;
+		private final int mFilter;
+		private final int mOrientation;
+
+		/**
+		 * @param baseWidth the width of the preview base the result is rendered from
+		 * @param filter the index of the filter in {@link PhotoProcessing#FILTERS}
+		 * @param orientation the edit actions reduced to a single orientation
+		 */
+		public Key(String path, int baseWidth, int baseHeight, int filter, Orientation orientation) {
+			File file = new File(path);
+			mPath = path;
+			mLastModified = file.lastModified();
+			mLength = file.length();
+			mBaseWidth = baseWidth;
+			mBaseHeight = baseHeight;
+			mFilter = filter;
+			mOrientation = orientation.getCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)o;
+			return mLastModified == other.mLastModified && mLength == other.mLength && mBaseWidth == other.mBaseWidth
+					&& mBaseHeight == other.mBaseHeight && mFilter == other.mFilter && mOrientation == other.mOrientation
+					&& mPath.equals(other.mPath);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = mPath.hashCode();
+			hash = hash * 31 + (int)(mLastModified ^ (mLastModified >>> 32));
+			hash = hash * 31 + (int)(mLength ^ (mLength >>> 32));
+			hash = hash * 31 + mBaseWidth;
+			hash = hash * 31 + mBaseHeight;
+			hash = hash * 31 + mFilter;
+			return hash * 31 + mOrientation;
+		}
+
+		@Override
+		public String toString() {
+			return mPath + ":" + mLastModified + ":" + mLength + ":" + mBaseWidth + "x" + mBaseHeight + ":" + mFilter + ":" + mOrientation;
+		}
+
+		private String getFileName() {
+			try {
+				byte[] digest = MessageDigest.getInstance("MD5").digest(toString().getBytes());
+				StringBuilder name = new StringBuilder(digest.length * 2 + FILE_EXTENSION.length());
+				for (byte b : digest) {
+					name.append(Character.forDigit((b >> 4) & 0xF, 16));
+					name.append(Character.forDigit(b & 0xF, 16));
+				}
+				return name.append(FILE_EXTENSION).toString();
+			} catch (NoSuchAlgorithmException e) {
+				return Integer.toHexString(toString().hashCode()) + FILE_EXTENSION;
+			}
+		}
+	}
+
+	/**
+	 * @param dir where the results evicted from memory are kept, it shouldn't be used for anything else
+	 * @param maxMemoryBytes the most native memory the results can take up, the result most recently
+	 * used is always kept even if it's bigger than this on its own
+	 * @param maxDiskBytes the most space the files in dir can take up
+	 */
+	public FilterResultCache(File dir, long maxMemoryBytes, long maxDiskBytes) {
+		mDir = dir;
+		mMaxMemoryBytes = maxMemoryBytes;
+		mMaxDiskBytes = maxDiskBytes;
+
+		mDir.mkdirs();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			// Oldest first so they're evicted in the same order they would have been before
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File lhs, File rhs) {
+					long difference = lhs.lastModified() - rhs.lastModified();
+					return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+				}
+			});
+			for (File file : files) {
+				if (file.getName().endsWith(FILE_EXTENSION)) {
+					mDisk.put(file.getName(), file.length());
+					mDiskBytes += file.length();
+				}
+			}
+			trimDisk();
+		}
+	}
+
+	/**
+	 * Looks up the result a preview is after, this is the lookup counted as a hit or a miss
+	 * @return a new bitmap with the result or null if it isn't cached
+	 */
+	public synchronized Bitmap get(Key key) {
+		NativeImage image = find(key, true);
+		return (image != null) ? PhotoProcessing.getBitmapFromNative(image, null) : null;
+	}
+
+	/**
+	 * Looks up a result to make another one from, like the one showing before an edit. It isn't counted in the hits
+	 * and misses as the same preview has already been counted by {@link #get(Key)}.
+	 * @return a copy of the result which belongs to the caller or null if it isn't cached
+	 */
+	public synchronized NativeImage copy(Key key) {
+		NativeImage image = find(key, false);
+		return (image != null) ? image.copy() : null;
+	}
+
+	/**
+	 * Adds a result, the cache takes ownership of the image and closes it when it's evicted
+	 */
+	public synchronized void put(Key key, NativeImage image) {
+		putInMemory(key, image);
+	}
+
+	/** Closes the results in memory and deletes the files */
+	public synchronized void clear() {
+		for (NativeImage image : mMemory.values()) {
+			image.close();
+		}
+		mMemory.clear();
+		mMemoryBytes = 0;
+
+		for (String fileName : mDisk.keySet()) {
+			new File(mDir, fileName).delete();
+		}
+		mDisk.clear();
+		mDiskBytes = 0;
+	}
+
+	public synchronized int getMemoryHitCount() {
+		return mMemoryHits;
+	}
+
+	public synchronized int getDiskHitCount() {
+		return mDiskHits;
+	}
+
+	public synchronized int getMissCount() {
+		return mMisses;
+	}
+
+	/** @return how many results have been moved out of memory, whether or not they could be written to disk */
+	public synchronized int getMemoryEvictionCount() {
+		return mMemoryEvictions;
+	}
+
+	public synchronized int getDiskEvictionCount() {
+		return mDiskEvictions;
+	}
+
+	public synchronized long getMemoryBytes() {
+		return mMemoryBytes;
+	}
+
+	public synchronized long getDiskBytes() {
+		return mDiskBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "FilterResultCache[memoryHits=" + mMemoryHits + ", diskHits=" + mDiskHits + ", misses=" + mMisses
+				+ ", memoryEvictions=" + mMemoryEvictions + ", diskEvictions=" + mDiskEvictions
+				+ ", memoryBytes=" + mMemoryBytes + ", diskBytes=" + mDiskBytes + "]";
+	}
+
+	// Results found on disk are moved back into memory
+	private NativeImage find(Key key, boolean counted) {
+		NativeImage image = mMemory.get(key);
+		if (image != null) {
+			if (counted) {
+				mMemoryHits++;
+			}
+			return image;
+		}
+
+		String fileName = key.getFileName();
+		if (mDisk.get(fileName) != null) {
+			File file = new File(mDir, fileName);
+			try {
+				image = NativeImage.readPlanes(file.getAbsolutePath());
+				file.setLastModified(System.currentTimeMillis());
+				if (counted) {
+					mDiskHits++;
+				}
+				putInMemory(key, image);
+				return image;
+			} catch (IOException e) {
+				Log.w(TAG, e);
+				deleteFile(fileName);
+			}
+		}
+
+		if (counted) {
+			mMisses++;
+		}
+		return null;
+	}
+
+	private void putInMemory(Key key, NativeImage image) {
+		NativeImage previous = mMemory.put(key, image);
+		if (previous != null) {
+			mMemoryBytes -= getBytes(previous);
+			previous.close();
+		}
+		mMemoryBytes += getBytes(image);
+		trimMemory();
+	}
+
+	// The newest result is the one just used so it's never evicted
+	private void trimMemory() {
+		Iterator<Map.Entry<Key, NativeImage>> iterator = mMemory.entrySet().iterator();
+		while (mMemoryBytes > mMaxMemoryBytes && mMemory.size() > 1) {
+			Map.Entry<Key, NativeImage> entry = iterator.next();
+			NativeImage image = entry.getValue();
+			iterator.remove();
+			mMemoryBytes -= getBytes(image);
+			mMemoryEvictions++;
+
+			String fileName = entry.getKey().getFileName();
+			if (!mDisk.containsKey(fileName)) {
+				writeFile(fileName, image);
+			}
+			image.close();
+		}
+	}
+
+	private void writeFile(String fileName, NativeImage image) {
+		File file = new File(mDir, fileName);
+		try {
+			image.writePlanes(file.getAbsolutePath());
+			mDisk.put(fileName, file.length());
+			mDiskBytes += file.length();
+			trimDisk();
+		} catch (IOException e) {
+			Log.w(TAG, e);
+			file.delete();
+		}
+	}
+
+	private void trimDisk() {
+		Iterator<Map.Entry<String, Long>> iterator = mDisk.entrySet().iterator();
+		while (mDiskBytes > mMaxDiskBytes && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			new File(mDir, entry.getKey()).delete();
+			mDiskBytes -= entry.getValue();
+			iterator.remove();
+			mDiskEvictions++;
+		}
+	}
+
+	private void deleteFile(String fileName) {
+		Long size = mDisk.remove(fileName);
+		if (size != null) {
+			mDiskBytes -= size;
+		}
+		new File(mDir, fileName).delete();
+	}
+
+	private static long getBytes(NativeImage image) {
+		return (long)image.getWidth() * image.getHeight() * BYTES_PER_PIXEL;
+	}
+}
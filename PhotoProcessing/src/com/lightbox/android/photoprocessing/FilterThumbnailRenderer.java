@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * FilterThumbnailRenderer
+ * Renders a small thumbnail of a photo through every filter in {@link PhotoProcessing#FILTERS} on a fixed number
+ * of background threads. The photo is shrunk to the thumbnail size once and each filter works on a copy of that.
+ * Thumbnails are handed to the listener on the main thread as each one finishes, and starting on a new photo
+ * cancels whatever is left of the last one.
+ */
+public class FilterThumbnailRenderer {
+	/** Used to tag logs */
+	private static final String TAG = "FilterThumbnailRenderer";
+
+	/** How long a whole set of thumbnails should take, anything slower is logged */
+	public static final long LATENCY_BUDGET_MILLIS = 500;
+
+	public interface Listener {
+		/** Called on the main thread as soon as the thumbnail for a filter is ready */
+		void onThumbnailRendered(int position, Bitmap thumbnail);
+
+		/** Called on the main thread once the thumbnails for every filter have been rendered */
+		void onThumbnailsFinished(long elapsedMillis);
+	}
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private Batch mBatch;
+
+	/**
+	 * @param threadCount how many thumbnails are rendered at once
+	 */
+	public FilterThumbnailRenderer(int threadCount) {
+		mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, TAG);
+			}
+		});
+	}
+
+	/**
+	 * Starts rendering the thumbnails for a photo and cancels any still being rendered for the last one.
+	 * Must be called on the main thread.
+	 * @param source the photo, which the renderer takes ownership of. A small level from
+	 * {@link PreviewCache#copyLevelForSize(String, int, int)} saves shrinking it from the full preview.
+	 * @param orientation applied to the thumbnails after they're shrunk
+	 * @param size the longest side of the thumbnails in pixels
+	 */
+	public void render(NativeImage source, Orientation orientation, int size, Listener listener) {
+		cancel();
+		mBatch = new Batch(source, orientation, size, listener);
+		mExecutor.execute(mBatch);
+	}
+
+	/**
+	 * Stops the thumbnails still to be rendered, none of them are passed to the listener after this.
+	 * Must be called on the main thread.
+	 */
+	public void cancel() {
+		if (mBatch != null) {
+			mBatch.mCancelled = true;
+			mBatch = null;
+		}
+	}
+
+	/** The thumbnails for a single photo, they all share the shrunk source */
+	private class Batch implements Runnable {
+		private final NativeImage mSource;
+		private final Orientation mOrientation;
+		private final int mSize;
+		private final Listener mListener;
+		private final long mStartTime = SystemClock.uptimeMillis();
+		private volatile boolean mCancelled = false;
+		private int mRemaining = PhotoProcessing.FILTERS.length;
+
+		public Batch(NativeImage source, Orientation orientation, int size, Listener listener) {
+			mSource = source;
+			mOrientation = orientation;
+			mSize = size;
+			mListener = listener;
+		}
+
+		// Shrinks the source then queues a job for each filter
+		@Override
+		public void run() {
+			if (mCancelled) {
+				mSource.close();
+				return;
+			}
+
+			int width = mSource.getWidth();
+			int height = mSource.getHeight();
+			try {
+				if (width > mSize || height > mSize) {
+					if (width >= height) {
+						height = Math.max(1, height * mSize / width);
+						width = mSize;
+					} else {
+						width = Math.max(1, width * mSize / height);
+						height = mSize;
+					}
+					mSource.resize(width, height);
+				}
+				mSource.applyOrientation(mOrientation);
+			} catch (OutOfMemoryError e) {
+				// Thrown on the executor it would take the app down, the filters are still shown without thumbnails.
+				// No jobs were queued to close it.
+				Log.w(TAG, "Not enough memory to shrink the photo for the thumbnails", e);
+				mSource.close();
+				return;
+			}
+
+			for (int i = 0; i < PhotoProcessing.FILTERS.length; i++) {
+				mExecutor.execute(new FilterJob(this, i));
+			}
+		}
+
+		private synchronized NativeImage copySource() {
+			return mSource.copy();
+		}
+
+		// The source is closed once every job has finished with it
+		private void jobDone() {
+			boolean finished;
+			synchronized (this) {
+				finished = (--mRemaining == 0);
+				if (finished) {
+					mSource.close();
+				}
+			}
+
+			if (finished && !mCancelled) {
+				final long elapsed = SystemClock.uptimeMillis() - mStartTime;
+				if (elapsed > LATENCY_BUDGET_MILLIS) {
+					Log.w(TAG, "Rendering the thumbnails took " + elapsed + "ms, over the budget of " + LATENCY_BUDGET_MILLIS + "ms");
+				}
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (!mCancelled) {
+							mListener.onThumbnailsFinished(elapsed);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	private class FilterJob implements Runnable {
+		private final Batch mBatch;
+		private final int mPosition;
+
+		public FilterJob(Batch batch, int position) {
+			mBatch = batch;
+			mPosition = position;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (mBatch.mCancelled) {
+					return;
+				}
+
+				final Bitmap thumbnail;
+				try {
+					NativeImage image = mBatch.copySource();
+					try {
+						thumbnail = PhotoProcessing.filterPhoto(image, mPosition);
+					} finally {
+						image.close();
+					}
+				} catch (OutOfMemoryError e) {
+					// Like RenderScheduler the other jobs can still have enough, this filter is left without a thumbnail
+					Log.w(TAG, "Not enough memory for the thumbnail of filter " + mPosition, e);
+					return;
+				}
+
+				// Checked again on the main thread as that's where the batch is cancelled
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (!mBatch.mCancelled) {
+							mBatch.mListener.onThumbnailRendered(mPosition, thumbnail);
+						}
+					}
+				});
+			} finally {
+				mBatch.jobDone();
+			}
+		}
+	}
+}
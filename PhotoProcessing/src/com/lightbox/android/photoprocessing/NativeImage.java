@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * NativeImage
+ * A bitmap held in native memory and referenced through an opaque handle.
+ * Every instance owns its own pixels so different images can be processed on different threads,
+ * but a single instance must only be used by one thread at a time.
+ */
+public class NativeImage implements Closeable {
+	/** Used to tag logs */
+	@SuppressWarnings("unused")
+	private static final String TAG = "NativeImage";
+
+	private long mHandle;
+
+	public NativeImage(int width, int height) {
+		this(initBitmap(width, height));
+	}
+
+	private NativeImage(long handle) {
+		if (handle == 0) {
+			throw new OutOfMemoryError("Unable to allocate native bitmap");
+		}
+		mHandle = handle;
+	}
+
+	public static NativeImage loadResizedJpeg(byte[] jpegData, int size, int maxPixels) throws IOException {
+		StageTimer timer = StageTimer.start();
+		long handle;
+		try {
+			StageTimer.countJniCall();
+			handle = nativeLoadResizedJpegBitmap(jpegData, size, maxPixels);
+		} finally {
+			stopLoad(timer);
+		}
+		if (handle == 0) {
+			throw new IOException("Unable to decode jpeg");
+		}
+		return new NativeImage(handle);
+	}
+
+	/**
+	 * Decodes a jpeg file straight from a memory mapping, none of it is read into the Java heap
+	 */
+	public static NativeImage loadResizedJpeg(String jpegPath, int maxPixels) throws IOException {
+		StageTimer timer = StageTimer.start();
+		long handle;
+		try {
+			StageTimer.countJniCall();
+			handle = nativeLoadResizedJpegFile(jpegPath, maxPixels);
+		} finally {
+			stopLoad(timer);
+		}
+		if (handle == 0) {
+			throw new IOException("Unable to decode jpeg " + jpegPath);
+		}
+		return new NativeImage(handle);
+	}
+
+	/**
+	 * Decodes, filters and encodes a jpeg at its full size without ever holding the whole image in memory,
+	 * the memory used depends on the width of the image and not its height.
+	 * The orientation is written to the exif data of the new jpeg rather than applied to the pixels.
+	 * @param filter the index of the filter in {@link PhotoProcessing#FILTERS}
+	 * @param quality 0 to 100 like {@link android.graphics.Bitmap#compress}
+	 * @throws IOException if the jpeg can't be decoded this way or the new one can't be written
+	 */
+	public static void exportJpeg(byte[] jpegData, int size, int filter, Orientation orientation, int quality, String outputPath) throws IOException {
+		StageTimer timer = StageTimer.start();
+		int resultCode;
+		try {
+			StageTimer.countJniCall();
+			resultCode = nativeExportJpeg(jpegData, size, filter, orientation.getCode(), quality, outputPath);
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_EXPORT);
+		}
+		if (resultCode != 0) {
+			throw new IOException("Unable to export jpeg resultCode=" + resultCode);
+		}
+	}
+
+	/**
+	 * Same as {@link #exportJpeg(byte[], int, int, Orientation, int, String)} but the jpeg is memory mapped
+	 * from a file rather than read into the Java heap
+	 */
+	public static void exportJpeg(String jpegPath, int filter, Orientation orientation, int quality, String outputPath) throws IOException {
+		StageTimer timer = StageTimer.start();
+		int resultCode;
+		try {
+			StageTimer.countJniCall();
+			resultCode = nativeExportJpegFile(jpegPath, filter, orientation.getCode(), quality, outputPath);
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_EXPORT);
+		}
+		if (resultCode != 0) {
+			throw new IOException("Unable to export jpeg " + jpegPath + " resultCode=" + resultCode);
+		}
+	}
+
+	/**
+	 * Reads an image written by {@link #writePlanes(String)}, there's nothing to decode so it's
+	 * only as slow as reading the file
+	 */
+	public static NativeImage readPlanes(String path) throws IOException {
+		StageTimer timer = StageTimer.start();
+		long handle;
+		try {
+			StageTimer.countJniCall();
+			handle = nativeReadBitmapPlanes(path);
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_LOAD);
+		}
+		if (handle == 0) {
+			throw new IOException("Unable to read bitmap planes " + path);
+		}
+		return new NativeImage(handle);
+	}
+
+	public int getWidth() {
+		return nativeGetBitmapWidth(getHandle());
+	}
+
+	public int getHeight() {
+		return nativeGetBitmapHeight(getHandle());
+	}
+
+	public void getRow(int y, int[] pixels) {
+		nativeGetBitmapRow(getHandle(), y, pixels);
+	}
+
+	public void setRow(int y, int[] pixels) {
+		nativeSetBitmapRow(getHandle(), y, pixels);
+	}
+
+	/**
+	 * Allocates a direct buffer in native memory big enough to hold the whole image as r, g, b, a bytes.
+	 * The buffer must be released with {@link #freePixelBuffer(ByteBuffer)}.
+	 * @return the buffer or null if it could not be allocated
+	 */
+	public ByteBuffer allocatePixelBuffer() {
+		return nativeAllocatePixelBuffer(getHandle());
+	}
+
+	public static void freePixelBuffer(ByteBuffer buffer) {
+		StageTimer.countJniCall();
+		nativeFreePixelBuffer(buffer);
+	}
+
+	public void getPixels(ByteBuffer buffer) {
+		nativeGetBitmapPixels(getHandle(), buffer);
+	}
+
+	public void setPixels(ByteBuffer buffer) {
+		nativeSetBitmapPixels(getHandle(), buffer);
+	}
+
+	/**
+	 * @throws OutOfMemoryError if there wasn't the native memory for the rotated copy, the image is left as it was
+	 */
+	public void rotate90() {
+		StageTimer timer = StageTimer.start();
+		int resultCode;
+		try {
+			resultCode = nativeRotate90(getHandle());
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_TRANSFORM);
+		}
+		if (resultCode != 0) {
+			throw new OutOfMemoryError("Unable to rotate native bitmap resultCode=" + resultCode);
+		}
+	}
+
+	public void rotate180() {
+		StageTimer timer = StageTimer.start();
+		try {
+			nativeRotate180(getHandle());
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_TRANSFORM);
+		}
+	}
+
+	public void flipHorizontally() {
+		StageTimer timer = StageTimer.start();
+		try {
+			nativeFlipHorizontally(getHandle());
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_TRANSFORM);
+		}
+	}
+
+	/**
+	 * Flips and rotates the image into an orientation with a single copy of the pixels
+	 * @throws OutOfMemoryError if there wasn't the native memory for the copy, the image is left as it was
+	 */
+	public void applyOrientation(Orientation orientation) {
+		if (!orientation.isNormal()) {
+			StageTimer timer = StageTimer.start();
+			int resultCode;
+			try {
+				resultCode = nativeApplyOrientation(getHandle(), orientation.getCode());
+			} finally {
+				StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_TRANSFORM);
+			}
+			if (resultCode != 0) {
+				throw new OutOfMemoryError("Unable to orient native bitmap resultCode=" + resultCode);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the image as a jpeg straight from native memory
+	 * @param quality 0 to 100 like {@link android.graphics.Bitmap#compress}
+	 * @throws IOException if the jpeg can't be written
+	 */
+	public void compressJpeg(int quality, String outputPath) throws IOException {
+		StageTimer timer = StageTimer.start();
+		int resultCode;
+		try {
+			resultCode = nativeCompressJpeg(getHandle(), quality, outputPath);
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_ENCODE);
+		}
+		if (resultCode != 0) {
+			throw new IOException("Unable to compress jpeg resultCode=" + resultCode);
+		}
+	}
+
+	/**
+	 * Encodes the image as a jpeg straight from native memory into a new array
+	 * @param quality 0 to 100 like {@link android.graphics.Bitmap#compress}
+	 * @throws IOException if the jpeg can't be encoded
+	 */
+	public byte[] compressJpeg(int quality) throws IOException {
+		StageTimer timer = StageTimer.start();
+		byte[] jpegData;
+		try {
+			jpegData = nativeCompressJpegBytes(getHandle(), quality);
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_ENCODE);
+		}
+		if (jpegData == null) {
+			throw new IOException("Unable to compress jpeg");
+		}
+		return jpegData;
+	}
+
+	/**
+	 * Writes the red, green and blue planes to a file as they are in memory. The file can only be
+	 * read back with {@link #readPlanes(String)} on the same device.
+	 * @throws IOException if the file can't be written
+	 */
+	public void writePlanes(String outputPath) throws IOException {
+		int resultCode = nativeWriteBitmapPlanes(getHandle(), outputPath);
+		if (resultCode != 0) {
+			throw new IOException("Unable to write bitmap planes resultCode=" + resultCode);
+		}
+	}
+
+	/** @return a new image with a copy of the pixels, it has to be closed separately */
+	public NativeImage copy() {
+		return new NativeImage(nativeCopyBitmap(getHandle()));
+	}
+
+	/**
+	 * @return a new image half the width and height of this one, rounded up, with each pixel
+	 * the average of a 2x2 block. It has to be closed separately.
+	 */
+	public NativeImage halve() {
+		StageTimer timer = StageTimer.start();
+		long handle;
+		try {
+			handle = nativeHalveBitmap(getHandle());
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_RESIZE);
+		}
+		return new NativeImage(handle);
+	}
+
+	/**
+	 * @throws OutOfMemoryError if there wasn't the native memory for the resized copy, the image is left as it was
+	 */
+	public void resize(int newWidth, int newHeight) {
+		StageTimer timer = StageTimer.start();
+		int resultCode;
+		try {
+			resultCode = nativeResizeBitmap(getHandle(), newWidth, newHeight);
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_RESIZE);
+		}
+		if (resultCode != 0) {
+			throw new OutOfMemoryError("Unable to resize native bitmap resultCode=" + resultCode);
+		}
+	}
+
+	/**
+	 * Applies a filter in place
+	 * @param position the index of the filter in {@link PhotoProcessing#FILTERS}
+	 */
+	public void applyFilter(int position) {
+		StageTimer timer = StageTimer.start();
+		try {
+			long handle = getHandle();
+			switch (position) {
+			case 0: // Original
+				break;
+			case 1: // Instafix
+				nativeApplyInstafix(handle);
+				break;
+			case 2: // Ansel
+				nativeApplyAnsel(handle);
+				break;
+			case 3: // Testino
+				nativeApplyTestino(handle);
+				break;
+			case 4: // XPro
+				nativeApplyXPro(handle);
+				break;
+			case 5: // Retro
+				nativeApplyRetro(handle);
+				break;
+			case 6: // Black & White
+				nativeApplyBW(handle);
+				break;
+			case 7: // Sepia
+				nativeApplySepia(handle);
+				break;
+			case 8: // Cyano
+				nativeApplyCyano(handle);
+				break;
+			case 9: // Georgia
+				nativeApplyGeorgia(handle);
+				break;
+			case 10: // Sahara
+				nativeApplySahara(handle);
+				break;
+			case 11: // HDR
+				nativeApplyHDR(handle);
+				break;
+			}
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_FILTER);
+		}
+	}
+
+	/**
+	 * Sets how many threads the native filters split their work across.
+	 * @param threadCount the number of threads or 0 to use one per CPU core
+	 */
+	public static void setThreadCount(int threadCount) {
+		StageTimer.countJniCall();
+		nativeSetThreadCount(threadCount);
+	}
+
+	public static int getThreadCount() {
+		StageTimer.countJniCall();
+		return nativeGetThreadCount();
+	}
+
+	/** @return how many bytes the native library has allocated for images and while working on them, for the whole process */
+	public static long getNativeMemoryInUse() {
+		return nativeGetMemoryInUse();
+	}
+
+	/**
+	 * Makes a filter running on the image on another thread stop at the next strip it would have started,
+	 * the pixels are left part way through and any filter applied afterwards stops straight away too.
+	 * Unlike the other methods this can be called from any thread, but not at the same time as {@link #close()}.
+	 */
+	public void cancel() {
+		nativeCancel(getHandle());
+	}
+
+	public boolean isCancelled() {
+		return nativeIsCancelled(getHandle());
+	}
+
+	public boolean isClosed() {
+		return mHandle == 0;
+	}
+
+	/** Frees the native memory, the image can't be used afterwards */
+	@Override
+	public void close() {
+		if (mHandle != 0) {
+			StageTimer.countJniCall();
+			nativeDeleteBitmap(mHandle);
+			mHandle = 0;
+		}
+	}
+
+	// Every call into the native library on an image goes through here, so it's where they're counted
+	private long getHandle() {
+		if (mHandle == 0) {
+			throw new IllegalStateException("NativeImage has been closed");
+		}
+		StageTimer.countJniCall();
+		return mHandle;
+	}
+
+	private static long initBitmap(int width, int height) {
+		StageTimer.countJniCall();
+		return nativeInitBitmap(width, height);
+	}
+
+	// The decode and resize are timed inside the native load, they're reported before the load itself
+	private static void stopLoad(StageTimer timer) {
+		try {
+			if (timer != null) {
+				long[] nanos = new long[2];
+				nativeTakeStageTimes(nanos);
+				timer.reportNativeStage(PhotoProcessingMetrics.STAGE_DECODE, nanos[0]);
+				timer.reportNativeStage(PhotoProcessingMetrics.STAGE_RESIZE, nanos[1]);
+			}
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_LOAD);
+		}
+	}
+
+	static void setMetricsEnabled(boolean enabled) {
+		nativeSetMetricsEnabled(enabled);
+	}
+
+	static long getPeakMemoryInUse() {
+		return nativeGetPeakMemoryInUse();
+	}
+
+	static void resetPeakMemoryInUse() {
+		nativeResetPeakMemoryInUse();
+	}
+
+	///////////////////////////////////////////////
+
+	static {
+		System.loadLibrary("photoprocessing");
+	}
+
+	private static native long nativeInitBitmap(int width, int height);
+	private static native void nativeGetBitmapRow(long handle, int y, int[] pixels);
+	private static native void nativeSetBitmapRow(long handle, int y, int[] pixels);
+	private static native ByteBuffer nativeAllocatePixelBuffer(long handle);
+	private static native void nativeFreePixelBuffer(ByteBuffer buffer);
+	private static native void nativeGetBitmapPixels(long handle, ByteBuffer buffer);
+	private static native void nativeSetBitmapPixels(long handle, ByteBuffer buffer);
+	private static native int nativeGetBitmapWidth(long handle);
+	private static native int nativeGetBitmapHeight(long handle);
+	private static native void nativeDeleteBitmap(long handle);
+	private static native void nativeCancel(long handle);
+	private static native boolean nativeIsCancelled(long handle);
+	private static native int nativeRotate90(long handle);
+	private static native void nativeRotate180(long handle);
+	private static native void nativeFlipHorizontally(long handle);
+	private static native int nativeApplyOrientation(long handle, int orientation);
+
+	private static native void nativeApplyInstafix(long handle);
+	private static native void nativeApplyAnsel(long handle);
+	private static native void nativeApplyTestino(long handle);
+	private static native void nativeApplyXPro(long handle);
+	private static native void nativeApplyRetro(long handle);
+	private static native void nativeApplyBW(long handle);
+	private static native void nativeApplySepia(long handle);
+	private static native void nativeApplyCyano(long handle);
+	private static native void nativeApplyGeorgia(long handle);
+	private static native void nativeApplySahara(long handle);
+	private static native void nativeApplyHDR(long handle);
+
+	private static native long nativeLoadResizedJpegBitmap(byte[] jpegData, int size, int maxPixels);
+	private static native long nativeLoadResizedJpegFile(String jpegPath, int maxPixels);
+	private static native int nativeResizeBitmap(long handle, int newWidth, int newHeight);
+	private static native long nativeCopyBitmap(long handle);
+	private static native long nativeHalveBitmap(long handle);
+	private static native int nativeWriteBitmapPlanes(long handle, String outputPath);
+	private static native long nativeReadBitmapPlanes(String inputPath);
+	private static native int nativeCompressJpeg(long handle, int quality, String outputPath);
+	private static native byte[] nativeCompressJpegBytes(long handle, int quality);
+	private static native int nativeExportJpeg(byte[] jpegData, int size, int filter, int orientation, int quality, String outputPath);
+	private static native int nativeExportJpegFile(String jpegPath, int filter, int orientation, int quality, String outputPath);
+
+	private static native void nativeSetThreadCount(int threadCount);
+	private static native int nativeGetThreadCount();
+
+	private static native void nativeSetMetricsEnabled(boolean enabled);
+	private static native long nativeGetMemoryInUse();
+	private static native long nativeGetPeakMemoryInUse();
+	private static native void nativeResetPeakMemoryInUse();
+	private static native void nativeTakeStageTimes(long[] nanos);
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.util.List;
+
+/**
+ * Orientation
+ * One of the 8 ways an image can be flipped and rotated.
+ * Any number of flips and rotations compose into a single orientation so the pixels only have to be moved once.
+ */
+public final class Orientation {
+	/** Used to tag logs */
+	@SuppressWarnings("unused")
+	private static final String TAG = "Orientation";
+
+	// Bits 0 and 1 are the number of clockwise quarter turns, bit 2 is set when the image is flipped horizontally
+	// before it's turned. Must match transform.h
+	private static final int ROTATION_MASK = 3;
+	private static final int FLIPPED = 4;
+
+	private static final Orientation[] sOrientations = new Orientation[8];
+	static {
+		for (int i = 0; i < sOrientations.length; i++) {
+			sOrientations[i] = new Orientation(i);
+		}
+	}
+
+	public static final Orientation NORMAL = sOrientations[0];
+
+	private final int mCode;
+
+	private Orientation(int code) {
+		mCode = code;
+	}
+
+	/**
+	 * @param angle the clockwise rotation in degrees, anything other than 90, 180 or 270 is treated as 0
+	 */
+	public static Orientation fromAngle(int angle) {
+		return NORMAL.rotate(angle);
+	}
+
+	/**
+	 * @param editActions indexes into {@link PhotoProcessing#EDIT_ACTIONS} in the order they were applied
+	 */
+	public static Orientation fromEditActions(List<Integer> editActions) {
+		return NORMAL.applyEditActions(editActions);
+	}
+
+	/**
+	 * @return this orientation followed by a clockwise rotation
+	 */
+	public Orientation rotate(int angle) {
+		int turns;
+		switch (angle) {
+		case 90:
+			turns = 1;
+			break;
+		case 180:
+			turns = 2;
+			break;
+		case 270:
+			turns = 3;
+			break;
+		default:
+			return this;
+		}
+		return sOrientations[(mCode & FLIPPED) | ((mCode + turns) & ROTATION_MASK)];
+	}
+
+	/**
+	 * @return this orientation followed by a horizontal flip
+	 */
+	public Orientation flipHorizontally() {
+		// Flipping after turning is the same as flipping first and then turning the other way
+		return sOrientations[((mCode & FLIPPED) ^ FLIPPED) | (-mCode & ROTATION_MASK)];
+	}
+
+	/**
+	 * @param position the index of the edit action in {@link PhotoProcessing#EDIT_ACTIONS}
+	 * @return this orientation followed by the edit action
+	 */
+	public Orientation applyEditAction(int position) {
+		switch (position) {
+		case 0: // Flip
+			return flipHorizontally();
+		case 1: // Rotate 90 right
+			return rotate(90);
+		case 2: // Rotate 90 left
+			return rotate(270);
+		case 3: // Rotate 180
+			return rotate(180);
+		}
+		return this;
+	}
+
+	/**
+	 * @return this orientation followed by another one
+	 */
+	public Orientation then(Orientation next) {
+		Orientation orientation = ((next.mCode & FLIPPED) != 0) ? flipHorizontally() : this;
+		return orientation.rotate((next.mCode & ROTATION_MASK) * 90);
+	}
+
+	/**
+	 * @return the orientation which puts an image in this one back the way it was
+	 */
+	public Orientation inverse() {
+		// Flipping and then turning is undone by doing it again
+		return ((mCode & FLIPPED) != 0) ? this : sOrientations[-mCode & ROTATION_MASK];
+	}
+
+	public Orientation applyEditActions(List<Integer> editActions) {
+		Orientation orientation = this;
+		if (editActions != null) {
+			for (Integer editAction : editActions) {
+				orientation = orientation.applyEditAction(editAction);
+			}
+		}
+		return orientation;
+	}
+
+	public boolean isNormal() {
+		return mCode == 0;
+	}
+
+	/** @return true if the width and height of an image are swapped by this orientation */
+	public boolean swapsDimensions() {
+		return (mCode & 1) != 0;
+	}
+
+	int getCode() {
+		return mCode;
+	}
+
+	@Override
+	public String toString() {
+		return "Orientation[rotation=" + ((mCode & ROTATION_MASK) * 90) + ", flipped=" + ((mCode & FLIPPED) != 0) + "]";
+	}
+}
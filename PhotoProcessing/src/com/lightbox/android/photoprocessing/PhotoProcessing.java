@@ -16,8 +16,13 @@
 
 package com.lightbox.android.photoprocessing;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.os.SystemClock;
+import android.util.Log;
 
 /** 
  * PhotoProcessing 
@@ -25,7 +30,6 @@ import android.graphics.Bitmap.Config;
  */
 public class PhotoProcessing {
 	/** Used to tag logs */
-	@SuppressWarnings("unused")
 	private static final String TAG = "PhotoProcessing";
 	
 	public static final int[] FILTERS = {R.string.filter_original,
@@ -43,178 +47,256 @@ public class PhotoProcessing {
 	
 	public static final int[] EDIT_ACTIONS = {R.string.edit_action_flip, R.string.edit_action_rotate_90_right, R.string.edit_action_rotate_90_left, R.string.edit_action_rotate_180};
 	
+	/** The stages of {@link #filterPhotoProgressive(PreviewCache, String, int, Orientation, int, int, ProgressiveListener)} in the order they're rendered */
+	public static final int STAGE_PROXY = 0;
+	public static final int STAGE_SCREEN = 1;
+	public static final int STAGE_FULL = 2;
+	
+	/** The proxy is at least this many times smaller than the screen on each side */
+	public static final int PROXY_SCALE = 4;
+	/** How long the proxy should take to be ready, anything slower is logged */
+	public static final long PROXY_LATENCY_BUDGET_MILLIS = 50;
+	
+	public interface ProgressiveListener {
+		/**
+		 * Called on the rendering thread before a stage is filtered. Calling {@link NativeImage#cancel()} on the image
+		 * from another thread stops the render, but only up until {@link #onStageRendered} for the same stage.
+		 */
+		void onStageStarted(int stage, NativeImage image);
+		
+		/**
+		 * Called on the rendering thread once a stage is over, just before its image is closed.
+		 * @param bitmap the result, which belongs to the listener, or null if the stage was cancelled
+		 * @param stageMillis how long the stage took on its own
+		 * @param elapsedMillis how long it's been since the render was started
+		 */
+		void onStageRendered(int stage, Bitmap bitmap, long stageMillis, long elapsedMillis);
+	}
+	
 	public static Bitmap filterPhoto(Bitmap bitmap, int position) {
-		if (bitmap != null) { //USe current bitmap in native memory
-			sendBitmapToNative(bitmap);
+		NativeImage image = sendBitmapToNative(bitmap);
+		try {
+			image.applyFilter(position);
+			return getBitmapFromNative(image, bitmap);
+		} finally {
+			image.close();
 		}
-		switch (position) {
-		case 0: // Original
-			break;
-		case 1: // Instafix
-			nativeApplyInstafix();
-			break;
-		case 2: // Ansel
-			nativeApplyAnsel();
-			break;
-		case 3: // Testino
-			nativeApplyTestino();
-			break;
-		case 4: // XPro
-			nativeApplyXPro();
-			break;
-		case 5: // Retro
-			nativeApplyRetro();
-			break;
-		case 6: // Black & White
-			nativeApplyBW();
-			break;
-		case 7: // Sepia
-			nativeApplySepia();
-			break;
-		case 8: // Cyano
-			nativeApplyCyano();
-			break;
-		case 9: // Georgia
-			nativeApplyGeorgia();
-			break;
-		case 10: // Sahara
-			nativeApplySahara();
-			break;
-		case 11: // HDR
-			nativeApplyHDR();
-			break;
+	}
+	
+	/**
+	 * Filters an image already in native memory and copies the result to a new bitmap.
+	 * The image is left open and still belongs to the caller.
+	 */
+	public static Bitmap filterPhoto(NativeImage image, int position) {
+		image.applyFilter(position);
+		return getBitmapFromNative(image, null);
+	}
+	
+	/**
+	 * Sets how many threads the filters use, 0 uses one per CPU core.
+	 * @see NativeImage#setThreadCount(int)
+	 */
+	public static void setThreadCount(int threadCount) {
+		NativeImage.setThreadCount(threadCount);
+	}
+	
+	/**
+	 * Filters a bitmap and then puts it in an orientation, both are done in the same trip through native memory.
+	 */
+	public static Bitmap filterPhoto(Bitmap bitmap, int position, Orientation orientation) {
+		NativeImage image = sendBitmapToNative(bitmap);
+		try {
+			image.applyFilter(position);
+			image.applyOrientation(orientation);
+			return getBitmapFromNative(image, bitmap);
+		} finally {
+			image.close();
 		}
-		Bitmap filteredBitmap = getBitmapFromNative(bitmap);
-		nativeDeleteBitmap();
-		return filteredBitmap;
 	}
 	
-	public static Bitmap applyEditAction(Bitmap bitmap, int position) {
-		switch (position) {
-		case 0: // Flip
-			bitmap = flipHorizontally(bitmap);
-			break;
-		case 1: // Rotate 90 right
-			bitmap = rotate(bitmap, 90);
-			break;
-		case 2: // Rotate 90 left
-			bitmap = rotate(bitmap, 270);
-			break;
-		case 3: // Rotate 180
-			bitmap = rotate(bitmap, 180);
-			break;
+	/**
+	 * Filters an image already in native memory, puts it in an orientation and copies the result to a new bitmap.
+	 * The image is left open and still belongs to the caller.
+	 */
+	public static Bitmap filterPhoto(NativeImage image, int position, Orientation orientation) {
+		image.applyFilter(position);
+		image.applyOrientation(orientation);
+		return getBitmapFromNative(image, null);
+	}
+	
+	/**
+	 * Renders a filter and orientation from the pyramid in a preview cache a stage at a time, each one bigger than the last.
+	 * A proxy a {@link #PROXY_SCALE}th of the screen size comes first so there's something to show straight away,
+	 * then the smallest level that fills the screen and finally the base. Stages which would come from the same level
+	 * as the next one are skipped, so there's always a {@link #STAGE_FULL} unless the render is cancelled.
+	 * @param width the width of the screen, it's swapped with the height if the orientation swaps them
+	 * @return the image from the full stage, which belongs to the caller, or null if the render was cancelled
+	 * or the base isn't in the cache
+	 */
+	public static NativeImage filterPhotoProgressive(PreviewCache cache, String path, int position, Orientation orientation,
+			int width, int height, ProgressiveListener listener) {
+		if (orientation.swapsDimensions()) {
+			int swap = width;
+			width = height;
+			height = swap;
+		}
+		int[] levels = new int[STAGE_FULL + 1];
+		levels[STAGE_PROXY] = cache.getLevelForSize(path, Math.max(1, width / PROXY_SCALE), Math.max(1, height / PROXY_SCALE));
+		levels[STAGE_SCREEN] = cache.getLevelForSize(path, width, height);
+		levels[STAGE_FULL] = 0;
+		if (levels[STAGE_PROXY] < 0) {
+			return null;
 		}
 		
-		return bitmap;
+		long startTime = SystemClock.uptimeMillis();
+		for (int stage = STAGE_PROXY; stage <= STAGE_FULL; stage++) {
+			if (stage < STAGE_FULL && levels[stage] == levels[stage + 1]) {
+				continue;
+			}
+			
+			long stageStartTime = SystemClock.uptimeMillis();
+			// Null if the cache evicted the photo in between stages
+			NativeImage image = cache.copyLevel(path, levels[stage]);
+			if (image == null) {
+				return null;
+			}
+			
+			Bitmap bitmap = null;
+			try {
+				listener.onStageStarted(stage, image);
+				image.applyFilter(position);
+				if (!image.isCancelled()) {
+					image.applyOrientation(orientation);
+					bitmap = getBitmapFromNative(image, null);
+				}
+			} finally {
+				long now = SystemClock.uptimeMillis();
+				if (stage == STAGE_PROXY && bitmap != null && now - startTime > PROXY_LATENCY_BUDGET_MILLIS) {
+					Log.w(TAG, "Rendering the proxy took " + (now - startTime) + "ms, over the budget of " + PROXY_LATENCY_BUDGET_MILLIS + "ms");
+				}
+				listener.onStageRendered(stage, bitmap, now - stageStartTime, now - startTime);
+				if (bitmap == null || stage != STAGE_FULL) {
+					image.close();
+				}
+			}
+			
+			if (bitmap == null) {
+				return null;
+			}
+			if (stage == STAGE_FULL) {
+				return image;
+			}
+		}
+		return null;
 	}
-
 	
-	///////////////////////////////////////////////
+	public static Bitmap applyEditAction(Bitmap bitmap, int position) {
+		return applyOrientation(bitmap, Orientation.NORMAL.applyEditAction(position));
+	}
 	
-	static {
-		System.loadLibrary("photoprocessing");
+	/**
+	 * Applies any number of edit actions with a single copy of the pixels.
+	 * @param editActions indexes into {@link #EDIT_ACTIONS} in the order they were applied
+	 */
+	public static Bitmap applyEditActions(Bitmap bitmap, List<Integer> editActions) {
+		return applyOrientation(bitmap, Orientation.fromEditActions(editActions));
 	}
 	
-	public static native int nativeInitBitmap(int width, int height);
-	public static native void nativeGetBitmapRow(int y, int[] pixels);
-	public static native void nativeSetBitmapRow(int y, int[] pixels);
-	public static native int nativeGetBitmapWidth();
-	public static native int nativeGetBitmapHeight();
-	public static native void nativeDeleteBitmap();
-	public static native int nativeRotate90();
-	public static native void nativeRotate180();
-	public static native void nativeFlipHorizontally();
-
-	public static native void nativeApplyInstafix();
-	public static native void nativeApplyAnsel();
-	public static native void nativeApplyTestino();
-	public static native void nativeApplyXPro();
-	public static native void nativeApplyRetro();
-	public static native void nativeApplyBW();
-	public static native void nativeApplySepia();
-	public static native void nativeApplyCyano();
-	public static native void nativeApplyGeorgia();
-	public static native void nativeApplySahara();
-	public static native void nativeApplyHDR();
-	
-	public static native void nativeLoadResizedJpegBitmap(byte[] jpegData, int size, int maxPixels);
-	public static native void nativeResizeBitmap(int newWidth, int newHeight);
-	
-	private static void sendBitmapToNative(Bitmap bitmap) {
-		int width = bitmap.getWidth();
-		int height = bitmap.getHeight();
-		nativeInitBitmap(width, height);
-		int[] pixels = new int[width];
-		for (int y = 0; y < height; y++) {
-			bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
-			nativeSetBitmapRow(y, pixels);
+	public static Bitmap applyOrientation(Bitmap bitmap, Orientation orientation) {
+		if (orientation.isNormal()) {
+			return bitmap;
+		}
+		
+		NativeImage image = sendBitmapToNative(bitmap);
+		try {
+			image.applyOrientation(orientation);
+			return getBitmapFromNative(image, bitmap);
+		} finally {
+			image.close();
 		}
 	}
+
 	
-	private static Bitmap getBitmapFromNative(Bitmap bitmap) {
-		int width = nativeGetBitmapWidth();
-		int height = nativeGetBitmapHeight();
+	public static NativeImage sendBitmapToNative(Bitmap bitmap) {
+		StageTimer timer = StageTimer.start();
+		try {
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			NativeImage image = new NativeImage(width, height);
+		
+			// copyPixelsToBuffer() gives premultiplied colours where getPixels() doesn't, they're only the same when it's opaque
+			if (bitmap.getConfig() == Config.ARGB_8888 && !bitmap.hasAlpha()) { //Copy the whole image in one go
+				ByteBuffer buffer = image.allocatePixelBuffer();
+				if (buffer != null) {
+					bitmap.copyPixelsToBuffer(buffer);
+					image.setPixels(buffer);
+					NativeImage.freePixelBuffer(buffer);
+					return image;
+				}
+			}
 		
-		if (bitmap == null || width != bitmap.getWidth() || height != bitmap.getHeight() || !bitmap.isMutable()) { //in case it was rotated and the dimensions changed
-			Config config = Config.ARGB_8888;
-			if (bitmap != null) {
-				config = bitmap.getConfig();
-				bitmap.recycle();
+			int[] pixels = new int[width];
+			for (int y = 0; y < height; y++) {
+				bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+				image.setRow(y, pixels);
 			}
-			bitmap = Bitmap.createBitmap(width, height, config);
+			return image;
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_COPY_IN);
 		}
+	}
+	
+	public static Bitmap getBitmapFromNative(NativeImage image, Bitmap bitmap) {
+		StageTimer timer = StageTimer.start();
+		try {
+			int width = image.getWidth();
+			int height = image.getHeight();
+		
+			if (bitmap == null || width != bitmap.getWidth() || height != bitmap.getHeight() || !bitmap.isMutable()) { //in case it was rotated and the dimensions changed
+				Config config = Config.ARGB_8888;
+				if (bitmap != null) {
+					config = bitmap.getConfig();
+					bitmap.recycle();
+				}
+				bitmap = Bitmap.createBitmap(width, height, config);
+			}
 
-		int[] pixels = new int[width];
-		for (int y = 0; y < height; y++) {
-			nativeGetBitmapRow(y, pixels);
-			bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
-		}
+			if (bitmap.getConfig() == Config.ARGB_8888) { //Copy the whole image in one go
+				ByteBuffer buffer = image.allocatePixelBuffer();
+				if (buffer != null) {
+					image.getPixels(buffer);
+					bitmap.copyPixelsFromBuffer(buffer);
+					NativeImage.freePixelBuffer(buffer);
+					return bitmap;
+				}
+			}
+
+			int[] pixels = new int[width];
+			for (int y = 0; y < height; y++) {
+				image.getRow(y, pixels);
+				bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
+			}
 				
-		return bitmap;
+			return bitmap;
+		} finally {
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_COPY_OUT);
+		}
 	}
 	
 	public static Bitmap makeBitmapMutable(Bitmap bitmap) {
-		sendBitmapToNative(bitmap);
-		return getBitmapFromNative(bitmap);
+		NativeImage image = sendBitmapToNative(bitmap);
+		try {
+			return getBitmapFromNative(image, bitmap);
+		} finally {
+			image.close();
+		}
 	}
 	
 	public static Bitmap rotate(Bitmap bitmap, int angle) {
-		int width = bitmap.getWidth();
-		int height = bitmap.getHeight();
-		Config config = bitmap.getConfig();
-		nativeInitBitmap(width, height);
-		sendBitmapToNative(bitmap);
-		
-		if (angle == 90) {
-			nativeRotate90();
-			bitmap.recycle();
-			bitmap = Bitmap.createBitmap(height, width, config);
-			bitmap = getBitmapFromNative(bitmap);
-			nativeDeleteBitmap();
-		} else if (angle == 180) {
-			nativeRotate180();
-			bitmap.recycle();
-			bitmap = Bitmap.createBitmap(width, height, config);
-			bitmap = getBitmapFromNative(bitmap);
-			nativeDeleteBitmap();
-		} else if (angle == 270) {
-			nativeRotate180();
-			nativeRotate90();
-			bitmap.recycle();
-			bitmap = Bitmap.createBitmap(height, width, config);
-			bitmap = getBitmapFromNative(bitmap);
-			nativeDeleteBitmap();
-		}
-		
-		return bitmap;
+		return applyOrientation(bitmap, Orientation.fromAngle(angle));
 	}
 	
 	public static Bitmap flipHorizontally(Bitmap bitmap) {
-		nativeInitBitmap(bitmap.getWidth(), bitmap.getHeight());
-		sendBitmapToNative(bitmap);
-		nativeFlipHorizontally();
-		bitmap = getBitmapFromNative(bitmap);
-		nativeDeleteBitmap();
-		return bitmap;
+		return applyOrientation(bitmap, Orientation.NORMAL.flipHorizontally());
 	}
 }
@@ -17,10 +17,7 @@
 package com.lightbox.android.photoprocessing;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
 import android.app.Activity;
@@ -30,9 +27,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Vibrator;
@@ -58,10 +53,10 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.lightbox.android.photoprocessing.utils.BitmapUtils;
-import com.lightbox.android.photoprocessing.utils.FileUtils;
+import com.lightbox.android.photoprocessing.utils.ExecutorUtils;
 import com.lightbox.android.photoprocessing.utils.MediaUtils;
 
-public class PhotoProcessingActivity extends Activity implements OnLongClickListener {
+public class PhotoProcessingActivity extends Activity implements OnLongClickListener, RenderScheduler.Listener {
 	private static final String TAG = "PhotoProcessingActivity";
 	
 	public static final int REQUEST_CODE_SELECT_PHOTO = 1;
@@ -75,10 +70,26 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 	private static final String SAVE_EDIT_ACTIONS = "com.lightbox.android.photoprocessing.PhotoProcessing.mEditActions";
 	private static final String SAVE_CAMERA_FILE_PATH = "com.lightbox.android.photoprocessing.PhotoProcessing.mCurrentCameraFilePath";
 	
+	private static final int SAVE_QUALITY = 95;
+	
+	/** How many screens worth of pixels the preview cache holds, the base of a pyramid is one and its levels a third more */
+	private static final int PREVIEW_CACHE_SCREENS = 4;
+	private static final String PREVIEW_FILE_PREFIX = "preview_";
+	private static final String PREVIEW_FILE_EXTENSION = ".planes";
+	/** How many screens worth of filtered previews are kept in memory before they're moved to disk */
+	private static final int FILTER_CACHE_SCREENS = 4;
+	private static final long FILTER_CACHE_DISK_BYTES = 64 * 1024 * 1024;
+	private static final String FILTER_CACHE_DIR = "filtered";
+	/** The longest side of the filter list thumbnails in pixels */
+	private static final int THUMBNAIL_SIZE = 128;
+	
 	private String mOriginalPhotoPath = null;
 	private Bitmap mBitmap = null;
+	// A stage of a progressive preview, shown in place of mBitmap until the preview is finished
+	private Bitmap mProgressBitmap = null;
 	private ImageView mImageView = null;
 	private ListView mFilterListView = null;
+	private FilterListAdapter mFilterListAdapter = null;
 	private ListView mEditListView = null;
 	private boolean mIsFilterListShowing = false;
 	private boolean mIsEditListShowing = false;
@@ -87,9 +98,14 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 	private int mCurrentEditAction = 0;
 	private ArrayList<Integer> mEditActions = new ArrayList<Integer>();
 	
-	private static FilterTask sFilterTask;	
-	private static EditActionTask sEditActionTask;
-	private static SavePhotoTask sSavePhotoTask;
+	// What's in mBitmap, so an edit can start from the filtered result already shown
+	private int mDisplayedFilter = 0;
+	private Orientation mDisplayedOrientation = Orientation.NORMAL;
+	
+	private static RenderScheduler sRenderScheduler;
+	private static PreviewCache sPreviewCache;
+	private static FilterResultCache sFilterResultCache;
+	private static FilterThumbnailRenderer sThumbnailRenderer;
 		
 	private ProgressDialog mProgressDialog = null;
 	
@@ -105,13 +121,13 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		
 		mFilterListView = (ListView)findViewById(R.id.filterList);
 		mFilterListView.setVisibility(View.INVISIBLE);
-		mFilterListView.setAdapter(new FilterListAdapter(this));
+		mFilterListAdapter = new FilterListAdapter(this);
+		mFilterListView.setAdapter(mFilterListAdapter);
 		mFilterListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			@Override
 			public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-				sFilterTask = new FilterTask(PhotoProcessingActivity.this);
 				mCurrentFilter = position;
-				sFilterTask.execute(position);
+				renderPreview(false);
 			}
 		});
 		
@@ -121,10 +137,9 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		mEditListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			@Override
 			public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
-				sEditActionTask = new EditActionTask(PhotoProcessingActivity.this);
 				mCurrentEditAction = position;
 				mEditActions.add(position);
-				sEditActionTask.execute(position);
+				renderPreview(true);
 			}
 		});
 
@@ -147,25 +162,51 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		saveButton.setEnabled(false);		
 
 		mVibrator = (Vibrator)getSystemService(VIBRATOR_SERVICE);
+		
+		DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+		long screenBytes = (long)displayMetrics.widthPixels * displayMetrics.heightPixels * 3;
+		if (sPreviewCache == null) {
+			sPreviewCache = new PreviewCache(screenBytes * PREVIEW_CACHE_SCREENS);
+		}
+		if (sFilterResultCache == null) {
+			sFilterResultCache = new FilterResultCache(new File(getCacheDir(), FILTER_CACHE_DIR), screenBytes * FILTER_CACHE_SCREENS, FILTER_CACHE_DISK_BYTES);
+		}
+		if (sRenderScheduler == null) {
+			sRenderScheduler = new RenderScheduler(ExecutorUtils.newBackgroundExecutor("RenderScheduler"), ExecutorUtils.newMainThreadExecutor());
+		}
+		if (sThumbnailRenderer == null) {
+			sThumbnailRenderer = new FilterThumbnailRenderer(Runtime.getRuntime().availableProcessors());
+		}
+	}
+	
+	@Override
+	protected void onDestroy() {
+		// The thumbnails would go to this activity's adapter
+		sThumbnailRenderer.cancel();
+		super.onDestroy();
 	}
 	
 	@Override
 	protected void onPause() {
 		hideProgressDialog();
+		// Jobs that finish while paused are held until onResume()
+		sRenderScheduler.setListener(null);
 		super.onPause();
 	}
 	
 	@Override
 	protected void onResume() {
-		if (sFilterTask != null) {
-			sFilterTask.reattachActivity(this);
-		}
-		if (sEditActionTask != null) {
-			sEditActionTask.reattachActivity(this);
-		}
-		if (sSavePhotoTask != null) {
-			sSavePhotoTask.reattachActivity(this);
+		RenderScheduler.Job job = sRenderScheduler.getCurrentJob();
+		if (job instanceof SaveJob) {
+			showSavingProgressDialog();
+		} else if (job instanceof PreviewJob) {
+			if (((PreviewJob)job).mIsEditAction) {
+				showEditActionProgressDialog();
+			} else {
+				showFilterProgressDialog();
+			}
 		}
+		sRenderScheduler.setListener(this);
 		super.onResume();
 	}
 	
@@ -194,7 +235,6 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		}
 		if (mOriginalPhotoPath != null) {
 			loadFromCache();
-			mImageView.setImageBitmap(mBitmap);
 		}
 	}
 	
@@ -221,13 +261,9 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 			mImageView.setImageBitmap(null);
 			mOriginalPhotoPath = MediaUtils.getPath(this, photoUri);
 			loadPhoto(mOriginalPhotoPath);
-			mImageView.setImageBitmap(mBitmap);
-			saveToCache(mBitmap);
 		} else if (requestCode == REQUEST_CODE_CAMERA && resultCode == RESULT_OK) {
 			mImageView.setImageBitmap(null);
 			loadPhoto(mOriginalPhotoPath);
-			mImageView.setImageBitmap(mBitmap);
-			saveToCache(mBitmap);
 		}
 	}
 	
@@ -277,8 +313,10 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 	}
 	
 	public void onSaveButtonClick(View v) {
-		sSavePhotoTask = new SavePhotoTask(this);
-		sSavePhotoTask.execute();		
+		int angle = MediaUtils.getExifOrientation(mOriginalPhotoPath);
+		Orientation orientation = Orientation.fromAngle(angle).applyEditActions(mEditActions);
+		showSavingProgressDialog();
+		sRenderScheduler.submit(new SaveJob(mOriginalPhotoPath, mCurrentFilter, orientation, getSaveFile()));
 	}
 
 	private int getCameraFileCount() {
@@ -457,31 +495,7 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		mIsEditListShowing = false;
 	}
 	
-	private void saveToCache(Bitmap bitmap) {
-		if (bitmap == null || bitmap.isRecycled()) {
-			return;
-		}
-		
-		File cacheFile = new File(getCacheDir(), "cached.jpg");
-		FileOutputStream fos = null;
-		try {
-			fos = new FileOutputStream(cacheFile);
-		} catch (FileNotFoundException e) {
-			// do nothing
-		} finally {
-			if (fos != null) {
-				bitmap.compress(CompressFormat.JPEG, 100, fos);
-				try {
-					fos.flush();
-					fos.close();
-				} catch (IOException e) {
-					// Do nothing
-				}
-			}
-		}
-	}
-	
-	private String savePhoto(Bitmap bitmap) {
+	private File getSaveFile() {
 		File file = new File(mOriginalPhotoPath);
 		File saveDir = new File(Environment.getExternalStorageDirectory().getAbsolutePath()+"/Lightbox/");
 		saveDir.mkdir();
@@ -495,73 +509,250 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 			saveFile = new File(saveDir, filename);
 		} while (saveFile.exists());
 		
-		FileOutputStream fos = null;
+		return saveFile;
+	}
+	
+	/** Decodes a newly picked photo on the render thread, it's shown by {@link #onJobFinished(RenderScheduler.Job)} */
+	private void loadPhoto(String path) {
+		// Previews of the last photo mustn't replace this one
+		sRenderScheduler.cancelPreviews();
+		dropProgressBitmap();
+		if (mBitmap != null) {
+			mBitmap.recycle();
+			mBitmap = null;
+		}
+		mDisplayedFilter = 0;
+		mDisplayedOrientation = Orientation.NORMAL;
+		sRenderScheduler.submit(new LoadJob(getApplicationContext(), path, false));
+	}
+	
+	/**
+	 * Starts rendering the current photo through every filter for the filter list,
+	 * the thumbnails of the last photo are dropped straight away
+	 */
+	private void renderThumbnails() {
+		mFilterListAdapter.clearThumbnails();
+		NativeImage source = sPreviewCache.copyLevelForSize(mOriginalPhotoPath, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+		if (source == null) {
+			sThumbnailRenderer.cancel();
+			return;
+		}
+		sThumbnailRenderer.render(source, Orientation.fromEditActions(mEditActions), THUMBNAIL_SIZE, mFilterListAdapter);
+	}
+	
+	/**
+	 * Decodes the photo at the size of the screen and puts it in its exif orientation
+	 * @return the image or null if it couldn't be decoded
+	 */
+	private static NativeImage decodePreviewBase(Context context, String path) {
+		DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+		StageTimer timer = StageTimer.start();
+		Bitmap bitmap;
 		try {
-			fos = new FileOutputStream(saveFile);
-			bitmap.compress(CompressFormat.JPEG, 95, fos);
-			
-			return saveFile.getAbsolutePath();
-		} catch (FileNotFoundException e) {
-			Log.w(TAG, e);
+			bitmap = BitmapUtils.getSampledBitmap(path, displayMetrics.widthPixels, displayMetrics.heightPixels);
 		} finally {
-			if (fos != null) {
-				try {
-					fos.flush();
-					fos.close();
-				} catch (IOException e) {
-					// Do nothing
+			StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_DECODE);
+		}
+		if (bitmap == null) {
+			return null;
+		}
+		
+		NativeImage image = PhotoProcessing.sendBitmapToNative(bitmap);
+		bitmap.recycle();
+		image.applyOrientation(Orientation.fromAngle(MediaUtils.getExifOrientation(path)));
+		return image;
+	}
+	
+	private static File getPreviewFile(Context context, String path) {
+		return new File(context.getCacheDir(), PREVIEW_FILE_PREFIX + Integer.toHexString(path.hashCode()) + PREVIEW_FILE_EXTENSION);
+	}
+	
+	/**
+	 * Keeps the base as raw planes in the cache dir so it can be put back in the preview cache
+	 * without decoding the photo again if the process is killed. Only the current photo's is kept.
+	 */
+	private static void savePreviewBase(Context context, String path, NativeImage base) {
+		File previewFile = getPreviewFile(context, path);
+		File[] files = context.getCacheDir().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(PREVIEW_FILE_PREFIX) && !file.equals(previewFile)) {
+					file.delete();
 				}
 			}
 		}
 		
-		return "";
+		try {
+			base.writePlanes(previewFile.getAbsolutePath());
+		} catch (IOException e) {
+			Log.w(TAG, e);
+			previewFile.delete();
+		}
 	}
 	
-	private void loadPhoto(String path) {
-		DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
-		
-		if (mBitmap != null) {
-			mBitmap.recycle();
+	/**
+	 * Makes sure the base of the photo is in the preview cache, it's read back from the cache dir
+	 * or decoded again if it's been evicted.
+	 * @return false if the photo couldn't be decoded
+	 */
+	private static boolean cachePreviewBase(Context context, String path) {
+		if (sPreviewCache.containsBase(path)) {
+			return true;
 		}
 		
-		mBitmap = BitmapUtils.getSampledBitmap(path, displayMetrics.widthPixels, displayMetrics.heightPixels);
-		
-		if (mBitmap != null && !mBitmap.isMutable()) {
-			mBitmap = PhotoProcessing.makeBitmapMutable(mBitmap);
+		NativeImage base;
+		try {
+			base = NativeImage.readPlanes(getPreviewFile(context, path).getAbsolutePath());
+		} catch (IOException e) {
+			base = decodePreviewBase(context, path);
+			if (base == null) {
+				return false;
+			}
+			savePreviewBase(context, path, base);
 		}
-		
-		int angle = MediaUtils.getExifOrientation(path);
-		mBitmap = PhotoProcessing.rotate(mBitmap, angle);
-		
-		enableFilterEditAndSaveButtons();
+		sPreviewCache.putBase(path, base);
+		return true;
 	}
 	
-	private void showTempPhotoInImageView() {
-		if (mBitmap != null) {
-			Bitmap bitmap = Bitmap.createScaledBitmap(mBitmap, mBitmap.getWidth()/4, mBitmap.getHeight()/4, true);
-			mImageView.setImageBitmap(bitmap);
-		}
+	/**
+	 * Copies the base of the photo out of the preview cache, putting it back first if it's been evicted
+	 * @return the copy, which belongs to the caller, or null if the photo couldn't be decoded
+	 */
+	private static NativeImage copyPreviewBase(Context context, String path) {
+		return cachePreviewBase(context, path) ? sPreviewCache.copyLevel(path, 0) : null;
 	}
 	
+	/**
+	 * Puts the photo back after the activity was recreated, from the preview cache or the cache dir, on the render thread.
+	 * Any preview still running is cancelled, {@link #onJobFinished(RenderScheduler.Job)} renders the filter and edits again.
+	 */
 	private void loadFromCache() {
-		DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
-
+		sRenderScheduler.cancelPreviews();
 		if (mBitmap != null) {
 			mBitmap.recycle();
+			mBitmap = null;
 		}
 		
-		File cacheFile = new File(getCacheDir(), "cached.jpg");
-		mBitmap = BitmapUtils.getSampledBitmap(cacheFile.getAbsolutePath(), displayMetrics.widthPixels, displayMetrics.heightPixels);
-		
-		enableFilterEditAndSaveButtons();
+		mDisplayedFilter = 0;
+		mDisplayedOrientation = Orientation.NORMAL;
+		sRenderScheduler.submit(new LoadJob(getApplicationContext(), mOriginalPhotoPath, true));
+	}
+	
+	/**
+	 * Renders the current filter and edits, any preview that hasn't finished yet is cancelled
+	 * @param isEditAction which progress dialog to show
+	 */
+	private void renderPreview(boolean isEditAction) {
+		PreviewJob job = new PreviewJob(getApplicationContext(), mOriginalPhotoPath, mCurrentFilter, Orientation.fromEditActions(mEditActions),
+				mDisplayedFilter, mDisplayedOrientation, isEditAction);
+		if (isEditAction) {
+			showEditActionProgressDialog();
+		} else {
+			showFilterProgressDialog();
+		}
+		sRenderScheduler.submit(job);
+	}
+	
+	@Override
+	public void onJobFinished(RenderScheduler.Job job) {
+		if (job instanceof LoadJob) {
+			LoadJob loadJob = (LoadJob)job;
+			if (!loadJob.mPath.equals(mOriginalPhotoPath)) {
+				// Another photo was picked while it was held for the listener
+				if (loadJob.mResult != null) {
+					loadJob.mResult.recycle();
+				}
+				return;
+			}
+			if (loadJob.mResult == null && loadJob.mFromCache) {
+				return;
+			}
+			// A preview held while the activity was being recreated can have been shown since the load was submitted
+			Bitmap previous = mBitmap;
+			mBitmap = loadJob.mResult;
+			mImageView.setImageBitmap(mBitmap);
+			if (previous != null && previous != mBitmap) {
+				previous.recycle();
+			}
+			mDisplayedFilter = 0;
+			mDisplayedOrientation = Orientation.NORMAL;
+			enableFilterEditAndSaveButtons();
+			renderThumbnails();
+			
+			// The filter and edits are put back by rendering them again from the base
+			if (loadJob.mFromCache && (mCurrentFilter != 0 || !mEditActions.isEmpty())) {
+				renderPreview(false);
+			}
+		} else if (job instanceof PreviewJob) {
+			PreviewJob previewJob = (PreviewJob)job;
+			if (previewJob.mResult != null) {
+				// The preview is rendered into a new bitmap rather than the one being replaced
+				Bitmap previous = mBitmap;
+				mBitmap = previewJob.mResult;
+				mImageView.setImageBitmap(mBitmap);
+				if (previous != null && previous != mBitmap) {
+					previous.recycle();
+				}
+				dropProgressBitmap();
+				boolean orientationChanged = (previewJob.mOrientation != mDisplayedOrientation);
+				mDisplayedFilter = previewJob.mFilter;
+				mDisplayedOrientation = previewJob.mOrientation;
+				if (orientationChanged) {
+					renderThumbnails();
+				}
+			}
+		} else if (job instanceof SaveJob) {
+			SaveJob saveJob = (SaveJob)job;
+			Toast.makeText(this, getString(R.string.saved_photo_toast_message, saveJob.mSavePath), Toast.LENGTH_LONG).show();
+		}
+	}
+	
+	@Override
+	public void onJobFailed(RenderScheduler.Job job, Throwable failure) {
+		Log.w(TAG, failure);
+		if (job instanceof SaveJob) {
+			Toast.makeText(this, R.string.save_failed_toast_message, Toast.LENGTH_LONG).show();
+		}
+	}
+	
+	@Override
+	public void onJobProgress(RenderScheduler.Job job, Object progress) {
+		Bitmap previous = mProgressBitmap;
+		mProgressBitmap = (Bitmap)progress;
+		mImageView.setImageBitmap(mProgressBitmap);
+		if (previous != null) {
+			previous.recycle();
+		}
+		// The first stage is there to be looked at so the dialog mustn't cover it
+		hideProgressDialog();
+	}
+	
+	@Override
+	public void onIdle() {
+		hideProgressDialog();
+		// A preview that was cancelled part way through could have left one of its stages showing
+		if (mProgressBitmap != null) {
+			mImageView.setImageBitmap(mBitmap);
+			dropProgressBitmap();
+		}
+	}
+	
+	// Only once it's no longer showing
+	private void dropProgressBitmap() {
+		if (mProgressBitmap != null) {
+			mProgressBitmap.recycle();
+			mProgressBitmap = null;
+		}
 	}
 	
 	private void showFilterProgressDialog() {
+		hideProgressDialog();
 		String message = (mCurrentFilter == 0 ? getString(R.string.reverting_to_original) : getString(R.string.applying_filter, getString(PhotoProcessing.FILTERS[mCurrentFilter])));
 		mProgressDialog = ProgressDialog.show(this, "", message);
 	}
 	
 	private void showEditActionProgressDialog() {
+		hideProgressDialog();
 		String message = "";
 		switch (mCurrentEditAction) {
 		case 0: // Flip
@@ -581,6 +772,7 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 	}
 	
 	private void showSavingProgressDialog() {
+		hideProgressDialog();
 		String message = "Saving...";
 		mProgressDialog = ProgressDialog.show(this, "", message);
 	}
@@ -618,15 +810,33 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		return false;
 	}
 	
-	private static class FilterListAdapter extends BaseAdapter {
+	private static class FilterListAdapter extends BaseAdapter implements FilterThumbnailRenderer.Listener {
 		private LayoutInflater mInflator;
 		private Context mContext;
+		private Bitmap[] mThumbnails = new Bitmap[PhotoProcessing.FILTERS.length];
 		
 		public FilterListAdapter(Context context) {
 			mContext = context;
 			mInflator = LayoutInflater.from(context);
 		}
 		
+		// Not recycled as they could still be showing
+		public void clearThumbnails() {
+			mThumbnails = new Bitmap[PhotoProcessing.FILTERS.length];
+			notifyDataSetChanged();
+		}
+		
+		@Override
+		public void onThumbnailRendered(int position, Bitmap thumbnail) {
+			mThumbnails[position] = thumbnail;
+			notifyDataSetChanged();
+		}
+		
+		@Override
+		public void onThumbnailsFinished(long elapsedMillis) {
+			Log.d(TAG, "Rendered the filter thumbnails in " + elapsedMillis + "ms");
+		}
+		
 		@Override
 		public int getCount() {
 			return PhotoProcessing.FILTERS.length;
@@ -650,6 +860,7 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 			}
 			
 			((TextView)view.findViewById(R.id.filterNameTextView)).setText((CharSequence)getItem(position));
+			((ImageView)view.findViewById(R.id.filterThumbnailImageView)).setImageBitmap(mThumbnails[position]);
 			
 			return view;
 		}
@@ -692,183 +903,190 @@ public class PhotoProcessingActivity extends Activity implements OnLongClickList
 		}
 	}
 	
-	private static class FilterTask extends AsyncTask<Integer, Void, Bitmap> {
-		WeakReference<PhotoProcessingActivity> mActivityRef;
-		
-		public FilterTask(PhotoProcessingActivity activity) {
-			mActivityRef = new WeakReference<PhotoProcessingActivity>(activity);
-		}
-		
-		public void reattachActivity(PhotoProcessingActivity activity) {
-			mActivityRef = new WeakReference<PhotoProcessingActivity>(activity);
-			if (getStatus().equals(Status.RUNNING)) {
-				activity.showFilterProgressDialog();
-			}
-		}
+	/**
+	 * Puts the base of a photo in the preview cache and makes the bitmap that's shown from it, away from the main thread
+	 * as it decodes the photo and reads and writes the planes in the cache dir. It runs at save priority so a preview
+	 * tapped meanwhile waits for the base rather than cancelling the load.
+	 */
+	private static class LoadJob extends RenderScheduler.Job {
+		private final Context mContext;
+		private final String mPath;
+		private final boolean mFromCache;
+		private Bitmap mResult;
 		
-		private PhotoProcessingActivity getActivity() {
-			if (mActivityRef == null) {
-				return null;
-			}
-			
-			return mActivityRef.get();
-		}
-		
-		@Override
-		protected void onPreExecute() {
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				activity.showFilterProgressDialog();
-				activity.showTempPhotoInImageView();
-			}
+		/**
+		 * @param fromCache true to use the base already in the preview cache or the cache dir,
+		 * false to decode the photo again as it's just been picked
+		 */
+		public LoadJob(Context context, String path, boolean fromCache) {
+			super(RenderScheduler.PRIORITY_SAVE);
+			mContext = context;
+			mPath = path;
+			mFromCache = fromCache;
 		}
 		
 		@Override
-		protected Bitmap doInBackground(Integer... params) {		
-			PhotoProcessingActivity activity = getActivity();
-			
-			if (activity != null) {
-				activity.loadPhoto(activity.mOriginalPhotoPath);
-				int position = params[0];
-				Bitmap bitmap = PhotoProcessing.filterPhoto(activity.mBitmap, position);
-				for (Integer editAction : activity.mEditActions) {
-					bitmap = PhotoProcessing.applyEditAction(bitmap, editAction);
+		protected void run() {
+			if (mFromCache) {
+				NativeImage image = copyPreviewBase(mContext, mPath);
+				if (image == null) {
+					return;
 				}
-				activity.saveToCache(bitmap);
-				
-				return bitmap;
+				try {
+					mResult = PhotoProcessing.getBitmapFromNative(image, null);
+				} finally {
+					image.close();
+				}
+				return;
 			}
 			
-			return null;
-		}
-		
-		@Override
-		protected void onPostExecute(Bitmap result) {	
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				activity.mBitmap = result;
-				activity.mImageView.setImageBitmap(result);
-				activity.hideProgressDialog();
+			NativeImage base = decodePreviewBase(mContext, mPath);
+			if (base == null) {
+				return;
+			}
+			try {
+				mResult = PhotoProcessing.getBitmapFromNative(base, null);
+				savePreviewBase(mContext, mPath, base);
+				// The base is handed to the cache rather than closed
+				sPreviewCache.putBase(mPath, base);
+				base = null;
+			} finally {
+				if (base != null) {
+					base.close();
+				}
 			}
 		}
 	}
 	
-	private static class EditActionTask extends AsyncTask<Integer, Void, Bitmap> {
-		WeakReference<PhotoProcessingActivity> mActivityRef;
+	/**
+	 * Renders a filter and edits from the preview cache, or takes them from the filter result cache.
+	 * An edit to the result already showing is a cheap reorientation of it. Anything else is rendered
+	 * progressively and each stage before the last is published as it's ready.
+	 */
+	private static class PreviewJob extends RenderScheduler.Job implements PhotoProcessing.ProgressiveListener {
+		private final Context mContext;
+		private final String mPath;
+		private final int mFilter;
+		private final Orientation mOrientation;
+		private final int mDisplayedFilter;
+		private final Orientation mDisplayedOrientation;
+		private final boolean mIsEditAction;
+		private Bitmap mResult;
 		
-		public EditActionTask(PhotoProcessingActivity activity) {
-			mActivityRef = new WeakReference<PhotoProcessingActivity>(activity);
+		public PreviewJob(Context context, String path, int filter, Orientation orientation, int displayedFilter, Orientation displayedOrientation, boolean isEditAction) {
+			super(RenderScheduler.PRIORITY_PREVIEW);
+			mContext = context;
+			mPath = path;
+			mFilter = filter;
+			mOrientation = orientation;
+			mDisplayedFilter = displayedFilter;
+			mDisplayedOrientation = displayedOrientation;
+			mIsEditAction = isEditAction;
 		}
 		
-		public void reattachActivity(PhotoProcessingActivity activity) {
-			mActivityRef = new WeakReference<PhotoProcessingActivity>(activity);
-			if (getStatus().equals(Status.RUNNING)) {
-				activity.showFilterProgressDialog();
+		@Override
+		protected void run() {
+			// The results are keyed on the size of the base as well, so it has to be cached first
+			if (!cachePreviewBase(mContext, mPath)) {
+				return;
 			}
-		}
-		
-		private PhotoProcessingActivity getActivity() {
-			if (mActivityRef == null) {
-				return null;
+			int baseWidth = sPreviewCache.getBaseWidth(mPath);
+			int baseHeight = sPreviewCache.getBaseHeight(mPath);
+			FilterResultCache.Key key = new FilterResultCache.Key(mPath, baseWidth, baseHeight, mFilter, mOrientation);
+			mResult = sFilterResultCache.get(key);
+			if (mResult != null || isCancelled()) {
+				return;
 			}
 			
-			return mActivityRef.get();
-		}
-		
-		@Override
-		protected void onPreExecute() {
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				activity.showEditActionProgressDialog();
-				activity.showTempPhotoInImageView();
+			NativeImage image = null;
+			if (mFilter == mDisplayedFilter) {
+				image = sFilterResultCache.copy(new FilterResultCache.Key(mPath, baseWidth, baseHeight, mDisplayedFilter, mDisplayedOrientation));
 			}
-		}
-		
-		@Override
-		protected Bitmap doInBackground(Integer... params) {		
-			PhotoProcessingActivity activity = getActivity();
 			
-			if (activity != null) {
-				int position = params[0];
-				Bitmap bitmap = PhotoProcessing.applyEditAction(activity.mBitmap, position);
-				activity.saveToCache(bitmap);
+			try {
+				if (image != null) {
+					image.applyOrientation(mDisplayedOrientation.inverse().then(mOrientation));
+				} else {
+					DisplayMetrics displayMetrics = mContext.getResources().getDisplayMetrics();
+					image = PhotoProcessing.filterPhotoProgressive(sPreviewCache, mPath, mFilter, mOrientation,
+							displayMetrics.widthPixels, displayMetrics.heightPixels, this);
+					if (image == null) {
+						return;
+					}
+				}
 				
-				return bitmap;
+				if (mResult == null) {
+					mResult = PhotoProcessing.getBitmapFromNative(image, null);
+				}
+				// The image is handed to the cache rather than closed
+				sFilterResultCache.put(key, image);
+				image = null;
+			} finally {
+				setCancellableImage(null);
+				if (image != null) {
+					image.close();
+				}
 			}
-			
-			return null;
 		}
 		
 		@Override
-		protected void onPostExecute(Bitmap result) {	
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				activity.mBitmap = result;
-				activity.mImageView.setImageBitmap(result);
-				activity.hideProgressDialog();
-			}
-		}
-	}
-	
-	private static class SavePhotoTask extends AsyncTask<Void, Void, Void> {
-		private WeakReference<PhotoProcessingActivity> mActivityRef;
-		private String mSavePath;
-		
-		public SavePhotoTask(PhotoProcessingActivity activity) {
-			mActivityRef = new WeakReference<PhotoProcessingActivity>(activity);
+		public void onStageStarted(int stage, NativeImage image) {
+			setCancellableImage(image);
 		}
 		
-		public void reattachActivity(PhotoProcessingActivity activity) {
-			mActivityRef = new WeakReference<PhotoProcessingActivity>(activity);
-			if (getStatus().equals(Status.RUNNING)) {
-				activity.showSavingProgressDialog();
+		@Override
+		public void onStageRendered(int stage, Bitmap bitmap, long stageMillis, long elapsedMillis) {
+			setCancellableImage(null);
+			if (bitmap == null) {
+				return;
 			}
-		}
-		
-		private PhotoProcessingActivity getActivity() {
-			if (mActivityRef == null) {
-				return null;
+			Log.d(TAG, "Rendered preview stage " + stage + " at " + bitmap.getWidth() + "x" + bitmap.getHeight()
+					+ " in " + stageMillis + "ms, " + elapsedMillis + "ms since the start");
+			if (stage == PhotoProcessing.STAGE_FULL) {
+				mResult = bitmap;
+			} else {
+				publishProgress(bitmap);
 			}
-			
-			return mActivityRef.get();
 		}
+	}
+	
+	/**
+	 * Saves the photo at full size a strip at a time, or at a reduced size from a jpeg the strip decoder doesn't support
+	 */
+	private static class SaveJob extends RenderScheduler.Job {
+		private final String mPath;
+		private final int mFilter;
+		private final Orientation mOrientation;
+		private final File mSaveFile;
+		private String mSavePath;
 		
-		@Override
-		protected void onPreExecute() {
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				activity.showSavingProgressDialog();
-			}
+		public SaveJob(String path, int filter, Orientation orientation, File saveFile) {
+			super(RenderScheduler.PRIORITY_SAVE);
+			mPath = path;
+			mFilter = filter;
+			mOrientation = orientation;
+			mSaveFile = saveFile;
 		}
 		
 		@Override
-		protected Void doInBackground(Void... params) {
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				File jpegFile = new File(activity.mOriginalPhotoPath);
+		protected void run() throws IOException {
+			try {
+				// Full size, a strip at a time
+				NativeImage.exportJpeg(mPath, mFilter, mOrientation, SAVE_QUALITY, mSaveFile.getAbsolutePath());
+				mSavePath = mSaveFile.getAbsolutePath();
+			} catch (IOException e) {
+				// Jpegs the strip decoder doesn't support are saved at a reduced size instead
+				Log.w(TAG, e);
+				mSaveFile.delete();
+				NativeImage image = NativeImage.loadResizedJpeg(mPath, 1024 * 1024 * 2);
 				try {
-					byte[] jpegData = FileUtils.readFileToByteArray(jpegFile);
-					PhotoProcessing.nativeLoadResizedJpegBitmap(jpegData, jpegData.length, 1024 * 1024 * 2);
-					Bitmap bitmap = PhotoProcessing.filterPhoto(null, activity.mCurrentFilter);
-					int angle = MediaUtils.getExifOrientation(activity.mOriginalPhotoPath);
-					bitmap = PhotoProcessing.rotate(bitmap, angle);
-					for (Integer editAction : activity.mEditActions) {
-						bitmap = PhotoProcessing.applyEditAction(bitmap, editAction);
-					}
-					mSavePath = activity.savePhoto(bitmap);
-				} catch (IOException e) {
-					Log.w(TAG, e);
-				} 
-			}
-			return null;
-		}
-		
-		@Override
-		protected void onPostExecute(Void result) {
-			PhotoProcessingActivity activity = getActivity();
-			if (activity != null) {
-				activity.hideProgressDialog();
-				Toast.makeText(activity, activity.getString(R.string.saved_photo_toast_message, mSavePath), Toast.LENGTH_LONG).show();
+					image.applyFilter(mFilter);
+					image.applyOrientation(mOrientation);
+					image.compressJpeg(SAVE_QUALITY, mSaveFile.getAbsolutePath());
+				} finally {
+					image.close();
+				}
+				mSavePath = mSaveFile.getAbsolutePath();
 			}
 		}
 	}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+/**
+ * PhotoProcessingMetrics
+ * Told how long each stage of loading, filtering and saving a photo took, once it's been set with
+ * {@link StageTimer#setMetrics(PhotoProcessingMetrics)}. It's called on whichever thread ran the stage,
+ * including the render and thumbnail threads, so it has to be thread safe and should be quick.
+ */
+public interface PhotoProcessingMetrics {
+	/** Decoding a jpeg into a NativeImage, or reading one back from its planes */
+	int STAGE_LOAD = 0;
+	/** The jpeg decode within a load, including converting its channels, or BitmapFactory's decode of the preview */
+	int STAGE_DECODE = 1;
+	/** The bicubic resize of the channels within a load, or resizing and halving an image */
+	int STAGE_RESIZE = 2;
+	int STAGE_FILTER = 3;
+	/** Rotating and flipping */
+	int STAGE_TRANSFORM = 4;
+	/** Copying a bitmap into native memory */
+	int STAGE_COPY_IN = 5;
+	/** Copying an image out of native memory into a bitmap */
+	int STAGE_COPY_OUT = 6;
+	/** Encoding an image as a jpeg and writing it */
+	int STAGE_ENCODE = 7;
+	/** Decoding, filtering and encoding a full size jpeg a strip at a time, the three are interleaved so they're timed together */
+	int STAGE_EXPORT = 8;
+
+	String[] STAGE_NAMES = {"load", "decode", "resize", "filter", "transform", "copyIn", "copyOut", "encode", "export"};
+
+	/**
+	 * @param stage one of the STAGE_ constants
+	 * @param nanos how long the stage took, from a monotonic clock
+	 * @param peakNativeBytes the most memory the native library had allocated at once while the stage ran. It's for the whole
+	 * process so stages running at the same time on other threads are included. -1 for the decode and resize timed inside a load,
+	 * the load they were part of has it.
+	 * @param jniCalls how many calls the stage made into the native library, -1 for the decode and resize timed inside a load
+	 */
+	void onStageFinished(int stage, long nanos, long peakNativeBytes, int jniCalls);
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PreviewCache
+ * Holds decoded photos in native memory at the size they're shown on screen, already put in their
+ * exif orientation, along with a pyramid of smaller levels each half the width and height of the one above.
+ * Previews are made from copies of the levels so filtering one never needs a jpeg to be decoded or encoded.
+ * Levels are evicted least recently used first once they take up more than the byte budget.
+ * The cached images are only ever touched while holding the cache's lock so it can be shared between threads.
+ */
+public class PreviewCache {
+	/** Used to tag logs */
+	@SuppressWarnings("unused")
+	private static final String TAG = "PreviewCache";
+
+	/** A red, green and blue byte per pixel */
+	private static final int BYTES_PER_PIXEL = 3;
+
+	private final long mMaxBytes;
+	private long mBytes = 0;
+	private final LinkedHashMap<Level, NativeImage> mLevels = new LinkedHashMap<Level, NativeImage>(16, 0.75f, true);
+
+	/**
+	 * @param maxBytes the most native memory the levels can take up before they're evicted, the level most
+	 * recently used and the base it was made from are always kept even if they're bigger than this on their own
+	 */
+	public PreviewCache(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Replaces any levels cached for the photo with a new base level.
+	 * The cache takes ownership of the image and closes it when it's evicted.
+	 */
+	public synchronized void putBase(String path, NativeImage base) {
+		remove(path);
+		put(new Level(path, 0), base);
+		trimToSize(path);
+	}
+
+	public synchronized boolean containsBase(String path) {
+		return mLevels.containsKey(new Level(path, 0));
+	}
+
+	/** @return the width of the photo's base, or -1 if it isn't cached */
+	public synchronized int getBaseWidth(String path) {
+		NativeImage image = getLevel(path, 0);
+		return (image != null) ? image.getWidth() : -1;
+	}
+
+	/** @return the height of the photo's base, or -1 if it isn't cached */
+	public synchronized int getBaseHeight(String path) {
+		NativeImage image = getLevel(path, 0);
+		return (image != null) ? image.getHeight() : -1;
+	}
+
+	/**
+	 * Copies a level of the pyramid, building it from the nearest bigger level still cached if need be.
+	 * @param level 0 for the base, each level above that is half the size of the one before
+	 * @return a copy which belongs to the caller or null if there's nothing cached for the photo to make it from
+	 */
+	public synchronized NativeImage copyLevel(String path, int level) {
+		NativeImage image = getLevel(path, level);
+		return (image != null) ? image.copy() : null;
+	}
+
+	/**
+	 * Copies the smallest level which is at least as big as the given size in both directions,
+	 * or the base if that's smaller.
+	 * @return a copy which belongs to the caller or null if the base isn't cached
+	 */
+	public synchronized NativeImage copyLevelForSize(String path, int width, int height) {
+		int level = getLevelForSize(path, width, height);
+		return (level >= 0) ? copyLevel(path, level) : null;
+	}
+
+	/**
+	 * Finds the smallest level which is at least as big as the given size in both directions without building it.
+	 * @return the level, 0 if the base is smaller, or -1 if the base isn't cached
+	 */
+	public synchronized int getLevelForSize(String path, int width, int height) {
+		NativeImage image = getLevel(path, 0);
+		if (image == null) {
+			return -1;
+		}
+
+		int level = 0;
+		int levelWidth = image.getWidth();
+		int levelHeight = image.getHeight();
+		while (levelWidth > 1 && levelHeight > 1 && (levelWidth + 1) / 2 >= width && (levelHeight + 1) / 2 >= height) {
+			levelWidth = (levelWidth + 1) / 2;
+			levelHeight = (levelHeight + 1) / 2;
+			level++;
+		}
+		return level;
+	}
+
+	/** Closes all the levels cached for the photo */
+	public synchronized void remove(String path) {
+		Iterator<Map.Entry<Level, NativeImage>> iterator = mLevels.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Level, NativeImage> entry = iterator.next();
+			if (entry.getKey().mPath.equals(path)) {
+				mBytes -= getBytes(entry.getValue());
+				entry.getValue().close();
+				iterator.remove();
+			}
+		}
+	}
+
+	/** Closes every level in the cache */
+	public synchronized void clear() {
+		for (NativeImage image : mLevels.values()) {
+			image.close();
+		}
+		mLevels.clear();
+		mBytes = 0;
+	}
+
+	/** @return the native memory taken up by the cached levels in bytes */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	private NativeImage getLevel(String path, int level) {
+		NativeImage image = mLevels.get(new Level(path, level));
+		if (image != null || level == 0) {
+			return image;
+		}
+
+		NativeImage parent = getLevel(path, level - 1);
+		if (parent == null) {
+			return null;
+		}
+		image = parent.halve();
+		put(new Level(path, level), image);
+		trimToSize(path);
+
+		return image;
+	}
+
+	private void put(Level level, NativeImage image) {
+		NativeImage previous = mLevels.put(level, image);
+		if (previous != null) {
+			mBytes -= getBytes(previous);
+			previous.close();
+		}
+		mBytes += getBytes(image);
+	}
+
+	// The newest entry is the one just used so it's never evicted. Neither is the base of the photo it belongs to,
+	// building a level reads the base before adding the levels above it so the base would otherwise go first.
+	private void trimToSize(String path) {
+		Level base = new Level(path, 0);
+		Iterator<Map.Entry<Level, NativeImage>> iterator = mLevels.entrySet().iterator();
+		while (mBytes > mMaxBytes && iterator.hasNext()) {
+			Map.Entry<Level, NativeImage> entry = iterator.next();
+			if (!iterator.hasNext() || entry.getKey().equals(base)) {
+				continue;
+			}
+			mBytes -= getBytes(entry.getValue());
+			entry.getValue().close();
+			iterator.remove();
+		}
+	}
+
+	private static long getBytes(NativeImage image) {
+		return (long)image.getWidth() * image.getHeight() * BYTES_PER_PIXEL;
+	}
+
+	private static class Level {
+		private final String mPath;
+		private final int mLevel;
+
+		public Level(String path, int level) {
+			mPath = path;
+			mLevel = level;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Level)) {
+				return false;
+			}
+			Level other = (Level)o;
+			return mLevel == other.mLevel && mPath.equals(other.mPath);
+		}
+
+		@Override
+		public int hashCode() {
+			return mPath.hashCode() * 31 + mLevel;
+		}
+	}
+}
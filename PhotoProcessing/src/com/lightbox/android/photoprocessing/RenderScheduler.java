@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * RenderScheduler
+ * Runs previews and saves one at a time on a single background thread.
+ * Only the latest preview is ever rendered, submitting one cancels the one running and replaces any still waiting,
+ * so a burst of taps ends up as a single render. Saves are never dropped or cancelled and run before any waiting preview.
+ * Finished jobs are handed to the listener on the main thread, or held until there is one,
+ * along with any progress they publish on the way.
+ * The threads are only reached through {@link Executor}s, see {@link com.lightbox.android.photoprocessing.utils.ExecutorUtils}
+ * for the ones used on the device.
+ */
+public class RenderScheduler {
+	public static final int PRIORITY_PREVIEW = 0;
+	public static final int PRIORITY_SAVE = 1;
+
+	public interface Listener {
+		/** Called on the main thread for every job that wasn't cancelled and returned normally */
+		void onJobFinished(Job job);
+
+		/**
+		 * Called on the main thread instead of {@link #onJobFinished(Job)} for a job that wasn't cancelled but threw,
+		 * including running out of native memory
+		 */
+		void onJobFailed(Job job, Throwable failure);
+
+		/** Called on the main thread with what a job passed to {@link Job#publishProgress(Object)}, unless it's been cancelled since */
+		void onJobProgress(Job job, Object progress);
+
+		/** Called on the main thread once there are no jobs left, whether the last one finished or was cancelled */
+		void onIdle();
+	}
+
+	public static abstract class Job {
+		private final int mPriority;
+		private volatile boolean mCancelled = false;
+		private NativeImage mCancellableImage;
+		private RenderScheduler mScheduler;
+		private Throwable mFailure;
+
+		protected Job(int priority) {
+			mPriority = priority;
+		}
+
+		/**
+		 * Does the work on the scheduler's thread, it should give up early once {@link #isCancelled()}.
+		 * Anything it throws is passed to {@link Listener#onJobFailed(Job, Throwable)}.
+		 */
+		protected abstract void run() throws Exception;
+
+		public int getPriority() {
+			return mPriority;
+		}
+
+		/** @return what the job threw, or null if it hasn't run yet or returned normally */
+		public Throwable getFailure() {
+			return mFailure;
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/** Stops the native work on the image registered with {@link #setCancellableImage(NativeImage)} at its next strip */
+		public synchronized void cancel() {
+			mCancelled = true;
+			if (mCancellableImage != null) {
+				mCancellableImage.cancel();
+			}
+		}
+
+		/**
+		 * Registers the image being filtered so cancelling the job stops the filter part way through.
+		 * It has to be set back to null before the image is closed.
+		 */
+		protected synchronized void setCancellableImage(NativeImage image) {
+			mCancellableImage = image;
+			if (image != null && mCancelled) {
+				image.cancel();
+			}
+		}
+
+		/**
+		 * Hands part of the result to the listener on the main thread while the job carries on, like a stage of a
+		 * progressive render. It's dropped if there's no listener at the time, only the finished job is held on to.
+		 */
+		protected final void publishProgress(Object progress) {
+			mScheduler.postProgress(this, progress);
+		}
+	}
+
+	private final Executor mExecutor;
+	private final Executor mMainThread;
+
+	// Guarded by this
+	private final LinkedList<Job> mSaves = new LinkedList<Job>();
+	private Job mPreview;
+	private Job mRunning;
+
+	// Only used on the main thread
+	private Listener mListener;
+	private final ArrayList<Job> mUndelivered = new ArrayList<Job>();
+
+	private int mRunCount = 0;
+
+	/**
+	 * @param executor runs the jobs, it has to run one thing at a time in the order it was given
+	 * @param mainThread where the listener is called, everything the scheduler hands it has to run on the same thread
+	 */
+	public RenderScheduler(Executor executor, Executor mainThread) {
+		mExecutor = executor;
+		mMainThread = mainThread;
+	}
+
+	/**
+	 * Sets where finished jobs go, any that finished while there was no listener are passed to it straight away.
+	 * Must be called on the main thread, null holds on to jobs as they finish.
+	 */
+	public void setListener(Listener listener) {
+		mListener = listener;
+		if (mListener != null && !mUndelivered.isEmpty()) {
+			ArrayList<Job> jobs = new ArrayList<Job>(mUndelivered);
+			mUndelivered.clear();
+			for (Job job : jobs) {
+				deliver(job);
+			}
+		}
+	}
+
+	public void submit(Job job) {
+		synchronized (this) {
+			if (job.getPriority() == PRIORITY_SAVE) {
+				mSaves.add(job);
+			} else {
+				if (mPreview != null) {
+					mPreview.cancel();
+				}
+				mPreview = job;
+				if (mRunning != null && mRunning.getPriority() == PRIORITY_PREVIEW) {
+					mRunning.cancel();
+				}
+			}
+		}
+		mExecutor.execute(mRunNext);
+	}
+
+	/** Cancels the preview running and the one waiting, if there are any. Saves carry on. */
+	public synchronized void cancelPreviews() {
+		if (mPreview != null) {
+			mPreview.cancel();
+			mPreview = null;
+		}
+		if (mRunning != null && mRunning.getPriority() == PRIORITY_PREVIEW) {
+			mRunning.cancel();
+		}
+	}
+
+	/** @return true if a job is running or waiting to run */
+	public synchronized boolean isBusy() {
+		return mRunning != null || mPreview != null || !mSaves.isEmpty();
+	}
+
+	/** @return the job running or else the one that will run next, null if there isn't one that hasn't been cancelled */
+	public synchronized Job getCurrentJob() {
+		if (mRunning != null && !mRunning.isCancelled()) {
+			return mRunning;
+		}
+		return !mSaves.isEmpty() ? mSaves.getFirst() : mPreview;
+	}
+
+	/** @return how many jobs have been run, including ones cancelled part way through */
+	public synchronized int getRunCount() {
+		return mRunCount;
+	}
+
+	private void postProgress(final Job job, final Object progress) {
+		mMainThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!job.isCancelled() && mListener != null) {
+					mListener.onJobProgress(job, progress);
+				}
+			}
+		});
+	}
+
+	private void deliver(Job job) {
+		if (job.getFailure() != null) {
+			mListener.onJobFailed(job, job.getFailure());
+		} else {
+			mListener.onJobFinished(job);
+		}
+	}
+
+	// Queued once per submit, when jobs have been coalesced the extra runs find nothing to do
+	private final Runnable mRunNext = new Runnable() {
+		@Override
+		public void run() {
+			final Job job;
+			synchronized (RenderScheduler.this) {
+				if (!mSaves.isEmpty()) {
+					job = mSaves.removeFirst();
+				} else if (mPreview != null) {
+					job = mPreview;
+					mPreview = null;
+				} else {
+					return;
+				}
+				mRunning = job;
+				mRunCount++;
+				job.mScheduler = RenderScheduler.this;
+			}
+
+			try {
+				job.run();
+			} catch (Exception e) {
+				job.mFailure = e;
+			} catch (OutOfMemoryError e) {
+				// NativeImage throws it when native memory runs out, the next job can still have enough
+				job.mFailure = e;
+			} finally {
+				synchronized (RenderScheduler.this) {
+					mRunning = null;
+				}
+			}
+
+			// Checked again on the main thread as a newer preview could have been submitted since
+			mMainThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!job.isCancelled()) {
+						if (mListener != null) {
+							deliver(job);
+						} else {
+							mUndelivered.add(job);
+						}
+					}
+					if (mListener != null && !isBusy()) {
+						mListener.onIdle();
+					}
+				}
+			});
+		}
+	};
+}
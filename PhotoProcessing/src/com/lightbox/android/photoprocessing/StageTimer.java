@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StageTimer
+ * Times a stage for the {@link PhotoProcessingMetrics} and counts the calls it makes into the native library.
+ * Without any metrics set, {@link #start()} returns null and nothing is timed or counted, so all a stage
+ * costs is reading a field.
+ * Every timer that's started has to be stopped, even when the stage throws, or the native peak is never reset again.
+ * <pre>
+ * StageTimer timer = StageTimer.start();
+ * try {
+ *     ...
+ * } finally {
+ *     StageTimer.stop(timer, PhotoProcessingMetrics.STAGE_FILTER);
+ * }
+ * </pre>
+ */
+public final class StageTimer {
+	private static volatile PhotoProcessingMetrics sMetrics;
+	// The native peak is only reset when no other stage is running so none of them miss anything
+	private static final AtomicInteger sRunningStages = new AtomicInteger();
+	private static final ThreadLocal<int[]> sJniCalls = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private final PhotoProcessingMetrics mMetrics;
+	private final int[] mJniCalls;
+	private final int mStartJniCalls;
+	private final long mStartNanos;
+
+	private StageTimer(PhotoProcessingMetrics metrics) {
+		mMetrics = metrics;
+		if (sRunningStages.getAndIncrement() == 0) {
+			boolean reset = false;
+			try {
+				NativeImage.resetPeakMemoryInUse();
+				reset = true;
+			} finally {
+				// No timer comes back to stop, so the stage mustn't be left counted
+				if (!reset) {
+					sRunningStages.decrementAndGet();
+				}
+			}
+		}
+		mJniCalls = sJniCalls.get();
+		mStartJniCalls = mJniCalls[0];
+		mStartNanos = System.nanoTime();
+	}
+
+	/**
+	 * @param metrics what's told about every stage from now on, or null to stop timing them
+	 */
+	public static void setMetrics(PhotoProcessingMetrics metrics) {
+		sMetrics = metrics;
+		NativeImage.setMetricsEnabled(metrics != null);
+	}
+
+	public static boolean isEnabled() {
+		return sMetrics != null;
+	}
+
+	/** @return a timer for a stage starting now, or null if there aren't any metrics */
+	public static StageTimer start() {
+		PhotoProcessingMetrics metrics = sMetrics;
+		return (metrics != null) ? new StageTimer(metrics) : null;
+	}
+
+	/**
+	 * Ends the stage and reports it, does nothing if the timer is null
+	 * @param stage one of the PhotoProcessingMetrics.STAGE_ constants
+	 */
+	public static void stop(StageTimer timer, int stage) {
+		if (timer != null) {
+			timer.stop(stage);
+		}
+	}
+
+	private void stop(int stage) {
+		long nanos = System.nanoTime() - mStartNanos;
+		long peakNativeBytes;
+		try {
+			peakNativeBytes = NativeImage.getPeakMemoryInUse();
+		} finally {
+			sRunningStages.decrementAndGet();
+		}
+		mMetrics.onStageFinished(stage, nanos, peakNativeBytes, mJniCalls[0] - mStartJniCalls);
+	}
+
+	/** Reports a stage the native code timed inside the one this timer is for, if it took any time */
+	void reportNativeStage(int stage, long nanos) {
+		if (nanos > 0) {
+			mMetrics.onStageFinished(stage, nanos, -1, -1);
+		}
+	}
+
+	/** Counts a call into the native library made from this thread */
+	static void countJniCall() {
+		if (sMetrics != null) {
+			sJniCalls.get()[0]++;
+		}
+	}
+}
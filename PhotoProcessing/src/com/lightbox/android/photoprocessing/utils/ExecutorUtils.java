@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 Lightbox
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.lightbox.android.photoprocessing.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * ExecutorUtils
+ * The executors the render classes are given on the device, so they only see {@link Executor} and can be run anywhere.
+ */
+public class ExecutorUtils {
+	private ExecutorUtils() {
+	}
+
+	/** @return a single thread at background priority that runs everything in the order it was given */
+	public static ExecutorService newBackgroundExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, name);
+			}
+		});
+	}
+
+	/** @return an executor that posts to the main thread's looper */
+	public static Executor newMainThreadExecutor() {
+		final Handler handler = new Handler(Looper.getMainLooper());
+		return new Executor() {
+			@Override
+			public void execute(Runnable runnable) {
+				handler.post(runnable);
+			}
+		};
+	}
+}
@@ -16,7 +16,6 @@
 
 package com.lightbox.android.photoprocessing.utils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -31,17 +30,28 @@ public class FileUtils {
 	@SuppressWarnings("unused")
 	private static final String TAG = "FileUtils";
 	
+	/**
+	 * Reads the file straight into an array of its own size so it's only copied once.
+	 * Jpegs being decoded are better memory mapped with {@link com.lightbox.android.photoprocessing.NativeImage#loadResizedJpeg(String, int)}.
+	 */
 	public static byte[] readFileToByteArray(File file) throws IOException {
 		InputStream inputStream = null;
 		try {
 			inputStream = new FileInputStream(file);
-			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024 * 4];
+			long length = file.length();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("File too big to read into an array: " + file);
+			}
+			byte[] bytes = new byte[(int) length];
+			int offset = 0;
 			int n = 0;
-			while (-1 != (n = inputStream.read(buffer))) {
-				output.write(buffer, 0, n);
+			while (offset < bytes.length && -1 != (n = inputStream.read(bytes, offset, bytes.length - offset))) {
+				offset += n;
+			}
+			if (offset < bytes.length) {
+				throw new IOException("File shorter than expected: " + file);
 			}
-			return output.toByteArray();
+			return bytes;
 		} finally {
 			try {
 				if (inputStream != null) {